@@ -2,20 +2,31 @@ package main;
 
 import models.*;
 import services.*;
+import utils.DatabaseManager;
 import utils.DateUtils;
+import utils.ShardedStorageEngine;
+import utils.WriteBehindStorageEngine;
 import utils.ValidationUtils;
 
 import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.time.LocalTime;
 import java.util.List;
+import java.util.Map;
 import java.util.Scanner;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * Main Hospital Management System Application
  */
 public class HospitalManagementSystem {
+    private static final int MAX_LOADER_THREADS = 4;
+    private static final long COMPACTION_INTERVAL_SECONDS = 60;
+    private static final int WRITE_BEHIND_QUEUE_CAPACITY = 256;
+    private static final int APPOINTMENT_ARCHIVE_AGE_DAYS = 365;
     private Scanner scanner;
+    private WriteBehindStorageEngine storage;
     private PatientService patientService;
     private StaffService staffService;
     private AppointmentService appointmentService;
@@ -30,22 +41,55 @@ public class HospitalManagementSystem {
     
     private void initializeServices() {
         System.out.println("Initializing Hospital Management System...");
+        long start = System.nanoTime();
+        
+        // Load every data file and every shard in parallel; each service constructor
+        // below only waits for the files it reads itself
+        DatabaseManager dbManager = DatabaseManager.getInstance();
+        ShardedStorageEngine sharded = StorageSetup.getDefaultEngine();
+        int threads = Math.min(MAX_LOADER_THREADS, Runtime.getRuntime().availableProcessors());
+        ExecutorService loader = Executors.newFixedThreadPool(threads);
+        sharded.preload(PatientService.PATIENTS_FILE, Patient::getPatientId, loader);
+        dbManager.preloadData(StaffService.STAFF_FILE, Staff::getStaffId, loader);
+        dbManager.preloadData(StaffService.DOCTORS_FILE, Doctor::getDoctorId, loader);
+        sharded.preload(AppointmentService.APPOINTMENTS_FILE, Appointment::getAppointmentId, loader);
+        sharded.preload(BillingService.BILLS_FILE, Bill::getBillId, loader);
+        dbManager.preloadData(InventoryService.SUPPLIES_FILE, MedicalSupply::getSupplyId, loader);
+        loader.shutdown();
+        
+        // Menu operations queue their changes; a writer thread persists them
+        this.storage = new WriteBehindStorageEngine(sharded, WRITE_BEHIND_QUEUE_CAPACITY);
+        // Queued writes are also performed if the program ends without the Exit option
+        Runtime.getRuntime().addShutdownHook(new Thread(storage::close, "write-behind-shutdown"));
         
         // Initialize services in dependency order
-        this.patientService = new PatientService();
-        this.staffService = new StaffService();
-        this.appointmentService = new AppointmentService(patientService, staffService);
-        this.ehrService = new EHRService(patientService, staffService);
-        this.billingService = new BillingService(patientService, appointmentService);
-        this.inventoryService = new InventoryService();
+        this.patientService = new PatientService(storage);
+        this.staffService = new StaffService(storage);
+        this.appointmentService = new AppointmentService(patientService, staffService, storage);
+        this.ehrService = new EHRService(patientService, staffService, storage);
+        this.billingService = new BillingService(patientService, appointmentService, storage);
+        this.inventoryService = new InventoryService(storage);
         
+        printLoadTimes(dbManager.getLoadTimes(), (System.nanoTime() - start) / 1_000_000);
+        
+        // Checkpoint delta logs into the base files in the background
+        dbManager.startCompactor(COMPACTION_INTERVAL_SECONDS);
+        // Pick up changes made from other terminals sharing the data directory
+        dbManager.startWatcher();
         System.out.println("System initialized successfully!");
     }
     
+    private void printLoadTimes(Map<String, Long> loadTimes, long totalMillis) {
+        System.out.println("Data files loaded:");
+        loadTimes.forEach((file, millis) -> System.out.printf("  %-28s %6d ms%n", file, millis));
+        System.out.printf("  %-28s %6d ms%n", "Total startup", totalMillis);
+    }
+    
     public void run() {
         System.out.println("\n=== Welcome to Hospital Management System ===");
         
         while (true) {
+            loadExternalChanges();
             displayMainMenu();
             int choice = getIntInput("Enter your choice: ");
             
@@ -74,7 +118,13 @@ public class HospitalManagementSystem {
                 case 8:
                     displaySystemAlerts();
                     break;
+                case 9:
+                    archiveHistoricalRecords();
+                    break;
                 case 0:
+                    storage.close();
+                    DatabaseManager.getInstance().stopWatcher();
+                    DatabaseManager.getInstance().stopCompactor();
                     System.out.println("Thank you for using Hospital Management System!");
                     return;
                 default:
@@ -83,6 +133,16 @@ public class HospitalManagementSystem {
         }
     }
     
+    /**
+     * Apply the changes other terminals made since the last menu was shown
+     */
+    private void loadExternalChanges() {
+        int changes = DatabaseManager.getInstance().applyExternalChanges();
+        if (changes > 0) {
+            System.out.println("\n[" + changes + " change(s) from another terminal loaded]");
+        }
+    }
+    
     private void displayMainMenu() {
         System.out.println("\n=== MAIN MENU ===");
         System.out.println("1. Patient Management");
@@ -93,12 +153,14 @@ public class HospitalManagementSystem {
         System.out.println("6. Staff Management");
         System.out.println("7. System Statistics");
         System.out.println("8. System Alerts");
+        System.out.println("9. Archive Historical Records");
         System.out.println("0. Exit");
         System.out.println("==================");
     }
     
     private void handlePatientManagement() {
         while (true) {
+            loadExternalChanges();
             System.out.println("\n=== PATIENT MANAGEMENT ===");
             System.out.println("1. Register New Patient");
             System.out.println("2. Search Patient");
@@ -197,6 +259,7 @@ public class HospitalManagementSystem {
     
     private void handleAppointmentManagement() {
         while (true) {
+            loadExternalChanges();
             System.out.println("\n=== APPOINTMENT MANAGEMENT ===");
             System.out.println("1. Schedule New Appointment");
             System.out.println("2. View Appointments");
@@ -205,6 +268,7 @@ public class HospitalManagementSystem {
             System.out.println("5. Complete Appointment");
             System.out.println("6. Today's Appointments");
             System.out.println("7. Appointment Statistics");
+            System.out.println("8. Find Available Slots");
             System.out.println("0. Back to Main Menu");
             
             int choice = getIntInput("Enter your choice: ");
@@ -231,6 +295,9 @@ public class HospitalManagementSystem {
                 case 7:
                     appointmentService.printAppointmentStatistics();
                     break;
+                case 8:
+                    findAvailableSlots();
+                    break;
                 case 0:
                     return;
                 default:
@@ -299,6 +366,25 @@ public class HospitalManagementSystem {
         }
     }
     
+    /**
+     * Move inactive patients, old finished appointments and paid bills to the archives
+     */
+    private void archiveHistoricalRecords() {
+        System.out.println("\n=== ARCHIVE HISTORICAL RECORDS ===");
+        printArchived("inactive patients", patientService.archiveInactivePatients());
+        printArchived("appointments older than " + APPOINTMENT_ARCHIVE_AGE_DAYS + " days",
+                      appointmentService.archiveAppointments(APPOINTMENT_ARCHIVE_AGE_DAYS));
+        printArchived("paid bills", billingService.archivePaidBills());
+    }
+    
+    private void printArchived(String what, int count) {
+        if (count < 0) {
+            System.out.println("Archiving " + what + " failed.");
+        } else {
+            System.out.println("Archived " + count + " " + what + ".");
+        }
+    }
+    
     // Utility methods for input handling
     private String getStringInput(String prompt) {
         System.out.print(prompt);
@@ -402,7 +488,29 @@ public class HospitalManagementSystem {
     private void completeAppointment() {
         String appointmentId = getStringInput("Enter Appointment ID to complete: ");
         String notes = getStringInput("Enter completion notes (optional): ");
-        appointmentService.completeAppointment(appointmentId, notes);
+        String createBill = getStringInput("Create the bill for this appointment now? (y/n): ");
+        if (createBill.equalsIgnoreCase("y")) {
+            // Both changes are saved together
+            billingService.completeAppointmentAndBill(appointmentId, notes);
+        } else {
+            appointmentService.completeAppointment(appointmentId, notes);
+        }
+    }
+    
+    private void findAvailableSlots() {
+        String doctorId = getStringInput("Doctor ID: ");
+        LocalDate fromDate = getDateInput("From date (YYYY-MM-DD): ");
+        int days = getIntInput("Number of days: ");
+        
+        List<LocalDateTime> slots = appointmentService.findAvailableSlots(doctorId, fromDate.atStartOfDay(),
+                                                                          fromDate.plusDays(days).atStartOfDay());
+        System.out.println("\n=== AVAILABLE SLOTS ===");
+        if (slots.isEmpty()) {
+            System.out.println("No free slots in this period.");
+        } else {
+            slots.forEach(slot -> System.out.println(DateUtils.formatDateTime(slot)));
+        }
+        System.out.println("=======================");
     }
     
     private void viewTodaysAppointments() {
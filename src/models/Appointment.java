@@ -1,13 +1,20 @@
 package models;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.io.Serializable;
 import java.time.LocalDateTime;
 
 /**
- * Appointment model class representing a patient-doctor appointment
+ * Appointment model class representing a patient-doctor appointment.
+ * Date-times are kept as epoch seconds (see EpochTime); the getters return LocalDateTime views.
  */
 public class Appointment implements Serializable {
     private static final long serialVersionUID = 1L;
+    // Every appointment is booked for this long
+    public static final int DURATION_MINUTES = 30;
     
     public enum AppointmentStatus {
         SCHEDULED, CONFIRMED, IN_PROGRESS, COMPLETED, CANCELLED, NO_SHOW
@@ -16,20 +23,36 @@ public class Appointment implements Serializable {
     private String appointmentId;
     private String patientId;
     private String doctorId;
-    private LocalDateTime appointmentDateTime;
+    private long appointmentDateTime;
     private String reason;
     private String notes;
     private AppointmentStatus status;
     private double consultationFee;
-    private LocalDateTime createdAt;
-    private LocalDateTime updatedAt;
+    private long createdAt;
+    private long updatedAt;
     private String createdBy;
     
+    // Java serialization keeps the original LocalDateTime fields, so older files still load
+    private static final ObjectStreamField[] serialPersistentFields = {
+        new ObjectStreamField("appointmentId", String.class),
+        new ObjectStreamField("patientId", String.class),
+        new ObjectStreamField("doctorId", String.class),
+        new ObjectStreamField("appointmentDateTime", LocalDateTime.class),
+        new ObjectStreamField("reason", String.class),
+        new ObjectStreamField("notes", String.class),
+        new ObjectStreamField("status", AppointmentStatus.class),
+        new ObjectStreamField("consultationFee", double.class),
+        new ObjectStreamField("createdAt", LocalDateTime.class),
+        new ObjectStreamField("updatedAt", LocalDateTime.class),
+        new ObjectStreamField("createdBy", String.class)
+    };
+    
     // Constructors
     public Appointment() {
+        this.appointmentDateTime = EpochTime.NO_TIME;
         this.status = AppointmentStatus.SCHEDULED;
-        this.createdAt = LocalDateTime.now();
-        this.updatedAt = LocalDateTime.now();
+        this.createdAt = EpochTime.now();
+        this.updatedAt = createdAt;
     }
     
     public Appointment(String appointmentId, String patientId, String doctorId, 
@@ -38,7 +61,7 @@ public class Appointment implements Serializable {
         this.appointmentId = appointmentId;
         this.patientId = patientId;
         this.doctorId = doctorId;
-        this.appointmentDateTime = appointmentDateTime;
+        this.appointmentDateTime = EpochTime.toSeconds(appointmentDateTime);
         this.reason = reason;
     }
     
@@ -52,50 +75,55 @@ public class Appointment implements Serializable {
     public String getDoctorId() { return doctorId; }
     public void setDoctorId(String doctorId) { this.doctorId = doctorId; }
     
-    public LocalDateTime getAppointmentDateTime() { return appointmentDateTime; }
+    public LocalDateTime getAppointmentDateTime() { return EpochTime.toDateTime(appointmentDateTime); }
     public void setAppointmentDateTime(LocalDateTime appointmentDateTime) { 
-        this.appointmentDateTime = appointmentDateTime; 
-        this.updatedAt = LocalDateTime.now();
+        this.appointmentDateTime = EpochTime.toSeconds(appointmentDateTime); 
+        this.updatedAt = EpochTime.now();
     }
     
+    /**
+     * Appointment time in epoch seconds, or EpochTime.NO_TIME; compares without creating objects
+     */
+    public long getAppointmentEpochSecond() { return appointmentDateTime; }
+    
     public String getReason() { return reason; }
     public void setReason(String reason) { 
         this.reason = reason; 
-        this.updatedAt = LocalDateTime.now();
+        this.updatedAt = EpochTime.now();
     }
     
     public String getNotes() { return notes; }
     public void setNotes(String notes) { 
         this.notes = notes; 
-        this.updatedAt = LocalDateTime.now();
+        this.updatedAt = EpochTime.now();
     }
     
     public AppointmentStatus getStatus() { return status; }
     public void setStatus(AppointmentStatus status) { 
         this.status = status; 
-        this.updatedAt = LocalDateTime.now();
+        this.updatedAt = EpochTime.now();
     }
     
     public double getConsultationFee() { return consultationFee; }
     public void setConsultationFee(double consultationFee) { this.consultationFee = consultationFee; }
     
-    public LocalDateTime getCreatedAt() { return createdAt; }
-    public void setCreatedAt(LocalDateTime createdAt) { this.createdAt = createdAt; }
+    public LocalDateTime getCreatedAt() { return EpochTime.toDateTime(createdAt); }
+    public void setCreatedAt(LocalDateTime createdAt) { this.createdAt = EpochTime.toSeconds(createdAt); }
     
-    public LocalDateTime getUpdatedAt() { return updatedAt; }
-    public void setUpdatedAt(LocalDateTime updatedAt) { this.updatedAt = updatedAt; }
+    public LocalDateTime getUpdatedAt() { return EpochTime.toDateTime(updatedAt); }
+    public void setUpdatedAt(LocalDateTime updatedAt) { this.updatedAt = EpochTime.toSeconds(updatedAt); }
     
     public String getCreatedBy() { return createdBy; }
     public void setCreatedBy(String createdBy) { this.createdBy = createdBy; }
     
     // Utility methods
     public boolean isUpcoming() {
-        return appointmentDateTime.isAfter(LocalDateTime.now()) && 
+        return appointmentDateTime > EpochTime.now() && 
                (status == AppointmentStatus.SCHEDULED || status == AppointmentStatus.CONFIRMED);
     }
     
     public boolean isPast() {
-        return appointmentDateTime.isBefore(LocalDateTime.now());
+        return appointmentDateTime != EpochTime.NO_TIME && appointmentDateTime < EpochTime.now();
     }
     
     public boolean canBeCancelled() {
@@ -106,15 +134,61 @@ public class Appointment implements Serializable {
         return status == AppointmentStatus.SCHEDULED || status == AppointmentStatus.CONFIRMED;
     }
     
+    /**
+     * Whether the appointment takes up the doctor's time, so that others may not overlap it:
+     * the appointments that are still open, as for rescheduling
+     */
+    public boolean holdsSlot() {
+        return canBeRescheduled();
+    }
+    
     public long getDurationInMinutes() {
-        // Default appointment duration is 30 minutes
-        return 30;
+        return DURATION_MINUTES;
+    }
+    
+    /**
+     * End of the appointment in epoch seconds, or EpochTime.NO_TIME
+     */
+    public long getEndEpochSecond() {
+        return appointmentDateTime == EpochTime.NO_TIME ? EpochTime.NO_TIME
+                                                        : appointmentDateTime + getDurationInMinutes() * 60;
     }
     
     @Override
     public String toString() {
         return String.format("Appointment{ID='%s', Patient='%s', Doctor='%s', DateTime='%s', Status='%s'}", 
-                           appointmentId, patientId, doctorId, appointmentDateTime, status);
+                           appointmentId, patientId, doctorId, getAppointmentDateTime(), status);
+    }
+    
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        ObjectOutputStream.PutField fields = out.putFields();
+        fields.put("appointmentId", appointmentId);
+        fields.put("patientId", patientId);
+        fields.put("doctorId", doctorId);
+        fields.put("appointmentDateTime", getAppointmentDateTime());
+        fields.put("reason", reason);
+        fields.put("notes", notes);
+        fields.put("status", status);
+        fields.put("consultationFee", consultationFee);
+        fields.put("createdAt", getCreatedAt());
+        fields.put("updatedAt", getUpdatedAt());
+        fields.put("createdBy", createdBy);
+        out.writeFields();
+    }
+    
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        ObjectInputStream.GetField fields = in.readFields();
+        appointmentId = (String) fields.get("appointmentId", null);
+        patientId = (String) fields.get("patientId", null);
+        doctorId = (String) fields.get("doctorId", null);
+        appointmentDateTime = EpochTime.toSeconds((LocalDateTime) fields.get("appointmentDateTime", null));
+        reason = (String) fields.get("reason", null);
+        notes = (String) fields.get("notes", null);
+        status = (AppointmentStatus) fields.get("status", null);
+        consultationFee = fields.get("consultationFee", 0.0);
+        createdAt = EpochTime.toSeconds((LocalDateTime) fields.get("createdAt", null));
+        updatedAt = EpochTime.toSeconds((LocalDateTime) fields.get("updatedAt", null));
+        createdBy = (String) fields.get("createdBy", null);
     }
     
     @Override
@@ -1,12 +1,17 @@
 package models;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.io.Serializable;
 import java.time.LocalDateTime;
 import java.util.ArrayList;
 import java.util.List;
 
 /**
- * Bill model class representing a patient's medical bill
+ * Bill model class representing a patient's medical bill.
+ * Date-times are kept as epoch seconds (see EpochTime); the getters return LocalDateTime views.
  */
 public class Bill implements Serializable {
     private static final long serialVersionUID = 1L;
@@ -58,7 +63,7 @@ public class Bill implements Serializable {
     private String billId;
     private String patientId;
     private String appointmentId;
-    private LocalDateTime billDate;
+    private long billDate;
     private List<BillItem> items;
     private double subtotal;
     private double taxAmount;
@@ -67,16 +72,36 @@ public class Bill implements Serializable {
     private double paidAmount;
     private double balanceAmount;
     private PaymentStatus paymentStatus;
-    private LocalDateTime dueDate;
+    private long dueDate;
     private String paymentMethod;
     private String notes;
     private boolean isActive;
     
+    // Java serialization keeps the original LocalDateTime fields, so older files still load
+    private static final ObjectStreamField[] serialPersistentFields = {
+        new ObjectStreamField("billId", String.class),
+        new ObjectStreamField("patientId", String.class),
+        new ObjectStreamField("appointmentId", String.class),
+        new ObjectStreamField("billDate", LocalDateTime.class),
+        new ObjectStreamField("items", List.class),
+        new ObjectStreamField("subtotal", double.class),
+        new ObjectStreamField("taxAmount", double.class),
+        new ObjectStreamField("discountAmount", double.class),
+        new ObjectStreamField("totalAmount", double.class),
+        new ObjectStreamField("paidAmount", double.class),
+        new ObjectStreamField("balanceAmount", double.class),
+        new ObjectStreamField("paymentStatus", PaymentStatus.class),
+        new ObjectStreamField("dueDate", LocalDateTime.class),
+        new ObjectStreamField("paymentMethod", String.class),
+        new ObjectStreamField("notes", String.class),
+        new ObjectStreamField("isActive", boolean.class)
+    };
+    
     // Constructors
     public Bill() {
         this.items = new ArrayList<>();
-        this.billDate = LocalDateTime.now();
-        this.dueDate = LocalDateTime.now().plusDays(30); // 30 days payment term
+        this.billDate = EpochTime.now();
+        this.dueDate = EpochTime.toSeconds(LocalDateTime.now().plusDays(30)); // 30 days payment term
         this.paymentStatus = PaymentStatus.PENDING;
         this.isActive = true;
     }
@@ -98,8 +123,8 @@ public class Bill implements Serializable {
     public String getAppointmentId() { return appointmentId; }
     public void setAppointmentId(String appointmentId) { this.appointmentId = appointmentId; }
     
-    public LocalDateTime getBillDate() { return billDate; }
-    public void setBillDate(LocalDateTime billDate) { this.billDate = billDate; }
+    public LocalDateTime getBillDate() { return EpochTime.toDateTime(billDate); }
+    public void setBillDate(LocalDateTime billDate) { this.billDate = EpochTime.toSeconds(billDate); }
     
     public List<BillItem> getItems() { return items; }
     public void setItems(List<BillItem> items) { 
@@ -132,8 +157,8 @@ public class Bill implements Serializable {
     public PaymentStatus getPaymentStatus() { return paymentStatus; }
     public void setPaymentStatus(PaymentStatus paymentStatus) { this.paymentStatus = paymentStatus; }
     
-    public LocalDateTime getDueDate() { return dueDate; }
-    public void setDueDate(LocalDateTime dueDate) { this.dueDate = dueDate; }
+    public LocalDateTime getDueDate() { return EpochTime.toDateTime(dueDate); }
+    public void setDueDate(LocalDateTime dueDate) { this.dueDate = EpochTime.toSeconds(dueDate); }
     
     public String getPaymentMethod() { return paymentMethod; }
     public void setPaymentMethod(String paymentMethod) { this.paymentMethod = paymentMethod; }
@@ -169,7 +194,7 @@ public class Bill implements Serializable {
             paymentStatus = PaymentStatus.PAID;
         } else if (paidAmount > 0) {
             paymentStatus = PaymentStatus.PARTIAL;
-        } else if (LocalDateTime.now().isAfter(dueDate)) {
+        } else if (dueDate != EpochTime.NO_TIME && EpochTime.now() > dueDate) {
             paymentStatus = PaymentStatus.OVERDUE;
         } else {
             paymentStatus = PaymentStatus.PENDING;
@@ -177,13 +202,55 @@ public class Bill implements Serializable {
     }
     
     public boolean isOverdue() {
-        return LocalDateTime.now().isAfter(dueDate) && balanceAmount > 0;
+        return dueDate != EpochTime.NO_TIME && EpochTime.now() > dueDate && balanceAmount > 0;
     }
     
     public boolean isPaid() {
         return paymentStatus == PaymentStatus.PAID;
     }
     
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        ObjectOutputStream.PutField fields = out.putFields();
+        fields.put("billId", billId);
+        fields.put("patientId", patientId);
+        fields.put("appointmentId", appointmentId);
+        fields.put("billDate", getBillDate());
+        fields.put("items", items);
+        fields.put("subtotal", subtotal);
+        fields.put("taxAmount", taxAmount);
+        fields.put("discountAmount", discountAmount);
+        fields.put("totalAmount", totalAmount);
+        fields.put("paidAmount", paidAmount);
+        fields.put("balanceAmount", balanceAmount);
+        fields.put("paymentStatus", paymentStatus);
+        fields.put("dueDate", getDueDate());
+        fields.put("paymentMethod", paymentMethod);
+        fields.put("notes", notes);
+        fields.put("isActive", isActive);
+        out.writeFields();
+    }
+    
+    @SuppressWarnings("unchecked")
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        ObjectInputStream.GetField fields = in.readFields();
+        billId = (String) fields.get("billId", null);
+        patientId = (String) fields.get("patientId", null);
+        appointmentId = (String) fields.get("appointmentId", null);
+        billDate = EpochTime.toSeconds((LocalDateTime) fields.get("billDate", null));
+        items = (List<BillItem>) fields.get("items", null);
+        subtotal = fields.get("subtotal", 0.0);
+        taxAmount = fields.get("taxAmount", 0.0);
+        discountAmount = fields.get("discountAmount", 0.0);
+        totalAmount = fields.get("totalAmount", 0.0);
+        paidAmount = fields.get("paidAmount", 0.0);
+        balanceAmount = fields.get("balanceAmount", 0.0);
+        paymentStatus = (PaymentStatus) fields.get("paymentStatus", null);
+        dueDate = EpochTime.toSeconds((LocalDateTime) fields.get("dueDate", null));
+        paymentMethod = (String) fields.get("paymentMethod", null);
+        notes = (String) fields.get("notes", null);
+        isActive = fields.get("isActive", false);
+    }
+    
     @Override
     public String toString() {
         return String.format("Bill{ID='%s', Patient='%s', Total=$%.2f, Status='%s'}", 
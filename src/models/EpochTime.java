@@ -0,0 +1,43 @@
+package models;
+
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+
+/**
+ * EpochTime class for the primitive form in which models keep their dates and times.
+ * A date-time is held as a long of seconds since the epoch and a date as an int of days
+ * since the epoch, with a sentinel for null. Date-times are local, as LocalDateTime is:
+ * the UTC offset only fixes the mapping and does not shift any value. Sub-second parts
+ * are not kept.
+ */
+public final class EpochTime {
+    public static final long NO_TIME = Long.MIN_VALUE;
+    public static final int NO_DATE = Integer.MIN_VALUE;
+
+    private EpochTime() {
+    }
+
+    public static long toSeconds(LocalDateTime dateTime) {
+        return dateTime == null ? NO_TIME : dateTime.toEpochSecond(ZoneOffset.UTC);
+    }
+
+    public static LocalDateTime toDateTime(long seconds) {
+        return seconds == NO_TIME ? null : LocalDateTime.ofEpochSecond(seconds, 0, ZoneOffset.UTC);
+    }
+
+    public static int toDays(LocalDate date) {
+        return date == null ? NO_DATE : (int) date.toEpochDay();
+    }
+
+    public static LocalDate toDate(int days) {
+        return days == NO_DATE ? null : LocalDate.ofEpochDay(days);
+    }
+
+    /**
+     * The current local date-time in seconds
+     */
+    public static long now() {
+        return toSeconds(LocalDateTime.now());
+    }
+}
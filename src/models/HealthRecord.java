@@ -1,12 +1,17 @@
 package models;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.io.Serializable;
 import java.time.LocalDateTime;
 import java.util.ArrayList;
 import java.util.List;
 
 /**
- * HealthRecord model class representing a patient's electronic health record
+ * HealthRecord model class representing a patient's electronic health record.
+ * Date-times are kept as epoch seconds (see EpochTime); the getters return LocalDateTime views.
  */
 public class HealthRecord implements Serializable {
     private static final long serialVersionUID = 1L;
@@ -14,7 +19,7 @@ public class HealthRecord implements Serializable {
     private String recordId;
     private String patientId;
     private String doctorId;
-    private LocalDateTime visitDate;
+    private long visitDate;
     private String chiefComplaint;
     private String symptoms;
     private String diagnosis;
@@ -28,13 +33,37 @@ public class HealthRecord implements Serializable {
     private double temperature; // in Celsius
     private int heartRate;
     private String followUpInstructions;
-    private LocalDateTime nextVisitDate;
+    private long nextVisitDate;
     private boolean isActive;
     
+    // Java serialization keeps the original LocalDateTime fields, so older files still load
+    private static final ObjectStreamField[] serialPersistentFields = {
+        new ObjectStreamField("recordId", String.class),
+        new ObjectStreamField("patientId", String.class),
+        new ObjectStreamField("doctorId", String.class),
+        new ObjectStreamField("visitDate", LocalDateTime.class),
+        new ObjectStreamField("chiefComplaint", String.class),
+        new ObjectStreamField("symptoms", String.class),
+        new ObjectStreamField("diagnosis", String.class),
+        new ObjectStreamField("treatment", String.class),
+        new ObjectStreamField("prescriptions", List.class),
+        new ObjectStreamField("labResults", String.class),
+        new ObjectStreamField("notes", String.class),
+        new ObjectStreamField("height", double.class),
+        new ObjectStreamField("weight", double.class),
+        new ObjectStreamField("bloodPressure", String.class),
+        new ObjectStreamField("temperature", double.class),
+        new ObjectStreamField("heartRate", int.class),
+        new ObjectStreamField("followUpInstructions", String.class),
+        new ObjectStreamField("nextVisitDate", LocalDateTime.class),
+        new ObjectStreamField("isActive", boolean.class)
+    };
+    
     // Constructors
     public HealthRecord() {
         this.prescriptions = new ArrayList<>();
-        this.visitDate = LocalDateTime.now();
+        this.visitDate = EpochTime.now();
+        this.nextVisitDate = EpochTime.NO_TIME;
         this.isActive = true;
     }
     
@@ -56,8 +85,8 @@ public class HealthRecord implements Serializable {
     public String getDoctorId() { return doctorId; }
     public void setDoctorId(String doctorId) { this.doctorId = doctorId; }
     
-    public LocalDateTime getVisitDate() { return visitDate; }
-    public void setVisitDate(LocalDateTime visitDate) { this.visitDate = visitDate; }
+    public LocalDateTime getVisitDate() { return EpochTime.toDateTime(visitDate); }
+    public void setVisitDate(LocalDateTime visitDate) { this.visitDate = EpochTime.toSeconds(visitDate); }
     
     public String getChiefComplaint() { return chiefComplaint; }
     public void setChiefComplaint(String chiefComplaint) { this.chiefComplaint = chiefComplaint; }
@@ -99,8 +128,8 @@ public class HealthRecord implements Serializable {
     public String getFollowUpInstructions() { return followUpInstructions; }
     public void setFollowUpInstructions(String followUpInstructions) { this.followUpInstructions = followUpInstructions; }
     
-    public LocalDateTime getNextVisitDate() { return nextVisitDate; }
-    public void setNextVisitDate(LocalDateTime nextVisitDate) { this.nextVisitDate = nextVisitDate; }
+    public LocalDateTime getNextVisitDate() { return EpochTime.toDateTime(nextVisitDate); }
+    public void setNextVisitDate(LocalDateTime nextVisitDate) { this.nextVisitDate = EpochTime.toSeconds(nextVisitDate); }
     
     public boolean isActive() { return isActive; }
     public void setActive(boolean active) { isActive = active; }
@@ -123,13 +152,61 @@ public class HealthRecord implements Serializable {
     }
     
     public boolean hasFollowUp() {
-        return nextVisitDate != null && nextVisitDate.isAfter(LocalDateTime.now());
+        return nextVisitDate > EpochTime.now();
     }
     
     @Override
     public String toString() {
         return String.format("HealthRecord{ID='%s', Patient='%s', Doctor='%s', Date='%s', Diagnosis='%s'}", 
-                           recordId, patientId, doctorId, visitDate, diagnosis);
+                           recordId, patientId, doctorId, getVisitDate(), diagnosis);
+    }
+    
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        ObjectOutputStream.PutField fields = out.putFields();
+        fields.put("recordId", recordId);
+        fields.put("patientId", patientId);
+        fields.put("doctorId", doctorId);
+        fields.put("visitDate", getVisitDate());
+        fields.put("chiefComplaint", chiefComplaint);
+        fields.put("symptoms", symptoms);
+        fields.put("diagnosis", diagnosis);
+        fields.put("treatment", treatment);
+        fields.put("prescriptions", prescriptions);
+        fields.put("labResults", labResults);
+        fields.put("notes", notes);
+        fields.put("height", height);
+        fields.put("weight", weight);
+        fields.put("bloodPressure", bloodPressure);
+        fields.put("temperature", temperature);
+        fields.put("heartRate", heartRate);
+        fields.put("followUpInstructions", followUpInstructions);
+        fields.put("nextVisitDate", getNextVisitDate());
+        fields.put("isActive", isActive);
+        out.writeFields();
+    }
+    
+    @SuppressWarnings("unchecked")
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        ObjectInputStream.GetField fields = in.readFields();
+        recordId = (String) fields.get("recordId", null);
+        patientId = (String) fields.get("patientId", null);
+        doctorId = (String) fields.get("doctorId", null);
+        visitDate = EpochTime.toSeconds((LocalDateTime) fields.get("visitDate", null));
+        chiefComplaint = (String) fields.get("chiefComplaint", null);
+        symptoms = (String) fields.get("symptoms", null);
+        diagnosis = (String) fields.get("diagnosis", null);
+        treatment = (String) fields.get("treatment", null);
+        prescriptions = (List<String>) fields.get("prescriptions", null);
+        labResults = (String) fields.get("labResults", null);
+        notes = (String) fields.get("notes", null);
+        height = fields.get("height", 0.0);
+        weight = fields.get("weight", 0.0);
+        bloodPressure = (String) fields.get("bloodPressure", null);
+        temperature = fields.get("temperature", 0.0);
+        heartRate = fields.get("heartRate", 0);
+        followUpInstructions = (String) fields.get("followUpInstructions", null);
+        nextVisitDate = EpochTime.toSeconds((LocalDateTime) fields.get("nextVisitDate", null));
+        isActive = fields.get("isActive", false);
     }
     
     @Override
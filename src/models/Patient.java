@@ -1,12 +1,17 @@
 package models;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.io.Serializable;
 import java.time.LocalDate;
 import java.util.ArrayList;
 import java.util.List;
 
 /**
- * Patient model class representing a hospital patient
+ * Patient model class representing a hospital patient.
+ * Dates are kept as epoch days (see EpochTime); the getters return LocalDate views.
  */
 public class Patient implements Serializable {
     private static final long serialVersionUID = 1L;
@@ -14,7 +19,7 @@ public class Patient implements Serializable {
     private String patientId;
     private String firstName;
     private String lastName;
-    private LocalDate dateOfBirth;
+    private int dateOfBirth;
     private String gender;
     private String phoneNumber;
     private String email;
@@ -24,13 +29,33 @@ public class Patient implements Serializable {
     private String bloodGroup;
     private List<String> allergies;
     private String insuranceNumber;
-    private LocalDate registrationDate;
+    private int registrationDate;
     private boolean isActive;
     
+    // Java serialization keeps the original LocalDate fields, so older files still load
+    private static final ObjectStreamField[] serialPersistentFields = {
+        new ObjectStreamField("patientId", String.class),
+        new ObjectStreamField("firstName", String.class),
+        new ObjectStreamField("lastName", String.class),
+        new ObjectStreamField("dateOfBirth", LocalDate.class),
+        new ObjectStreamField("gender", String.class),
+        new ObjectStreamField("phoneNumber", String.class),
+        new ObjectStreamField("email", String.class),
+        new ObjectStreamField("address", String.class),
+        new ObjectStreamField("emergencyContact", String.class),
+        new ObjectStreamField("emergencyPhone", String.class),
+        new ObjectStreamField("bloodGroup", String.class),
+        new ObjectStreamField("allergies", List.class),
+        new ObjectStreamField("insuranceNumber", String.class),
+        new ObjectStreamField("registrationDate", LocalDate.class),
+        new ObjectStreamField("isActive", boolean.class)
+    };
+    
     // Constructors
     public Patient() {
         this.allergies = new ArrayList<>();
-        this.registrationDate = LocalDate.now();
+        this.dateOfBirth = EpochTime.NO_DATE;
+        this.registrationDate = EpochTime.toDays(LocalDate.now());
         this.isActive = true;
     }
     
@@ -40,7 +65,7 @@ public class Patient implements Serializable {
         this.patientId = patientId;
         this.firstName = firstName;
         this.lastName = lastName;
-        this.dateOfBirth = dateOfBirth;
+        this.dateOfBirth = EpochTime.toDays(dateOfBirth);
         this.gender = gender;
         this.phoneNumber = phoneNumber;
     }
@@ -55,8 +80,8 @@ public class Patient implements Serializable {
     public String getLastName() { return lastName; }
     public void setLastName(String lastName) { this.lastName = lastName; }
     
-    public LocalDate getDateOfBirth() { return dateOfBirth; }
-    public void setDateOfBirth(LocalDate dateOfBirth) { this.dateOfBirth = dateOfBirth; }
+    public LocalDate getDateOfBirth() { return EpochTime.toDate(dateOfBirth); }
+    public void setDateOfBirth(LocalDate dateOfBirth) { this.dateOfBirth = EpochTime.toDays(dateOfBirth); }
     
     public String getGender() { return gender; }
     public void setGender(String gender) { this.gender = gender; }
@@ -86,8 +111,8 @@ public class Patient implements Serializable {
     public String getInsuranceNumber() { return insuranceNumber; }
     public void setInsuranceNumber(String insuranceNumber) { this.insuranceNumber = insuranceNumber; }
     
-    public LocalDate getRegistrationDate() { return registrationDate; }
-    public void setRegistrationDate(LocalDate registrationDate) { this.registrationDate = registrationDate; }
+    public LocalDate getRegistrationDate() { return EpochTime.toDate(registrationDate); }
+    public void setRegistrationDate(LocalDate registrationDate) { this.registrationDate = EpochTime.toDays(registrationDate); }
     
     public boolean isActive() { return isActive; }
     public void setActive(boolean active) { isActive = active; }
@@ -98,7 +123,7 @@ public class Patient implements Serializable {
     }
     
     public int getAge() {
-        return LocalDate.now().getYear() - dateOfBirth.getYear();
+        return LocalDate.now().getYear() - getDateOfBirth().getYear();
     }
     
     @Override
@@ -107,6 +132,46 @@ public class Patient implements Serializable {
                            patientId, getFullName(), getAge(), phoneNumber);
     }
     
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        ObjectOutputStream.PutField fields = out.putFields();
+        fields.put("patientId", patientId);
+        fields.put("firstName", firstName);
+        fields.put("lastName", lastName);
+        fields.put("dateOfBirth", getDateOfBirth());
+        fields.put("gender", gender);
+        fields.put("phoneNumber", phoneNumber);
+        fields.put("email", email);
+        fields.put("address", address);
+        fields.put("emergencyContact", emergencyContact);
+        fields.put("emergencyPhone", emergencyPhone);
+        fields.put("bloodGroup", bloodGroup);
+        fields.put("allergies", allergies);
+        fields.put("insuranceNumber", insuranceNumber);
+        fields.put("registrationDate", getRegistrationDate());
+        fields.put("isActive", isActive);
+        out.writeFields();
+    }
+    
+    @SuppressWarnings("unchecked")
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        ObjectInputStream.GetField fields = in.readFields();
+        patientId = (String) fields.get("patientId", null);
+        firstName = (String) fields.get("firstName", null);
+        lastName = (String) fields.get("lastName", null);
+        dateOfBirth = EpochTime.toDays((LocalDate) fields.get("dateOfBirth", null));
+        gender = (String) fields.get("gender", null);
+        phoneNumber = (String) fields.get("phoneNumber", null);
+        email = (String) fields.get("email", null);
+        address = (String) fields.get("address", null);
+        emergencyContact = (String) fields.get("emergencyContact", null);
+        emergencyPhone = (String) fields.get("emergencyPhone", null);
+        bloodGroup = (String) fields.get("bloodGroup", null);
+        allergies = (List<String>) fields.get("allergies", null);
+        insuranceNumber = (String) fields.get("insuranceNumber", null);
+        registrationDate = EpochTime.toDays((LocalDate) fields.get("registrationDate", null));
+        isActive = fields.get("isActive", false);
+    }
+    
     @Override
     public boolean equals(Object obj) {
         if (this == obj) return true;
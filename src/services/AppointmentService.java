@@ -2,30 +2,63 @@ package services;
 
 import models.Appointment;
 import models.Doctor;
+import models.EpochTime;
 import models.Patient;
-import utils.DatabaseManager;
-import utils.DateUtils;
+import utils.DirtyTracker;
+import utils.IndexedList;
+import utils.IntervalIndex;
+import utils.OrderedIndex;
 import utils.ValidationUtils;
+import utils.RecordArchive;
+import utils.SecondaryIndex;
+import utils.StorageEngine;
+import utils.UnitOfWork;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Set;
 import java.util.stream.Collectors;
 
 /**
  * AppointmentService class for managing appointment operations
  */
 public class AppointmentService {
-    private static final String APPOINTMENTS_FILE = "appointments.dat";
-    private DatabaseManager dbManager;
-    private List<Appointment> appointments;
+    public static final String APPOINTMENTS_FILE = "appointments.dat";
+    // Free times are offered on a quarter-hour grid
+    private static final int SLOT_STEP_SECONDS = 15 * 60;
+    private StorageEngine storage;
+    private IndexedList<Appointment> appointments;
+    private SecondaryIndex<Appointment> appointmentsByPatient;
+    private SecondaryIndex<Appointment> appointmentsByDoctor;
+    private OrderedIndex<Appointment> appointmentsByTime;
+    private IntervalIndex<Appointment> bookedSlotsByDoctor;
+    private RecordArchive<Appointment> archivedAppointments;
+    private DirtyTracker<Appointment> dirtyAppointments;
     private PatientService patientService;
     private StaffService staffService;
     
     public AppointmentService(PatientService patientService, StaffService staffService) {
-        this.dbManager = DatabaseManager.getInstance();
-        this.appointments = loadAppointments();
+        this(patientService, staffService, StorageSetup.getDefaultEngine());
+    }
+    
+    /**
+     * Create the service on top of the given storage engine
+     */
+    public AppointmentService(PatientService patientService, StaffService staffService, StorageEngine storage) {
+        this.storage = storage;
+        this.dirtyAppointments = new DirtyTracker<>(storage, APPOINTMENTS_FILE, Appointment::getAppointmentId);
+        this.appointments = new IndexedList<>(loadAppointments(), Appointment::getAppointmentId);
+        this.appointmentsByPatient = appointments.addIndex(Appointment::getPatientId);
+        this.appointmentsByDoctor = appointments.addIndex(Appointment::getDoctorId);
+        this.appointmentsByTime = appointments.addOrderedIndex(Appointment::getAppointmentEpochSecond);
+        this.bookedSlotsByDoctor = appointments.addIntervalIndex(Appointment::getDoctorId, Appointment::getAppointmentEpochSecond,
+                                                                 Appointment::getEndEpochSecond, Appointment::holdsSlot);
+        this.archivedAppointments = openAppointmentsArchive();
+        dirtyAppointments.followExternalChanges(appointments, this::reloadAppointments);
         this.patientService = patientService;
         this.staffService = staffService;
     }
@@ -34,14 +67,36 @@ public class AppointmentService {
      * Load appointments from file
      */
     private List<Appointment> loadAppointments() {
-        return dbManager.loadData(APPOINTMENTS_FILE);
+        return storage.load(APPOINTMENTS_FILE, Appointment::getAppointmentId);
+    }
+    
+    /**
+     * Load appointments again after another terminal replaced the file, for example by archiving
+     */
+    private List<Appointment> reloadAppointments() {
+        archivedAppointments.refresh();
+        return loadAppointments();
+    }
+    
+    /**
+     * Open the archive of old completed and cancelled appointments; their IDs are still found by findAppointmentById
+     */
+    private RecordArchive<Appointment> openAppointmentsArchive() {
+        try {
+            return storage.openArchive(APPOINTMENTS_FILE, Appointment::getAppointmentId);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot open appointment archive", e);
+        }
     }
     
     /**
-     * Save appointments to file
+     * Mark an appointment as changed and write the dirty set through the storage engine
      */
-    private boolean saveAppointments() {
-        return dbManager.saveData(appointments, APPOINTMENTS_FILE);
+    private boolean persistAppointment(Appointment appointment) {
+        archivedAppointments.restore(appointments, appointment.getAppointmentId(), appointment);
+        // Status changes are made in place; a cancelled or completed appointment frees its slot
+        appointments.reindex(appointment);
+        return dirtyAppointments.persist(appointment);
     }
     
     /**
@@ -74,7 +129,7 @@ public class AppointmentService {
         appointments.add(appointment);
         
         // Save to file
-        if (saveAppointments()) {
+        if (persistAppointment(appointment)) {
             System.out.println("Appointment scheduled successfully: " + appointment.getAppointmentId());
             return true;
         } else {
@@ -114,15 +169,21 @@ public class AppointmentService {
         
         // Update appointment data
         int index = appointments.indexOf(existingAppointment);
-        appointments.set(index, updatedAppointment);
+        if (index >= 0) {
+            appointments.set(index, updatedAppointment);
+        }
         
         // Save to file
-        if (saveAppointments()) {
+        if (persistAppointment(updatedAppointment)) {
             System.out.println("Appointment updated successfully: " + updatedAppointment.getAppointmentId());
             return true;
         } else {
             // Revert changes if save failed
-            appointments.set(index, existingAppointment);
+            if (index >= 0) {
+                appointments.set(index, existingAppointment);
+            } else {
+                appointments.remove(updatedAppointment);
+            }
             System.out.println("Failed to save appointment data.");
             return false;
         }
@@ -144,7 +205,7 @@ public class AppointmentService {
         }
         
         appointment.setStatus(Appointment.AppointmentStatus.CANCELLED);
-        if (saveAppointments()) {
+        if (persistAppointment(appointment)) {
             System.out.println("Appointment cancelled: " + appointmentId);
             return true;
         } else {
@@ -168,7 +229,7 @@ public class AppointmentService {
             appointment.setNotes(notes);
         }
         
-        if (saveAppointments()) {
+        if (persistAppointment(appointment)) {
             System.out.println("Appointment completed: " + appointmentId);
             return true;
         } else {
@@ -178,66 +239,90 @@ public class AppointmentService {
     }
     
     /**
-     * Find appointment by ID
+     * Complete an appointment as part of a unit of work; the change is written when the unit
+     * commits and undone in memory if the commit fails
      */
-    public Appointment findAppointmentById(String appointmentId) {
-        if (!ValidationUtils.isNotEmpty(appointmentId)) {
-            return null;
+    public boolean completeAppointment(String appointmentId, String notes, UnitOfWork work) {
+        Appointment appointment = findAppointmentById(appointmentId);
+        if (appointment == null) {
+            System.out.println("Appointment with ID " + appointmentId + " not found.");
+            return false;
         }
         
-        return appointments.stream()
-                .filter(appointment -> appointment.getAppointmentId().equalsIgnoreCase(appointmentId.trim()))
-                .findFirst()
-                .orElse(null);
+        Appointment.AppointmentStatus previousStatus = appointment.getStatus();
+        String previousNotes = appointment.getNotes();
+        appointment.setStatus(Appointment.AppointmentStatus.COMPLETED);
+        if (ValidationUtils.isNotEmpty(notes)) {
+            appointment.setNotes(notes);
+        }
+        work.onRollback(() -> {
+            appointment.setStatus(previousStatus);
+            appointment.setNotes(previousNotes);
+            appointments.reindex(appointment);
+        });
+        
+        if (archivedAppointments.restore(appointments, appointmentId, appointment)) {
+            work.onRollback(() -> appointments.remove(appointment));
+        }
+        appointments.reindex(appointment);
+        work.stage(dirtyAppointments, appointment);
+        return true;
     }
     
     /**
-     * Get appointments by patient ID
+     * Find appointment by ID, falling through to the archive
+     */
+    public Appointment findAppointmentById(String appointmentId) {
+        return archivedAppointments.find(appointments, appointmentId);
+    }
+    
+    /**
+     * Get appointments by patient ID through the patient index
      */
     public List<Appointment> getAppointmentsByPatient(String patientId) {
         if (!ValidationUtils.isNotEmpty(patientId)) {
             return new ArrayList<>();
         }
         
-        return appointments.stream()
-                .filter(appointment -> appointment.getPatientId().equalsIgnoreCase(patientId.trim()))
-                .collect(Collectors.toList());
+        return appointmentsByPatient.get(patientId);
     }
     
     /**
-     * Get appointments by doctor ID
+     * Get appointments by doctor ID through the doctor index
      */
     public List<Appointment> getAppointmentsByDoctor(String doctorId) {
         if (!ValidationUtils.isNotEmpty(doctorId)) {
             return new ArrayList<>();
         }
         
-        return appointments.stream()
-                .filter(appointment -> appointment.getDoctorId().equalsIgnoreCase(doctorId.trim()))
-                .collect(Collectors.toList());
+        return appointmentsByDoctor.get(doctorId);
     }
     
     /**
-     * Get appointments by date
+     * Get appointments by date, in time order, as a range of the time index
      */
     public List<Appointment> getAppointmentsByDate(LocalDate date) {
         if (date == null) {
             return new ArrayList<>();
         }
         
-        return appointments.stream()
-                .filter(appointment -> appointment.getAppointmentDateTime().toLocalDate().equals(date))
-                .collect(Collectors.toList());
+        return appointmentsByTime.range(EpochTime.toSeconds(date.atStartOfDay()),
+                                        EpochTime.toSeconds(date.plusDays(1).atStartOfDay()));
     }
     
     /**
-     * Get upcoming appointments
+     * Get upcoming appointments in time order
      */
     public List<Appointment> getUpcomingAppointments() {
-        return appointments.stream()
-                .filter(Appointment::isUpcoming)
-                .sorted((a1, a2) -> a1.getAppointmentDateTime().compareTo(a2.getAppointmentDateTime()))
-                .collect(Collectors.toList());
+        return getUpcomingAppointments(Integer.MAX_VALUE);
+    }
+    
+    /**
+     * Get the next upcoming appointments, at most limit of them. The time index is read from
+     * now onwards and stops once the limit is reached, so nothing is sorted.
+     */
+    public List<Appointment> getUpcomingAppointments(int limit) {
+        return appointmentsByTime.from(EpochTime.now() + 1, Appointment::isUpcoming, limit);
     }
     
     /**
@@ -247,13 +332,79 @@ public class AppointmentService {
         return getAppointmentsByDate(LocalDate.now());
     }
     
+    /**
+     * Find the times from which a doctor is free for an appointment, which always books
+     * Appointment.DURATION_MINUTES, with the whole appointment between from and to.
+     * Longer free stretches are not offered: a booking would reserve only its first part. Only the doctor's working days and hours are
+     * searched, and only times scheduleAppointment would accept: in the future and starting
+     * during business hours. Times are on a quarter-hour grid. The answer comes from the
+     * doctor's day calendars of booked slots, without reading any appointments.
+     */
+    public List<LocalDateTime> findAvailableSlots(String doctorId, LocalDateTime from, LocalDateTime to) {
+        List<LocalDateTime> slots = new ArrayList<>();
+        Doctor doctor = staffService.findDoctorById(doctorId);
+        if (doctor == null) {
+            System.out.println("Doctor with ID " + doctorId + " not found.");
+            return slots;
+        }
+        if (from == null || to == null) {
+            System.out.println("Invalid time range.");
+            return slots;
+        }
+        if (!doctor.isAvailable()) {
+            return slots;
+        }
+        
+        long duration = Appointment.DURATION_MINUTES * 60L;
+        long earliest = Math.max(EpochTime.toSeconds(from), EpochTime.now() + 1);
+        long latestEnd = EpochTime.toSeconds(to);
+        // Business hours are 8 AM to 6 PM, as in ValidationUtils.isValidAppointmentTime
+        int open = Math.max(doctor.getStartTime() != null ? doctor.getStartTime().toSecondOfDay() : 0, 8 * 3600);
+        int close = doctor.getEndTime() != null ? doctor.getEndTime().toSecondOfDay() : 18 * 3600;
+        int lastStart = Math.min(close - (int) Math.min(duration, close), 18 * 3600 - 1);
+        
+        for (LocalDate date = from.toLocalDate(); !date.isAfter(to.toLocalDate()); date = date.plusDays(1)) {
+            if (!doctor.getWorkingDays().isEmpty() && !doctor.isWorkingDay(date.getDayOfWeek().name())) {
+                continue;
+            }
+            long dayStart = EpochTime.toSeconds(date.atStartOfDay());
+            long first = Math.max(dayStart + open, earliest);
+            // Round up to the grid
+            first = dayStart + Math.floorDiv(first - dayStart + SLOT_STEP_SECONDS - 1, SLOT_STEP_SECONDS) * SLOT_STEP_SECONDS;
+            long last = Math.min(dayStart + lastStart, latestEnd - duration);
+            if (first > last) {
+                continue;
+            }
+            long[] busy = bookedSlotsByDoctor.getDayCalendar(doctor.getDoctorId(), date.toEpochDay());
+            for (long start = first; start <= last; start += SLOT_STEP_SECONDS) {
+                if (isFree(busy, start - dayStart, start - dayStart + duration)) {
+                    slots.add(EpochTime.toDateTime(start));
+                }
+            }
+        }
+        return slots;
+    }
+    
+    /**
+     * Whether no slot of a day calendar between these seconds of the day is busy
+     */
+    private static boolean isFree(long[] busy, long from, long to) {
+        int last = (int) ((to - 1) / IntervalIndex.SECONDS_PER_SLOT);
+        for (int slot = (int) (from / IntervalIndex.SECONDS_PER_SLOT); slot <= last; slot++) {
+            if ((busy[slot >>> 6] & (1L << slot)) != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
     /**
      * Generate next appointment ID
      */
     public String generateAppointmentId() {
         int maxId = 0;
-        for (Appointment appointment : appointments) {
-            String id = appointment.getAppointmentId();
+        // Archived IDs stay taken
+        for (String id : archivedAppointments.allKeys(appointments)) {
             if (id.startsWith("A") && id.length() > 1) {
                 try {
                     int numId = Integer.parseInt(id.substring(1));
@@ -277,20 +428,13 @@ public class AppointmentService {
      * Check if appointment has conflicts excluding a specific appointment
      */
     private boolean hasConflictExcluding(Appointment newAppointment, String excludeAppointmentId) {
-        LocalDateTime newStart = newAppointment.getAppointmentDateTime();
-        LocalDateTime newEnd = newStart.plusMinutes(newAppointment.getDurationInMinutes());
-        
-        return appointments.stream()
-                .filter(existing -> excludeAppointmentId == null || 
-                                  !existing.getAppointmentId().equals(excludeAppointmentId))
-                .filter(existing -> existing.getDoctorId().equals(newAppointment.getDoctorId()))
-                .filter(existing -> existing.getStatus() == Appointment.AppointmentStatus.SCHEDULED ||
-                                  existing.getStatus() == Appointment.AppointmentStatus.CONFIRMED)
-                .anyMatch(existing -> {
-                    LocalDateTime existingStart = existing.getAppointmentDateTime();
-                    LocalDateTime existingEnd = existingStart.plusMinutes(existing.getDurationInMinutes());
-                    return DateUtils.timePeriodsOverlap(newStart, newEnd, existingStart, existingEnd);
-                });
+        // Only the doctor's scheduled and confirmed appointments near the new one are visited
+        return bookedSlotsByDoctor.findOverlapping(newAppointment.getDoctorId(),
+                                                   newAppointment.getAppointmentEpochSecond(),
+                                                   newAppointment.getEndEpochSecond())
+                .stream()
+                .anyMatch(existing -> excludeAppointmentId == null ||
+                                      !existing.getAppointmentId().equals(excludeAppointmentId));
     }
     
     /**
@@ -338,6 +482,36 @@ public class AppointmentService {
         return true;
     }
     
+    /**
+     * Move completed and cancelled appointments older than the given number of days to the
+     * archive, where they are still found by ID. Returns the number of archived appointments,
+     * or -1 if archiving failed.
+     */
+    public int archiveAppointments(int minAgeDays) {
+        LocalDateTime cutoff = LocalDateTime.now().minusDays(minAgeDays);
+        return archiveAppointments(appointments.stream()
+                .filter(appointment -> appointment.getStatus() == Appointment.AppointmentStatus.COMPLETED ||
+                                       appointment.getStatus() == Appointment.AppointmentStatus.CANCELLED)
+                .filter(appointment -> appointment.getAppointmentDateTime().isBefore(cutoff))
+                .collect(Collectors.toList()));
+    }
+    
+    /**
+     * Move appointments to the archive through the dirty tracker, reporting a failure
+     */
+    private int archiveAppointments(List<Appointment> candidates) {
+        try {
+            int archived = dirtyAppointments.archive(appointments, candidates, archivedAppointments);
+            if (archived < 0) {
+                System.out.println("Failed to save appointment data.");
+            }
+            return archived;
+        } catch (IOException e) {
+            System.out.println("Failed to archive appointments: " + e.getMessage());
+            return -1;
+        }
+    }
+    
     /**
      * Get appointment statistics
      */
@@ -352,6 +526,7 @@ public class AppointmentService {
         System.out.println("Scheduled: " + scheduledCount);
         System.out.println("Completed: " + completedCount);
         System.out.println("Cancelled: " + cancelledCount);
+        System.out.println("Archived: " + archivedAppointments.size());
         System.out.println("==============================");
     }
 }
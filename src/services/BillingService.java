@@ -3,27 +3,54 @@ package services;
 import models.Bill;
 import models.Patient;
 import models.Appointment;
-import utils.DatabaseManager;
+import utils.DirtyTracker;
+import utils.IndexedList;
 import utils.ValidationUtils;
+import utils.RecordArchive;
+import utils.SecondaryIndex;
+import utils.StorageEngine;
+import utils.UnitOfWork;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.time.LocalDateTime;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.stream.Collectors;
 
 /**
  * BillingService class for managing billing and invoicing operations
  */
 public class BillingService {
-    private static final String BILLS_FILE = "bills.dat";
-    private DatabaseManager dbManager;
-    private List<Bill> bills;
+    public static final String BILLS_FILE = "bills.dat";
+    private StorageEngine storage;
+    private IndexedList<Bill> bills;
+    private SecondaryIndex<Bill> billsByPatient;
+    private SecondaryIndex<Bill> billsByAppointment;
+    private RecordArchive<Bill> archivedBills;
+    private Map<String, String> archivedBillIdsByAppointment;
+    private DirtyTracker<Bill> dirtyBills;
     private PatientService patientService;
     private AppointmentService appointmentService;
     
     public BillingService(PatientService patientService, AppointmentService appointmentService) {
-        this.dbManager = DatabaseManager.getInstance();
-        this.bills = loadBills();
+        this(patientService, appointmentService, StorageSetup.getDefaultEngine());
+    }
+    
+    /**
+     * Create the service on top of the given storage engine
+     */
+    public BillingService(PatientService patientService, AppointmentService appointmentService, StorageEngine storage) {
+        this.storage = storage;
+        this.dirtyBills = new DirtyTracker<>(storage, BILLS_FILE, Bill::getBillId);
+        this.bills = new IndexedList<>(loadBills(), Bill::getBillId);
+        this.billsByPatient = bills.addIndex(Bill::getPatientId);
+        this.billsByAppointment = bills.addIndex(Bill::getAppointmentId);
+        this.archivedBills = openBillsArchive();
+        dirtyBills.followExternalChanges(bills, this::reloadBills);
         this.patientService = patientService;
         this.appointmentService = appointmentService;
     }
@@ -32,14 +59,35 @@ public class BillingService {
      * Load bills from file
      */
     private List<Bill> loadBills() {
-        return dbManager.loadData(BILLS_FILE);
+        return storage.load(BILLS_FILE, Bill::getBillId);
+    }
+    
+    /**
+     * Load bills again after another terminal replaced the file, for example by archiving
+     */
+    private List<Bill> reloadBills() {
+        archivedBills.refresh();
+        archivedBillIdsByAppointment = null;
+        return loadBills();
+    }
+    
+    /**
+     * Open the archive of paid bills; their IDs are still found by findBillById
+     */
+    private RecordArchive<Bill> openBillsArchive() {
+        try {
+            return storage.openArchive(BILLS_FILE, Bill::getBillId);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot open bill archive", e);
+        }
     }
     
     /**
-     * Save bills to file
+     * Mark a bill as changed and write the dirty set through the storage engine
      */
-    private boolean saveBills() {
-        return dbManager.saveData(bills, BILLS_FILE);
+    private boolean persistBill(Bill bill) {
+        archivedBills.restore(bills, bill.getBillId(), bill);
+        return dirtyBills.persist(bill);
     }
     
     /**
@@ -69,7 +117,7 @@ public class BillingService {
         bills.add(bill);
         
         // Save to file
-        if (saveBills()) {
+        if (persistBill(bill)) {
             System.out.println("Bill created successfully: " + bill.getBillId());
             return true;
         } else {
@@ -84,17 +132,58 @@ public class BillingService {
      * Create bill from appointment
      */
     public boolean createBillFromAppointment(String appointmentId) {
+        Bill bill = newBillForAppointment(appointmentId);
+        return bill != null && createBill(bill);
+    }
+    
+    /**
+     * Complete an appointment and create its bill in one atomic write: after a crash
+     * either both changes are stored or neither is
+     */
+    public boolean completeAppointmentAndBill(String appointmentId, String notes) {
+        Bill bill = newBillForAppointment(appointmentId);
+        if (bill == null) {
+            return false;
+        }
+        bill.calculateTotals();
+        if (!validateBill(bill)) {
+            return false;
+        }
+        
+        UnitOfWork work = new UnitOfWork(storage);
+        if (!appointmentService.completeAppointment(appointmentId, notes, work)) {
+            return false;
+        }
+        bills.add(bill);
+        work.onRollback(() -> bills.remove(bill));
+        work.stage(dirtyBills, bill);
+        
+        if (work.commit()) {
+            System.out.println("Appointment completed: " + appointmentId);
+            System.out.println("Bill created successfully: " + bill.getBillId());
+            return true;
+        } else {
+            System.out.println("Failed to save appointment and bill data.");
+            return false;
+        }
+    }
+    
+    /**
+     * Build the bill for an appointment's consultation fee, or null if the appointment
+     * does not exist or already has a bill
+     */
+    private Bill newBillForAppointment(String appointmentId) {
         Appointment appointment = appointmentService.findAppointmentById(appointmentId);
         if (appointment == null) {
             System.out.println("Appointment with ID " + appointmentId + " not found.");
-            return false;
+            return null;
         }
         
         // Check if bill already exists for this appointment
         Bill existingBill = findBillByAppointmentId(appointmentId);
         if (existingBill != null) {
             System.out.println("Bill already exists for appointment: " + appointmentId);
-            return false;
+            return null;
         }
         
         // Create new bill
@@ -104,8 +193,7 @@ public class BillingService {
         if (appointment.getConsultationFee() > 0) {
             bill.addItem("Consultation Fee", 1, appointment.getConsultationFee());
         }
-        
-        return createBill(bill);
+        return bill;
     }
     
     /**
@@ -134,15 +222,21 @@ public class BillingService {
         
         // Update bill data
         int index = bills.indexOf(existingBill);
-        bills.set(index, updatedBill);
+        if (index >= 0) {
+            bills.set(index, updatedBill);
+        }
         
         // Save to file
-        if (saveBills()) {
+        if (persistBill(updatedBill)) {
             System.out.println("Bill updated successfully: " + updatedBill.getBillId());
             return true;
         } else {
             // Revert changes if save failed
-            bills.set(index, existingBill);
+            if (index >= 0) {
+                bills.set(index, existingBill);
+            } else {
+                bills.remove(updatedBill);
+            }
             System.out.println("Failed to save bill data.");
             return false;
         }
@@ -175,7 +269,7 @@ public class BillingService {
         }
         
         // Save changes
-        if (saveBills()) {
+        if (persistBill(bill)) {
             System.out.println("Payment processed successfully. Amount: $" + paymentAmount);
             if (bill.isPaid()) {
                 System.out.println("Bill fully paid.");
@@ -190,43 +284,37 @@ public class BillingService {
     }
     
     /**
-     * Find bill by ID
+     * Find bill by ID, falling through to the archive
      */
     public Bill findBillById(String billId) {
-        if (!ValidationUtils.isNotEmpty(billId)) {
-            return null;
-        }
-        
-        return bills.stream()
-                .filter(bill -> bill.getBillId().equalsIgnoreCase(billId.trim()))
-                .findFirst()
-                .orElse(null);
+        return archivedBills.find(bills, billId);
     }
     
     /**
-     * Find bill by appointment ID
+     * Find bill by appointment ID through the appointment index, then among archived bills
      */
     public Bill findBillByAppointmentId(String appointmentId) {
         if (!ValidationUtils.isNotEmpty(appointmentId)) {
             return null;
         }
         
-        return bills.stream()
-                .filter(bill -> appointmentId.equalsIgnoreCase(bill.getAppointmentId()))
-                .findFirst()
-                .orElse(null);
+        Bill bill = billsByAppointment.getFirst(appointmentId);
+        if (bill != null) {
+            return bill;
+        }
+        String billId = getArchivedBillIdsByAppointment().get(ValidationUtils.formatId(appointmentId));
+        return billId == null ? null : archivedBills.get(billId);
     }
     
     /**
-     * Get bills by patient ID
+     * Get bills by patient ID through the patient index
      */
     public List<Bill> getBillsByPatient(String patientId) {
         if (!ValidationUtils.isNotEmpty(patientId)) {
             return new ArrayList<>();
         }
         
-        return bills.stream()
-                .filter(bill -> bill.getPatientId().equalsIgnoreCase(patientId.trim()))
+        return billsByPatient.get(patientId).stream()
                 .filter(Bill::isActive)
                 .sorted((b1, b2) -> b2.getBillDate().compareTo(b1.getBillDate())) // Most recent first
                 .collect(Collectors.toList());
@@ -324,8 +412,8 @@ public class BillingService {
      */
     public String generateBillId() {
         int maxId = 0;
-        for (Bill bill : bills) {
-            String id = bill.getBillId();
+        // Archived IDs stay taken
+        for (String id : archivedBills.allKeys(bills)) {
             if (id.startsWith("B") && id.length() > 1) {
                 try {
                     int numId = Integer.parseInt(id.substring(1));
@@ -397,6 +485,58 @@ public class BillingService {
         return true;
     }
     
+    /**
+     * Move fully paid bills to the archive, where they are still found by ID.
+     * Returns the number of archived bills, or -1 if archiving failed.
+     */
+    public int archivePaidBills() {
+        return archiveBills(bills.stream()
+                .filter(Bill::isPaid)
+                .collect(Collectors.toList()));
+    }
+    
+    /**
+     * Move bills to the archive through the dirty tracker, reporting a failure
+     */
+    private int archiveBills(List<Bill> candidates) {
+        try {
+            int archived = dirtyBills.archive(bills, candidates, archivedBills);
+            if (archived < 0) {
+                archivedBillIdsByAppointment = null;
+                System.out.println("Failed to save bill data.");
+            } else if (archivedBillIdsByAppointment != null) {
+                for (Bill bill : candidates) {
+                    indexArchivedBill(bill);
+                }
+            }
+            return archived;
+        } catch (IOException e) {
+            archivedBillIdsByAppointment = null;
+            System.out.println("Failed to archive bills: " + e.getMessage());
+            return -1;
+        }
+    }
+    
+    /**
+     * Bill IDs of archived bills by appointment ID, read from the archive on first use
+     */
+    private Map<String, String> getArchivedBillIdsByAppointment() {
+        if (archivedBillIdsByAppointment == null) {
+            archivedBillIdsByAppointment = new HashMap<>();
+            archivedBills.forEach(this::indexArchivedBill);
+        }
+        return archivedBillIdsByAppointment;
+    }
+    
+    /**
+     * Remember which appointment an archived bill belongs to
+     */
+    private void indexArchivedBill(Bill bill) {
+        if (ValidationUtils.isNotEmpty(bill.getAppointmentId())) {
+            archivedBillIdsByAppointment.put(ValidationUtils.formatId(bill.getAppointmentId()), bill.getBillId());
+        }
+    }
+    
     /**
      * Get billing statistics
      */
@@ -411,6 +551,18 @@ public class BillingService {
                 .mapToDouble(Bill::getPaidAmount)
                 .sum();
         
+        // Archived bills are paid in full; ones restored to the hot list are already counted
+        Set<String> hotIds = bills.stream()
+                .map(bill -> ValidationUtils.formatId(bill.getBillId()))
+                .collect(Collectors.toSet());
+        double[] archivedRevenue = new double[1];
+        archivedBills.forEach(bill -> {
+            if (bill.isActive() && !hotIds.contains(ValidationUtils.formatId(bill.getBillId()))) {
+                archivedRevenue[0] += bill.getPaidAmount();
+            }
+        });
+        totalRevenue += archivedRevenue[0];
+        
         double outstandingAmount = bills.stream()
                 .filter(Bill::isActive)
                 .mapToDouble(Bill::getBalanceAmount)
@@ -421,6 +573,7 @@ public class BillingService {
         System.out.println("Active Bills: " + activeBills);
         System.out.println("Paid Bills: " + paidBills);
         System.out.println("Overdue Bills: " + overdueBills);
+        System.out.println("Archived Bills: " + archivedBills.size());
         System.out.printf("Total Revenue: $%.2f\n", totalRevenue);
         System.out.printf("Outstanding Amount: $%.2f\n", outstandingAmount);
         System.out.println("==========================");
@@ -2,43 +2,143 @@ package services;
 
 import models.HealthRecord;
 import models.Patient;
-import utils.DatabaseManager;
+import utils.ExternalChangeListener;
+import utils.RecordStore;
+import utils.SecondaryIndex;
 import utils.ValidationUtils;
+import utils.StorageEngine;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.time.LocalDateTime;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.function.Predicate;
 import java.util.stream.Collectors;
 
 /**
  * EHRService class for managing Electronic Health Records
  */
 public class EHRService {
-    private static final String HEALTH_RECORDS_FILE = "health_records.dat";
-    private DatabaseManager dbManager;
-    private List<HealthRecord> healthRecords;
+    public static final String HEALTH_RECORDS_FILE = "health_records.dat";
+    private StorageEngine storage;
+    private RecordStore<HealthRecord> healthRecords;
+    private SecondaryIndex<String> recordIdsByDoctor;
+    private int recordsIndexedByDoctor;
     private PatientService patientService;
     private StaffService staffService;
     
     public EHRService(PatientService patientService, StaffService staffService) {
-        this.dbManager = DatabaseManager.getInstance();
+        this(patientService, staffService, StorageSetup.getDefaultEngine());
+    }
+    
+    /**
+     * Create the service on top of the given storage engine
+     */
+    public EHRService(PatientService patientService, StaffService staffService, StorageEngine storage) {
+        this.storage = storage;
         this.healthRecords = loadHealthRecords();
+        followExternalChanges();
         this.patientService = patientService;
         this.staffService = staffService;
     }
     
     /**
-     * Load health records from file
+     * Open the health record store. With the log-structured engine only its index is read
+     * and records are decoded on access.
      */
-    private List<HealthRecord> loadHealthRecords() {
-        return dbManager.loadData(HEALTH_RECORDS_FILE);
+    private RecordStore<HealthRecord> loadHealthRecords() {
+        try {
+            return storage.openRecordStore(HEALTH_RECORDS_FILE, HealthRecord::getRecordId,
+                                           HealthRecord::getPatientId);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot open health record store", e);
+        }
     }
     
     /**
-     * Save health records to file
+     * Keep the doctor index up to date with the records other terminals add to the store.
+     * The store reads them itself when the data watcher sees its index change; a store
+     * reopened on another terminal's compaction may hold replaced records, so the doctor
+     * index is then built again on its next use.
      */
-    private boolean saveHealthRecords() {
-        return dbManager.saveData(healthRecords, HEALTH_RECORDS_FILE);
+    private void followExternalChanges() {
+        storage.addChangeListener(HEALTH_RECORDS_FILE, new ExternalChangeListener<HealthRecord>() {
+            @Override
+            public void recordsChanged(List<HealthRecord> records) {
+                if (recordIdsByDoctor != null) {
+                    records.forEach(EHRService.this::indexByDoctor);
+                }
+            }
+            
+            @Override
+            public void fileReplaced() {
+                recordIdsByDoctor = null;
+            }
+        });
+    }
+    
+    /**
+     * Persist a single health record change
+     */
+    private boolean persistHealthRecord(HealthRecord record) {
+        try {
+            healthRecords.put(record);
+            if (recordIdsByDoctor != null) {
+                indexByDoctor(record);
+            }
+            return true;
+        } catch (IOException e) {
+            System.err.println("Error saving health record " + record.getRecordId() + ": " + e.getMessage());
+            return false;
+        }
+    }
+    
+    /**
+     * Get the index of record IDs by doctor. The store only groups records by patient, so it
+     * is built from one scan the first time it is needed; opening the store still decodes
+     * nothing. persistHealthRecord keeps it up to date, and records the store has gained
+     * since, such as those it read from other terminals while catching up, are added here.
+     */
+    private SecondaryIndex<String> getRecordIdsByDoctor() {
+        if (recordIdsByDoctor == null) {
+            recordIdsByDoctor = new SecondaryIndex<>();
+            recordsIndexedByDoctor = 0;
+        }
+        if (healthRecords.size() > recordsIndexedByDoctor) {
+            // Keys are in insertion order, so only the records added since the last call are decoded
+            List<String> keys = healthRecords.keys();
+            for (String key : keys.subList(recordsIndexedByDoctor, keys.size())) {
+                HealthRecord record = healthRecords.get(key);
+                if (record != null) {
+                    indexByDoctor(record);
+                }
+            }
+            recordsIndexedByDoctor = keys.size();
+        }
+        return recordIdsByDoctor;
+    }
+    
+    /**
+     * File a record's ID under its doctor, replacing where it was filed before
+     */
+    private void indexByDoctor(HealthRecord record) {
+        String recordId = ValidationUtils.formatId(record.getRecordId());
+        recordIdsByDoctor.remove(recordId);
+        recordIdsByDoctor.add(record.getDoctorId(), recordId);
+    }
+    
+    /**
+     * Decode every stored health record and keep those matching the filter
+     */
+    private List<HealthRecord> scanHealthRecords(Predicate<HealthRecord> filter) {
+        List<HealthRecord> matches = new ArrayList<>();
+        healthRecords.forEach(record -> {
+            if (filter.test(record)) {
+                matches.add(record);
+            }
+        });
+        return matches;
     }
     
     /**
@@ -56,21 +156,16 @@ public class EHRService {
         }
         
         // Check if record ID already exists
-        if (findHealthRecordById(record.getRecordId()) != null) {
+        if (healthRecords.contains(record.getRecordId())) {
             System.out.println("Health record with ID " + record.getRecordId() + " already exists.");
             return false;
         }
         
-        // Add record to list
-        healthRecords.add(record);
-        
-        // Save to file
-        if (saveHealthRecords()) {
+        // Save to the store; a failed save leaves it unchanged
+        if (persistHealthRecord(record)) {
             System.out.println("Health record added successfully: " + record.getRecordId());
             return true;
         } else {
-            // Remove from list if save failed
-            healthRecords.remove(record);
             System.out.println("Failed to save health record data.");
             return false;
         }
@@ -91,23 +186,16 @@ public class EHRService {
         }
         
         // Find existing record
-        HealthRecord existingRecord = findHealthRecordById(updatedRecord.getRecordId());
-        if (existingRecord == null) {
+        if (!healthRecords.contains(updatedRecord.getRecordId())) {
             System.out.println("Health record with ID " + updatedRecord.getRecordId() + " not found.");
             return false;
         }
         
-        // Update record data
-        int index = healthRecords.indexOf(existingRecord);
-        healthRecords.set(index, updatedRecord);
-        
-        // Save to file
-        if (saveHealthRecords()) {
+        // Save to the store; a failed save keeps the previous version
+        if (persistHealthRecord(updatedRecord)) {
             System.out.println("Health record updated successfully: " + updatedRecord.getRecordId());
             return true;
         } else {
-            // Revert changes if save failed
-            healthRecords.set(index, existingRecord);
             System.out.println("Failed to save health record data.");
             return false;
         }
@@ -121,10 +209,7 @@ public class EHRService {
             return null;
         }
         
-        return healthRecords.stream()
-                .filter(record -> record.getRecordId().equalsIgnoreCase(recordId.trim()))
-                .findFirst()
-                .orElse(null);
+        return healthRecords.get(recordId);
     }
     
     /**
@@ -135,24 +220,24 @@ public class EHRService {
             return new ArrayList<>();
         }
         
-        return healthRecords.stream()
-                .filter(record -> record.getPatientId().equalsIgnoreCase(patientId.trim()))
+        // The store indexes records by patient, so only this patient's records are decoded
+        return healthRecords.getByGroup(patientId).stream()
                 .filter(HealthRecord::isActive)
                 .sorted((r1, r2) -> r2.getVisitDate().compareTo(r1.getVisitDate())) // Most recent first
                 .collect(Collectors.toList());
     }
     
     /**
-     * Get health records by doctor ID
+     * Get health records by doctor ID, decoding only that doctor's records
      */
     public List<HealthRecord> getHealthRecordsByDoctor(String doctorId) {
         if (!ValidationUtils.isNotEmpty(doctorId)) {
             return new ArrayList<>();
         }
         
-        return healthRecords.stream()
-                .filter(record -> record.getDoctorId().equalsIgnoreCase(doctorId.trim()))
-                .filter(HealthRecord::isActive)
+        return getRecordIdsByDoctor().get(doctorId).stream()
+                .map(healthRecords::get)
+                .filter(record -> record != null && record.isActive())
                 .sorted((r1, r2) -> r2.getVisitDate().compareTo(r1.getVisitDate()))
                 .collect(Collectors.toList());
     }
@@ -166,9 +251,8 @@ public class EHRService {
         }
         
         String searchDiagnosis = diagnosis.trim().toLowerCase();
-        return healthRecords.stream()
-                .filter(record -> record.getDiagnosis() != null && 
-                                record.getDiagnosis().toLowerCase().contains(searchDiagnosis))
+        return scanHealthRecords(record -> record.getDiagnosis() != null && 
+                                record.getDiagnosis().toLowerCase().contains(searchDiagnosis)).stream()
                 .filter(HealthRecord::isActive)
                 .collect(Collectors.toList());
     }
@@ -221,8 +305,7 @@ public class EHRService {
      * Get records with follow-up required
      */
     public List<HealthRecord> getRecordsWithFollowUp() {
-        return healthRecords.stream()
-                .filter(HealthRecord::hasFollowUp)
+        return scanHealthRecords(HealthRecord::hasFollowUp).stream()
                 .filter(HealthRecord::isActive)
                 .sorted((r1, r2) -> r1.getNextVisitDate().compareTo(r2.getNextVisitDate()))
                 .collect(Collectors.toList());
@@ -233,8 +316,7 @@ public class EHRService {
      */
     public String generateRecordId() {
         int maxId = 0;
-        for (HealthRecord record : healthRecords) {
-            String id = record.getRecordId();
+        for (String id : healthRecords.keys()) {
             if (id.startsWith("HR") && id.length() > 2) {
                 try {
                     int numId = Integer.parseInt(id.substring(2));
@@ -258,7 +340,7 @@ public class EHRService {
         }
         
         record.setActive(false);
-        if (saveHealthRecords()) {
+        if (persistHealthRecord(record)) {
             System.out.println("Health record deactivated: " + recordId);
             return true;
         } else {
@@ -272,9 +354,7 @@ public class EHRService {
      * Get all active health records
      */
     public List<HealthRecord> getAllActiveHealthRecords() {
-        return healthRecords.stream()
-                .filter(HealthRecord::isActive)
-                .collect(Collectors.toList());
+        return scanHealthRecords(HealthRecord::isActive);
     }
     
     /**
@@ -343,9 +423,21 @@ public class EHRService {
      * Get health record statistics
      */
     public void printHealthRecordStatistics() {
-        int totalRecords = healthRecords.size();
-        int activeRecords = (int) healthRecords.stream().filter(HealthRecord::isActive).count();
-        int recordsWithFollowUp = (int) healthRecords.stream().filter(HealthRecord::hasFollowUp).count();
+        int[] counts = new int[3];
+        
+        // Decode one record at a time rather than building a list of every record
+        healthRecords.forEach(record -> {
+            counts[0]++;
+            if (record.isActive()) {
+                counts[1]++;
+            }
+            if (record.hasFollowUp()) {
+                counts[2]++;
+            }
+        });
+        int totalRecords = counts[0];
+        int activeRecords = counts[1];
+        int recordsWithFollowUp = counts[2];
         
         System.out.println("\n=== Health Record Statistics ===");
         System.out.println("Total Records: " + totalRecords);
@@ -1,8 +1,10 @@
 package services;
 
 import models.MedicalSupply;
-import utils.DatabaseManager;
+import utils.DirtyTracker;
+import utils.IndexedList;
 import utils.ValidationUtils;
+import utils.StorageEngine;
 
 import java.time.LocalDate;
 import java.util.ArrayList;
@@ -13,27 +15,37 @@ import java.util.stream.Collectors;
  * InventoryService class for managing medical supply inventory
  */
 public class InventoryService {
-    private static final String SUPPLIES_FILE = "medical_supplies.dat";
-    private DatabaseManager dbManager;
-    private List<MedicalSupply> supplies;
+    public static final String SUPPLIES_FILE = "medical_supplies.dat";
+    private StorageEngine storage;
+    private IndexedList<MedicalSupply> supplies;
+    private DirtyTracker<MedicalSupply> dirtySupplies;
     
     public InventoryService() {
-        this.dbManager = DatabaseManager.getInstance();
-        this.supplies = loadSupplies();
+        this(StorageSetup.getDefaultEngine());
+    }
+    
+    /**
+     * Create the service on top of the given storage engine
+     */
+    public InventoryService(StorageEngine storage) {
+        this.storage = storage;
+        this.dirtySupplies = new DirtyTracker<>(storage, SUPPLIES_FILE, MedicalSupply::getSupplyId);
+        this.supplies = new IndexedList<>(loadSupplies(), MedicalSupply::getSupplyId);
+        dirtySupplies.followExternalChanges(supplies, this::loadSupplies);
     }
     
     /**
      * Load supplies from file
      */
     private List<MedicalSupply> loadSupplies() {
-        return dbManager.loadData(SUPPLIES_FILE);
+        return storage.load(SUPPLIES_FILE, MedicalSupply::getSupplyId);
     }
     
     /**
-     * Save supplies to file
+     * Mark a supply as changed and write the dirty set through the storage engine
      */
-    private boolean saveSupplies() {
-        return dbManager.saveData(supplies, SUPPLIES_FILE);
+    private boolean persistSupply(MedicalSupply supply) {
+        return dirtySupplies.persist(supply);
     }
     
     /**
@@ -63,7 +75,7 @@ public class InventoryService {
         supplies.add(supply);
         
         // Save to file
-        if (saveSupplies()) {
+        if (persistSupply(supply)) {
             System.out.println("Medical supply added successfully: " + supply.getName());
             return true;
         } else {
@@ -74,6 +86,22 @@ public class InventoryService {
         }
     }
     
+    /**
+     * Add already validated supplies in bulk and write the file once.
+     * Supplies whose ID is taken, in the list or earlier in the batch, are skipped.
+     * Returns the number of supplies added, or -1 if saving failed and nothing was added.
+     */
+    public int importSupplies(List<MedicalSupply> imported) {
+        for (MedicalSupply supply : imported) {
+            supply.updateStatus();
+        }
+        int added = dirtySupplies.importAll(supplies, imported, null);
+        if (added < 0) {
+            System.out.println("Failed to save supply data.");
+        }
+        return added;
+    }
+    
     /**
      * Update an existing medical supply
      */
@@ -103,7 +131,7 @@ public class InventoryService {
         supplies.set(index, updatedSupply);
         
         // Save to file
-        if (saveSupplies()) {
+        if (persistSupply(updatedSupply)) {
             System.out.println("Medical supply updated successfully: " + updatedSupply.getName());
             return true;
         } else {
@@ -131,7 +159,7 @@ public class InventoryService {
         
         supply.addStock(quantity);
         
-        if (saveSupplies()) {
+        if (persistSupply(supply)) {
             System.out.println("Stock added successfully. New stock: " + supply.getCurrentStock());
             return true;
         } else {
@@ -160,7 +188,7 @@ public class InventoryService {
             return false;
         }
         
-        if (saveSupplies()) {
+        if (persistSupply(supply)) {
             System.out.println("Stock removed successfully. Remaining stock: " + supply.getCurrentStock());
             return true;
         } else {
@@ -170,17 +198,14 @@ public class InventoryService {
     }
     
     /**
-     * Find supply by ID
+     * Find supply by ID through the ID index
      */
     public MedicalSupply findSupplyById(String supplyId) {
         if (!ValidationUtils.isNotEmpty(supplyId)) {
             return null;
         }
         
-        return supplies.stream()
-                .filter(supply -> supply.getSupplyId().equalsIgnoreCase(supplyId.trim()))
-                .findFirst()
-                .orElse(null);
+        return supplies.getByKey(supplyId);
     }
     
     /**
@@ -348,7 +373,7 @@ public class InventoryService {
         }
         
         supply.setActive(false);
-        if (saveSupplies()) {
+        if (persistSupply(supply)) {
             System.out.println("Supply deactivated: " + supply.getName());
             return true;
         } else {
@@ -362,48 +387,53 @@ public class InventoryService {
      * Validate supply data
      */
     private boolean validateSupply(MedicalSupply supply) {
+        String error = getSupplyValidationError(supply);
+        if (error != null) {
+            System.out.println(error);
+            return false;
+        }
+        
+        // Validate expiry date if provided
+        if (supply.getExpiryDate() != null && supply.getExpiryDate().isBefore(LocalDate.now())) {
+            System.out.println("Warning: Supply is already expired.");
+        }
+        return true;
+    }
+    
+    /**
+     * Check supply data, returning the first problem found or null if it is valid
+     */
+    public static String getSupplyValidationError(MedicalSupply supply) {
         // Validate required fields
         if (!ValidationUtils.isValidId(supply.getSupplyId())) {
-            System.out.println("Invalid supply ID.");
-            return false;
+            return "Invalid supply ID.";
         }
         
         if (!ValidationUtils.isNotEmpty(supply.getName())) {
-            System.out.println("Supply name is required.");
-            return false;
+            return "Supply name is required.";
         }
         
         if (supply.getCategory() == null) {
-            System.out.println("Supply category is required.");
-            return false;
+            return "Supply category is required.";
         }
         
         if (!ValidationUtils.isNonNegativeInteger(supply.getCurrentStock())) {
-            System.out.println("Current stock cannot be negative.");
-            return false;
+            return "Current stock cannot be negative.";
         }
         
         if (!ValidationUtils.isNonNegativeInteger(supply.getMinimumStock())) {
-            System.out.println("Minimum stock cannot be negative.");
-            return false;
+            return "Minimum stock cannot be negative.";
         }
         
         if (supply.getMaximumStock() > 0 && supply.getMaximumStock() < supply.getMinimumStock()) {
-            System.out.println("Maximum stock cannot be less than minimum stock.");
-            return false;
+            return "Maximum stock cannot be less than minimum stock.";
         }
         
         if (!ValidationUtils.isNonNegativeNumber(supply.getUnitPrice())) {
-            System.out.println("Unit price cannot be negative.");
-            return false;
+            return "Unit price cannot be negative.";
         }
         
-        // Validate expiry date if provided
-        if (supply.getExpiryDate() != null && supply.getExpiryDate().isBefore(LocalDate.now())) {
-            System.out.println("Warning: Supply is already expired.");
-        }
-        
-        return true;
+        return null;
     }
     
     /**
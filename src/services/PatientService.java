@@ -1,9 +1,14 @@
 package services;
 
 import models.Patient;
-import utils.DatabaseManager;
+import utils.DirtyTracker;
+import utils.IndexedList;
 import utils.ValidationUtils;
+import utils.RecordArchive;
+import utils.StorageEngine;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.time.LocalDate;
 import java.util.ArrayList;
 import java.util.List;
@@ -13,27 +18,59 @@ import java.util.stream.Collectors;
  * PatientService class for managing patient operations
  */
 public class PatientService {
-    private static final String PATIENTS_FILE = "patients.dat";
-    private DatabaseManager dbManager;
-    private List<Patient> patients;
+    public static final String PATIENTS_FILE = "patients.dat";
+    private StorageEngine storage;
+    private IndexedList<Patient> patients;
+    private RecordArchive<Patient> archivedPatients;
+    private DirtyTracker<Patient> dirtyPatients;
     
     public PatientService() {
-        this.dbManager = DatabaseManager.getInstance();
-        this.patients = loadPatients();
+        this(StorageSetup.getDefaultEngine());
+    }
+    
+    /**
+     * Create the service on top of the given storage engine
+     */
+    public PatientService(StorageEngine storage) {
+        this.storage = storage;
+        this.dirtyPatients = new DirtyTracker<>(storage, PATIENTS_FILE, Patient::getPatientId);
+        this.patients = new IndexedList<>(loadPatients(), Patient::getPatientId);
+        this.archivedPatients = openPatientsArchive();
+        dirtyPatients.followExternalChanges(patients, this::reloadPatients);
     }
     
     /**
      * Load patients from file
      */
     private List<Patient> loadPatients() {
-        return dbManager.loadData(PATIENTS_FILE);
+        return storage.load(PATIENTS_FILE, Patient::getPatientId);
+    }
+    
+    /**
+     * Load patients again after another terminal replaced the file, for example by archiving
+     */
+    private List<Patient> reloadPatients() {
+        archivedPatients.refresh();
+        return loadPatients();
+    }
+    
+    /**
+     * Open the archive of inactive patients; their IDs are still found by findPatientById
+     */
+    private RecordArchive<Patient> openPatientsArchive() {
+        try {
+            return storage.openArchive(PATIENTS_FILE, Patient::getPatientId);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot open patient archive", e);
+        }
     }
     
     /**
-     * Save patients to file
+     * Mark a patient as changed and write the dirty set through the storage engine
      */
-    private boolean savePatients() {
-        return dbManager.saveData(patients, PATIENTS_FILE);
+    private boolean persistPatient(Patient patient) {
+        archivedPatients.restore(patients, patient.getPatientId(), patient);
+        return dirtyPatients.persist(patient);
     }
     
     /**
@@ -60,7 +97,7 @@ public class PatientService {
         patients.add(patient);
         
         // Save to file
-        if (savePatients()) {
+        if (persistPatient(patient)) {
             System.out.println("Patient registered successfully: " + patient.getFullName());
             return true;
         } else {
@@ -71,6 +108,19 @@ public class PatientService {
         }
     }
     
+    /**
+     * Add already validated patients in bulk and write the file once, instead of once per patient.
+     * Patients whose ID is taken, in the hot list, the archive or earlier in the batch, are skipped.
+     * Returns the number of patients added, or -1 if saving failed and nothing was added.
+     */
+    public int importPatients(List<Patient> imported) {
+        int added = dirtyPatients.importAll(patients, imported, archivedPatients);
+        if (added < 0) {
+            System.out.println("Failed to save patient data.");
+        }
+        return added;
+    }
+    
     /**
      * Update an existing patient
      */
@@ -94,32 +144,31 @@ public class PatientService {
         
         // Update patient data
         int index = patients.indexOf(existingPatient);
-        patients.set(index, updatedPatient);
+        if (index >= 0) {
+            patients.set(index, updatedPatient);
+        }
         
         // Save to file
-        if (savePatients()) {
+        if (persistPatient(updatedPatient)) {
             System.out.println("Patient updated successfully: " + updatedPatient.getFullName());
             return true;
         } else {
             // Revert changes if save failed
-            patients.set(index, existingPatient);
+            if (index >= 0) {
+                patients.set(index, existingPatient);
+            } else {
+                patients.remove(updatedPatient);
+            }
             System.out.println("Failed to save patient data.");
             return false;
         }
     }
     
     /**
-     * Find patient by ID
+     * Find patient by ID, falling through to the archive
      */
     public Patient findPatientById(String patientId) {
-        if (!ValidationUtils.isNotEmpty(patientId)) {
-            return null;
-        }
-        
-        return patients.stream()
-                .filter(patient -> patient.getPatientId().equalsIgnoreCase(patientId.trim()))
-                .findFirst()
-                .orElse(null);
+        return archivedPatients.find(patients, patientId);
     }
     
     /**
@@ -181,7 +230,7 @@ public class PatientService {
         }
         
         patient.setActive(false);
-        if (savePatients()) {
+        if (persistPatient(patient)) {
             System.out.println("Patient deactivated: " + patient.getFullName());
             return true;
         } else {
@@ -202,7 +251,7 @@ public class PatientService {
         }
         
         patient.setActive(true);
-        if (savePatients()) {
+        if (persistPatient(patient)) {
             System.out.println("Patient activated: " + patient.getFullName());
             return true;
         } else {
@@ -217,8 +266,8 @@ public class PatientService {
      */
     public String generatePatientId() {
         int maxId = 0;
-        for (Patient patient : patients) {
-            String id = patient.getPatientId();
+        // Archived IDs stay taken
+        for (String id : archivedPatients.allKeys(patients)) {
             if (id.startsWith("P") && id.length() > 1) {
                 try {
                     int numId = Integer.parseInt(id.substring(1));
@@ -235,51 +284,81 @@ public class PatientService {
      * Validate patient data
      */
     private boolean validatePatient(Patient patient) {
+        String error = getPatientValidationError(patient);
+        if (error != null) {
+            System.out.println(error);
+            return false;
+        }
+        return true;
+    }
+    
+    /**
+     * Check patient data, returning the first problem found or null if it is valid
+     */
+    public static String getPatientValidationError(Patient patient) {
         // Validate required fields
         if (!ValidationUtils.isValidId(patient.getPatientId())) {
-            System.out.println("Invalid patient ID.");
-            return false;
+            return "Invalid patient ID.";
         }
         
         if (!ValidationUtils.isValidName(patient.getFirstName())) {
-            System.out.println("Invalid first name.");
-            return false;
+            return "Invalid first name.";
         }
         
         if (!ValidationUtils.isValidName(patient.getLastName())) {
-            System.out.println("Invalid last name.");
-            return false;
+            return "Invalid last name.";
         }
         
         if (!ValidationUtils.isValidBirthDate(patient.getDateOfBirth())) {
-            System.out.println("Invalid birth date.");
-            return false;
+            return "Invalid birth date.";
         }
         
         if (!ValidationUtils.isValidGender(patient.getGender())) {
-            System.out.println("Invalid gender. Must be Male, Female, or Other.");
-            return false;
+            return "Invalid gender. Must be Male, Female, or Other.";
         }
         
         if (!ValidationUtils.isValidPhoneNumber(patient.getPhoneNumber())) {
-            System.out.println("Invalid phone number.");
-            return false;
+            return "Invalid phone number.";
         }
         
         // Validate optional fields if provided
         if (ValidationUtils.isNotEmpty(patient.getEmail()) && 
             !ValidationUtils.isValidEmail(patient.getEmail())) {
-            System.out.println("Invalid email address.");
-            return false;
+            return "Invalid email address.";
         }
         
         if (ValidationUtils.isNotEmpty(patient.getBloodGroup()) && 
             !ValidationUtils.isValidBloodGroup(patient.getBloodGroup())) {
-            System.out.println("Invalid blood group.");
-            return false;
+            return "Invalid blood group.";
         }
         
-        return true;
+        return null;
+    }
+    
+    /**
+     * Move inactive patients to the archive, where they are still found by ID.
+     * Returns the number of archived patients, or -1 if archiving failed.
+     */
+    public int archiveInactivePatients() {
+        return archivePatients(patients.stream()
+                .filter(patient -> !patient.isActive())
+                .collect(Collectors.toList()));
+    }
+    
+    /**
+     * Move patients to the archive through the dirty tracker, reporting a failure
+     */
+    private int archivePatients(List<Patient> candidates) {
+        try {
+            int archived = dirtyPatients.archive(patients, candidates, archivedPatients);
+            if (archived < 0) {
+                System.out.println("Failed to save patient data.");
+            }
+            return archived;
+        } catch (IOException e) {
+            System.out.println("Failed to archive patients: " + e.getMessage());
+            return -1;
+        }
     }
     
     /**
@@ -294,6 +373,7 @@ public class PatientService {
         System.out.println("Total Patients: " + totalPatients);
         System.out.println("Active Patients: " + activePatients);
         System.out.println("Inactive Patients: " + inactivePatients);
+        System.out.println("Archived Patients: " + archivedPatients.size());
         System.out.println("==========================");
     }
 }
@@ -2,8 +2,10 @@ package services;
 
 import models.Doctor;
 import models.Staff;
-import utils.DatabaseManager;
+import utils.DirtyTracker;
+import utils.IndexedList;
 import utils.ValidationUtils;
+import utils.StorageEngine;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -13,44 +15,57 @@ import java.util.stream.Collectors;
  * StaffService class for managing staff operations
  */
 public class StaffService {
-    private static final String STAFF_FILE = "staff.dat";
-    private static final String DOCTORS_FILE = "doctors.dat";
-    private DatabaseManager dbManager;
-    private List<Staff> staffMembers;
-    private List<Doctor> doctors;
+    public static final String STAFF_FILE = "staff.dat";
+    public static final String DOCTORS_FILE = "doctors.dat";
+    private StorageEngine storage;
+    private IndexedList<Staff> staffMembers;
+    private DirtyTracker<Staff> dirtyStaff;
+    private IndexedList<Doctor> doctors;
+    private DirtyTracker<Doctor> dirtyDoctors;
     
     public StaffService() {
-        this.dbManager = DatabaseManager.getInstance();
-        this.staffMembers = loadStaff();
-        this.doctors = loadDoctors();
+        this(StorageSetup.getDefaultEngine());
+    }
+    
+    /**
+     * Create the service on top of the given storage engine
+     */
+    public StaffService(StorageEngine storage) {
+        this.storage = storage;
+        this.dirtyStaff = new DirtyTracker<>(storage, STAFF_FILE, Staff::getStaffId);
+        this.dirtyDoctors = new DirtyTracker<>(storage, DOCTORS_FILE, Doctor::getDoctorId);
+        this.staffMembers = new IndexedList<>(loadStaff(), Staff::getStaffId);
+        this.doctors = new IndexedList<>(loadDoctors(), Doctor::getDoctorId);
+        dirtyStaff.followExternalChanges(staffMembers, this::loadStaff);
+        dirtyDoctors.followExternalChanges(doctors, this::loadDoctors);
     }
     
     /**
      * Load staff from file
      */
     private List<Staff> loadStaff() {
-        return dbManager.loadData(STAFF_FILE);
+        return storage.load(STAFF_FILE, Staff::getStaffId);
     }
     
     /**
      * Load doctors from file
      */
     private List<Doctor> loadDoctors() {
-        return dbManager.loadData(DOCTORS_FILE);
+        return storage.load(DOCTORS_FILE, Doctor::getDoctorId);
     }
     
     /**
-     * Save staff to file
+     * Mark a staff member as changed and write the dirty set through the storage engine
      */
-    private boolean saveStaff() {
-        return dbManager.saveData(staffMembers, STAFF_FILE);
+    private boolean persistStaff(Staff staff) {
+        return dirtyStaff.persist(staff);
     }
     
     /**
-     * Save doctors to file
+     * Mark a doctor as changed and write the dirty set through the storage engine
      */
-    private boolean saveDoctors() {
-        return dbManager.saveData(doctors, DOCTORS_FILE);
+    private boolean persistDoctor(Doctor doctor) {
+        return dirtyDoctors.persist(doctor);
     }
     
     /**
@@ -77,7 +92,7 @@ public class StaffService {
         staffMembers.add(staff);
         
         // Save to file
-        if (saveStaff()) {
+        if (persistStaff(staff)) {
             System.out.println("Staff added successfully: " + staff.getFullName());
             return true;
         } else {
@@ -112,7 +127,7 @@ public class StaffService {
         doctors.add(doctor);
         
         // Save to file
-        if (saveDoctors()) {
+        if (persistDoctor(doctor)) {
             System.out.println("Doctor added successfully: " + doctor.getFullName());
             return true;
         } else {
@@ -123,6 +138,32 @@ public class StaffService {
         }
     }
     
+    /**
+     * Add already validated staff members in bulk and write the file once.
+     * Staff whose ID is taken, in the list or earlier in the batch, are skipped.
+     * Returns the number of staff added, or -1 if saving failed and nothing was added.
+     */
+    public int importStaff(List<Staff> imported) {
+        int added = dirtyStaff.importAll(staffMembers, imported, null);
+        if (added < 0) {
+            System.out.println("Failed to save staff data.");
+        }
+        return added;
+    }
+    
+    /**
+     * Add already validated doctors in bulk and write the file once.
+     * Doctors whose ID is taken, in the list or earlier in the batch, are skipped.
+     * Returns the number of doctors added, or -1 if saving failed and nothing was added.
+     */
+    public int importDoctors(List<Doctor> imported) {
+        int added = dirtyDoctors.importAll(doctors, imported, null);
+        if (added < 0) {
+            System.out.println("Failed to save doctor data.");
+        }
+        return added;
+    }
+    
     /**
      * Update an existing staff member
      */
@@ -149,7 +190,7 @@ public class StaffService {
         staffMembers.set(index, updatedStaff);
         
         // Save to file
-        if (saveStaff()) {
+        if (persistStaff(updatedStaff)) {
             System.out.println("Staff updated successfully: " + updatedStaff.getFullName());
             return true;
         } else {
@@ -186,7 +227,7 @@ public class StaffService {
         doctors.set(index, updatedDoctor);
         
         // Save to file
-        if (saveDoctors()) {
+        if (persistDoctor(updatedDoctor)) {
             System.out.println("Doctor updated successfully: " + updatedDoctor.getFullName());
             return true;
         } else {
@@ -198,31 +239,25 @@ public class StaffService {
     }
     
     /**
-     * Find staff by ID
+     * Find staff by ID through the ID index
      */
     public Staff findStaffById(String staffId) {
         if (!ValidationUtils.isNotEmpty(staffId)) {
             return null;
         }
         
-        return staffMembers.stream()
-                .filter(staff -> staff.getStaffId().equalsIgnoreCase(staffId.trim()))
-                .findFirst()
-                .orElse(null);
+        return staffMembers.getByKey(staffId);
     }
     
     /**
-     * Find doctor by ID
+     * Find doctor by ID through the ID index
      */
     public Doctor findDoctorById(String doctorId) {
         if (!ValidationUtils.isNotEmpty(doctorId)) {
             return null;
         }
         
-        return doctors.stream()
-                .filter(doctor -> doctor.getDoctorId().equalsIgnoreCase(doctorId.trim()))
-                .findFirst()
-                .orElse(null);
+        return doctors.getByKey(doctorId);
     }
     
     /**
@@ -372,97 +407,106 @@ public class StaffService {
      * Validate staff data
      */
     private boolean validateStaff(Staff staff) {
+        String error = getStaffValidationError(staff);
+        if (error != null) {
+            System.out.println(error);
+            return false;
+        }
+        return true;
+    }
+    
+    /**
+     * Check staff data, returning the first problem found or null if it is valid
+     */
+    public static String getStaffValidationError(Staff staff) {
         // Validate required fields
         if (!ValidationUtils.isValidId(staff.getStaffId())) {
-            System.out.println("Invalid staff ID.");
-            return false;
+            return "Invalid staff ID.";
         }
         
         if (!ValidationUtils.isValidName(staff.getFirstName())) {
-            System.out.println("Invalid first name.");
-            return false;
+            return "Invalid first name.";
         }
         
         if (!ValidationUtils.isValidName(staff.getLastName())) {
-            System.out.println("Invalid last name.");
-            return false;
+            return "Invalid last name.";
         }
         
         if (staff.getRole() == null) {
-            System.out.println("Staff role is required.");
-            return false;
+            return "Staff role is required.";
         }
         
         if (!ValidationUtils.isNotEmpty(staff.getDepartment())) {
-            System.out.println("Department is required.");
-            return false;
+            return "Department is required.";
         }
         
         // Validate optional fields if provided
         if (ValidationUtils.isNotEmpty(staff.getPhoneNumber()) && 
             !ValidationUtils.isValidPhoneNumber(staff.getPhoneNumber())) {
-            System.out.println("Invalid phone number.");
-            return false;
+            return "Invalid phone number.";
         }
         
         if (ValidationUtils.isNotEmpty(staff.getEmail()) && 
             !ValidationUtils.isValidEmail(staff.getEmail())) {
-            System.out.println("Invalid email address.");
-            return false;
+            return "Invalid email address.";
         }
         
         if (staff.getSalary() > 0 && !ValidationUtils.isValidSalary(staff.getSalary())) {
-            System.out.println("Invalid salary amount.");
-            return false;
+            return "Invalid salary amount.";
         }
         
-        return true;
+        return null;
     }
     
     /**
      * Validate doctor data
      */
     private boolean validateDoctor(Doctor doctor) {
+        String error = getDoctorValidationError(doctor);
+        if (error != null) {
+            System.out.println(error);
+            return false;
+        }
+        return true;
+    }
+    
+    /**
+     * Check doctor data, returning the first problem found or null if it is valid
+     */
+    public static String getDoctorValidationError(Doctor doctor) {
         // Validate required fields
         if (!ValidationUtils.isValidId(doctor.getDoctorId())) {
-            System.out.println("Invalid doctor ID.");
-            return false;
+            return "Invalid doctor ID.";
         }
         
         if (!ValidationUtils.isValidName(doctor.getFirstName())) {
-            System.out.println("Invalid first name.");
-            return false;
+            return "Invalid first name.";
         }
         
         if (!ValidationUtils.isValidName(doctor.getLastName())) {
-            System.out.println("Invalid last name.");
-            return false;
+            return "Invalid last name.";
         }
         
         if (!ValidationUtils.isNotEmpty(doctor.getSpecialization())) {
-            System.out.println("Specialization is required.");
-            return false;
+            return "Specialization is required.";
         }
         
         // Validate optional fields if provided
         if (ValidationUtils.isNotEmpty(doctor.getPhoneNumber()) && 
             !ValidationUtils.isValidPhoneNumber(doctor.getPhoneNumber())) {
-            System.out.println("Invalid phone number.");
-            return false;
+            return "Invalid phone number.";
         }
         
         if (ValidationUtils.isNotEmpty(doctor.getEmail()) && 
             !ValidationUtils.isValidEmail(doctor.getEmail())) {
-            System.out.println("Invalid email address.");
-            return false;
+            return "Invalid email address.";
         }
         
         if (doctor.getConsultationFee() > 0 && 
             !ValidationUtils.isValidConsultationFee(doctor.getConsultationFee())) {
-            System.out.println("Invalid consultation fee.");
-            return false;
+            return "Invalid consultation fee.";
         }
         
-        return true;
+        return null;
     }
 }
@@ -0,0 +1,59 @@
+package services;
+
+import utils.DatabaseManager;
+import utils.LogStructuredStorageEngine;
+import utils.ModelCodecs;
+import utils.ShardedStorageEngine;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.Deflater;
+
+/**
+ * StorageSetup class describing how the services' data files are stored: the binary codec
+ * of each file and which files are split into shards
+ */
+public class StorageSetup {
+    public static final int DEFAULT_SHARDS = 4;
+    private static ShardedStorageEngine defaultEngine;
+
+    /**
+     * Register the codec of every service data file, and block compression for the
+     * text-heavy bills file (item descriptions compress several times over).
+     * Call it before the manager loads any of these files.
+     */
+    public static void registerCodecs(DatabaseManager dbManager) {
+        dbManager.registerCodec(PatientService.PATIENTS_FILE, ModelCodecs.PATIENT);
+        dbManager.registerCodec(AppointmentService.APPOINTMENTS_FILE, ModelCodecs.APPOINTMENT);
+        dbManager.registerCodec(BillingService.BILLS_FILE, ModelCodecs.BILL);
+        dbManager.registerCodec(EHRService.HEALTH_RECORDS_FILE, ModelCodecs.HEALTH_RECORD);
+        dbManager.registerCodec(InventoryService.SUPPLIES_FILE, ModelCodecs.MEDICAL_SUPPLY);
+        dbManager.registerCodec(StaffService.DOCTORS_FILE, ModelCodecs.DOCTOR);
+        dbManager.registerCodec(StaffService.STAFF_FILE, ModelCodecs.STAFF);
+        dbManager.setCompressionLevel(BillingService.BILLS_FILE, Deflater.BEST_SPEED);
+    }
+
+    /**
+     * Shard counts of the data files that grow with the hospital's history
+     */
+    public static Map<String, Integer> getShardCounts() {
+        Map<String, Integer> shardCounts = new HashMap<>();
+        shardCounts.put(PatientService.PATIENTS_FILE, DEFAULT_SHARDS);
+        shardCounts.put(AppointmentService.APPOINTMENTS_FILE, DEFAULT_SHARDS);
+        shardCounts.put(BillingService.BILLS_FILE, DEFAULT_SHARDS);
+        return shardCounts;
+    }
+
+    /**
+     * The engine services use by default: the log-structured engine of the default directory,
+     * with the codecs registered and the growing files sharded
+     */
+    public static synchronized ShardedStorageEngine getDefaultEngine() {
+        if (defaultEngine == null) {
+            DatabaseManager dbManager = DatabaseManager.getInstance();
+            registerCodecs(dbManager);
+            defaultEngine = new ShardedStorageEngine(new LogStructuredStorageEngine(dbManager), getShardCounts());
+        }
+        return defaultEngine;
+    }
+}
@@ -0,0 +1,319 @@
+package utils;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * BackupStore class for incremental, deduplicating backups of a data directory.
+ * Files are split into fixed-size blocks stored once under their SHA-256 hash in
+ * blocks/, so a block that is already in the store is never written again. Each
+ * backup point is a manifest in manifests/ listing every file with its size,
+ * modification time and block hashes; a file whose size and modification time match
+ * the previous manifest is not even read. Restoring a backup reassembles the files
+ * from their blocks and verifies every hash.
+ */
+public class BackupStore {
+    static final int BLOCK_SIZE = 1024 * 1024;
+    private static final String MANIFEST_PREFIX = "backup_";
+    private static final String MANIFEST_SUFFIX = ".manifest";
+
+    private final Path root;
+    private final Path blocks;
+    private final Path manifests;
+    private Map<String, FileEntry> previous;
+    private List<FileEntry> entries;
+    private long bytesWritten;
+    private long bytesScanned;
+    private int blocksWritten;
+
+    public BackupStore(String rootDirectory) {
+        this.root = Paths.get(rootDirectory);
+        this.blocks = root.resolve("blocks");
+        this.manifests = root.resolve("manifests");
+    }
+
+    /**
+     * One backed-up file as recorded in a manifest
+     */
+    static class FileEntry {
+        final String name;
+        final long size;
+        final long lastModified;
+        final List<String> blockHashes;
+
+        FileEntry(String name, long size, long lastModified, List<String> blockHashes) {
+            this.name = name;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.blockHashes = blockHashes;
+        }
+    }
+
+    /**
+     * Start a new backup point; files are then added one by one and the point is committed
+     */
+    public void beginBackup() throws IOException {
+        Files.createDirectories(blocks);
+        Files.createDirectories(manifests);
+        bytesWritten = 0;
+        bytesScanned = 0;
+        blocksWritten = 0;
+        entries = new ArrayList<>();
+        previous = new HashMap<>();
+        List<String> backups = listBackups();
+        if (!backups.isEmpty()) {
+            for (FileEntry entry : readManifest(backups.get(backups.size() - 1))) {
+                previous.put(entry.name, entry);
+            }
+        }
+    }
+
+    /**
+     * Add a file to the backup being built. A file whose size and modification time match the
+     * previous backup is not read. For an append-only file (logs and segments) that only grew,
+     * the full blocks of the previous backup are reused and only the tail is read.
+     * A file that disappeared meanwhile is skipped.
+     */
+    public void addFile(File file, boolean appendOnly) throws IOException {
+        FileEntry last = previous.get(file.getName());
+        long size = file.length();
+        long lastModified = file.lastModified();
+        if (!file.exists()) {
+            return;
+        }
+        if (last != null && last.size == size && last.lastModified == lastModified && hasBlocks(last.blockHashes)) {
+            entries.add(last);
+            return;
+        }
+
+        List<String> reused = new ArrayList<>();
+        if (appendOnly && last != null && last.size <= size) {
+            // The last full block is read again in case a torn tail was cut off and rewritten
+            int fullBlocks = (int) Math.max(0, last.size / BLOCK_SIZE - 1);
+            reused.addAll(last.blockHashes.subList(0, fullBlocks));
+            if (!hasBlocks(reused)) {
+                reused.clear();
+            }
+        }
+        try {
+            entries.add(storeFile(file, reused));
+        } catch (FileNotFoundException e) {
+            // Removed by a checkpoint or compaction after it was listed
+        }
+    }
+
+    /**
+     * Write the manifest of the backup being built and return its ID
+     */
+    public String commitBackup() throws IOException {
+        String backupId = MANIFEST_PREFIX + System.currentTimeMillis();
+        while (Files.exists(manifests.resolve(backupId + MANIFEST_SUFFIX))) {
+            backupId = MANIFEST_PREFIX + (Long.parseLong(backupId.substring(MANIFEST_PREFIX.length())) + 1);
+        }
+        writeManifest(backupId, entries);
+        entries = null;
+        return backupId;
+    }
+
+    /**
+     * Split a file into blocks and store the blocks not yet in the store
+     */
+    private FileEntry storeFile(File file, List<String> reusedBlocks) throws IOException {
+        List<String> hashes = new ArrayList<>(reusedBlocks);
+        long lastModified = file.lastModified();
+        long size = (long) reusedBlocks.size() * BLOCK_SIZE;
+        byte[] buffer = new byte[BLOCK_SIZE];
+        try (FileInputStream in = new FileInputStream(file)) {
+            in.getChannel().position(size);
+            int length;
+            while ((length = readBlock(in, buffer)) > 0) {
+                String hash = sha256(buffer, length);
+                Path block = blockPath(hash);
+                if (!Files.exists(block)) {
+                    Files.createDirectories(block.getParent());
+                    Path temp = block.resolveSibling(hash + ".tmp");
+                    try (OutputStream out = new FileOutputStream(temp.toFile())) {
+                        out.write(buffer, 0, length);
+                    }
+                    moveAtomically(temp, block);
+                    bytesWritten += length;
+                    blocksWritten++;
+                }
+                hashes.add(hash);
+                size += length;
+            }
+        }
+        bytesScanned += size - (long) reusedBlocks.size() * BLOCK_SIZE;
+        return new FileEntry(file.getName(), size, lastModified, hashes);
+    }
+
+    private static int readBlock(InputStream in, byte[] buffer) throws IOException {
+        int total = 0;
+        while (total < buffer.length) {
+            int read = in.read(buffer, total, buffer.length - total);
+            if (read < 0) {
+                break;
+            }
+            total += read;
+        }
+        return total;
+    }
+
+    private boolean hasBlocks(List<String> hashes) {
+        for (String hash : hashes) {
+            if (!Files.exists(blockPath(hash))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Recreate every file of a backup in the target directory, verifying block hashes.
+     * Returns the names of the restored files.
+     */
+    public List<String> restore(String backupId, String targetDirectory) throws IOException {
+        Path target = Paths.get(targetDirectory);
+        Files.createDirectories(target);
+        List<String> restored = new ArrayList<>();
+        for (FileEntry entry : readManifest(backupId)) {
+            Path file = target.resolve(entry.name);
+            Path temp = target.resolve(entry.name + ".restore");
+            try (OutputStream out = new BufferedOutputStream(new FileOutputStream(temp.toFile()))) {
+                for (String hash : entry.blockHashes) {
+                    byte[] block = Files.readAllBytes(blockPath(hash));
+                    if (!sha256(block, block.length).equals(hash)) {
+                        throw new IOException("Backup block " + hash + " of " + entry.name + " is corrupt");
+                    }
+                    out.write(block);
+                }
+            }
+            if (Files.size(temp) != entry.size) {
+                throw new IOException("Restored " + entry.name + " has the wrong size");
+            }
+            moveAtomically(temp, file);
+            file.toFile().setLastModified(entry.lastModified);
+            restored.add(entry.name);
+        }
+        return restored;
+    }
+
+    /**
+     * List backup IDs, oldest first
+     */
+    public List<String> listBackups() {
+        List<String> backups = new ArrayList<>();
+        File[] files = manifests.toFile().listFiles();
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                if (name.startsWith(MANIFEST_PREFIX) && name.endsWith(MANIFEST_SUFFIX)) {
+                    backups.add(name.substring(0, name.length() - MANIFEST_SUFFIX.length()));
+                }
+            }
+        }
+        Collections.sort(backups);
+        return backups;
+    }
+
+    /**
+     * Manifest format: a comment line, then one tab-separated line per file:
+     * name, size, modification time and comma-separated block hashes
+     */
+    private void writeManifest(String backupId, List<FileEntry> entries) throws IOException {
+        Path manifest = manifests.resolve(backupId + MANIFEST_SUFFIX);
+        Path temp = manifests.resolve(backupId + MANIFEST_SUFFIX + ".tmp");
+        try (PrintWriter out = new PrintWriter(new OutputStreamWriter(
+                new FileOutputStream(temp.toFile()), StandardCharsets.UTF_8))) {
+            out.println("# " + backupId + " created " + LocalDateTime.now());
+            for (FileEntry entry : entries) {
+                out.println(entry.name + "\t" + entry.size + "\t" + entry.lastModified + "\t"
+                            + String.join(",", entry.blockHashes));
+            }
+        }
+        // The manifest is the commit point of a backup
+        moveAtomically(temp, manifest);
+    }
+
+    List<FileEntry> readManifest(String backupId) throws IOException {
+        Path manifest = manifests.resolve(backupId + MANIFEST_SUFFIX);
+        if (!Files.exists(manifest)) {
+            throw new IOException("Backup " + backupId + " not found");
+        }
+        List<FileEntry> entries = new ArrayList<>();
+        for (String line : Files.readAllLines(manifest, StandardCharsets.UTF_8)) {
+            if (line.startsWith("#") || line.trim().isEmpty()) {
+                continue;
+            }
+            String[] fields = line.split("\t", -1);
+            List<String> hashes = new ArrayList<>();
+            if (!fields[3].isEmpty()) {
+                Collections.addAll(hashes, fields[3].split(","));
+            }
+            entries.add(new FileEntry(fields[0], Long.parseLong(fields[1]), Long.parseLong(fields[2]), hashes));
+        }
+        return entries;
+    }
+
+    private Path blockPath(String hash) {
+        return blocks.resolve(hash.substring(0, 2)).resolve(hash);
+    }
+
+    private static String sha256(byte[] data, int length) {
+        try {
+            MessageDigest sha = MessageDigest.getInstance("SHA-256");
+            sha.update(data, 0, length);
+            byte[] digest = sha.digest();
+            StringBuilder hex = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    private static void moveAtomically(Path source, Path target) throws IOException {
+        try {
+            Files.move(source, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Bytes of new blocks written by the last backup
+     */
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    /**
+     * Bytes read and checksummed by the last backup; unchanged files are not read
+     */
+    public long getBytesScanned() {
+        return bytesScanned;
+    }
+
+    public int getBlocksWritten() {
+        return blocksWritten;
+    }
+
+    public String getRootDirectory() {
+        return root.toString();
+    }
+}
@@ -0,0 +1,448 @@
+package utils;
+
+import models.Doctor;
+import models.MedicalSupply;
+import models.Patient;
+import models.Staff;
+import services.InventoryService;
+import services.PatientService;
+import services.StaffService;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+import java.util.function.ToIntFunction;
+
+/**
+ * BulkImporter class for loading large CSV or TSV files of patients, staff, doctors or supplies.
+ * One thread parses the file into batches of rows, a pool of workers turns them into models and
+ * validates them with the services' rules, and the valid records are added to the service in one
+ * call that saves the data file once.
+ *
+ * The first line names the columns, in any order; values are separated by commas, or by tabs
+ * for files ending in .tsv. A value may be quoted to contain the separator, with "" for a quote.
+ * Allergies are separated by semicolons. Dates use yyyy-MM-dd.
+ *
+ * Usage: java -cp bin utils.BulkImporter patients|staff|doctors|supplies file [threads]
+ */
+public class BulkImporter {
+    private static final int BATCH_SIZE = 1000;
+    private static final int BATCHES_PER_THREAD = 4;
+    private static final int REJECTIONS_SHOWN = 20;
+    private static final Future<Batch<?>> END_OF_FILE = CompletableFuture.completedFuture(null);
+
+    /**
+     * One line of the file, with its values looked up by column name
+     */
+    private static class Row {
+        private final Map<String, Integer> columns;
+        private final String[] values;
+        final long lineNumber;
+
+        Row(Map<String, Integer> columns, String[] values, long lineNumber) {
+            this.columns = columns;
+            this.values = values;
+            this.lineNumber = lineNumber;
+        }
+
+        /**
+         * Get the trimmed value of a column, or null if the column is missing or empty
+         */
+        String get(String column) {
+            Integer index = columns.get(column);
+            if (index == null || index >= values.length) {
+                return null;
+            }
+            String value = values[index].trim();
+            return value.isEmpty() ? null : value;
+        }
+
+        int getInt(String column, int defaultValue) {
+            String value = get(column);
+            try {
+                return value == null ? defaultValue : Integer.parseInt(value);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid number in column " + column + ": " + value);
+            }
+        }
+
+        double getDouble(String column, double defaultValue) {
+            String value = get(column);
+            try {
+                return value == null ? defaultValue : Double.parseDouble(value);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid number in column " + column + ": " + value);
+            }
+        }
+
+        LocalDate getDate(String column) {
+            String value = get(column);
+            try {
+                return value == null ? null : LocalDate.parse(value, DateUtils.DATE_FORMATTER);
+            } catch (DateTimeParseException e) {
+                throw new IllegalArgumentException("Invalid date in column " + column + ": " + value);
+            }
+        }
+
+        <E extends Enum<E>> E getEnum(String column, Class<E> type) {
+            String value = get(column);
+            try {
+                return value == null ? null : Enum.valueOf(type, value.toUpperCase().replace(' ', '_'));
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Unknown value in column " + column + ": " + value);
+            }
+        }
+    }
+
+    /**
+     * The valid records and rejected rows of one batch
+     */
+    private static class Batch<T> {
+        final List<T> records = new ArrayList<>();
+        final List<String> rejections = new ArrayList<>();
+        int rows;
+    }
+
+    /**
+     * How one kind of record is read, checked and added
+     */
+    private static class RecordType<T> {
+        final String[] requiredColumns;
+        final Function<Row, T> parser;
+        final Function<T, String> validator;
+        final ToIntFunction<List<T>> importer;
+
+        RecordType(String[] requiredColumns, Function<Row, T> parser,
+                   Function<T, String> validator, ToIntFunction<List<T>> importer) {
+            this.requiredColumns = requiredColumns;
+            this.parser = parser;
+            this.validator = validator;
+            this.importer = importer;
+        }
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 2) {
+            System.out.println("Usage: java -cp bin utils.BulkImporter patients|staff|doctors|supplies file [threads]");
+            return;
+        }
+        int threads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+        File file = new File(args[1]);
+
+        switch (args[0]) {
+            case "patients":
+                runImport(args[0], file, threads, patientType(new PatientService()));
+                break;
+            case "staff":
+                runImport(args[0], file, threads, staffType(new StaffService()));
+                break;
+            case "doctors":
+                runImport(args[0], file, threads, doctorType(new StaffService()));
+                break;
+            case "supplies":
+                runImport(args[0], file, threads, supplyType(new InventoryService()));
+                break;
+            default:
+                System.out.println("Unknown record type: " + args[0]);
+        }
+    }
+
+    private static RecordType<Patient> patientType(PatientService service) {
+        return new RecordType<>(
+            new String[] {"id", "firstName", "lastName", "dateOfBirth", "gender", "phone"},
+            row -> {
+                Patient patient = new Patient(row.get("id"), row.get("firstName"), row.get("lastName"),
+                                              row.getDate("dateOfBirth"), row.get("gender"), row.get("phone"));
+                patient.setEmail(row.get("email"));
+                patient.setAddress(row.get("address"));
+                patient.setBloodGroup(row.get("bloodGroup"));
+                patient.setEmergencyContact(row.get("emergencyContact"));
+                patient.setEmergencyPhone(row.get("emergencyPhone"));
+                patient.setInsuranceNumber(row.get("insuranceNumber"));
+                if (row.get("allergies") != null) {
+                    List<String> allergies = new ArrayList<>();
+                    for (String allergy : row.get("allergies").split(";")) {
+                        if (!allergy.trim().isEmpty()) {
+                            allergies.add(allergy.trim());
+                        }
+                    }
+                    patient.setAllergies(allergies);
+                }
+                return patient;
+            },
+            PatientService::getPatientValidationError,
+            service::importPatients);
+    }
+
+    private static RecordType<Staff> staffType(StaffService service) {
+        return new RecordType<>(
+            new String[] {"id", "firstName", "lastName", "role", "department"},
+            row -> {
+                Staff staff = new Staff(row.get("id"), row.get("firstName"), row.get("lastName"),
+                                        row.getEnum("role", Staff.StaffRole.class), row.get("department"));
+                staff.setPhoneNumber(row.get("phone"));
+                staff.setEmail(row.get("email"));
+                staff.setSalary(row.getDouble("salary", 0));
+                if (row.get("hireDate") != null) {
+                    staff.setHireDate(row.getDate("hireDate"));
+                }
+                return staff;
+            },
+            StaffService::getStaffValidationError,
+            service::importStaff);
+    }
+
+    private static RecordType<Doctor> doctorType(StaffService service) {
+        return new RecordType<>(
+            new String[] {"id", "firstName", "lastName", "specialization"},
+            row -> {
+                Doctor doctor = new Doctor(row.get("id"), row.get("firstName"), row.get("lastName"),
+                                           row.get("specialization"), row.get("phone"));
+                doctor.setEmail(row.get("email"));
+                doctor.setDepartment(row.get("department"));
+                doctor.setConsultationFee(row.getDouble("consultationFee", 0));
+                doctor.setExperienceYears(row.getInt("experienceYears", 0));
+                doctor.setLicenseNumber(row.get("licenseNumber"));
+                return doctor;
+            },
+            StaffService::getDoctorValidationError,
+            service::importDoctors);
+    }
+
+    private static RecordType<MedicalSupply> supplyType(InventoryService service) {
+        return new RecordType<>(
+            new String[] {"id", "name", "category", "currentStock", "minimumStock"},
+            row -> {
+                MedicalSupply supply = new MedicalSupply(row.get("id"), row.get("name"),
+                                                         row.getEnum("category", MedicalSupply.SupplyCategory.class),
+                                                         row.getInt("currentStock", 0), row.getInt("minimumStock", 0));
+                supply.setMaximumStock(row.getInt("maximumStock", 0));
+                supply.setUnitPrice(row.getDouble("unitPrice", 0));
+                supply.setUnit(row.get("unit"));
+                supply.setManufacturer(row.get("manufacturer"));
+                supply.setSupplier(row.get("supplier"));
+                supply.setStorageLocation(row.get("storageLocation"));
+                supply.setExpiryDate(row.getDate("expiryDate"));
+                return supply;
+            },
+            InventoryService::getSupplyValidationError,
+            service::importSupplies);
+    }
+
+    /**
+     * Parse and validate the whole file, then add the valid records to the service at once
+     */
+    private static <T> void runImport(String label, File file, int threads, RecordType<T> type) {
+        System.out.println("\n=== Bulk Import: " + label + " from " + file.getName() + " ===");
+        long start = System.nanoTime();
+        ExecutorService validators = Executors.newFixedThreadPool(Math.max(1, threads));
+        // Bounded, so the parser waits for the workers instead of reading the whole file ahead
+        BlockingQueue<Future<Batch<?>>> pending = new ArrayBlockingQueue<>(Math.max(1, threads) * BATCHES_PER_THREAD);
+        IOException[] parseError = new IOException[1];
+        // Column names are matched ignoring case
+        Map<String, Integer> columns = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+
+        List<T> records = new ArrayList<>();
+        List<String> rejections = new ArrayList<>();
+        int rows = 0;
+        try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+            char separator = file.getName().toLowerCase().endsWith(".tsv") ? '\t' : ',';
+            String header = reader.readLine();
+            if (header == null) {
+                System.out.println("File is empty.");
+                return;
+            }
+            String[] names = split(header, separator);
+            for (int i = 0; i < names.length; i++) {
+                columns.put(names[i].trim(), i);
+            }
+            for (String column : type.requiredColumns) {
+                if (!columns.containsKey(column)) {
+                    System.out.println("Missing column: " + column);
+                    return;
+                }
+            }
+
+            Thread parser = new Thread(() -> {
+                try {
+                    parse(reader, separator, columns, type, validators, pending);
+                } catch (IOException e) {
+                    parseError[0] = e;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    try {
+                        pending.put(END_OF_FILE);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }, "import-parser");
+            // Daemon, so a failed import does not wait for it to finish reading
+            parser.setDaemon(true);
+            parser.start();
+
+            // Collect batches in file order, so duplicates keep their first occurrence
+            for (Future<Batch<?>> next = pending.take(); next != END_OF_FILE; next = pending.take()) {
+                @SuppressWarnings("unchecked")
+                Batch<T> batch = (Batch<T>) next.get();
+                records.addAll(batch.records);
+                rejections.addAll(batch.rejections);
+                rows += batch.rows;
+            }
+            parser.join();
+        } catch (IOException e) {
+            System.out.println("Error reading " + file + ": " + e.getMessage());
+            return;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            System.out.println("Import interrupted.");
+            return;
+        } catch (ExecutionException e) {
+            System.out.println("Error validating rows: " + e.getCause());
+            return;
+        } finally {
+            validators.shutdownNow();
+        }
+        if (parseError[0] != null) {
+            System.out.println("Error reading " + file + ": " + parseError[0].getMessage());
+            return;
+        }
+        long parsed = System.nanoTime();
+
+        int imported = records.isEmpty() ? 0 : type.importer.applyAsInt(records);
+        long saved = System.nanoTime();
+
+        for (int i = 0; i < Math.min(REJECTIONS_SHOWN, rejections.size()); i++) {
+            System.out.println("Rejected " + rejections.get(i));
+        }
+        if (rejections.size() > REJECTIONS_SHOWN) {
+            System.out.println("... and " + (rejections.size() - REJECTIONS_SHOWN) + " more rejected rows");
+        }
+        System.out.println("Rows read: " + rows);
+        System.out.println("Rejected: " + rejections.size());
+        if (imported < 0) {
+            System.out.println("Import failed; nothing was added.");
+            return;
+        }
+        System.out.println("Duplicate IDs skipped: " + (records.size() - imported));
+        System.out.println("Imported: " + imported);
+        System.out.printf("Parse and validate: %d ms (%s rows/sec, %d threads)%n",
+                          millis(start, parsed), rate(rows, start, parsed), Math.max(1, threads));
+        System.out.printf("Insert and save: %d ms (%s rows/sec)%n",
+                          millis(parsed, saved), rate(records.size(), parsed, saved));
+        System.out.printf("Total: %d ms (%s rows/sec)%n", millis(start, saved), rate(rows, start, saved));
+    }
+
+    /**
+     * Split the file into batches of rows and hand each batch to the workers as soon as it is full
+     */
+    private static <T> void parse(BufferedReader reader, char separator, Map<String, Integer> columns,
+                                  RecordType<T> type, ExecutorService validators,
+                                  BlockingQueue<Future<Batch<?>>> pending) throws IOException, InterruptedException {
+        List<Row> rows = new ArrayList<>(BATCH_SIZE);
+        long lineNumber = 1;
+        String line;
+        while ((line = reader.readLine()) != null) {
+            lineNumber++;
+            if (line.trim().isEmpty()) {
+                continue;
+            }
+            rows.add(new Row(columns, split(line, separator), lineNumber));
+            if (rows.size() == BATCH_SIZE) {
+                submit(rows, type, validators, pending);
+                rows = new ArrayList<>(BATCH_SIZE);
+            }
+        }
+        if (!rows.isEmpty()) {
+            submit(rows, type, validators, pending);
+        }
+    }
+
+    private static <T> void submit(List<Row> rows, RecordType<T> type, ExecutorService validators,
+                                   BlockingQueue<Future<Batch<?>>> pending) throws InterruptedException {
+        pending.put(validators.submit(() -> validate(rows, type)));
+    }
+
+    /**
+     * Turn a batch of rows into records; runs on the worker pool, so nothing here prints
+     */
+    private static <T> Batch<?> validate(List<Row> rows, RecordType<T> type) {
+        Batch<T> batch = new Batch<>();
+        batch.rows = rows.size();
+        for (Row row : rows) {
+            String error;
+            T record = null;
+            try {
+                record = type.parser.apply(row);
+                error = type.validator.apply(record);
+            } catch (IllegalArgumentException e) {
+                error = e.getMessage();
+            }
+            if (error == null) {
+                batch.records.add(record);
+            } else {
+                batch.rejections.add("line " + row.lineNumber + ": " + error);
+            }
+        }
+        return batch;
+    }
+
+    /**
+     * Split a line at the separator, honouring double quotes around values
+     */
+    static String[] split(String line, char separator) {
+        if (line.indexOf('"') < 0) {
+            return line.split(separator == '\t' ? "\t" : ",", -1);
+        }
+        List<String> values = new ArrayList<>();
+        StringBuilder value = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quoted) {
+                if (c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                    value.append('"');
+                    i++;
+                } else if (c == '"') {
+                    quoted = false;
+                } else {
+                    value.append(c);
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == separator) {
+                values.add(value.toString());
+                value.setLength(0);
+            } else {
+                value.append(c);
+            }
+        }
+        values.add(value.toString());
+        return values.toArray(new String[0]);
+    }
+
+    private static long millis(long from, long to) {
+        return (to - from) / 1_000_000;
+    }
+
+    private static String rate(int count, long from, long to) {
+        return String.format("%,.0f", count / Math.max((to - from) / 1e9, 1e-9));
+    }
+}
@@ -0,0 +1,11 @@
+package utils;
+
+/**
+ * ColumnType enum for the value types of a columnar export file and how each is encoded:
+ * strings as a per-chunk dictionary of codes when they repeat (status enums, doctor IDs) and
+ * as plain length-prefixed UTF-8 otherwise, timestamps as zig-zag varint deltas of epoch
+ * seconds, doubles packed as 8 bytes each, ints as zig-zag varints and booleans as bits
+ */
+enum ColumnType {
+    STRING, TIMESTAMP, DOUBLE, INT, BOOLEAN
+}
@@ -0,0 +1,58 @@
+package utils;
+
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+
+/**
+ * ColumnVector class for the decoded values of one column in one row group, held in primitive
+ * arrays so scans do not create an object per value. Only the arrays of the column's type are
+ * set: strings as dictionary codes, timestamps (epoch seconds) and ints in longs, doubles in
+ * doubles and booleans in booleans.
+ */
+class ColumnVector {
+    final ColumnType type;
+    final int rows;
+    final boolean[] nulls;
+    final String[] dictionary;
+    final int[] codes;
+    final long[] longs;
+    final double[] doubles;
+    final boolean[] booleans;
+
+    ColumnVector(ColumnType type, int rows, boolean[] nulls, String[] dictionary, int[] codes,
+                 long[] longs, double[] doubles, boolean[] booleans) {
+        this.type = type;
+        this.rows = rows;
+        this.nulls = nulls;
+        this.dictionary = dictionary;
+        this.codes = codes;
+        this.longs = longs;
+        this.doubles = doubles;
+        this.booleans = booleans;
+    }
+
+    boolean isNull(int row) {
+        return nulls != null && nulls[row];
+    }
+
+    /**
+     * Get a value as an object, for printing; scans should use the arrays directly
+     */
+    Object get(int row) {
+        if (isNull(row)) {
+            return null;
+        }
+        switch (type) {
+            case STRING:
+                return dictionary[codes[row]];
+            case TIMESTAMP:
+                return LocalDateTime.ofEpochSecond(longs[row], 0, ZoneOffset.UTC);
+            case DOUBLE:
+                return doubles[row];
+            case INT:
+                return longs[row];
+            default:
+                return booleans[row];
+        }
+    }
+}
@@ -0,0 +1,216 @@
+package utils;
+
+import models.Appointment;
+import models.Bill;
+import models.HealthRecord;
+import services.AppointmentService;
+import services.BillingService;
+import services.EHRService;
+import services.StorageSetup;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * ColumnarExporter class for exporting appointments, bills and health records into columnar
+ * files (`.col`) that ColumnarQuery scans without deserializing whole records. Records are
+ * streamed from the data files one at a time, shard by shard and then from the archive, so
+ * the export runs in constant memory apart from the set of exported IDs.
+ * Usage: java -cp bin utils.ColumnarExporter [appointments|bills|health_records|all] [directory]
+ */
+public class ColumnarExporter {
+    public static final String EXPORT_DIRECTORY = "data_export";
+    public static final String EXPORT_SUFFIX = ".col";
+
+    /**
+     * One exported column: its name, type and how to get its value from a record
+     */
+    private static class ExportColumn<T> {
+        final String name;
+        final ColumnType type;
+        final Function<T, Object> value;
+
+        ExportColumn(String name, ColumnType type, Function<T, Object> value) {
+            this.name = name;
+            this.type = type;
+            this.value = value;
+        }
+    }
+
+    public static void main(String[] args) {
+        String entity = args.length > 0 ? args[0] : "all";
+        Path directory = Paths.get(args.length > 1 ? args[1] : EXPORT_DIRECTORY);
+
+        switch (entity) {
+            case "appointments":
+                exportAppointments(directory);
+                break;
+            case "bills":
+                exportBills(directory);
+                break;
+            case "health_records":
+                exportHealthRecords(directory);
+                break;
+            case "all":
+                exportAppointments(directory);
+                exportBills(directory);
+                exportHealthRecords(directory);
+                break;
+            default:
+                System.out.println("Unknown export: " + entity);
+        }
+    }
+
+    public static void exportAppointments(Path directory) {
+        List<ExportColumn<Appointment>> columns = new ArrayList<>();
+        columns.add(new ExportColumn<>("appointmentId", ColumnType.STRING, Appointment::getAppointmentId));
+        columns.add(new ExportColumn<>("patientId", ColumnType.STRING, Appointment::getPatientId));
+        columns.add(new ExportColumn<>("doctorId", ColumnType.STRING, Appointment::getDoctorId));
+        columns.add(new ExportColumn<>("appointmentDateTime", ColumnType.TIMESTAMP, Appointment::getAppointmentDateTime));
+        columns.add(new ExportColumn<>("status", ColumnType.STRING, a -> a.getStatus() == null ? null : a.getStatus().name()));
+        columns.add(new ExportColumn<>("consultationFee", ColumnType.DOUBLE, Appointment::getConsultationFee));
+        columns.add(new ExportColumn<>("reason", ColumnType.STRING, Appointment::getReason));
+        columns.add(new ExportColumn<>("createdAt", ColumnType.TIMESTAMP, Appointment::getCreatedAt));
+        columns.add(new ExportColumn<>("updatedAt", ColumnType.TIMESTAMP, Appointment::getUpdatedAt));
+        columns.add(new ExportColumn<>("createdBy", ColumnType.STRING, Appointment::getCreatedBy));
+
+        export("appointments", directory, columns, Appointment::getAppointmentId,
+               consumer -> streamDataFile(AppointmentService.APPOINTMENTS_FILE, ModelCodecs.APPOINTMENT,
+                                          Appointment::getAppointmentId, consumer));
+    }
+
+    public static void exportBills(Path directory) {
+        List<ExportColumn<Bill>> columns = new ArrayList<>();
+        columns.add(new ExportColumn<>("billId", ColumnType.STRING, Bill::getBillId));
+        columns.add(new ExportColumn<>("patientId", ColumnType.STRING, Bill::getPatientId));
+        columns.add(new ExportColumn<>("appointmentId", ColumnType.STRING, Bill::getAppointmentId));
+        columns.add(new ExportColumn<>("billDate", ColumnType.TIMESTAMP, Bill::getBillDate));
+        columns.add(new ExportColumn<>("itemCount", ColumnType.INT, b -> b.getItems() == null ? 0 : b.getItems().size()));
+        columns.add(new ExportColumn<>("subtotal", ColumnType.DOUBLE, Bill::getSubtotal));
+        columns.add(new ExportColumn<>("taxAmount", ColumnType.DOUBLE, Bill::getTaxAmount));
+        columns.add(new ExportColumn<>("discountAmount", ColumnType.DOUBLE, Bill::getDiscountAmount));
+        columns.add(new ExportColumn<>("totalAmount", ColumnType.DOUBLE, Bill::getTotalAmount));
+        columns.add(new ExportColumn<>("paidAmount", ColumnType.DOUBLE, Bill::getPaidAmount));
+        columns.add(new ExportColumn<>("balanceAmount", ColumnType.DOUBLE, Bill::getBalanceAmount));
+        columns.add(new ExportColumn<>("paymentStatus", ColumnType.STRING,
+                                       b -> b.getPaymentStatus() == null ? null : b.getPaymentStatus().name()));
+        columns.add(new ExportColumn<>("dueDate", ColumnType.TIMESTAMP, Bill::getDueDate));
+        columns.add(new ExportColumn<>("paymentMethod", ColumnType.STRING, Bill::getPaymentMethod));
+        columns.add(new ExportColumn<>("active", ColumnType.BOOLEAN, Bill::isActive));
+
+        export("bills", directory, columns, Bill::getBillId,
+               consumer -> streamDataFile(BillingService.BILLS_FILE, ModelCodecs.BILL, Bill::getBillId, consumer));
+    }
+
+    public static void exportHealthRecords(Path directory) {
+        List<ExportColumn<HealthRecord>> columns = new ArrayList<>();
+        columns.add(new ExportColumn<>("recordId", ColumnType.STRING, HealthRecord::getRecordId));
+        columns.add(new ExportColumn<>("patientId", ColumnType.STRING, HealthRecord::getPatientId));
+        columns.add(new ExportColumn<>("doctorId", ColumnType.STRING, HealthRecord::getDoctorId));
+        columns.add(new ExportColumn<>("visitDate", ColumnType.TIMESTAMP, HealthRecord::getVisitDate));
+        columns.add(new ExportColumn<>("diagnosis", ColumnType.STRING, HealthRecord::getDiagnosis));
+        columns.add(new ExportColumn<>("height", ColumnType.DOUBLE, HealthRecord::getHeight));
+        columns.add(new ExportColumn<>("weight", ColumnType.DOUBLE, HealthRecord::getWeight));
+        columns.add(new ExportColumn<>("temperature", ColumnType.DOUBLE, HealthRecord::getTemperature));
+        columns.add(new ExportColumn<>("heartRate", ColumnType.INT, HealthRecord::getHeartRate));
+        columns.add(new ExportColumn<>("bloodPressure", ColumnType.STRING, HealthRecord::getBloodPressure));
+        columns.add(new ExportColumn<>("nextVisitDate", ColumnType.TIMESTAMP, HealthRecord::getNextVisitDate));
+        columns.add(new ExportColumn<>("active", ColumnType.BOOLEAN, HealthRecord::isActive));
+
+        export("health_records", directory, columns, HealthRecord::getRecordId, consumer -> {
+            try {
+                RecordStore<HealthRecord> store = StorageSetup.getDefaultEngine().openRecordStore(
+                        EHRService.HEALTH_RECORDS_FILE, HealthRecord::getRecordId, HealthRecord::getPatientId);
+                store.forEach(consumer);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+    }
+
+    /**
+     * Write every record the source produces to <directory>/<name>.col, skipping repeated IDs
+     */
+    private static <T> void export(String name, Path directory, List<ExportColumn<T>> columns,
+                                   Function<T, String> keyExtractor, Consumer<Consumer<T>> source) {
+        String[] names = new String[columns.size()];
+        ColumnType[] types = new ColumnType[columns.size()];
+        for (int i = 0; i < columns.size(); i++) {
+            names[i] = columns.get(i).name;
+            types[i] = columns.get(i).type;
+        }
+        Path target = directory.resolve(name + EXPORT_SUFFIX);
+        long start = System.nanoTime();
+        ColumnarWriter writer = null;
+        try {
+            Files.createDirectories(directory);
+            writer = new ColumnarWriter(target, names, types);
+            ColumnarWriter out = writer;
+            Set<String> exported = new HashSet<>();
+            Object[] row = new Object[columns.size()];
+            source.accept(record -> {
+                if (!exported.add(ValidationUtils.formatId(keyExtractor.apply(record)))) {
+                    return;
+                }
+                for (int i = 0; i < row.length; i++) {
+                    row[i] = columns.get(i).value.apply(record);
+                }
+                try {
+                    out.writeRow(row);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+            writer.close();
+        } catch (IOException | UncheckedIOException e) {
+            if (writer != null) {
+                writer.abort();
+            }
+            String message = e instanceof UncheckedIOException ? e.getCause().getMessage() : e.getMessage();
+            System.out.println("Error exporting " + name + ": " + message);
+            return;
+        }
+        long elapsed = System.nanoTime() - start;
+        try {
+            System.out.printf("Exported %d %s to %s (%d KB) in %d ms%n", writer.getRowCount(), name, target,
+                              Files.size(target) / 1024, elapsed / 1_000_000);
+        } catch (IOException e) {
+            System.out.println("Exported " + writer.getRowCount() + " " + name + " to " + target);
+        }
+    }
+
+    /**
+     * Stream a data file with its log applied, shard by shard, followed by its archive.
+     * Archived records that are also in the hot file are skipped by the export, which sees
+     * the hot copy first.
+     */
+    private static <T> void streamDataFile(String filename, RecordCodec<T> codec,
+                                           Function<T, String> keyExtractor, Consumer<T> consumer) {
+        ShardedStorageEngine storage = StorageSetup.getDefaultEngine();
+        List<String> files = storage.isSharded(filename)
+                ? storage.getShardFiles(filename, keyExtractor)
+                : Collections.singletonList(filename);
+        try {
+            for (String file : files) {
+                try (RecordCursor<T> cursor = DatabaseManager.getInstance().stream(file, codec, keyExtractor)) {
+                    for (T record = cursor.next(); record != null; record = cursor.next()) {
+                        consumer.accept(record);
+                    }
+                }
+            }
+            storage.openArchive(filename, keyExtractor).forEach(consumer);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -0,0 +1,231 @@
+package utils;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * ColumnarQuery class for aggregating a columnar export file. Only the columns a query names
+ * are read, and they are scanned as primitive arrays: grouping by a dictionary-encoded column
+ * resolves each dictionary entry once per row group instead of comparing strings per row.
+ * Timestamps are grouped by month.
+ * Usage: java -cp bin utils.ColumnarQuery file.col [count | sum|avg|min|max column] [by column] [where column=value]
+ */
+public class ColumnarQuery {
+    private static final String NO_VALUE = "(none)";
+
+    /**
+     * Running count, sum, minimum and maximum of one group
+     */
+    private static class Aggregate {
+        long count;
+        double sum;
+        double min = Double.POSITIVE_INFINITY;
+        double max = Double.NEGATIVE_INFINITY;
+
+        void add(double value) {
+            count++;
+            sum += value;
+            min = Math.min(min, value);
+            max = Math.max(max, value);
+        }
+    }
+
+    public static void main(String[] args) {
+        if (args.length == 0) {
+            System.out.println("Usage: java -cp bin utils.ColumnarQuery file.col [count | sum|avg|min|max column] [by column] [where column=value]");
+            return;
+        }
+        Path file = Paths.get(args[0]);
+        String function = "count";
+        String valueColumn = null;
+        String groupColumn = null;
+        String filter = null;
+        int i = 1;
+        if (i < args.length && !args[i].equals("by") && !args[i].equals("where")) {
+            function = args[i++];
+            if (!function.equals("count") && i < args.length) {
+                valueColumn = args[i++];
+            }
+        }
+        while (i + 1 < args.length) {
+            if (args[i].equals("by")) {
+                groupColumn = args[i + 1];
+            } else if (args[i].equals("where")) {
+                filter = args[i + 1];
+            }
+            i += 2;
+        }
+
+        try (ColumnarReader reader = new ColumnarReader(file)) {
+            if (args.length == 1) {
+                describe(file, reader);
+            } else {
+                run(file, reader, function, valueColumn, groupColumn, filter);
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            System.out.println("Error: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Print the columns of a file with their types and sizes
+     */
+    private static void describe(Path file, ColumnarReader reader) throws IOException {
+        System.out.println("\n=== " + file.getFileName() + ": " + reader.getRowCount() + " rows in "
+                           + reader.getRowGroupCount() + " row groups, " + Files.size(file) / 1024 + " KB ===");
+        System.out.printf("%-22s %-10s %12s%n", "Column", "Type", "Size");
+        for (String name : reader.getColumnNames()) {
+            System.out.printf("%-22s %-10s %9d KB%n", name, reader.getType(name), reader.getColumnSize(name) / 1024);
+        }
+    }
+
+    private static void run(Path file, ColumnarReader reader, String function, String valueColumn,
+                            String groupColumn, String filter) throws IOException {
+        if (!function.matches("count|sum|avg|min|max")) {
+            throw new IllegalArgumentException("Unknown function " + function + "; use count, sum, avg, min or max");
+        }
+        if (!function.equals("count")) {
+            if (valueColumn == null) {
+                throw new IllegalArgumentException(function + " needs a column");
+            }
+            ColumnType type = reader.getType(valueColumn);
+            boolean numeric = type == ColumnType.DOUBLE || type == ColumnType.INT;
+            if (!numeric && !(type == ColumnType.TIMESTAMP && (function.equals("min") || function.equals("max")))) {
+                throw new IllegalArgumentException("Cannot compute " + function + " of " + type + " column " + valueColumn);
+            }
+        }
+        String filterColumn = null;
+        String filterValue = null;
+        if (filter != null) {
+            int separator = filter.indexOf('=');
+            if (separator <= 0) {
+                throw new IllegalArgumentException("Filter must look like column=value");
+            }
+            filterColumn = filter.substring(0, separator);
+            filterValue = filter.substring(separator + 1);
+            reader.getType(filterColumn);
+        }
+        if (groupColumn != null) {
+            reader.getType(groupColumn);
+        }
+
+        long start = System.nanoTime();
+        Map<String, Aggregate> groups = new TreeMap<>();
+        long scanned = 0;
+        for (int group = 0; group < reader.getRowGroupCount(); group++) {
+            ColumnVector values = valueColumn != null ? reader.readColumn(group, valueColumn) : null;
+            ColumnVector keys = groupColumn != null ? reader.readColumn(group, groupColumn) : null;
+            boolean[] matches = filterColumn != null ? match(reader.readColumn(group, filterColumn), filterValue) : null;
+            Aggregate[] byCode = keys != null && keys.type == ColumnType.STRING ? new Aggregate[keys.dictionary.length] : null;
+            Map<Long, Aggregate> byMonth = new HashMap<>();
+            Aggregate all = groupColumn == null ? groups.computeIfAbsent("", key -> new Aggregate()) : null;
+
+            int rows = reader.getRowGroupRows(group);
+            scanned += rows;
+            for (int row = 0; row < rows; row++) {
+                if (matches != null && !matches[row]) {
+                    continue;
+                }
+                if (values != null && values.isNull(row)) {
+                    continue;
+                }
+                Aggregate aggregate = all;
+                if (aggregate == null) {
+                    if (keys.isNull(row)) {
+                        aggregate = groups.computeIfAbsent(NO_VALUE, key -> new Aggregate());
+                    } else if (byCode != null) {
+                        int code = keys.codes[row];
+                        aggregate = byCode[code];
+                        if (aggregate == null) {
+                            aggregate = groups.computeIfAbsent(keys.dictionary[code], key -> new Aggregate());
+                            byCode[code] = aggregate;
+                        }
+                    } else if (keys.type == ColumnType.TIMESTAMP) {
+                        long month = monthOf(keys.longs[row]);
+                        aggregate = byMonth.get(month);
+                        if (aggregate == null) {
+                            aggregate = groups.computeIfAbsent(String.format("%d-%02d", month / 100, month % 100),
+                                                               key -> new Aggregate());
+                            byMonth.put(month, aggregate);
+                        }
+                    } else {
+                        aggregate = groups.computeIfAbsent(String.valueOf(keys.get(row)), key -> new Aggregate());
+                    }
+                }
+                aggregate.add(values == null ? 0 : values.type == ColumnType.DOUBLE ? values.doubles[row] : values.longs[row]);
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+
+        String heading = function.equals("count") ? "count" : function + "(" + valueColumn + ")";
+        System.out.printf("%n%-24s %18s%n", groupColumn != null ? groupColumn : "", heading);
+        boolean timestamp = valueColumn != null && reader.getType(valueColumn) == ColumnType.TIMESTAMP;
+        for (Map.Entry<String, Aggregate> entry : groups.entrySet()) {
+            System.out.printf("%-24s %18s%n", entry.getKey(), format(function, entry.getValue(), timestamp));
+        }
+        System.out.printf("Scanned %d rows in %d ms (%.0f rows/sec), reading %d KB of %d KB%n",
+                          scanned, elapsed / 1_000_000, scanned / Math.max(elapsed / 1e9, 1e-9),
+                          reader.getBytesRead() / 1024, Files.size(file) / 1024);
+    }
+
+    /**
+     * Mark the rows whose value equals the filter value; dictionary entries are compared once
+     */
+    private static boolean[] match(ColumnVector column, String value) {
+        boolean[] matches = new boolean[column.rows];
+        if (column.type == ColumnType.STRING) {
+            boolean[] codeMatches = new boolean[column.dictionary.length];
+            for (int code = 0; code < codeMatches.length; code++) {
+                codeMatches[code] = value.equalsIgnoreCase(column.dictionary[code]);
+            }
+            for (int row = 0; row < column.rows; row++) {
+                matches[row] = !column.isNull(row) && codeMatches[column.codes[row]];
+            }
+        } else {
+            for (int row = 0; row < column.rows; row++) {
+                Object current = column.get(row);
+                matches[row] = current != null && value.equalsIgnoreCase(String.valueOf(current));
+            }
+        }
+        return matches;
+    }
+
+    /**
+     * Year and month of an epoch second as yyyyMM
+     */
+    private static long monthOf(long epochSecond) {
+        LocalDate date = LocalDate.ofEpochDay(Math.floorDiv(epochSecond, 86400L));
+        return date.getYear() * 100L + date.getMonthValue();
+    }
+
+    private static String format(String function, Aggregate aggregate, boolean timestamp) {
+        double value;
+        switch (function) {
+            case "count":
+                return String.valueOf(aggregate.count);
+            case "sum":
+                value = aggregate.sum;
+                break;
+            case "avg":
+                value = aggregate.sum / aggregate.count;
+                break;
+            case "min":
+                value = aggregate.min;
+                break;
+            default:
+                value = aggregate.max;
+        }
+        if (timestamp) {
+            return DateUtils.formatDateTime(LocalDateTime.ofEpochSecond((long) value, 0, ZoneOffset.UTC));
+        }
+        return String.format("%.2f", value);
+    }
+}
@@ -0,0 +1,257 @@
+package utils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * ColumnarReader class for reading the files written by ColumnarWriter. Only the footer is read
+ * when the file is opened; a column chunk is read, checked and decoded when it is asked for,
+ * so a scan touches just the columns it uses.
+ */
+class ColumnarReader implements Closeable {
+    private final FileChannel channel;
+    private final Map<String, Integer> columns = new LinkedHashMap<>();
+    private final ColumnType[] types;
+    private final int[] groupRows;
+    private final long[][] offsets;
+    private final int[][] lengths;
+    private final int[][] checksums;
+    private long bytesRead;
+
+    ColumnarReader(Path path) throws IOException {
+        this.channel = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            long size = channel.size();
+            if (size < 13) {
+                throw new IOException(path.getFileName() + " is not a columnar export file");
+            }
+            ByteBuffer trailer = read(size - 8, 8);
+            int footerLength = trailer.getInt();
+            if (trailer.getInt() != ColumnarWriter.MAGIC || footerLength < 0 || footerLength > size - 13) {
+                throw new IOException(path.getFileName() + " is not a columnar export file");
+            }
+            ByteBuffer header = read(0, 5);
+            if (header.getInt() != ColumnarWriter.MAGIC || header.get() != ColumnarWriter.VERSION) {
+                throw new IOException(path.getFileName() + " has an unsupported format version");
+            }
+
+            RecordReader footer = new RecordReader(read(size - 8 - footerLength, footerLength).array());
+            int columnCount = footer.readCount();
+            types = new ColumnType[columnCount];
+            for (int column = 0; column < columnCount; column++) {
+                columns.put(footer.readString(), column);
+                types[column] = ColumnType.values()[footer.readVarInt()];
+            }
+            int groups = footer.readCount();
+            groupRows = new int[groups];
+            offsets = new long[groups][columnCount];
+            lengths = new int[groups][columnCount];
+            checksums = new int[groups][columnCount];
+            for (int group = 0; group < groups; group++) {
+                groupRows[group] = footer.readVarInt();
+                for (int column = 0; column < columnCount; column++) {
+                    offsets[group][column] = footer.readVarLong();
+                    lengths[group][column] = footer.readVarInt();
+                    checksums[group][column] = footer.readVarInt();
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e instanceof IOException ? (IOException) e : new IOException("Damaged footer in " + path.getFileName(), e);
+        }
+    }
+
+    /**
+     * Column names in file order
+     */
+    String[] getColumnNames() {
+        return columns.keySet().toArray(new String[0]);
+    }
+
+    boolean hasColumn(String name) {
+        return columns.containsKey(name);
+    }
+
+    /**
+     * Type of a column, or an exception naming the columns there are
+     */
+    ColumnType getType(String name) {
+        return types[indexOf(name)];
+    }
+
+    int getRowGroupCount() {
+        return groupRows.length;
+    }
+
+    int getRowGroupRows(int group) {
+        return groupRows[group];
+    }
+
+    long getRowCount() {
+        long rows = 0;
+        for (int count : groupRows) {
+            rows += count;
+        }
+        return rows;
+    }
+
+    /**
+     * Bytes taken by one column's chunks
+     */
+    long getColumnSize(String name) {
+        int column = indexOf(name);
+        long size = 0;
+        for (int[] group : lengths) {
+            size += group[column];
+        }
+        return size;
+    }
+
+    /**
+     * Bytes of column chunks read so far
+     */
+    long getBytesRead() {
+        return bytesRead;
+    }
+
+    /**
+     * Read and decode one column of one row group
+     */
+    ColumnVector readColumn(int group, String name) throws IOException {
+        int column = indexOf(name);
+        int rows = groupRows[group];
+        byte[] bytes = read(offsets[group][column], lengths[group][column]).array();
+        bytesRead += bytes.length;
+        if (Crc32c.compute(Crc32c.create(), bytes, 0, bytes.length) != checksums[group][column]) {
+            throw new IOException("Damaged chunk of column " + name + " in row group " + group);
+        }
+        RecordReader in = new RecordReader(bytes);
+
+        boolean[] nulls = in.readBoolean() ? readBits(in, rows) : null;
+        switch (types[column]) {
+            case STRING:
+                return readStrings(in, rows, nulls);
+            case TIMESTAMP: {
+                long[] values = new long[rows];
+                long previous = 0;
+                for (int row = 0; row < rows; row++) {
+                    if (nulls == null || !nulls[row]) {
+                        previous += in.readSignedVarLong();
+                        values[row] = previous;
+                    }
+                }
+                return new ColumnVector(ColumnType.TIMESTAMP, rows, nulls, null, null, values, null, null);
+            }
+            case DOUBLE: {
+                double[] values = new double[rows];
+                // Packed big-endian doubles; read them in bulk when nothing is null
+                int start = bytes.length - 8 * (rows - countNulls(nulls));
+                ByteBuffer packed = ByteBuffer.wrap(bytes, start, bytes.length - start);
+                if (nulls == null) {
+                    packed.asDoubleBuffer().get(values);
+                } else {
+                    for (int row = 0; row < rows; row++) {
+                        if (!nulls[row]) {
+                            values[row] = packed.getDouble();
+                        }
+                    }
+                }
+                return new ColumnVector(ColumnType.DOUBLE, rows, nulls, null, null, null, values, null);
+            }
+            case INT: {
+                long[] values = new long[rows];
+                for (int row = 0; row < rows; row++) {
+                    if (nulls == null || !nulls[row]) {
+                        values[row] = in.readSignedVarLong();
+                    }
+                }
+                return new ColumnVector(ColumnType.INT, rows, nulls, null, null, values, null, null);
+            }
+            default:
+                return new ColumnVector(ColumnType.BOOLEAN, rows, nulls, null, null, null, null, readBits(in, rows));
+        }
+    }
+
+    /**
+     * Decode a string chunk into a dictionary and one code per row; plain chunks get one
+     * dictionary entry per row
+     */
+    private static ColumnVector readStrings(RecordReader in, int rows, boolean[] nulls) throws IOException {
+        int[] codes = new int[rows];
+        String[] dictionary;
+        if (in.readBoolean()) {
+            dictionary = new String[in.readCount()];
+            for (int i = 0; i < dictionary.length; i++) {
+                dictionary[i] = in.readString();
+            }
+            boolean byteCodes = dictionary.length <= 256;
+            for (int row = 0; row < rows; row++) {
+                if (nulls == null || !nulls[row]) {
+                    codes[row] = byteCodes ? in.readByte() : in.readVarInt();
+                }
+            }
+        } else {
+            dictionary = new String[rows];
+            for (int row = 0; row < rows; row++) {
+                codes[row] = row;
+                if (nulls == null || !nulls[row]) {
+                    dictionary[row] = in.readString();
+                }
+            }
+        }
+        return new ColumnVector(ColumnType.STRING, rows, nulls, dictionary, codes, null, null, null);
+    }
+
+    private static boolean[] readBits(RecordReader in, int rows) throws IOException {
+        boolean[] bits = new boolean[rows];
+        for (int start = 0; start < rows; start += 8) {
+            int value = in.readByte();
+            for (int row = start; row < Math.min(start + 8, rows); row++) {
+                bits[row] = (value & (1 << (row - start))) != 0;
+            }
+        }
+        return bits;
+    }
+
+    private static int countNulls(boolean[] nulls) {
+        int count = 0;
+        if (nulls != null) {
+            for (boolean isNull : nulls) {
+                if (isNull) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    private int indexOf(String name) {
+        Integer column = columns.get(name);
+        if (column == null) {
+            throw new IllegalArgumentException("Unknown column " + name + "; columns are " + columns.keySet());
+        }
+        return column;
+    }
+
+    private ByteBuffer read(long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of columnar file");
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
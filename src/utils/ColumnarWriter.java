@@ -0,0 +1,275 @@
+package utils;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+
+/**
+ * ColumnarWriter class for writing records column by column into a columnar export file.
+ * Rows are buffered into row groups of 64K rows; each group is written as one chunk per column,
+ * so a reader can fetch and decode just the columns it needs. The file is written to a
+ * sibling temp file and renamed into place when it is closed.
+ *
+ * Layout: magic, version, the column chunks, then a footer with the schema and, per row
+ * group, its row count and each chunk's offset, length and CRC32C, followed by the footer
+ * length and the magic again.
+ */
+class ColumnarWriter implements Closeable {
+    static final int MAGIC = 0x484D5343; // "HMSC"
+    static final int VERSION = 1;
+    static final int ROW_GROUP_SIZE = 64 * 1024;
+    // Strings are dictionary-encoded while at most this share of a chunk's values is distinct
+    private static final int DICTIONARY_RATIO = 4;
+
+    private final Path target;
+    private final Path temp;
+    private final String[] names;
+    private final ColumnType[] types;
+    private final FileChannel channel;
+    private final OutputStream out;
+    private final Object[][] buffered;
+    private final List<long[]> chunkOffsets = new ArrayList<>();
+    private final List<int[]> chunkLengths = new ArrayList<>();
+    private final List<int[]> chunkChecksums = new ArrayList<>();
+    private final List<Integer> groupRows = new ArrayList<>();
+    private final RecordWriter chunk = new RecordWriter(256 * 1024);
+    private long position;
+    private int rows;
+    private long totalRows;
+
+    ColumnarWriter(Path target, String[] names, ColumnType[] types) throws IOException {
+        this.target = target;
+        this.temp = target.resolveSibling(target.getFileName() + ".tmp");
+        this.names = names.clone();
+        this.types = types.clone();
+        this.buffered = new Object[names.length][ROW_GROUP_SIZE];
+        this.channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+                                        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        this.out = new BufferedOutputStream(Channels.newOutputStream(channel), 64 * 1024);
+        RecordWriter header = new RecordWriter(8);
+        writeInt(header, MAGIC);
+        header.writeByte(VERSION);
+        write(header);
+    }
+
+    /**
+     * Add one row; values are given in column order, with null for a missing value
+     */
+    void writeRow(Object... values) throws IOException {
+        for (int column = 0; column < names.length; column++) {
+            buffered[column][rows] = values[column];
+        }
+        rows++;
+        totalRows++;
+        if (rows == ROW_GROUP_SIZE) {
+            flushRowGroup();
+        }
+    }
+
+    long getRowCount() {
+        return totalRows;
+    }
+
+    private void flushRowGroup() throws IOException {
+        if (rows == 0) {
+            return;
+        }
+        long[] offsets = new long[names.length];
+        int[] lengths = new int[names.length];
+        int[] checksums = new int[names.length];
+        for (int column = 0; column < names.length; column++) {
+            chunk.reset();
+            encode(types[column], buffered[column], rows, chunk);
+            offsets[column] = position;
+            lengths[column] = chunk.size();
+            checksums[column] = Crc32c.compute(Crc32c.create(), chunk.buffer(), 0, chunk.size());
+            write(chunk);
+            Arrays.fill(buffered[column], 0, rows, null);
+        }
+        chunkOffsets.add(offsets);
+        chunkLengths.add(lengths);
+        chunkChecksums.add(checksums);
+        groupRows.add(rows);
+        rows = 0;
+    }
+
+    /**
+     * Encode one column chunk: a null bitmap if any value is null, then the non-null values
+     */
+    private static void encode(ColumnType type, Object[] values, int count, RecordWriter out) {
+        int nonNull = 0;
+        for (int i = 0; i < count; i++) {
+            if (values[i] != null) {
+                nonNull++;
+            }
+        }
+        out.writeBoolean(nonNull < count);
+        if (nonNull < count) {
+            writeBits(out, values, count, value -> value == null);
+        }
+
+        switch (type) {
+            case STRING:
+                encodeStrings(values, count, nonNull, out);
+                break;
+            case TIMESTAMP:
+                long previous = 0;
+                for (int i = 0; i < count; i++) {
+                    if (values[i] != null) {
+                        long seconds = ((LocalDateTime) values[i]).toEpochSecond(ZoneOffset.UTC);
+                        out.writeSignedVarLong(seconds - previous);
+                        previous = seconds;
+                    }
+                }
+                break;
+            case DOUBLE:
+                for (int i = 0; i < count; i++) {
+                    if (values[i] != null) {
+                        out.writeDouble(((Number) values[i]).doubleValue());
+                    }
+                }
+                break;
+            case INT:
+                for (int i = 0; i < count; i++) {
+                    if (values[i] != null) {
+                        out.writeSignedVarLong(((Number) values[i]).longValue());
+                    }
+                }
+                break;
+            default:
+                writeBits(out, values, count, value -> Boolean.TRUE.equals(value));
+        }
+    }
+
+    /**
+     * Write repeating strings as a dictionary and one code per value (a byte each for up to
+     * 256 entries), and mostly distinct strings such as IDs as plain values
+     */
+    private static void encodeStrings(Object[] values, int count, int nonNull, RecordWriter out) {
+        Map<String, Integer> dictionary = new HashMap<>();
+        List<String> entries = new ArrayList<>();
+        int limit = Math.max(16, nonNull / DICTIONARY_RATIO);
+        for (int i = 0; i < count && entries.size() <= limit; i++) {
+            if (values[i] != null && dictionary.putIfAbsent((String) values[i], entries.size()) == null) {
+                entries.add((String) values[i]);
+            }
+        }
+        boolean useDictionary = entries.size() <= limit;
+        out.writeBoolean(useDictionary);
+        if (!useDictionary) {
+            for (int i = 0; i < count; i++) {
+                if (values[i] != null) {
+                    out.writeString((String) values[i]);
+                }
+            }
+            return;
+        }
+        out.writeVarInt(entries.size());
+        for (String entry : entries) {
+            out.writeString(entry);
+        }
+        boolean byteCodes = entries.size() <= 256;
+        for (int i = 0; i < count; i++) {
+            if (values[i] != null) {
+                int code = dictionary.get(values[i]);
+                if (byteCodes) {
+                    out.writeByte(code);
+                } else {
+                    out.writeVarInt(code);
+                }
+            }
+        }
+    }
+
+    private static void writeBits(RecordWriter out, Object[] values, int count, Predicate<Object> bit) {
+        for (int start = 0; start < count; start += 8) {
+            int bits = 0;
+            for (int i = start; i < Math.min(start + 8, count); i++) {
+                if (bit.test(values[i])) {
+                    bits |= 1 << (i - start);
+                }
+            }
+            out.writeByte(bits);
+        }
+    }
+
+    private static void writeInt(RecordWriter out, int value) {
+        for (int shift = 24; shift >= 0; shift -= 8) {
+            out.writeByte(value >>> shift);
+        }
+    }
+
+    private void write(RecordWriter bytes) throws IOException {
+        out.write(bytes.buffer(), 0, bytes.size());
+        position += bytes.size();
+    }
+
+    /**
+     * Give up on the file, leaving any earlier export in place
+     */
+    void abort() {
+        try {
+            channel.close();
+            Files.deleteIfExists(temp);
+        } catch (IOException e) {
+            System.err.println("Error removing " + temp + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Write the last row group and the footer, force the file and move it into place
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            flushRowGroup();
+            RecordWriter footer = new RecordWriter(1024);
+            footer.writeVarInt(names.length);
+            for (int column = 0; column < names.length; column++) {
+                footer.writeString(names[column]);
+                footer.writeVarInt(types[column].ordinal());
+            }
+            footer.writeVarInt(groupRows.size());
+            for (int group = 0; group < groupRows.size(); group++) {
+                footer.writeVarInt(groupRows.get(group));
+                for (int column = 0; column < names.length; column++) {
+                    footer.writeVarLong(chunkOffsets.get(group)[column]);
+                    footer.writeVarInt(chunkLengths.get(group)[column]);
+                    footer.writeVarInt(chunkChecksums.get(group)[column]);
+                }
+            }
+            int footerLength = footer.size();
+            writeInt(footer, footerLength);
+            writeInt(footer, MAGIC);
+            write(footer);
+            out.flush();
+            channel.force(true);
+        } catch (IOException e) {
+            channel.close();
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+        channel.close();
+        try {
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package utils;
+
+import java.io.*;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * CompressedBlockInputStream class for reading the record stream of version 2 data files,
+ * stored as [int raw length][int compressed length][deflated bytes] blocks, inflating one
+ * block at a time. Newer files use checksummed pages instead.
+ */
+public class CompressedBlockInputStream extends InputStream {
+    private static final int BLOCK_SIZE = 64 * 1024;
+
+    private final DataInputStream in;
+    private final Inflater inflater = new Inflater();
+    private byte[] compressed = new byte[BLOCK_SIZE];
+    private byte[] block = new byte[BLOCK_SIZE];
+    private int position;
+    private int limit;
+    private boolean eof;
+
+    public CompressedBlockInputStream(InputStream in) {
+        this.in = new DataInputStream(in);
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (position == limit && !readBlock()) {
+            return -1;
+        }
+        return block[position++] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] data, int offset, int length) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+        if (position == limit && !readBlock()) {
+            return -1;
+        }
+        int count = Math.min(length, limit - position);
+        System.arraycopy(block, position, data, offset, count);
+        position += count;
+        return count;
+    }
+
+    /**
+     * Inflate the next block, returning false at a clean end of the stream
+     */
+    private boolean readBlock() throws IOException {
+        if (eof) {
+            return false;
+        }
+        int first = in.read();
+        if (first < 0) {
+            eof = true;
+            return false;
+        }
+        int rawLength = first << 24 | in.readUnsignedByte() << 16 | in.readUnsignedByte() << 8 | in.readUnsignedByte();
+        int compressedLength = in.readInt();
+        if (rawLength < 0 || compressedLength < 0) {
+            throw new IOException("Malformed compressed block header");
+        }
+        if (compressedLength > compressed.length) {
+            compressed = new byte[compressedLength];
+        }
+        if (rawLength > block.length) {
+            block = new byte[rawLength];
+        }
+        in.readFully(compressed, 0, compressedLength);
+
+        inflater.reset();
+        inflater.setInput(compressed, 0, compressedLength);
+        try {
+            int size = 0;
+            while (size < rawLength && !inflater.finished()) {
+                int inflated = inflater.inflate(block, size, rawLength - size);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                size += inflated;
+            }
+            if (size != rawLength) {
+                throw new IOException("Compressed block is truncated");
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt compressed block: " + e.getMessage());
+        }
+        position = 0;
+        limit = rawLength;
+        return true;
+    }
+
+    @Override
+    public int available() {
+        return limit - position;
+    }
+
+    @Override
+    public void close() throws IOException {
+        inflater.end();
+        in.close();
+    }
+}
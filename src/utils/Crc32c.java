@@ -0,0 +1,78 @@
+package utils;
+
+import java.util.zip.Checksum;
+
+/**
+ * Crc32c class for creating CRC32C (Castagnoli) checksums. Uses the JDK's hardware-accelerated
+ * java.util.zip.CRC32C when the runtime has it (Java 9+) and a table-driven version otherwise.
+ */
+final class Crc32c implements Checksum {
+    private static final int[] TABLE = new int[256];
+    private static final Class<?> JDK_CRC32C;
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            int crc = i;
+            for (int bit = 0; bit < 8; bit++) {
+                crc = (crc & 1) != 0 ? (crc >>> 1) ^ 0x82F63B78 : crc >>> 1;
+            }
+            TABLE[i] = crc;
+        }
+        Class<?> jdk;
+        try {
+            jdk = Class.forName("java.util.zip.CRC32C");
+        } catch (ClassNotFoundException e) {
+            jdk = null;
+        }
+        JDK_CRC32C = jdk;
+    }
+
+    private int crc = 0xFFFFFFFF;
+
+    private Crc32c() {
+    }
+
+    static Checksum create() {
+        if (JDK_CRC32C != null) {
+            try {
+                return (Checksum) JDK_CRC32C.getDeclaredConstructor().newInstance();
+            } catch (ReflectiveOperationException e) {
+                // Fall through to the portable version
+            }
+        }
+        return new Crc32c();
+    }
+
+    /**
+     * Checksum of a byte range with a fresh checksum object
+     */
+    static int compute(Checksum checksum, byte[] data, int offset, int length) {
+        checksum.reset();
+        checksum.update(data, offset, length);
+        return (int) checksum.getValue();
+    }
+
+    @Override
+    public void update(int b) {
+        crc = (crc >>> 8) ^ TABLE[(crc ^ b) & 0xFF];
+    }
+
+    @Override
+    public void update(byte[] data, int offset, int length) {
+        int value = crc;
+        for (int i = offset; i < offset + length; i++) {
+            value = (value >>> 8) ^ TABLE[(value ^ data[i]) & 0xFF];
+        }
+        crc = value;
+    }
+
+    @Override
+    public long getValue() {
+        return ~crc & 0xFFFFFFFFL;
+    }
+
+    @Override
+    public void reset() {
+        crc = 0xFFFFFFFF;
+    }
+}
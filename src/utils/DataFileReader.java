@@ -0,0 +1,293 @@
+package utils;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.zip.Checksum;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * DataFileReader class for decoding records written by DataFileWriter, one at a time.
+ * Every page is checked against its CRC32C checksums before its records are decoded;
+ * a damaged page is skipped and counted, and reading resumes at the next intact page
+ * header. Older unpaged files (format versions 1 and 2) are still read.
+ */
+public class DataFileReader<T> implements Closeable {
+    private final DataInputStream in;
+    private final BufferedInputStream pages;
+    private final RecordCodec<T> codec;
+    private final int codecVersion;
+    private final RecordReader recordReader = new RecordReader(new byte[0]);
+    private final Checksum checksum = Crc32c.create();
+    private final byte[] pageHeader = new byte[DataFileWriter.PAGE_HEADER_SIZE];
+    private Inflater inflater;
+    private byte[] buffer = new byte[256];
+    private byte[] stored = new byte[0];
+    private int pagePosition;
+    private int pageLimit;
+    private int pageRecords;
+    private int corruptPages;
+    private long skippedBytes;
+    private boolean scanning;
+
+    public DataFileReader(InputStream in, RecordCodec<T> codec) throws IOException {
+        DataInputStream header = new DataInputStream(in);
+        this.codec = codec;
+
+        if (header.readInt() != DataFileWriter.MAGIC) {
+            throw new IOException("Not a binary data file");
+        }
+        int formatVersion = header.readUnsignedByte();
+        if (formatVersion < DataFileWriter.FORMAT_VERSION || formatVersion > DataFileWriter.PAGED_FORMAT_VERSION) {
+            throw new IOException("Unsupported data file format version " + formatVersion);
+        }
+        String codecName = header.readUTF();
+        if (!codecName.equals(codec.getName())) {
+            throw new IOException("File holds " + codecName + " records, expected " + codec.getName());
+        }
+        this.codecVersion = header.readInt();
+        if (codecVersion > codec.getVersion()) {
+            throw new IOException("File was written by a newer " + codecName + " codec (version " + codecVersion + ")");
+        }
+
+        if (formatVersion == DataFileWriter.PAGED_FORMAT_VERSION) {
+            if ((header.readUnsignedByte() & DataFileWriter.FLAG_DEFLATED) != 0) {
+                inflater = new Inflater();
+            }
+            this.pages = in instanceof BufferedInputStream ? (BufferedInputStream) in : new BufferedInputStream(in);
+            this.in = null;
+        } else {
+            this.pages = null;
+            this.in = formatVersion == DataFileWriter.COMPRESSED_FORMAT_VERSION
+                ? new DataInputStream(new CompressedBlockInputStream(in))
+                : header;
+        }
+    }
+
+    /**
+     * Create a reader that starts at a page boundary of a paged file whose header was read
+     * before, for example a single page read by offset
+     */
+    DataFileReader(InputStream pageStream, RecordCodec<T> codec, int codecVersion, boolean deflated) {
+        this.in = null;
+        this.pages = new BufferedInputStream(pageStream);
+        this.codec = codec;
+        this.codecVersion = codecVersion;
+        if (deflated) {
+            inflater = new Inflater();
+        }
+    }
+
+    int getCodecVersion() {
+        return codecVersion;
+    }
+
+    boolean isDeflated() {
+        return inflater != null;
+    }
+
+    /**
+     * Check whether a stream starts with the binary data file magic number
+     */
+    public static boolean isDataFile(BufferedInputStream in) throws IOException {
+        in.mark(4);
+        try {
+            DataInputStream peek = new DataInputStream(in);
+            return peek.readInt() == DataFileWriter.MAGIC;
+        } catch (EOFException e) {
+            return false;
+        } finally {
+            in.reset();
+        }
+    }
+
+    /**
+     * Decode the next record, or return null at the end of the file
+     */
+    public T next() throws IOException {
+        if (pages != null) {
+            return nextFromPage();
+        }
+        int length = readLength();
+        if (length < 0) {
+            return null;
+        }
+        if (length > buffer.length) {
+            buffer = new byte[Math.max(length, buffer.length * 2)];
+        }
+        in.readFully(buffer, 0, length);
+        recordReader.reset(buffer, 0, length);
+        return codec.decode(recordReader, codecVersion);
+    }
+
+    private T nextFromPage() throws IOException {
+        while (pageRecords == 0) {
+            if (!readPage()) {
+                return null;
+            }
+        }
+        int length = 0;
+        for (int shift = 0; ; shift += 7) {
+            if (pagePosition >= pageLimit || shift >= 35) {
+                throw new IOException("Malformed record length in page");
+            }
+            int b = buffer[pagePosition++];
+            length |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                break;
+            }
+        }
+        if (length > pageLimit - pagePosition) {
+            throw new IOException("Record runs past the end of its page");
+        }
+        recordReader.reset(buffer, pagePosition, length);
+        pagePosition += length;
+        pageRecords--;
+        return codec.decode(recordReader, codecVersion);
+    }
+
+    /**
+     * Load the next intact page into the buffer. A page whose header is damaged is found
+     * again by scanning forward byte by byte for a header with a valid checksum; a page
+     * whose payload is damaged is skipped using the lengths in its header.
+     * Returns false at the end of the file.
+     */
+    private boolean readPage() throws IOException {
+        while (true) {
+            pages.mark(pageHeader.length);
+            int read = readFully(pages, pageHeader, pageHeader.length);
+            if (read == 0) {
+                return false;
+            }
+            if (read < pageHeader.length) {
+                markCorrupt(read);
+                return false;
+            }
+            ByteBuffer header = ByteBuffer.wrap(pageHeader);
+            if (header.getInt(0) != DataFileWriter.PAGE_MAGIC
+                || header.getInt(20) != Crc32c.compute(checksum, pageHeader, 0, pageHeader.length - 4)) {
+                pages.reset();
+                pages.skip(1);
+                markCorrupt(1);
+                continue;
+            }
+            scanning = false;
+
+            int storedLength = header.getInt(4);
+            int rawLength = header.getInt(8);
+            // Uncompressed pages are read straight into the record buffer
+            if (inflater != null && stored.length < storedLength) {
+                stored = new byte[storedLength];
+            } else if (inflater == null && buffer.length < storedLength) {
+                buffer = new byte[storedLength];
+            }
+            byte[] target = inflater != null ? stored : buffer;
+            int payload = readFully(pages, target, storedLength);
+            if (payload < storedLength || header.getInt(16) != Crc32c.compute(checksum, target, 0, storedLength)) {
+                corruptPages++;
+                skippedBytes += pageHeader.length + payload;
+                continue;
+            }
+            if (inflater != null) {
+                inflate(storedLength, rawLength);
+            }
+            pagePosition = 0;
+            pageLimit = rawLength;
+            pageRecords = header.getInt(12);
+            return true;
+        }
+    }
+
+    /**
+     * Count skipped bytes; a run of bytes without a valid page header counts as one corrupt page
+     */
+    private void markCorrupt(int bytes) {
+        if (!scanning) {
+            corruptPages++;
+            scanning = true;
+        }
+        skippedBytes += bytes;
+    }
+
+    private void inflate(int storedLength, int rawLength) throws IOException {
+        if (buffer.length < rawLength) {
+            buffer = new byte[rawLength];
+        }
+        inflater.reset();
+        inflater.setInput(stored, 0, storedLength);
+        try {
+            int size = 0;
+            while (size < rawLength && !inflater.finished()) {
+                int inflated = inflater.inflate(buffer, size, rawLength - size);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                size += inflated;
+            }
+            if (size != rawLength) {
+                throw new IOException("Compressed page is truncated");
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt compressed page: " + e.getMessage());
+        }
+    }
+
+    private static int readFully(InputStream in, byte[] target, int length) throws IOException {
+        int total = 0;
+        while (total < length) {
+            int read = in.read(target, total, length - total);
+            if (read < 0) {
+                break;
+            }
+            total += read;
+        }
+        return total;
+    }
+
+    /**
+     * Read the varint record length, returning -1 on a clean end of file
+     */
+    private int readLength() throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = in.read();
+            if (b < 0) {
+                if (shift == 0) {
+                    return -1;
+                }
+                throw new EOFException("Truncated record length");
+            }
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed record length");
+    }
+
+    /**
+     * Number of damaged pages skipped so far
+     */
+    public int getCorruptPages() {
+        return corruptPages;
+    }
+
+    /**
+     * Number of file bytes skipped in damaged pages so far
+     */
+    public long getSkippedBytes() {
+        return skippedBytes;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (inflater != null) {
+            inflater.end();
+        }
+        if (pages != null) {
+            pages.close();
+        } else {
+            in.close();
+        }
+    }
+}
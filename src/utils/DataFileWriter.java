@@ -0,0 +1,151 @@
+package utils;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.zip.Checksum;
+import java.util.zip.Deflater;
+
+/**
+ * DataFileWriter class for writing records in the binary data file format:
+ * a header (magic, format version, codec name and version, flags) followed by
+ * checksummed pages. A page holds whole varint length-prefixed records, up to
+ * PAGE_SIZE bytes, optionally deflated, behind a header with CRC32C checksums of
+ * both the header and the payload, so a reader can detect and skip a damaged page.
+ */
+public class DataFileWriter<T> implements Closeable {
+    static final int MAGIC = 0x484D5344; // "HMSD"
+    static final int FORMAT_VERSION = 1;
+    static final int COMPRESSED_FORMAT_VERSION = 2;
+    static final int PAGED_FORMAT_VERSION = 3;
+    static final int FLAG_DEFLATED = 1;
+    static final int PAGE_MAGIC = 0x50414745; // "PAGE"
+    static final int PAGE_SIZE = 64 * 1024;
+    // magic, stored length, raw length, record count, payload CRC, header CRC
+    static final int PAGE_HEADER_SIZE = 24;
+
+    private final DataOutputStream out;
+    private final RecordCodec<T> codec;
+    private final Deflater deflater;
+    private final Checksum checksum = Crc32c.create();
+    private final RecordWriter recordWriter = new RecordWriter();
+    private final RecordWriter page = new RecordWriter(PAGE_SIZE);
+    private final byte[] pageHeader = new byte[PAGE_HEADER_SIZE];
+    private byte[] compressed = new byte[0];
+    private int pageRecords;
+    private long position;
+    private boolean finished;
+
+    public DataFileWriter(OutputStream out, RecordCodec<T> codec) throws IOException {
+        this(out, codec, Deflater.NO_COMPRESSION);
+    }
+
+    /**
+     * Create a writer whose pages are deflated at the given level;
+     * Deflater.NO_COMPRESSION stores pages uncompressed
+     */
+    public DataFileWriter(OutputStream out, RecordCodec<T> codec, int compressionLevel) throws IOException {
+        this.out = new DataOutputStream(out);
+        this.codec = codec;
+        this.deflater = compressionLevel == Deflater.NO_COMPRESSION ? null : new Deflater(compressionLevel);
+        this.out.writeInt(MAGIC);
+        this.out.writeByte(PAGED_FORMAT_VERSION);
+        this.out.writeUTF(codec.getName());
+        this.out.writeInt(codec.getVersion());
+        this.out.writeByte(deflater != null ? FLAG_DEFLATED : 0);
+        this.position = this.out.size();
+    }
+
+    /**
+     * Encode and write one record. Records never span pages; a record larger than
+     * PAGE_SIZE gets a page of its own.
+     */
+    public void write(T record) throws IOException {
+        recordWriter.reset();
+        codec.encode(record, recordWriter);
+
+        if (pageRecords > 0 && page.size() + recordWriter.size() + 5 > PAGE_SIZE) {
+            writePage();
+        }
+        page.writeVarInt(recordWriter.size());
+        page.writeBytes(recordWriter.buffer(), 0, recordWriter.size());
+        pageRecords++;
+    }
+
+    private void writePage() throws IOException {
+        if (pageRecords == 0) {
+            return;
+        }
+        byte[] stored = page.buffer();
+        int storedLength = page.size();
+        if (deflater != null) {
+            storedLength = deflate(stored, storedLength);
+            stored = compressed;
+        }
+
+        ByteBuffer header = ByteBuffer.wrap(pageHeader);
+        header.putInt(0, PAGE_MAGIC);
+        header.putInt(4, storedLength);
+        header.putInt(8, page.size());
+        header.putInt(12, pageRecords);
+        header.putInt(16, Crc32c.compute(checksum, stored, 0, storedLength));
+        header.putInt(20, Crc32c.compute(checksum, pageHeader, 0, PAGE_HEADER_SIZE - 4));
+        out.write(pageHeader);
+        out.write(stored, 0, storedLength);
+        position += PAGE_HEADER_SIZE + storedLength;
+        page.reset();
+        pageRecords = 0;
+    }
+
+    /**
+     * File offset of the page holding the record written last
+     */
+    public long getPageOffset() {
+        return position;
+    }
+
+    /**
+     * Position of the record written last within its page
+     */
+    public int getPageRecordIndex() {
+        return pageRecords - 1;
+    }
+
+    private int deflate(byte[] data, int length) {
+        if (compressed.length < length + length / 8 + 64) {
+            compressed = new byte[length + length / 8 + 64];
+        }
+        deflater.reset();
+        deflater.setInput(data, 0, length);
+        deflater.finish();
+        int size = 0;
+        while (!deflater.finished()) {
+            if (size == compressed.length) {
+                byte[] larger = new byte[compressed.length * 2];
+                System.arraycopy(compressed, 0, larger, 0, size);
+                compressed = larger;
+            }
+            size += deflater.deflate(compressed, size, compressed.length - size);
+        }
+        return size;
+    }
+
+    /**
+     * Write the last partial page without closing the underlying stream
+     */
+    public void finish() throws IOException {
+        if (!finished) {
+            writePage();
+            if (deflater != null) {
+                deflater.end();
+            }
+            finished = true;
+        }
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        finish();
+        out.close();
+    }
+}
@@ -1,33 +1,175 @@
 package utils;
 
 import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.zip.Deflater;
 
 /**
- * DatabaseManager class for handling file-based data persistence
+ * DatabaseManager class for handling file-based data persistence.
+ *
+ * Several processes can share a data directory. Every change to a file's logs or base file
+ * happens under the file's lock in FileLocks, after first reading what other processes appended
+ * since, so each process keeps writing to the current log. A watcher thread notices files that
+ * other processes changed and queues their entries for the registered change listeners; for a
+ * mapped record store it reads the slots other processes added to the store's index.
  */
 public class DatabaseManager {
-    private static final String DATA_DIRECTORY = "data";
+    private static final String DEFAULT_DATA_DIRECTORY = "data";
+    private static final String LOG_SUFFIX = ".log";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final String BACKUP_SUFFIX = "_backups";
+    private static final String CORRUPT_SUFFIX = ".corrupt.";
+    private static final String JOURNAL_PREFIX = "transactions";
+    private static final String JOURNAL_SUFFIX = ".journal";
+    private static final int MAX_JOURNALS = 64; // processes sharing a data directory
+    private static final long WATCH_SETTLE_MILLIS = 20; // quiet time before a burst of changes is read
+    private static final long WATCH_BATCH_MILLIS = 200; // longest a burst is collected before it is read
+    private static final long GROUP_COMMIT_WINDOW_MILLIS = 0; // extra leader wait; batches also form while an fsync is in flight
+    private static final long SEGMENT_BYTES = 256 * 1024; // live log size before it is sealed as a segment
+    private static final long JOURNAL_BYTES = 1024 * 1024; // preallocated transaction journal; when full the logs are forced and it is cleared
     private static DatabaseManager instance;
+    private final String dataDirectory;
+    private final Map<String, WriteAheadLog> logs = new ConcurrentHashMap<>();
+    private final Map<String, RecordCodec<?>> codecs = new ConcurrentHashMap<>();
+    private final Map<String, Integer> compressionLevels = new ConcurrentHashMap<>();
+    private final Map<String, Object> fileLocks = new ConcurrentHashMap<>();
+    private final Map<String, CompletableFuture<? extends List<?>>> preloaded = new ConcurrentHashMap<>();
+    private final Map<String, Long> loadTimes = new ConcurrentHashMap<>();
+    private final Map<String, Function<?, String>> keyExtractors = new ConcurrentHashMap<>();
+    private final Map<String, ExternalChangeListener<?>> changeListeners = new ConcurrentHashMap<>();
+    private final List<ExternalChange> externalChanges = new ArrayList<>(); // guarded by itself
+    private final Map<String, MappedRecordStore<?>> mappedStores = new ConcurrentHashMap<>();
+    private final Map<String, FileRecordArchive<?>> archives = new ConcurrentHashMap<>();
+    private final Set<String> pendingCheckpoints = ConcurrentHashMap.newKeySet();
+    private ScheduledExecutorService compactor;
+    private BackupStore backupStore;
+    private String lastBackupId;
+    private final GroupCommit groupCommit = new GroupCommit(GROUP_COMMIT_WINDOW_MILLIS);
+    private final FileLocks locks;
+    private TransactionJournal journal;
+    private final Set<String> unforcedLogs = new HashSet<>(); // guarded by journal
+    private WatchService watchService;
+    private Thread watcher;
     
-    private DatabaseManager() {
+    /**
+     * Entries another process appended to a file, or null entries if the file was replaced
+     */
+    private static class ExternalChange {
+        final String filename;
+        final List<WriteAheadLog.Entry> entries;
+        
+        ExternalChange(String filename, List<WriteAheadLog.Entry> entries) {
+            this.filename = filename;
+            this.entries = entries;
+        }
+    }
+    
+    private DatabaseManager(String dataDirectory) {
+        this.dataDirectory = dataDirectory;
         createDataDirectory();
+        try {
+            this.locks = FileLocks.forDirectory(Paths.get(dataDirectory));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot open the lock file of " + dataDirectory, e);
+        }
+        // Before anything is loaded, finish transactions that ended processes committed but did not fully apply
+        this.journal = openJournal();
     }
     
     public static DatabaseManager getInstance() {
         if (instance == null) {
-            instance = new DatabaseManager();
+            instance = new DatabaseManager(DEFAULT_DATA_DIRECTORY);
         }
         return instance;
     }
     
+    /**
+     * Create a separate manager for another data directory (tools and benchmarks)
+     */
+    public static DatabaseManager forDirectory(String dataDirectory) {
+        return new DatabaseManager(dataDirectory);
+    }
+    
+    /**
+     * Register the binary codec used to store a data file.
+     * Files without a codec fall back to Java serialization.
+     */
+    public <T> void registerCodec(String filename, RecordCodec<T> codec) {
+        codecs.put(filename, codec);
+        // Logs opened before, including those of the file's shards, were opened without it
+        for (String name : new ArrayList<>(logs.keySet())) {
+            if (ShardedStorageEngine.baseFile(name).equals(filename)) {
+                WriteAheadLog previous = logs.remove(name);
+                if (previous != null) {
+                    previous.close();
+                }
+            }
+        }
+    }
+    
+    /**
+     * Get the codec registered for a data file, or null. Shard files use the codec of
+     * the data file they belong to.
+     */
+    @SuppressWarnings("unchecked")
+    public <T> RecordCodec<T> getCodec(String filename) {
+        RecordCodec<?> codec = codecs.get(filename);
+        return (RecordCodec<T>) (codec != null ? codec : codecs.get(ShardedStorageEngine.baseFile(filename)));
+    }
+    
+    /**
+     * Store a codec data file block-compressed at a Deflater level (1-9) from its next save on;
+     * Deflater.NO_COMPRESSION switches back to the plain format. Both formats are always readable.
+     */
+    public void setCompressionLevel(String filename, int level) {
+        if (level == Deflater.NO_COMPRESSION) {
+            compressionLevels.remove(filename);
+        } else {
+            compressionLevels.put(filename, level);
+        }
+    }
+    
+    public int getCompressionLevel(String filename) {
+        Integer level = compressionLevels.get(filename);
+        if (level == null) {
+            level = compressionLevels.get(ShardedStorageEngine.baseFile(filename));
+        }
+        return level != null ? level : Deflater.NO_COMPRESSION;
+    }
+    
     private void createDataDirectory() {
         try {
-            Path dataPath = Paths.get(DATA_DIRECTORY);
+            Path dataPath = Paths.get(dataDirectory);
             if (!Files.exists(dataPath)) {
                 Files.createDirectories(dataPath);
             }
@@ -37,66 +179,1044 @@ public class DatabaseManager {
     }
     
     /**
-     * Save a list of objects to a file
+     * Save a list of objects to a file, using the file's binary codec when one is registered
      */
     public <T> boolean saveData(List<T> data, String filename) {
-        try {
-            String filepath = DATA_DIRECTORY + File.separator + filename;
-            try (ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(filepath))) {
+        synchronized (getFileLock(filename)) {
+            try {
+                return locks.withRewriteLocks(filename, () -> {
+                    catchUp(filename, null);
+                    writeSnapshot(data, filename);
+                    // The snapshot now contains every logged change
+                    clearJournal();
+                    WriteAheadLog log = getLog(filename);
+                    log.truncate();
+                    for (File segment : listLogSegments(filename)) {
+                        Files.deleteIfExists(segment.toPath());
+                    }
+                    // Tell other processes to reload the file rather than wait for entries
+                    log.writeReset();
+                    log.resync(Collections.emptyList());
+                    return true;
+                });
+            } catch (IOException e) {
+                System.err.println("Error saving data to " + filename + ": " + e.getMessage());
+                return false;
+            }
+        }
+    }
+    
+    private <T> void writeSnapshot(List<T> data, String filename) throws IOException {
+        RecordCodec<T> codec = getCodec(filename);
+        int compressionLevel = getCompressionLevel(filename);
+        writeAtomically(filename, out -> {
+            if (codec != null) {
+                DataFileWriter<T> writer = new DataFileWriter<>(out, codec, compressionLevel);
+                for (T record : data) {
+                    writer.write(record);
+                }
+                writer.finish();
+            } else {
+                ObjectOutputStream oos = new ObjectOutputStream(out);
                 oos.writeObject(data);
-                return true;
+                oos.flush();
             }
+        });
+    }
+    
+    /**
+     * Writes the content of a data file
+     */
+    private interface ContentWriter {
+        void writeTo(OutputStream out) throws IOException;
+    }
+    
+    /**
+     * Replace a data file without ever exposing a partially written version:
+     * write a sibling temp file, force it to disk, then atomically rename it over the target.
+     * The fsyncs go through the group commit so concurrent saves share them.
+     */
+    private void writeAtomically(String filename, ContentWriter content) throws IOException {
+        Path target = Paths.get(dataDirectory, filename);
+        Path temp = Paths.get(dataDirectory, filename + TEMP_SUFFIX);
+        
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            BufferedOutputStream out = new BufferedOutputStream(Channels.newOutputStream(channel), 64 * 1024);
+            content.writeTo(out);
+            out.flush();
+            groupCommit.sync(channel);
         } catch (IOException e) {
-            System.err.println("Error saving data to " + filename + ": " + e.getMessage());
-            return false;
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+        
+        try {
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
         }
+        groupCommit.syncDirectory(target.toAbsolutePath().getParent());
+    }
+    
+    private Object getFileLock(String filename) {
+        return fileLocks.computeIfAbsent(filename, name -> new Object());
     }
     
     /**
-     * Load a list of objects from a file
+     * Load a list of objects from a file. Both binary codec files and
+     * older Java-serialized files are accepted.
      */
-    @SuppressWarnings("unchecked")
     public <T> List<T> loadData(String filename) {
         try {
-            String filepath = DATA_DIRECTORY + File.separator + filename;
-            File file = new File(filepath);
-            
-            if (!file.exists()) {
-                return new ArrayList<>();
-            }
-            
-            try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream(filepath))) {
-                return (List<T>) ois.readObject();
+            File file = new File(dataDirectory, filename);
+            long lastModified = file.lastModified();
+            long length = file.length();
+            Snapshot<T> snapshot = readSnapshot(filename);
+            if (snapshot.corruptPages > 0) {
+                System.err.println("Warning: skipped " + snapshot.corruptPages + " corrupt page(s) ("
+                                   + snapshot.skippedBytes + " bytes) in " + filename + ", recovered "
+                                   + snapshot.records.size() + " records");
+                // Keep the damaged file, then rewrite the intact records so the damage is reported only once
+                preserveCorruptFile(filename);
+                locks.withCheckpointLock(filename, () -> {
+                    // Unless a checkpoint replaced the file meanwhile
+                    if (file.lastModified() == lastModified && file.length() == length) {
+                        writeSnapshot(snapshot.records, filename);
+                    }
+                    return null;
+                });
             }
+            return snapshot.records;
         } catch (IOException | ClassNotFoundException e) {
             System.err.println("Error loading data from " + filename + ": " + e.getMessage());
+            preserveCorruptFile(filename);
             return new ArrayList<>();
         }
     }
     
     /**
-     * Save a single object to a file
+     * The records read from a data file, with the number of damaged pages that were skipped
      */
-    public <T> boolean saveObject(T object, String filename) {
+    private static final class Snapshot<T> {
+        final List<T> records;
+        final int corruptPages;
+        final long skippedBytes;
+        
+        Snapshot(List<T> records, int corruptPages, long skippedBytes) {
+            this.records = records;
+            this.corruptPages = corruptPages;
+            this.skippedBytes = skippedBytes;
+        }
+    }
+    
+    /**
+     * Read a data file; a missing file has no records. Unlike loadData, a file that cannot
+     * be read is reported with an exception rather than as an empty list.
+     */
+    @SuppressWarnings("unchecked")
+    private <T> Snapshot<T> readSnapshot(String filename) throws IOException, ClassNotFoundException {
+        File file = new File(dataDirectory, filename);
+        if (!file.exists()) {
+            return new Snapshot<>(new ArrayList<>(), 0, 0);
+        }
+        try (BufferedInputStream in = new BufferedInputStream(new FileInputStream(file), 64 * 1024)) {
+            if (!DataFileReader.isDataFile(in)) {
+                return new Snapshot<>((List<T>) new ObjectInputStream(in).readObject(), 0, 0);
+            }
+            
+            RecordCodec<T> codec = getCodec(filename);
+            if (codec == null) {
+                throw new IOException("No codec registered for " + filename);
+            }
+            List<T> records = new ArrayList<>();
+            try (DataFileReader<T> reader = new DataFileReader<>(in, codec)) {
+                T record;
+                while ((record = reader.next()) != null) {
+                    records.add(record);
+                }
+                return new Snapshot<>(records, reader.getCorruptPages(), reader.getSkippedBytes());
+            }
+        }
+    }
+    
+    /**
+     * Keep a copy of a damaged data file next to it, so records lost from it can still be
+     * salvaged after the next save replaces the file
+     */
+    private void preserveCorruptFile(String filename) {
+        Path source = Paths.get(dataDirectory, filename);
+        Path copy = Paths.get(dataDirectory, filename + CORRUPT_SUFFIX + System.currentTimeMillis());
         try {
-            String filepath = DATA_DIRECTORY + File.separator + filename;
-            try (ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(filepath))) {
-                oos.writeObject(object);
-                return true;
+            Files.copy(source, copy, StandardCopyOption.COPY_ATTRIBUTES);
+            System.err.println("A copy of the damaged file was kept as " + copy.getFileName());
+        } catch (IOException e) {
+            System.err.println("Error keeping a copy of " + filename + ": " + e.getMessage());
+        }
+    }
+    
+    /**
+     * Load a list of objects from a file and replay its write-ahead log on top.
+     * Logged records replace snapshot records with the same key; new keys are appended.
+     */
+    @SuppressWarnings("unchecked")
+    public <T> List<T> loadData(String filename, Function<T, String> keyExtractor) {
+        CompletableFuture<? extends List<?>> pending = preloaded.remove(filename);
+        if (pending != null) {
+            return (List<T>) pending.join();
+        }
+        return loadAndReplay(filename, keyExtractor);
+    }
+    
+    /**
+     * Start loading a data file on the given executor. A later loadData call for the
+     * same file waits for this result instead of reading the file again.
+     */
+    public <T> CompletableFuture<List<T>> preloadData(String filename, Function<T, String> keyExtractor,
+                                                      Executor executor) {
+        CompletableFuture<List<T>> future = CompletableFuture.supplyAsync(
+            () -> loadAndReplay(filename, keyExtractor), executor);
+        preloaded.put(filename, future);
+        return future;
+    }
+    
+    /**
+     * Get how long the most recent keyed load of each data file took, in milliseconds
+     */
+    public Map<String, Long> getLoadTimes() {
+        return new TreeMap<>(loadTimes);
+    }
+    
+    private <T> List<T> loadAndReplay(String filename, Function<T, String> keyExtractor) {
+        keyExtractors.put(filename, keyExtractor);
+        long start = System.nanoTime();
+        List<T> data;
+        // Locked so no other process rewrites the file or appends half a frame meanwhile
+        try {
+            data = locks.withRewriteLocks(filename, () -> {
+                List<T> replayed = replayLog(filename, loadData(filename), keyExtractor);
+                getLog(filename).resync(listLogSegments(filename));
+                return replayed;
+            });
+        } catch (IOException e) {
+            System.err.println("Error locking " + filename + ": " + e.getMessage());
+            data = new ArrayList<>();
+        }
+        loadTimes.put(filename, (System.nanoTime() - start) / 1_000_000);
+        return data;
+    }
+    
+    /**
+     * Apply the file's delta logs on top of a loaded snapshot
+     */
+    private <T> List<T> replayLog(String filename, List<T> snapshot, Function<T, String> keyExtractor) {
+        List<WriteAheadLog.Entry> entries = new ArrayList<>();
+        try {
+            readDeltas(filename, entries);
+        } catch (IOException | ClassNotFoundException e) {
+            // Keep the entries read before the one that failed; later ones cannot be applied out of order
+            System.err.println("Error replaying log for " + filename + " after " + entries.size() + " entries: "
+                               + e.getMessage());
+        }
+        return applyDeltas(snapshot, entries, keyExtractor);
+    }
+    
+    /**
+     * Read the delta entries of a file into the list, oldest first: every sealed log segment
+     * not yet covered by a checkpoint, then the live log. On an error the entries read so far
+     * stay in the list.
+     */
+    private void readDeltas(String filename, List<WriteAheadLog.Entry> entries) throws IOException, ClassNotFoundException {
+        readSegments(filename, listLogSegments(filename), entries);
+        getLog(filename).replay(entries);
+    }
+    
+    private List<WriteAheadLog.Entry> readSegments(String filename, List<File> segments)
+            throws IOException, ClassNotFoundException {
+        List<WriteAheadLog.Entry> entries = new ArrayList<>();
+        readSegments(filename, segments, entries);
+        return entries;
+    }
+    
+    private void readSegments(String filename, List<File> segments, List<WriteAheadLog.Entry> entries)
+            throws IOException, ClassNotFoundException {
+        for (File segment : segments) {
+            new WriteAheadLog(segment, getCodec(filename), groupCommit).replay(entries);
+        }
+    }
+    
+    @SuppressWarnings("unchecked")
+    private <T> List<T> applyDeltas(List<T> snapshot, List<WriteAheadLog.Entry> entries,
+                                    Function<T, String> keyExtractor) {
+        if (entries.isEmpty()) {
+            return snapshot;
+        }
+        Map<String, T> merged = new LinkedHashMap<>();
+        for (T record : snapshot) {
+            merged.put(ValidationUtils.formatId(keyExtractor.apply(record)), record);
+        }
+        for (WriteAheadLog.Entry entry : entries) {
+            merged.put(ValidationUtils.formatId(entry.key), (T) entry.record);
+        }
+        return new ArrayList<>(merged.values());
+    }
+    
+    /**
+     * Open a cursor that decodes a data file's snapshot one record at a time from a buffered channel.
+     * Changes still in the write-ahead log are not included; use the keyed variant for those.
+     */
+    public <T> RecordCursor<T> stream(String filename, RecordCodec<T> codec) throws IOException {
+        return openCursor(filename, codec, null);
+    }
+
+    /**
+     * Open a cursor over a data file with its write-ahead log applied, in constant memory
+     * apart from the logged records. The cursor reads the snapshot that was current when it
+     * was opened; later saves replace the file by rename and do not disturb it.
+     */
+    public <T> RecordCursor<T> stream(String filename, RecordCodec<T> codec,
+                                      Function<T, String> keyExtractor) throws IOException {
+        return openCursor(filename, codec, keyExtractor);
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> RecordCursor<T> openCursor(String filename, RecordCodec<T> codec,
+                                           Function<T, String> keyExtractor) throws IOException {
+        Path path = Paths.get(dataDirectory, filename);
+        // Hold the file lock so the snapshot and the log belong to the same checkpoint
+        synchronized (getFileLock(filename)) {
+            return locks.withRewriteLocks(filename, () -> {
+                Map<String, T> logged = null;
+                if (keyExtractor != null) {
+                    logged = new LinkedHashMap<>();
+                    List<WriteAheadLog.Entry> entries = new ArrayList<>();
+                    try {
+                        readDeltas(filename, entries);
+                        for (WriteAheadLog.Entry entry : entries) {
+                            logged.put(ValidationUtils.formatId(entry.key), (T) entry.record);
+                        }
+                    } catch (ClassNotFoundException e) {
+                        throw new IOException("Cannot read log for " + filename + ": " + e.getMessage());
+                    }
+                }
+
+                if (!Files.exists(path)) {
+                    return RecordCursor.ofList(new ArrayList<>(), logged, keyExtractor);
+                }
+
+                BufferedInputStream in = new BufferedInputStream(
+                    Channels.newInputStream(FileChannel.open(path, StandardOpenOption.READ)), 64 * 1024);
+                try {
+                    if (!DataFileReader.isDataFile(in)) {
+                        // Older Java-serialized files can only be read as a whole
+                        in.close();
+                        return RecordCursor.ofList(loadData(filename), logged, keyExtractor);
+                    }
+                    return new RecordCursor<>(new DataFileReader<>(in, codec), null, logged, keyExtractor);
+                } catch (IOException e) {
+                    in.close();
+                    throw e;
+                }
+            });
+        }
+    }
+
+    /**
+     * Open the read-only archive files of a data file (patients.dat.archive.N), using the file's codec
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized <T> RecordArchive<T> openArchive(String filename, Function<T, String> keyExtractor) throws IOException {
+        FileRecordArchive<?> archive = archives.get(filename);
+        if (archive == null) {
+            RecordCodec<T> codec = getCodec(filename);
+            if (codec == null) {
+                throw new IOException("No codec registered for " + filename);
+            }
+            archive = new FileRecordArchive<>(Paths.get(dataDirectory), filename, codec, keyExtractor,
+                                              groupCommit, locks);
+            archives.put(filename, archive);
+        }
+        return (RecordArchive<T>) archive;
+    }
+    
+    /**
+     * Open the memory-mapped record store that replaces a data file. The store keeps the file's
+     * base name (health_records.dat becomes health_records.idx and health_records.N.seg).
+     * On first use the existing snapshot and log are copied into the store and then removed.
+     */
+    public <T> MappedRecordStore<T> openMappedStore(String filename, Function<T, String> keyExtractor,
+                                                    Function<T, String> groupExtractor) throws IOException {
+        RecordCodec<T> codec = getCodec(filename);
+        if (codec == null) {
+            throw new IOException("No codec registered for " + filename);
+        }
+        long start = System.nanoTime();
+        Path directory = Paths.get(dataDirectory);
+        String name = filename.endsWith(".dat") ? filename.substring(0, filename.length() - 4) : filename;
+
+        MappedRecordStore<T> store = new MappedRecordStore<>(directory, name, codec, keyExtractor,
+                                                             groupExtractor, groupCommit, locks);
+        // The store's lock makes another process wait for the migration instead of repeating it
+        synchronized (getFileLock(filename)) {
+            return locks.withCheckpointLock(filename, () -> store.withLock(() -> {
+                boolean migrate = !MappedRecordStore.exists(directory, name);
+                store.open();
+                if (migrate) {
+                    store.putAll(loadAndReplay(filename, keyExtractor));
+                }
+                mappedStores.put(filename, store);
+                // Only delete the old file once its records are durable in the store
+                deleteFile(filename);
+                loadTimes.put(filename, (System.nanoTime() - start) / 1_000_000);
+                return store;
+            }));
+        }
+    }
+
+    /**
+     * Append a single inserted or changed record to the file's delta log
+     */
+    public <T> boolean appendRecord(String filename, String key, T record) {
+        return appendRecords(filename, Collections.singletonList(key), Collections.singletonList(record));
+    }
+    
+    /**
+     * Append changed records to the file's delta log with a single durable write.
+     * Once the live log passes the segment size it is sealed and a background checkpoint is requested.
+     */
+    public <T> boolean appendRecords(String filename, List<String> keys, List<T> records) {
+        WriteAheadLog log = getLog(filename);
+        try {
+            byte[] frames = log.encodeFrames(keys, records);
+            boolean[] sealed = new boolean[1];
+            // The lock is released before the fsync, so other writers can share it
+            FileChannel target = locks.withLock(filename, () -> {
+                catchUp(filename, keys);
+                FileChannel written = log.writeFrames(frames, keys.size());
+                sealed[0] = log.getSize() >= SEGMENT_BYTES && sealLog(filename);
+                return written;
+            });
+            log.sync(target);
+            if (sealed[0]) {
+                requestCheckpoint(filename);
+            }
+        } catch (IOException e) {
+            System.err.println("Error appending to log for " + filename + ": " + e.getMessage());
+            return false;
+        }
+        return true;
+    }
+    
+    /**
+     * Append the changes of a unit of work to the delta logs of several files atomically.
+     * The frames for every file are first appended to the transaction journal and forced, which
+     * is the commit point and the only fsync; they are then written to the logs, which are
+     * forced later, at the latest when the journal is cleared. If the process dies before
+     * that, the next start appends whatever the logs are missing from the journal.
+     */
+    public boolean commit(UnitOfWork work) {
+        Map<String, TransactionJournal.Block> frames = new LinkedHashMap<>();
+        // Every file is locked before the journal, in the same order as single-file appends
+        try {
+            boolean committed = locks.withLock(work.getFilenames(), () -> {
+                synchronized (journal) {
+                    try {
+                        for (String filename : work.getFilenames()) {
+                            catchUp(filename, work.getKeys(filename));
+                            WriteAheadLog log = getLog(filename);
+                            frames.put(filename, new TransactionJournal.Block(
+                                log.openForAppend(), log.encodeFrames(work.getKeys(filename), work.getRecords(filename))));
+                        }
+                        journal.append(frames);
+                    } catch (IOException e) {
+                        System.err.println("Error committing transaction: " + e.getMessage());
+                        return false;
+                    }
+                    
+                    try {
+                        for (Map.Entry<String, TransactionJournal.Block> entry : frames.entrySet()) {
+                            getLog(entry.getKey()).writeFrames(entry.getValue().frames, work.getKeys(entry.getKey()).size());
+                            unforcedLogs.add(entry.getKey());
+                        }
+                        if (journal.getSize() >= JOURNAL_BYTES) {
+                            clearJournal();
+                        }
+                    } catch (IOException e) {
+                        System.err.println("Error appending transaction to the logs: " + e.getMessage());
+                        // Committed in the journal: append whatever is missing now
+                        return recoverTransactions(journal);
+                    }
+                    return true;
+                }
+            });
+            if (!committed) {
+                return false;
+            }
+        } catch (IOException e) {
+            System.err.println("Error locking files for transaction: " + e.getMessage());
+            return false;
+        }
+        
+        // Outside the journal lock: requesting a checkpoint takes this manager's lock
+        for (String filename : frames.keySet()) {
+            try {
+                if (getLog(filename).getSize() >= SEGMENT_BYTES && sealLog(filename)) {
+                    requestCheckpoint(filename);
+                }
+            } catch (IOException e) {
+                System.err.println("Error sealing log for " + filename + ": " + e.getMessage());
+            }
+        }
+        return true;
+    }
+    
+    /**
+     * Force the logs written by transactions, then clear the journal
+     */
+    private void clearJournal() throws IOException {
+        synchronized (journal) {
+            for (String filename : unforcedLogs) {
+                getLog(filename).force();
+            }
+            unforcedLogs.clear();
+            journal.clear();
+        }
+    }
+    
+    /**
+     * Take the first transaction journal no running process holds (transactions.journal,
+     * transactions.1.journal, ...). Every other journal nobody holds belongs to a process that
+     * has ended; its transactions are completed and it is left empty for the next process.
+     */
+    private TransactionJournal openJournal() {
+        TransactionJournal own = null;
+        for (int i = 0; i < MAX_JOURNALS; i++) {
+            File file = new File(dataDirectory, i == 0 ? JOURNAL_PREFIX + JOURNAL_SUFFIX
+                                                       : JOURNAL_PREFIX + "." + i + JOURNAL_SUFFIX);
+            if (own != null && !file.exists()) {
+                break;
+            }
+            TransactionJournal candidate = new TransactionJournal(file, JOURNAL_BYTES, groupCommit);
+            try {
+                if (!candidate.acquire()) {
+                    continue;
+                }
+            } catch (IOException e) {
+                System.err.println("Error opening transaction journal " + file.getName() + ": " + e.getMessage());
+                continue;
+            }
+            recoverTransactions(candidate);
+            if (own == null) {
+                own = candidate;
+            } else {
+                candidate.close();
+            }
+        }
+        if (own == null) {
+            // Commits will fail with the reason
+            own = new TransactionJournal(new File(dataDirectory, JOURNAL_PREFIX + JOURNAL_SUFFIX), JOURNAL_BYTES, groupCommit);
+        }
+        return own;
+    }
+    
+    private static boolean isJournalFile(String name) {
+        return name.startsWith(JOURNAL_PREFIX + ".") && name.endsWith(JOURNAL_SUFFIX);
+    }
+    
+    /**
+     * Append a journal's transactions that a log is missing, then clear the journal.
+     * Only frames meant for the current live log can be missing: a log is forced before it is
+     * sealed, and a log that is gone was checkpointed or replaced by a save, possibly by another
+     * process after this journal's. A log's durable frames are a prefix of what was written, so
+     * only the transactions after the newest one found in the live log are appended.
+     */
+    private boolean recoverTransactions(TransactionJournal from) {
+        try {
+            Map<String, List<TransactionJournal.Block>> byFile = new LinkedHashMap<>();
+            List<Map<String, TransactionJournal.Block>> transactions;
+            synchronized (from) {
+                transactions = from.read();
             }
+            for (Map<String, TransactionJournal.Block> transaction : transactions) {
+                transaction.forEach((filename, block) ->
+                    byFile.computeIfAbsent(filename, name -> new ArrayList<>()).add(block));
+            }
+            List<String> completed = new ArrayList<>();
+            locks.withLock(byFile.keySet(), () -> {
+                for (Map.Entry<String, List<TransactionJournal.Block>> entry : byFile.entrySet()) {
+                    WriteAheadLog log = getLog(entry.getKey());
+                    String live = WriteAheadLog.identityOf(log.getFile());
+                    List<byte[]> blocks = new ArrayList<>();
+                    for (TransactionJournal.Block block : entry.getValue()) {
+                        if (block.logIdentity.equals(live)) {
+                            blocks.add(block.frames);
+                        }
+                    }
+                    int missing = blocks.size();
+                    while (missing > 0 && !WriteAheadLog.containsFrames(log.getFile(), blocks.get(missing - 1))) {
+                        missing--;
+                    }
+                    if (missing < blocks.size()) {
+                        log.repairTail();
+                        for (byte[] block : blocks.subList(missing, blocks.size())) {
+                            log.writeFrames(block, WriteAheadLog.countFrames(block));
+                        }
+                        completed.add(entry.getKey());
+                    }
+                }
+                if (from == journal) {
+                    synchronized (journal) {
+                        unforcedLogs.addAll(byFile.keySet());
+                        clearJournal();
+                    }
+                } else {
+                    // Another process's journal: its frames were not forced by this one
+                    for (String filename : byFile.keySet()) {
+                        getLog(filename).forceFile();
+                    }
+                    from.clear();
+                }
+                return null;
+            });
+            if (!completed.isEmpty()) {
+                System.err.println("Completed interrupted transactions in " + String.join(", ", completed));
+            }
+            return true;
         } catch (IOException e) {
-            System.err.println("Error saving object to " + filename + ": " + e.getMessage());
+            System.err.println("Error recovering transactions: " + e.getMessage());
             return false;
         }
     }
     
+    /**
+     * Seal the live log as the next numbered segment (for example patients.dat.log.3);
+     * appends continue into a fresh live log. Returns false if the live log was empty.
+     */
+    private boolean sealLog(String filename) throws IOException {
+        WriteAheadLog log = getLog(filename);
+        // Number and rename under the file's lock so segment order matches append order;
+        // the segments are listed every time since other processes seal them too
+        return locks.withLock(filename, () -> {
+            catchUp(filename, null);
+            synchronized (log) {
+                if (log.getSize() == 0) {
+                    return false;
+                }
+                List<File> segments = listLogSegments(filename);
+                long last = segments.isEmpty() ? 0 : segmentNumber(segments.get(segments.size() - 1));
+                return log.rotate(getLogSegment(filename, last + 1));
+            }
+        });
+    }
+    
+    /**
+     * Write a checkpoint of a data file: the base file with every sealed log segment applied.
+     * The live log is sealed first, so foreground appends never wait for the checkpoint; they
+     * go to a fresh log while the base and segments are read from disk and the new base is written.
+     * The covered segments are deleted once the new base is durable, so a restart only replays
+     * the segments and live log written since the last checkpoint. Replaying a segment twice is
+     * harmless because entries replace records by key.
+     */
+    public <T> boolean checkpoint(String filename) {
+        @SuppressWarnings("unchecked")
+        Function<T, String> keyExtractor = (Function<T, String>) keyExtractors.get(filename);
+        if (keyExtractor == null) {
+            // Only files loaded with a key can be checkpointed
+            return false;
+        }
+        
+        synchronized (getFileLock(filename)) {
+            // Only the checkpoint lock is held while the base is rewritten, so appends carry on
+            try {
+                return locks.withCheckpointLock(filename, () -> {
+                    try {
+                        return writeCheckpoint(filename, keyExtractor);
+                    } catch (ClassNotFoundException e) {
+                        throw new IOException(e.getMessage(), e);
+                    }
+                });
+            } catch (IOException e) {
+                System.err.println("Error writing checkpoint of " + filename + ": " + e.getMessage());
+                return false;
+            }
+        }
+    }
+    
+    /**
+     * Fold the sealed log segments into the base file; called with the checkpoint lock held
+     */
+    private <T> boolean writeCheckpoint(String filename, Function<T, String> keyExtractor)
+            throws IOException, ClassNotFoundException {
+        sealLog(filename);
+        List<File> segments = listLogSegments(filename);
+        if (segments.isEmpty()) {
+            return true;
+        }
+        
+        List<WriteAheadLog.Entry> deltas = readSegments(filename, segments);
+        if (!deltas.isEmpty()) {
+            // A base that cannot be read in full aborts the checkpoint and keeps the segments;
+            // writing the deltas alone would lose every record only the old base held
+            Snapshot<T> base = readSnapshot(filename);
+            if (base.corruptPages > 0) {
+                throw new IOException(base.corruptPages + " corrupt page(s) in the base file");
+            }
+            writeSnapshot(applyDeltas(base.records, deltas, keyExtractor), filename);
+        }
+        // Committed transactions are recognised by their frames in the logs; forget them before they go
+        clearJournal();
+        for (File segment : segments) {
+            Files.deleteIfExists(segment.toPath());
+        }
+        return true;
+    }
+    
+    /**
+     * Start the background compactor: at a fixed interval it checkpoints every loaded data file
+     * with pending deltas and compacts mapped record stores holding mostly superseded versions
+     */
+    public synchronized void startCompactor(long intervalSeconds) {
+        getCompactor().scheduleWithFixedDelay(() -> {
+            for (String filename : keyExtractors.keySet()) {
+                if (getLog(filename).getSize() > 0 || !listLogSegments(filename).isEmpty()) {
+                    checkpoint(filename);
+                }
+            }
+            for (Map.Entry<String, MappedRecordStore<?>> entry : mappedStores.entrySet()) {
+                try {
+                    if (entry.getValue().needsCompaction()) {
+                        entry.getValue().compact();
+                    }
+                } catch (IOException e) {
+                    System.err.println("Error compacting " + entry.getKey() + ": " + e.getMessage());
+                }
+            }
+        }, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+    
+    /**
+     * Stop the compactor; deltas not yet checkpointed stay in their logs and are replayed on the next start
+     */
+    public synchronized void stopCompactor() {
+        if (compactor != null) {
+            compactor.shutdown();
+            try {
+                compactor.awaitTermination(30, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            compactor = null;
+        }
+    }
+    
+    /**
+     * Queue a checkpoint of one file on the compactor thread unless one is already queued
+     */
+    private synchronized void requestCheckpoint(String filename) {
+        if (pendingCheckpoints.add(filename)) {
+            getCompactor().execute(() -> {
+                pendingCheckpoints.remove(filename);
+                checkpoint(filename);
+            });
+        }
+    }
+    
+    private synchronized ScheduledExecutorService getCompactor() {
+        if (compactor == null) {
+            compactor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "compactor");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return compactor;
+    }
+    
+    /**
+     * Read what other processes appended to a file's logs since this process last looked,
+     * and queue it if the file has a change listener. Entries for the given keys, which this
+     * process is about to write, are dropped from the queue. Call with the file's lock held.
+     */
+    private void catchUp(String filename, Collection<String> ownKeys) throws IOException {
+        List<WriteAheadLog.Entry> entries;
+        try {
+            entries = getLog(filename).readExternal(() -> listLogSegments(filename));
+        } catch (ClassNotFoundException e) {
+            throw new IOException("Cannot read log for " + filename + ": " + e.getMessage());
+        }
+        if (getChangeListener(filename) == null) {
+            return;
+        }
+        synchronized (externalChanges) {
+            if (entries == null || !entries.isEmpty()) {
+                externalChanges.add(new ExternalChange(filename, entries));
+            }
+            if (ownKeys != null && !ownKeys.isEmpty()) {
+                Set<String> keys = new HashSet<>();
+                for (String key : ownKeys) {
+                    keys.add(ValidationUtils.formatId(key));
+                }
+                for (ExternalChange change : externalChanges) {
+                    if (change.entries != null && change.filename.equals(filename)) {
+                        change.entries.removeIf(entry -> keys.contains(ValidationUtils.formatId(entry.key)));
+                    }
+                }
+            }
+        }
+    }
+    
+    /**
+     * Register the listener told about changes other processes make to a data file;
+     * a listener for a sharded file hears about all of its shards
+     */
+    public <T> void addChangeListener(String filename, ExternalChangeListener<T> listener) {
+        changeListeners.put(filename, listener);
+    }
+    
+    private ExternalChangeListener<?> getChangeListener(String filename) {
+        ExternalChangeListener<?> listener = changeListeners.get(filename);
+        return listener != null ? listener : changeListeners.get(ShardedStorageEngine.baseFile(filename));
+    }
+    
+    /**
+     * Hand the queued changes of other processes to the change listeners, on the calling thread.
+     * Returns the number of changed records, counting a reloaded file as one.
+     */
+    @SuppressWarnings("unchecked")
+    public int applyExternalChanges() {
+        List<ExternalChange> changes;
+        synchronized (externalChanges) {
+            if (externalChanges.isEmpty()) {
+                return 0;
+            }
+            changes = new ArrayList<>(externalChanges);
+            externalChanges.clear();
+        }
+        
+        Map<ExternalChangeListener<?>, List<Object>> changed = new LinkedHashMap<>();
+        Set<ExternalChangeListener<?>> replaced = new HashSet<>();
+        for (ExternalChange change : changes) {
+            ExternalChangeListener<?> listener = getChangeListener(change.filename);
+            if (change.entries == null) {
+                replaced.add(listener);
+            } else {
+                List<Object> records = changed.computeIfAbsent(listener, key -> new ArrayList<>());
+                for (WriteAheadLog.Entry entry : change.entries) {
+                    records.add(entry.record);
+                }
+            }
+        }
+        
+        int count = 0;
+        for (ExternalChangeListener<?> listener : replaced) {
+            // The reload includes the entries queued with it
+            changed.remove(listener);
+            listener.fileReplaced();
+            count++;
+        }
+        for (Map.Entry<ExternalChangeListener<?>, List<Object>> entry : changed.entrySet()) {
+            if (!entry.getValue().isEmpty()) {
+                ((ExternalChangeListener<Object>) entry.getKey()).recordsChanged(entry.getValue());
+                count += entry.getValue().size();
+            }
+        }
+        return count;
+    }
+    
+    /**
+     * Start the watcher thread: whenever another process changes the logs or base file of a
+     * loaded data file, or the index of a mapped record store, that has a change listener,
+     * its new entries are read and queued for applyExternalChanges
+     */
+    public synchronized void startWatcher() {
+        if (watcher != null) {
+            return;
+        }
+        try {
+            WatchService service = FileSystems.getDefault().newWatchService();
+            Paths.get(dataDirectory).register(service, StandardWatchEventKinds.ENTRY_CREATE,
+                                              StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+            watchService = service;
+            watcher = new Thread(() -> watch(service), "data-watcher");
+            watcher.setDaemon(true);
+            watcher.start();
+        } catch (IOException e) {
+            System.err.println("Error starting data watcher: " + e.getMessage());
+        }
+    }
+    
+    public synchronized void stopWatcher() {
+        if (watcher != null) {
+            try {
+                watchService.close();
+                watcher.join(TimeUnit.SECONDS.toMillis(30));
+            } catch (IOException e) {
+                System.err.println("Error stopping data watcher: " + e.getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            watcher = null;
+            watchService = null;
+        }
+    }
+    
+    private void watch(WatchService service) {
+        try {
+            while (true) {
+                WatchKey key = service.take();
+                Set<String> changed = new TreeSet<>();
+                boolean overflow = false;
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(WATCH_BATCH_MILLIS);
+                // Collect until the directory is quiet, so a burst of appends is read at once
+                do {
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                            overflow = true;
+                        } else {
+                            changed.add(dataFileOf(event.context().toString()));
+                        }
+                    }
+                    key.reset();
+                } while (System.nanoTime() < deadline
+                         && (key = service.poll(WATCH_SETTLE_MILLIS, TimeUnit.MILLISECONDS)) != null);
+                
+                if (overflow) {
+                    changed.addAll(keyExtractors.keySet());
+                }
+                for (String filename : changed) {
+                    if (keyExtractors.containsKey(filename) && getChangeListener(filename) != null) {
+                        refresh(filename);
+                    }
+                }
+                for (Map.Entry<String, MappedRecordStore<?>> entry : mappedStores.entrySet()) {
+                    if ((overflow || changed.contains(entry.getValue().getIndexFileName()))
+                            && getChangeListener(entry.getKey()) != null) {
+                        refreshMappedStore(entry.getKey(), entry.getValue());
+                    }
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // Stopped
+        }
+    }
+    
+    /**
+     * Map a changed file name to its data file: patients.dat.log.3 and patients.dat.log to patients.dat
+     */
+    private static String dataFileOf(String name) {
+        int logIndex = name.indexOf(LOG_SUFFIX);
+        if (logIndex > 0 && (name.endsWith(LOG_SUFFIX) || segmentNumber(new File(name)) > 0)) {
+            return name.substring(0, logIndex);
+        }
+        return name;
+    }
+    
+    private void refresh(String filename) {
+        // The checkpoint lock keeps segments from being deleted while they are read
+        try {
+            locks.withRewriteLocks(filename, () -> {
+                catchUp(filename, null);
+                return null;
+            });
+        } catch (IOException e) {
+            System.err.println("Error reading changes to " + filename + ": " + e.getMessage());
+        }
+    }
+    
+    /**
+     * Read the records other processes added to a mapped record store and queue them; a store
+     * reopened on another process's compaction is queued as replaced
+     */
+    private void refreshMappedStore(String filename, MappedRecordStore<?> store) {
+        try {
+            List<String> added = store.refresh();
+            List<WriteAheadLog.Entry> entries = null;
+            if (added != null) {
+                if (added.isEmpty()) {
+                    return;
+                }
+                entries = new ArrayList<>();
+                for (String key : added) {
+                    Object record = store.get(key);
+                    if (record != null) {
+                        entries.add(new WriteAheadLog.Entry(key, record));
+                    }
+                }
+            }
+            synchronized (externalChanges) {
+                externalChanges.add(new ExternalChange(filename, entries));
+            }
+        } catch (IOException e) {
+            System.err.println("Error reading changes to " + filename + ": " + e.getMessage());
+        }
+    }
+    
+    private File getLogSegment(String filename, long number) {
+        return new File(dataDirectory + File.separator + filename + LOG_SUFFIX + "." + number);
+    }
+    
+    /**
+     * Find the sealed log segments of a data file, oldest first
+     */
+    private List<File> listLogSegments(String filename) {
+        List<File> segments = new ArrayList<>();
+        File[] files = new File(dataDirectory).listFiles();
+        if (files != null) {
+            String prefix = filename + LOG_SUFFIX + ".";
+            for (File file : files) {
+                if (file.getName().startsWith(prefix) && segmentNumber(file) > 0) {
+                    segments.add(file);
+                }
+            }
+        }
+        segments.sort((a, b) -> Long.compare(segmentNumber(a), segmentNumber(b)));
+        return segments;
+    }
+    
+    private static long segmentNumber(File segment) {
+        String name = segment.getName();
+        try {
+            return Long.parseLong(name.substring(name.lastIndexOf('.') + 1));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+    
+    /**
+     * Get the write-ahead log belonging to a data file
+     */
+    private WriteAheadLog getLog(String filename) {
+        return logs.computeIfAbsent(filename, 
+            name -> new WriteAheadLog(new File(dataDirectory + File.separator + name + LOG_SUFFIX),
+                                      getCodec(name), groupCommit));
+    }
+    
+    /**
+     * Save a single object to a file
+     */
+    public <T> boolean saveObject(T object, String filename) {
+        synchronized (getFileLock(filename)) {
+            try {
+                writeAtomically(filename, out -> {
+                    ObjectOutputStream oos = new ObjectOutputStream(out);
+                    oos.writeObject(object);
+                    oos.flush();
+                });
+                return true;
+            } catch (IOException e) {
+                System.err.println("Error saving object to " + filename + ": " + e.getMessage());
+                return false;
+            }
+        }
+    }
+    
     /**
      * Load a single object from a file
      */
     @SuppressWarnings("unchecked")
     public <T> T loadObject(String filename) {
         try {
-            String filepath = DATA_DIRECTORY + File.separator + filename;
+            String filepath = dataDirectory + File.separator + filename;
             File file = new File(filepath);
             
             if (!file.exists()) {
@@ -116,7 +1236,7 @@ public class DatabaseManager {
      * Check if a data file exists
      */
     public boolean fileExists(String filename) {
-        String filepath = DATA_DIRECTORY + File.separator + filename;
+        String filepath = dataDirectory + File.separator + filename;
         return new File(filepath).exists();
     }
     
@@ -125,8 +1245,15 @@ public class DatabaseManager {
      */
     public boolean deleteFile(String filename) {
         try {
-            String filepath = DATA_DIRECTORY + File.separator + filename;
-            return new File(filepath).delete();
+            return locks.withRewriteLocks(filename, () -> {
+                String filepath = dataDirectory + File.separator + filename;
+                clearJournal();
+                getLog(filename).truncate();
+                for (File segment : listLogSegments(filename)) {
+                    segment.delete();
+                }
+                return new File(filepath).delete();
+            });
         } catch (Exception e) {
             System.err.println("Error deleting file " + filename + ": " + e.getMessage());
             return false;
@@ -138,7 +1265,7 @@ public class DatabaseManager {
      */
     public long getFileSize(String filename) {
         try {
-            String filepath = DATA_DIRECTORY + File.separator + filename;
+            String filepath = dataDirectory + File.separator + filename;
             return new File(filepath).length();
         } catch (Exception e) {
             System.err.println("Error getting file size for " + filename + ": " + e.getMessage());
@@ -152,7 +1279,7 @@ public class DatabaseManager {
     public List<String> listDataFiles() {
         List<String> files = new ArrayList<>();
         try {
-            File dataDir = new File(DATA_DIRECTORY);
+            File dataDir = new File(dataDirectory);
             if (dataDir.exists() && dataDir.isDirectory()) {
                 File[] fileArray = dataDir.listFiles();
                 if (fileArray != null) {
@@ -170,27 +1297,73 @@ public class DatabaseManager {
     }
     
     /**
-     * Backup all data files to a backup directory
+     * Take an incremental backup of all data files into the backup store next to the data
+     * directory. Each data file is backed up together with its delta logs while holding the
+     * file's checkpoint and file locks, so a concurrent checkpoint in any process cannot fold
+     * and delete log segments in between.
      */
-    public boolean backupData() {
+    public synchronized boolean backupData() {
         try {
-            String backupDir = DATA_DIRECTORY + "_backup_" + System.currentTimeMillis();
-            Path backupPath = Paths.get(backupDir);
-            Files.createDirectories(backupPath);
+            BackupStore store = getBackupStore();
+            store.beginBackup();
+            Set<String> covered = new HashSet<>();
             
-            File dataDir = new File(DATA_DIRECTORY);
-            if (dataDir.exists() && dataDir.isDirectory()) {
-                File[] files = dataDir.listFiles();
-                if (files != null) {
-                    for (File file : files) {
-                        if (file.isFile()) {
-                            Path source = file.toPath();
-                            Path target = backupPath.resolve(file.getName());
-                            Files.copy(source, target);
+            for (MappedRecordStore<?> mappedStore : mappedStores.values()) {
+                // The index and segment must come from the same generation, in every process
+                mappedStore.withLock(() -> {
+                    synchronized (mappedStore) {
+                        for (File file : mappedStore.getFiles()) {
+                            store.addFile(file, file.getName().endsWith(".seg"));
+                            covered.add(file.getName());
                         }
                     }
+                    return null;
+                });
+            }
+            
+            for (String filename : listBaseFiles()) {
+                synchronized (getFileLock(filename)) {
+                    // A checkpoint elsewhere could fold and delete the segments, and another process
+                    // could seal the live log, between listing and copying them
+                    locks.withRewriteLocks(filename, () -> {
+                        File base = new File(dataDirectory, filename);
+                        if (base.exists()) {
+                            store.addFile(base, false);
+                        }
+                        WriteAheadLog log = getLog(filename);
+                        List<File> segments;
+                        // Sealing renames the live log into a segment, so list both under the log's lock
+                        synchronized (log) {
+                            segments = listLogSegments(filename);
+                            if (log.getFile().exists()) {
+                                store.addFile(log.getFile(), true);
+                            }
+                        }
+                        for (File segment : segments) {
+                            store.addFile(segment, true);
+                        }
+                        covered.add(filename);
+                        covered.add(log.getFile().getName());
+                        for (File segment : segments) {
+                            covered.add(segment.getName());
+                        }
+                        return null;
+                    });
                 }
             }
+            
+            // Anything else in the directory, such as files written with saveObject
+            File[] files = new File(dataDirectory).listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    if (file.isFile() && !covered.contains(file.getName()) && !file.getName().endsWith(TEMP_SUFFIX)
+                        && !file.getName().equals(FileLocks.LOCK_FILE) && !isJournalFile(file.getName())) {
+                        store.addFile(file, false);
+                    }
+                }
+            }
+            
+            lastBackupId = store.commitBackup();
             return true;
         } catch (IOException e) {
             System.err.println("Error backing up data: " + e.getMessage());
@@ -198,10 +1371,88 @@ public class DatabaseManager {
         }
     }
     
+    /**
+     * Find the names of the base data files, including ones that so far only have delta logs
+     */
+    private Set<String> listBaseFiles() {
+        Set<String> names = new TreeSet<>(keyExtractors.keySet());
+        File[] files = new File(dataDirectory).listFiles();
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                int logIndex = name.indexOf(LOG_SUFFIX);
+                if (name.endsWith(".dat") || name.endsWith(ShardedStorageEngine.MAP_SUFFIX)) {
+                    names.add(name);
+                } else if (logIndex > 0 && (name.endsWith(LOG_SUFFIX) || segmentNumber(file) > 0)) {
+                    names.add(name.substring(0, logIndex));
+                }
+            }
+        }
+        names.removeAll(mappedStores.keySet());
+        return names;
+    }
+    
+    /**
+     * Restore a backup point into the data directory. Data files that are not part of the
+     * backup are removed. Call this before any service has loaded its data.
+     */
+    public synchronized boolean restoreBackup(String backupId) {
+        try {
+            // Transactions of the state being replaced must not be completed on top of the backup
+            clearJournal();
+            journal.close();
+            for (WriteAheadLog log : logs.values()) {
+                log.close();
+            }
+            logs.clear();
+            List<String> restored = getBackupStore().restore(backupId, dataDirectory);
+            
+            File[] files = new File(dataDirectory).listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    String name = file.getName();
+                    if (file.isFile() && !restored.contains(name) && !name.equals(FileLocks.LOCK_FILE)
+                        && !isJournalFile(name)) {
+                        Files.delete(file.toPath());
+                    }
+                }
+            }
+            journal = openJournal();
+            return true;
+        } catch (IOException e) {
+            System.err.println("Error restoring backup " + backupId + ": " + e.getMessage());
+            return false;
+        }
+    }
+    
+    /**
+     * Get the IDs of all backup points, oldest first
+     */
+    public List<String> listBackups() {
+        return getBackupStore().listBackups();
+    }
+    
+    /**
+     * Get the ID of the backup taken most recently by this manager, or null
+     */
+    public String getLastBackupId() {
+        return lastBackupId;
+    }
+    
+    /**
+     * Get the deduplicating store that holds the backups of this data directory
+     */
+    public synchronized BackupStore getBackupStore() {
+        if (backupStore == null) {
+            backupStore = new BackupStore(dataDirectory + BACKUP_SUFFIX);
+        }
+        return backupStore;
+    }
+    
     /**
      * Get data directory path
      */
     public String getDataDirectory() {
-        return DATA_DIRECTORY;
+        return dataDirectory;
     }
 }
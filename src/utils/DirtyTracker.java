@@ -0,0 +1,308 @@
+package utils;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * DirtyTracker class for recording which entities of a data file changed in memory.
+ * A flush passes only the dirty entities to the storage engine in one batch; with the
+ * log-structured engine that is one durable delta log write, which the background
+ * compactor in DatabaseManager later checkpoints into the base file.
+ */
+public class DirtyTracker<T> {
+    private final StorageEngine storage;
+    private final String filename;
+    private final Function<T, String> keyExtractor;
+    private final Map<String, T> dirty = new LinkedHashMap<>();
+    private final Map<String, Long> marks = new HashMap<>();
+    private final Set<String> unsent = new LinkedHashSet<>();
+    private final Object submitLock = new Object();
+    private CompletableFuture<Boolean> inFlight = CompletableFuture.completedFuture(true);
+    private long markCount;
+
+    public DirtyTracker(StorageEngine storage, String filename, Function<T, String> keyExtractor) {
+        this.storage = storage;
+        this.filename = filename;
+        this.keyExtractor = keyExtractor;
+    }
+
+    /**
+     * Record that an entity was inserted or changed
+     */
+    public synchronized void markDirty(T entity) {
+        String key = ValidationUtils.formatId(keyExtractor.apply(entity));
+        dirty.put(key, entity);
+        marks.put(key, ++markCount);
+        unsent.add(key);
+    }
+
+    /**
+     * Forget an entity's unsaved change, such as one staged by a unit of work whose commit
+     * failed; the caller restores the entity's in-memory state
+     */
+    public synchronized void discard(T entity) {
+        String key = ValidationUtils.formatId(keyExtractor.apply(entity));
+        dirty.remove(key);
+        marks.remove(key);
+        unsent.remove(key);
+    }
+
+    /**
+     * Check whether an entity has changes that are not yet persisted
+     */
+    public synchronized boolean isDirty(String key) {
+        return dirty.containsKey(ValidationUtils.formatId(key));
+    }
+
+    public synchronized int getDirtyCount() {
+        return dirty.size();
+    }
+
+    /**
+     * Persist every dirty entity through the storage engine. Entities stay dirty if the write fails,
+     * so a later flush writes their current state (including any reverted fields).
+     */
+    public boolean flush() {
+        return flushAsync().join();
+    }
+
+    /**
+     * Start persisting every dirty entity and return a future that completes once they and
+     * any earlier batches are written. Entities already handed to the engine are not sent
+     * again. With a write-behind engine the write happens on its writer thread; otherwise
+     * it is done before this returns.
+     */
+    public CompletableFuture<Boolean> flushAsync() {
+        // Batches are submitted in order; the tracker lock is not held while submitting,
+        // because a write-behind engine may block and its writer thread needs the lock
+        synchronized (submitLock) {
+            Batch<T> batch = takeUnsent();
+            if (batch == null) {
+                return getInFlight();
+            }
+            return track(batch, storage.saveRecordsAsync(filename, batch.keys, batch.records));
+        }
+    }
+
+    /**
+     * Entities handed to the engine in one write
+     */
+    static class Batch<T> {
+        final List<String> keys;
+        final List<T> records = new ArrayList<>();
+        final long mark;
+
+        Batch(List<String> keys, long mark) {
+            this.keys = keys;
+            this.mark = mark;
+        }
+    }
+
+    /**
+     * Lock held while a batch is taken and submitted, so batches reach the engine in order
+     */
+    Object getSubmitLock() {
+        return submitLock;
+    }
+
+    String getKey(T entity) {
+        return keyExtractor.apply(entity);
+    }
+
+    String getFilename() {
+        return filename;
+    }
+
+    StorageEngine getStorage() {
+        return storage;
+    }
+
+    private synchronized CompletableFuture<Boolean> getInFlight() {
+        return inFlight;
+    }
+
+    /**
+     * Take the entities not yet handed to the engine, or null if there are none
+     */
+    synchronized Batch<T> takeUnsent() {
+        if (unsent.isEmpty()) {
+            return null;
+        }
+        Batch<T> batch = new Batch<>(new ArrayList<>(unsent), markCount);
+        for (String key : batch.keys) {
+            batch.records.add(dirty.get(key));
+        }
+        unsent.clear();
+        return batch;
+    }
+
+    /**
+     * Settle a submitted batch when its write completes; the returned future also covers earlier batches
+     */
+    CompletableFuture<Boolean> track(Batch<T> batch, CompletableFuture<Boolean> write) {
+        CompletableFuture<Boolean> written = write.thenApply(saved -> {
+            settle(batch.keys, batch.mark, saved);
+            return saved;
+        });
+        synchronized (this) {
+            inFlight = inFlight.isDone() ? written : inFlight.thenCombine(written, (a, b) -> a && b);
+            return inFlight;
+        }
+    }
+
+    /**
+     * After a write, clear the entities it covered, or queue them again if it failed
+     */
+    private synchronized void settle(List<String> keys, long flushedMark, boolean saved) {
+        for (String key : keys) {
+            Long mark = marks.get(key);
+            if (!saved) {
+                if (mark != null) {
+                    unsent.add(key);
+                }
+            } else if (mark != null && mark <= flushedMark) {
+                // Keep entities that were marked again while the batch was being written
+                dirty.remove(key);
+                marks.remove(key);
+            }
+        }
+    }
+
+    /**
+     * Keep an in-memory list of the file's entities up to date with the changes other processes
+     * make (see DatabaseManager.applyExternalChanges). A changed record replaces the entity with
+     * its key, found through the list's key index, or is added; entities with unsaved changes in
+     * this process are left alone. If the file was replaced as a whole, the list is loaded again
+     * with the supplier.
+     */
+    public void followExternalChanges(IndexedList<T> target, Supplier<List<T>> reload) {
+        storage.addChangeListener(filename, new ExternalChangeListener<T>() {
+            @Override
+            public void recordsChanged(List<T> records) {
+                merge(target, records);
+            }
+
+            @Override
+            public void fileReplaced() {
+                // Loaded without the tracker lock: a write-behind engine finishes queued writes first
+                replace(target, reload.get());
+            }
+        });
+    }
+
+    private synchronized void merge(IndexedList<T> target, List<T> records) {
+        for (T record : records) {
+            String key = ValidationUtils.formatId(keyExtractor.apply(record));
+            if (dirty.containsKey(key)) {
+                continue;
+            }
+            int position = target.indexOfKey(key);
+            if (position >= 0) {
+                target.set(position, record);
+            } else {
+                target.add(record);
+            }
+        }
+    }
+
+    private synchronized void replace(List<T> target, List<T> loaded) {
+        Map<String, T> local = new LinkedHashMap<>(dirty);
+        List<T> merged = new ArrayList<>(loaded.size() + local.size());
+        for (T record : loaded) {
+            T changed = local.remove(ValidationUtils.formatId(keyExtractor.apply(record)));
+            merged.add(changed != null ? changed : record);
+        }
+        // Entities added here and not yet written
+        merged.addAll(local.values());
+        target.clear();
+        target.addAll(merged);
+    }
+
+    /**
+     * Add new entities in bulk, writing the file once instead of once per entity, and then
+     * add them to the list. Entities whose key is taken, in the list, in the archive if one
+     * is given, or earlier in the batch, are skipped. Returns the number of entities added,
+     * or -1 if a write failed and nothing was added.
+     */
+    public int importAll(IndexedList<T> target, List<T> imported, RecordArchive<T> archive) {
+        Set<String> keys = new HashSet<>();
+        List<T> added = new ArrayList<>();
+        for (T entity : imported) {
+            String key = keyExtractor.apply(entity);
+            if (!target.containsKey(key) && (archive == null || !archive.contains(key))
+                    && keys.add(ValidationUtils.formatId(key))) {
+                added.add(entity);
+            }
+        }
+        if (added.isEmpty()) {
+            return 0;
+        }
+        if (!flush()) {
+            return -1;
+        }
+        
+        List<T> combined = new ArrayList<>(target.size() + added.size());
+        combined.addAll(target);
+        combined.addAll(added);
+        if (!storage.saveAll(filename, combined, keyExtractor)) {
+            return -1;
+        }
+        target.addAll(added);
+        return added.size();
+    }
+
+    /**
+     * Move entities of the list to the archive, where they are still found by key: append
+     * them to the archive, then rewrite the file without them. A crash in between leaves them
+     * in both places, where the hot copy wins. Returns the number of entities archived, or -1
+     * if the file could not be written; a failed append to the archive is thrown.
+     */
+    public int archive(IndexedList<T> target, List<T> candidates, RecordArchive<T> archive) throws IOException {
+        if (candidates.isEmpty()) {
+            return 0;
+        }
+        if (!flush()) {
+            return -1;
+        }
+        archive.append(candidates);
+        
+        List<T> remaining = new ArrayList<>(target);
+        // One hash lookup per record instead of a scan of the candidate list
+        Set<T> archived = new HashSet<>(candidates);
+        remaining.removeIf(archived::contains);
+        if (!storage.saveAll(filename, remaining, keyExtractor)) {
+            return -1;
+        }
+        target.clear();
+        target.addAll(remaining);
+        return candidates.size();
+    }
+
+    /**
+     * Mark one entity dirty and flush it. Returns false only if the write was performed and
+     * failed; with a write-behind engine the change is accepted once it is queued, and if the
+     * background write fails the entity stays dirty and is written again by the next flush.
+     */
+    public boolean persist(T entity) {
+        CompletableFuture<Boolean> result = persistAsync(entity);
+        return !result.isDone() || result.join();
+    }
+
+    /**
+     * Mark one entity dirty and return a future that completes once it is persisted
+     */
+    public CompletableFuture<Boolean> persistAsync(T entity) {
+        markDirty(entity);
+        return flushAsync();
+    }
+}
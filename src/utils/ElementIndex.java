@@ -0,0 +1,21 @@
+package utils;
+
+/**
+ * ElementIndex interface for the indexes an IndexedList keeps in step with its elements
+ */
+interface ElementIndex<T> {
+    void add(T value);
+
+    void remove(T value);
+
+    void clear();
+
+    /**
+     * Move a value that changed in place to where it now belongs; indexes that remember
+     * where a value was filed leave it alone if that has not changed
+     */
+    default void refresh(T value) {
+        remove(value);
+        add(value);
+    }
+}
@@ -0,0 +1,21 @@
+package utils;
+
+import java.util.List;
+
+/**
+ * ExternalChangeListener interface for hearing about changes another process made to a data
+ * file in a shared data directory. DatabaseManager.applyExternalChanges calls it on the
+ * caller's thread, so listeners can update in-memory lists without further locking.
+ */
+public interface ExternalChangeListener<T> {
+    /**
+     * Records another process inserted or changed, oldest first
+     */
+    void recordsChanged(List<T> records);
+
+    /**
+     * The file was replaced as a whole (saved, restored or checkpointed past what could be
+     * followed) and has to be loaded again
+     */
+    void fileReplaced();
+}
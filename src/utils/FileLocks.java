@@ -0,0 +1,210 @@
+package utils;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * FileLocks class for the advisory locks that let several processes share a data directory.
+ * Every data file maps to one byte of the directory's lock file, locked with a FileLock for
+ * other processes and with a ReentrantLock for the threads of this one. The lock file is opened
+ * once per JVM: closing any channel to a locked file would release its locks on most systems.
+ *
+ * Checkpoint locks, held while a file is rewritten as a whole, live in a second range of
+ * bytes and are always taken before file locks.
+ */
+class FileLocks {
+    static final String LOCK_FILE = "hms.lock";
+    private static final int SLOTS = 1024;
+    private static final int DEADLOCK_RETRIES = 1000;
+    private static final Map<Path, FileLocks> directories = new ConcurrentHashMap<>();
+
+    private final FileChannel channel;
+    private final ReentrantLock[] slots = new ReentrantLock[2 * SLOTS];
+    private final FileLock[] held = new FileLock[2 * SLOTS];
+
+    /**
+     * A set of locked slots, released by close
+     */
+    class Handle implements AutoCloseable {
+        private final int[] locked;
+
+        private Handle(int[] locked) {
+            this.locked = locked;
+        }
+
+        @Override
+        public void close() {
+            for (int i = locked.length - 1; i >= 0; i--) {
+                unlock(locked[i]);
+            }
+        }
+    }
+
+    /**
+     * Work done while holding locks
+     */
+    interface LockedAction<R> {
+        R run() throws IOException;
+    }
+
+    private FileLocks(Path directory) throws IOException {
+        this.channel = FileChannel.open(directory.resolve(LOCK_FILE), StandardOpenOption.CREATE,
+                                        StandardOpenOption.READ, StandardOpenOption.WRITE);
+        for (int i = 0; i < slots.length; i++) {
+            slots[i] = new ReentrantLock();
+        }
+    }
+
+    /**
+     * Get the locks of a data directory, shared by every DatabaseManager of this JVM
+     */
+    static FileLocks forDirectory(Path directory) throws IOException {
+        Path key = directory.toAbsolutePath().normalize();
+        FileLocks locks = directories.get(key);
+        if (locks == null) {
+            synchronized (directories) {
+                locks = directories.get(key);
+                if (locks == null) {
+                    locks = new FileLocks(key);
+                    directories.put(key, locks);
+                }
+            }
+        }
+        return locks;
+    }
+
+    /**
+     * Lock the given files, waiting for other threads and processes. Locks are reentrant,
+     * and several files are locked in slot order, so two writers cannot deadlock.
+     */
+    Handle lock(Collection<String> filenames) throws IOException {
+        TreeSet<Integer> ordered = new TreeSet<>();
+        for (String filename : filenames) {
+            ordered.add(Math.floorMod(filename.hashCode(), SLOTS));
+        }
+        int[] locked = new int[ordered.size()];
+        int count = 0;
+        try {
+            for (int slot : ordered) {
+                lockSlot(slot);
+                locked[count++] = slot;
+            }
+        } catch (IOException | RuntimeException e) {
+            for (int i = count - 1; i >= 0; i--) {
+                unlock(locked[i]);
+            }
+            throw e;
+        }
+        return new Handle(locked);
+    }
+
+    Handle lock(String filename) throws IOException {
+        return lock(Collections.singletonList(filename));
+    }
+
+    /**
+     * Lock a file against being rewritten by a checkpoint, save or load elsewhere.
+     * Take it before the file's lock, and only one at a time.
+     */
+    Handle lockCheckpoint(String filename) throws IOException {
+        int slot = SLOTS + Math.floorMod(filename.hashCode(), SLOTS);
+        lockSlot(slot);
+        return new Handle(new int[] {slot});
+    }
+
+    /**
+     * Run an action while holding the locks of the given files
+     */
+    <R> R withLock(Collection<String> filenames, LockedAction<R> action) throws IOException {
+        return run(lock(filenames), action);
+    }
+
+    <R> R withLock(String filename, LockedAction<R> action) throws IOException {
+        return run(lock(filename), action);
+    }
+
+    /**
+     * Run an action while holding a file's checkpoint lock
+     */
+    <R> R withCheckpointLock(String filename, LockedAction<R> action) throws IOException {
+        return run(lockCheckpoint(filename), action);
+    }
+
+    /**
+     * Run an action while holding a file's checkpoint lock and then its file lock, for work
+     * that must see neither a rewrite nor an append of the file in between
+     */
+    <R> R withRewriteLocks(String filename, LockedAction<R> action) throws IOException {
+        return withCheckpointLock(filename, () -> withLock(filename, action));
+    }
+
+    /**
+     * Run an action and then release a handle
+     */
+    static <R> R run(Handle handle, LockedAction<R> action) throws IOException {
+        try {
+            return action.run();
+        } finally {
+            handle.close();
+        }
+    }
+
+    private void lockSlot(int slot) throws IOException {
+        ReentrantLock lock = slots[slot];
+        lock.lock();
+        if (lock.getHoldCount() == 1) {
+            try {
+                held[slot] = lockRange(slot);
+            } catch (IOException | RuntimeException e) {
+                lock.unlock();
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * The kernel's deadlock detection treats all threads of a process as one owner, so it
+     * reports a deadlock when a thread here waits for another process that waits for a
+     * different thread here; that thread never waits in turn, so try again
+     */
+    private FileLock lockRange(int slot) throws IOException {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                return channel.lock(slot, 1, false);
+            } catch (IOException e) {
+                if (attempt == DEADLOCK_RETRIES || e.getMessage() == null || !e.getMessage().contains("deadlock")) {
+                    throw e;
+                }
+                try {
+                    Thread.sleep(Math.min(attempt, 20));
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for " + LOCK_FILE);
+                }
+            }
+        }
+    }
+
+    private void unlock(int slot) {
+        ReentrantLock lock = slots[slot];
+        if (lock.getHoldCount() == 1 && held[slot] != null) {
+            try {
+                held[slot].release();
+            } catch (IOException e) {
+                System.err.println("Error releasing lock on " + LOCK_FILE + ": " + e.getMessage());
+            }
+            held[slot] = null;
+        }
+        lock.unlock();
+    }
+}
@@ -0,0 +1,384 @@
+package utils;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.zip.Checksum;
+import java.util.zip.Deflater;
+
+/**
+ * FileRecordArchive class for read-only, compressed and indexed archive files.
+ * Each archival run writes one generation: &lt;file&gt;.archive.N, a block-compressed paged
+ * data file, and &lt;file&gt;.archive.N.idx, which maps every key to the offset of its page
+ * and its position in the page. Generation files are never modified; the index is written
+ * last and commits the generation. A lookup reads and inflates just one page.
+ * Generations other processes add are picked up by refresh, and before every append.
+ */
+public class FileRecordArchive<T> implements RecordArchive<T> {
+    private static final String ARCHIVE_SUFFIX = ".archive.";
+    private static final String INDEX_SUFFIX = ".idx";
+    private static final int INDEX_MAGIC = 0x484D5341; // "HMSA"
+
+    private final Path directory;
+    private final String filename;
+    private final RecordCodec<T> codec;
+    private final Function<T, String> keyExtractor;
+    private final GroupCommit groupCommit;
+    private final FileLocks locks;
+    private final Set<Integer> indexed = new HashSet<>();
+    private final Map<String, Location> locations = new LinkedHashMap<>();
+    private final Map<Integer, Generation> generations = new HashMap<>();
+    private int lastGeneration;
+
+    /**
+     * Where an archived record is: generation, page offset and position in the page
+     */
+    private static class Location {
+        final int generation;
+        final long pageOffset;
+        final int pageIndex;
+
+        Location(int generation, long pageOffset, int pageIndex) {
+            this.generation = generation;
+            this.pageOffset = pageOffset;
+            this.pageIndex = pageIndex;
+        }
+    }
+
+    /**
+     * An open generation file with the header fields needed to decode its pages
+     */
+    private static class Generation {
+        final FileChannel channel;
+        final int codecVersion;
+        final boolean deflated;
+
+        Generation(FileChannel channel, int codecVersion, boolean deflated) {
+            this.channel = channel;
+            this.codecVersion = codecVersion;
+            this.deflated = deflated;
+        }
+    }
+
+    FileRecordArchive(Path directory, String filename, RecordCodec<T> codec,
+                      Function<T, String> keyExtractor, GroupCommit groupCommit, FileLocks locks) throws IOException {
+        this.directory = directory;
+        this.filename = filename;
+        this.codec = codec;
+        this.keyExtractor = keyExtractor;
+        this.groupCommit = groupCommit;
+        this.locks = locks;
+        readNewGenerations();
+    }
+
+    /**
+     * Read the indexes of generations written since the archive was opened or last refreshed
+     */
+    @Override
+    public synchronized void refresh() {
+        try {
+            readNewGenerations();
+        } catch (IOException e) {
+            System.err.println("Error refreshing archive of " + filename + ": " + e.getMessage());
+        }
+    }
+
+    private void readNewGenerations() throws IOException {
+        for (int generation : listGenerations()) {
+            lastGeneration = Math.max(lastGeneration, generation);
+            if (!indexed.contains(generation) && Files.exists(indexPath(generation))) {
+                readIndex(generation);
+                indexed.add(generation);
+            }
+        }
+    }
+
+    /**
+     * Generation numbers present in the directory, in ascending order
+     */
+    private List<Integer> listGenerations() {
+        Set<Integer> numbers = new TreeSet<>();
+        File[] files = directory.toFile().listFiles();
+        if (files != null) {
+            String prefix = filename + ARCHIVE_SUFFIX;
+            for (File file : files) {
+                String name = file.getName();
+                if (name.startsWith(prefix)) {
+                    String number = name.substring(prefix.length());
+                    if (number.endsWith(INDEX_SUFFIX)) {
+                        number = number.substring(0, number.length() - INDEX_SUFFIX.length());
+                    }
+                    try {
+                        numbers.add(Integer.parseInt(number));
+                    } catch (NumberFormatException e) {
+                        // Temp files of an interrupted run
+                    }
+                }
+            }
+        }
+        return new ArrayList<>(numbers);
+    }
+
+    /**
+     * Index format: magic, entry count, then per entry the key, page offset and page position,
+     * followed by a CRC32C of everything before it
+     */
+    private void readIndex(int generation) throws IOException {
+        byte[] bytes = Files.readAllBytes(indexPath(generation));
+        Checksum checksum = Crc32c.create();
+        if (bytes.length < 12
+            || ByteBuffer.wrap(bytes).getInt(bytes.length - 4) != Crc32c.compute(checksum, bytes, 0, bytes.length - 4)) {
+            System.err.println("Archive index " + indexPath(generation).getFileName() + " is damaged; its records are not available");
+            return;
+        }
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes, 0, bytes.length - 4));
+        if (in.readInt() != INDEX_MAGIC) {
+            throw new IOException("Not an archive index: " + indexPath(generation));
+        }
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            String key = in.readUTF();
+            // Later generations replace records archived before
+            locations.remove(key);
+            locations.put(key, new Location(generation, in.readLong(), in.readInt()));
+        }
+    }
+
+    @Override
+    public T get(String key) {
+        Location location;
+        Generation generation;
+        synchronized (this) {
+            location = locations.get(ValidationUtils.formatId(key));
+            if (location == null) {
+                return null;
+            }
+            try {
+                generation = openGeneration(location.generation);
+            } catch (IOException e) {
+                System.err.println("Error opening archive of " + filename + ": " + e.getMessage());
+                return null;
+            }
+        }
+        try {
+            return readRecord(generation, location);
+        } catch (IOException e) {
+            System.err.println("Error reading archived record " + key + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Read the one page holding a record with positional reads, then decode up to the record
+     */
+    private T readRecord(Generation generation, Location location) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(DataFileWriter.PAGE_HEADER_SIZE);
+        readAt(generation.channel, header, location.pageOffset);
+        int storedLength = header.getInt(4);
+        ByteBuffer page = ByteBuffer.allocate(DataFileWriter.PAGE_HEADER_SIZE + storedLength);
+        page.put(header.array());
+        readAt(generation.channel, page, location.pageOffset + DataFileWriter.PAGE_HEADER_SIZE);
+
+        DataFileReader<T> reader = new DataFileReader<>(new ByteArrayInputStream(page.array()), codec,
+                                                        generation.codecVersion, generation.deflated);
+        try {
+            T record = null;
+            for (int i = 0; i <= location.pageIndex; i++) {
+                record = reader.next();
+                if (record == null) {
+                    throw new IOException("Archive page at offset " + location.pageOffset + " is damaged");
+                }
+            }
+            return record;
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static void readAt(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new EOFException("Archive file is truncated");
+            }
+            position += read;
+        }
+    }
+
+    private Generation openGeneration(int number) throws IOException {
+        Generation generation = generations.get(number);
+        if (generation == null) {
+            FileChannel channel = FileChannel.open(archivePath(number), StandardOpenOption.READ);
+            try {
+                DataFileReader<T> header = new DataFileReader<>(
+                    new BufferedInputStream(Channels.newInputStream(channel), 512), codec);
+                generation = new Generation(channel, header.getCodecVersion(), header.isDeflated());
+            } catch (IOException e) {
+                channel.close();
+                throw e;
+            }
+            generations.put(number, generation);
+        }
+        return generation;
+    }
+
+    @Override
+    public synchronized boolean contains(String key) {
+        return locations.containsKey(ValidationUtils.formatId(key));
+    }
+
+    @Override
+    public synchronized List<String> keys() {
+        return new ArrayList<>(locations.keySet());
+    }
+
+    @Override
+    public synchronized int size() {
+        return locations.size();
+    }
+
+    /**
+     * Stream the generation files in order, passing on only the records whose index entry
+     * points to the generation being read; older copies of re-archived records are skipped
+     */
+    @Override
+    public void forEach(Consumer<? super T> consumer) {
+        Map<String, Integer> current = new HashMap<>();
+        synchronized (this) {
+            locations.forEach((key, location) -> current.put(key, location.generation));
+        }
+        for (int number : listGenerations()) {
+            if (!current.containsValue(number)) {
+                continue;
+            }
+            try (DataFileReader<T> reader = new DataFileReader<>(new BufferedInputStream(
+                    Files.newInputStream(archivePath(number)), 64 * 1024), codec)) {
+                T record;
+                while ((record = reader.next()) != null) {
+                    Integer generation = current.get(ValidationUtils.formatId(keyExtractor.apply(record)));
+                    if (generation != null && generation == number) {
+                        consumer.accept(record);
+                    }
+                }
+            } catch (IOException e) {
+                System.err.println("Error reading archive of " + filename + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Write the records as a new generation. The data file is written and forced first,
+     * then the index; until the index is renamed into place the generation does not exist.
+     */
+    @Override
+    public synchronized void append(List<T> records) throws IOException {
+        if (records.isEmpty()) {
+            return;
+        }
+        locks.withLock(filename + ARCHIVE_SUFFIX, () -> {
+            // Another process may have written the next generation
+            readNewGenerations();
+            appendGeneration(records);
+            return null;
+        });
+    }
+
+    private void appendGeneration(List<T> records) throws IOException {
+        int number = lastGeneration + 1;
+        List<String> keys = new ArrayList<>();
+        long[] offsets = new long[records.size()];
+        int[] positions = new int[records.size()];
+
+        writeAtomically(archivePath(number), out -> {
+            DataFileWriter<T> writer = new DataFileWriter<>(out, codec, Deflater.DEFAULT_COMPRESSION);
+            for (int i = 0; i < records.size(); i++) {
+                writer.write(records.get(i));
+                keys.add(ValidationUtils.formatId(keyExtractor.apply(records.get(i))));
+                offsets[i] = writer.getPageOffset();
+                positions[i] = writer.getPageRecordIndex();
+            }
+            writer.finish();
+        });
+
+        ByteArrayOutputStream index = new ByteArrayOutputStream();
+        DataOutputStream fields = new DataOutputStream(index);
+        fields.writeInt(INDEX_MAGIC);
+        fields.writeInt(keys.size());
+        for (int i = 0; i < keys.size(); i++) {
+            fields.writeUTF(keys.get(i));
+            fields.writeLong(offsets[i]);
+            fields.writeInt(positions[i]);
+        }
+        byte[] bytes = index.toByteArray();
+        int crc = Crc32c.compute(Crc32c.create(), bytes, 0, bytes.length);
+        writeAtomically(indexPath(number), out -> {
+            out.write(bytes);
+            new DataOutputStream(out).writeInt(crc);
+        });
+        groupCommit.syncDirectory(directory.toAbsolutePath());
+
+        lastGeneration = number;
+        indexed.add(number);
+        for (int i = 0; i < keys.size(); i++) {
+            locations.remove(keys.get(i));
+            locations.put(keys.get(i), new Location(number, offsets[i], positions[i]));
+        }
+    }
+
+    private interface ContentWriter {
+        void writeTo(OutputStream out) throws IOException;
+    }
+
+    private void writeAtomically(Path target, ContentWriter content) throws IOException {
+        Path temp = target.resolveSibling(target.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            BufferedOutputStream out = new BufferedOutputStream(Channels.newOutputStream(channel), 64 * 1024);
+            content.writeTo(out);
+            out.flush();
+            groupCommit.sync(channel);
+        } catch (IOException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+        try {
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private Path archivePath(int generation) {
+        return directory.resolve(filename + ARCHIVE_SUFFIX + generation);
+    }
+
+    private Path indexPath(int generation) {
+        return directory.resolve(filename + ARCHIVE_SUFFIX + generation + INDEX_SUFFIX);
+    }
+
+    /**
+     * Close the open generation files
+     */
+    public synchronized void close() throws IOException {
+        for (Generation generation : generations.values()) {
+            generation.channel.close();
+        }
+        generations.clear();
+    }
+}
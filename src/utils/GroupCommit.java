@@ -0,0 +1,140 @@
+package utils;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * GroupCommit class for sharing fsync calls between concurrent writers.
+ * The first caller becomes the leader, optionally waits a short window for
+ * others to join, then forces every pending target once and wakes all waiters.
+ * Callers arriving while a batch is being forced join the next batch. A failed sync is
+ * reported to every caller that waited for its target in that batch, and to no later one.
+ */
+class GroupCommit {
+    private final long windowNanos;
+    private final Object lock = new Object();
+    private Batch pending = new Batch(1);
+    private long completedBatch = 0;
+    private boolean leaderActive;
+
+    /**
+     * The targets synced together by one leader. Each waiter holds on to the batch it joined,
+     * so its failures are dropped once the last waiter has seen them.
+     */
+    private static final class Batch {
+        final long number;
+        final Map<Object, SyncAction> actions = new LinkedHashMap<>();
+        Map<Object, IOException> failures = Collections.emptyMap();
+
+        Batch(long number) {
+            this.number = number;
+        }
+    }
+
+    /**
+     * A single durable flush, such as forcing a file channel
+     */
+    interface SyncAction {
+        void sync() throws IOException;
+    }
+
+    GroupCommit(long windowMillis) {
+        this.windowNanos = windowMillis * 1_000_000L;
+    }
+
+    /**
+     * Force a file channel's content and metadata to disk
+     */
+    void sync(FileChannel channel) throws IOException {
+        sync(channel, () -> channel.force(true));
+    }
+
+    /**
+     * Force only a file channel's content, for files overwritten in place whose size does not change
+     */
+    void syncData(FileChannel channel) throws IOException {
+        sync(channel, () -> channel.force(false));
+    }
+
+    /**
+     * Make a rename or file creation in a directory durable.
+     * Some platforms cannot open directories for syncing; that is not treated as an error.
+     */
+    void syncDirectory(Path directory) throws IOException {
+        Path key = directory.toAbsolutePath().normalize();
+        sync(key, () -> {
+            try (FileChannel channel = FileChannel.open(key, StandardOpenOption.READ)) {
+                channel.force(true);
+            } catch (IOException e) {
+                // Directory sync is unsupported on this platform
+            }
+        });
+    }
+
+    /**
+     * Wait until the given target has been synced by a batch that started after this call
+     */
+    void sync(Object key, SyncAction action) throws IOException {
+        Batch batch;
+        synchronized (lock) {
+            batch = pending;
+            batch.actions.putIfAbsent(key, action);
+            while (true) {
+                if (completedBatch >= batch.number) {
+                    IOException failure = batch.failures.get(key);
+                    if (failure != null) {
+                        throw failure;
+                    }
+                    return;
+                }
+                if (!leaderActive) {
+                    leaderActive = true;
+                    break;
+                }
+                try {
+                    lock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while waiting for group commit");
+                }
+            }
+        }
+
+        if (windowNanos > 0) {
+            LockSupport.parkNanos(windowNanos);
+        }
+
+        // Only the leader replaces the pending batch, so it is still the one this caller joined
+        synchronized (lock) {
+            pending = new Batch(batch.number + 1);
+        }
+
+        Map<Object, IOException> batchFailures = new HashMap<>();
+        for (Map.Entry<Object, SyncAction> entry : batch.actions.entrySet()) {
+            try {
+                entry.getValue().sync();
+            } catch (IOException e) {
+                batchFailures.put(entry.getKey(), e);
+            }
+        }
+
+        IOException myFailure;
+        synchronized (lock) {
+            batch.failures = batchFailures;
+            myFailure = batchFailures.get(key);
+            completedBatch = batch.number;
+            leaderActive = false;
+            lock.notifyAll();
+        }
+        if (myFailure != null) {
+            throw myFailure;
+        }
+    }
+}
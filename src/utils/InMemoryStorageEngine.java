@@ -0,0 +1,64 @@
+package utils;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * InMemoryStorageEngine class for tests and benchmarks: records are kept in maps and
+ * nothing is written to disk, so all data is gone when the engine is discarded
+ */
+public class InMemoryStorageEngine implements StorageEngine {
+    private final Map<String, Map<String, Object>> files = new ConcurrentHashMap<>();
+
+    @Override
+    public String getName() {
+        return "in-memory";
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> List<T> load(String filename, Function<T, String> keyExtractor) {
+        Map<String, Object> records = getFile(filename);
+        synchronized (records) {
+            return new ArrayList<>((Collection<T>) records.values());
+        }
+    }
+
+    @Override
+    public <T> boolean saveRecords(String filename, List<String> keys, List<T> records) {
+        Map<String, Object> stored = getFile(filename);
+        synchronized (stored) {
+            for (int i = 0; i < keys.size(); i++) {
+                stored.put(ValidationUtils.formatId(keys.get(i)), records.get(i));
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public <T> boolean saveAll(String filename, List<T> data, Function<T, String> keyExtractor) {
+        Map<String, Object> stored = getFile(filename);
+        synchronized (stored) {
+            stored.clear();
+            for (T record : data) {
+                stored.put(ValidationUtils.formatId(keyExtractor.apply(record)), record);
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public boolean delete(String filename) {
+        files.remove(filename);
+        return true;
+    }
+
+    private Map<String, Object> getFile(String filename) {
+        return files.computeIfAbsent(filename, name -> new LinkedHashMap<>());
+    }
+}
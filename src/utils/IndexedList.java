@@ -0,0 +1,239 @@
+package utils;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.ToLongFunction;
+
+/**
+ * IndexedList class for a service's in-memory entities with a hash index on their ID.
+ * Every change to the list, including those DirtyTracker makes when following other
+ * processes, goes through set, add and remove, which keep the index in step; a lookup
+ * by ID is then one hash probe on the normalized key (ValidationUtils.formatId) instead
+ * of a scan. IDs are expected to be unique; with duplicates, getByKey returns one of them.
+ * The position of an ID is kept as well while elements are only appended or replaced;
+ * after a removal or an insertion shifts them, it is worked out again on the next lookup.
+ * Secondary, ordered and interval indexes registered with addIndex, addOrderedIndex and
+ * addIntervalIndex are kept in step the same way; an element changed in place, rather than
+ * replaced with set, is refreshed in them with reindex.
+ */
+public class IndexedList<T> extends AbstractList<T> implements RandomAccess {
+    private final List<T> elements;
+    private final Function<T, String> keyExtractor;
+    private final Map<String, T> byKey;
+    // Extra copies of IDs that are in the list more than once
+    private final Map<String, Integer> duplicates = new HashMap<>();
+    private final Map<String, Integer> positions = new HashMap<>();
+    private boolean positionsCurrent = true;
+    private final List<ElementIndex<T>> indexes = new ArrayList<>();
+
+    public IndexedList(Collection<? extends T> initial, Function<T, String> keyExtractor) {
+        this.elements = new ArrayList<>(initial.size());
+        this.keyExtractor = keyExtractor;
+        this.byKey = new HashMap<>(Math.max(16, initial.size() * 4 / 3 + 1));
+        for (T element : initial) {
+            add(element);
+        }
+    }
+
+    /**
+     * Get the entity with this ID, ignoring case and surrounding spaces, or null
+     */
+    public T getByKey(String key) {
+        return byKey.get(ValidationUtils.formatId(key));
+    }
+
+    public boolean containsKey(String key) {
+        return byKey.containsKey(ValidationUtils.formatId(key));
+    }
+
+    /**
+     * Get the position of the first element with this ID, ignoring case and surrounding
+     * spaces, or -1
+     */
+    public int indexOfKey(String key) {
+        if (!positionsCurrent) {
+            positions.clear();
+            for (int i = elements.size() - 1; i >= 0; i--) {
+                positions.put(keyOf(elements.get(i)), i);
+            }
+            positionsCurrent = true;
+        }
+        Integer position = positions.get(ValidationUtils.formatId(key));
+        return position != null ? position : -1;
+    }
+
+    /**
+     * Get the ID of every element, in list order
+     */
+    public List<String> keys() {
+        List<String> keys = new ArrayList<>(elements.size());
+        for (T element : elements) {
+            keys.add(keyExtractor.apply(element));
+        }
+        return keys;
+    }
+
+    /**
+     * Register a secondary index on another key, such as a foreign key; it is filled with
+     * the current elements and kept up to date with every later change
+     */
+    public SecondaryIndex<T> addIndex(Function<T, String> secondaryKeyExtractor) {
+        return register(new SecondaryIndex<>(secondaryKeyExtractor));
+    }
+
+    /**
+     * Register an ordered index on a numeric key, such as a time in epoch seconds; it is
+     * filled with the current elements and kept up to date with every later change
+     */
+    public OrderedIndex<T> addOrderedIndex(ToLongFunction<T> orderKeyExtractor) {
+        return register(new OrderedIndex<>(orderKeyExtractor));
+    }
+
+    /**
+     * Register an interval index on [start, end) within a group, such as a doctor's booked
+     * slots, holding only the elements that pass the filter; it is filled with the current
+     * elements and kept up to date with every later change
+     */
+    public IntervalIndex<T> addIntervalIndex(Function<T, String> groupExtractor, ToLongFunction<T> startExtractor,
+                                             ToLongFunction<T> endExtractor, Predicate<T> filter) {
+        return register(new IntervalIndex<>(groupExtractor, startExtractor, endExtractor, filter));
+    }
+
+    /**
+     * Refresh the registered indexes for an element of the list that was changed in place,
+     * such as a status change that moves it in or out of a filtered index. Elements that are
+     * not in the list are ignored.
+     */
+    public void reindex(T element) {
+        String key = keyOf(element);
+        if (byKey.get(key) != element && !(duplicates.containsKey(key) && containsInstance(element))) {
+            return;
+        }
+        for (ElementIndex<T> index : indexes) {
+            index.refresh(element);
+        }
+    }
+
+    private <I extends ElementIndex<T>> I register(I index) {
+        for (T element : elements) {
+            index.add(element);
+        }
+        indexes.add(index);
+        return index;
+    }
+
+    @Override
+    public T get(int index) {
+        return elements.get(index);
+    }
+
+    @Override
+    public int size() {
+        return elements.size();
+    }
+
+    @Override
+    public T set(int index, T element) {
+        T previous = elements.set(index, element);
+        unindex(previous);
+        index(element);
+        if (!keyOf(previous).equals(keyOf(element))) {
+            positionsCurrent = false;
+        }
+        return previous;
+    }
+
+    @Override
+    public void add(int index, T element) {
+        elements.add(index, element);
+        index(element);
+        if (index == elements.size() - 1) {
+            positions.putIfAbsent(keyOf(element), index);
+        } else {
+            positionsCurrent = false;
+        }
+    }
+
+    @Override
+    public T remove(int index) {
+        T removed = elements.remove(index);
+        unindex(removed);
+        if (index == elements.size()) {
+            positions.remove(keyOf(removed), index);
+        } else {
+            positionsCurrent = false;
+        }
+        return removed;
+    }
+
+    @Override
+    public void clear() {
+        elements.clear();
+        byKey.clear();
+        duplicates.clear();
+        positions.clear();
+        positionsCurrent = true;
+        for (ElementIndex<T> index : indexes) {
+            index.clear();
+        }
+    }
+
+    private void index(T element) {
+        for (ElementIndex<T> index : indexes) {
+            index.add(element);
+        }
+        String key = keyOf(element);
+        if (byKey.putIfAbsent(key, element) != null) {
+            duplicates.merge(key, 1, Integer::sum);
+        }
+    }
+
+    /**
+     * Drop an element from the index; if another element has the same ID, it takes its place
+     */
+    private void unindex(T element) {
+        for (ElementIndex<T> index : indexes) {
+            index.remove(element);
+        }
+        String key = keyOf(element);
+        Integer extra = duplicates.get(key);
+        if (extra == null) {
+            byKey.remove(key);
+            return;
+        }
+        if (extra == 1) {
+            duplicates.remove(key);
+        } else {
+            duplicates.put(key, extra - 1);
+        }
+        if (byKey.get(key) != element) {
+            return;
+        }
+        for (T other : elements) {
+            if (keyOf(other).equals(key)) {
+                byKey.put(key, other);
+                return;
+            }
+        }
+    }
+
+    private boolean containsInstance(T element) {
+        for (T other : elements) {
+            if (other == element) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private String keyOf(T element) {
+        return ValidationUtils.formatId(keyExtractor.apply(element));
+    }
+}
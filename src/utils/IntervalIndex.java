@@ -0,0 +1,207 @@
+package utils;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.ToLongFunction;
+
+/**
+ * IntervalIndex class for finding the values whose [start, end) interval overlaps a given one
+ * within a group, such as the booked slots of one doctor. Each normalized group key
+ * (ValidationUtils.formatId) has its own sorted map from start to the values starting there,
+ * and the longest interval ever added bounds how far before a query's start an overlapping
+ * value can begin. An overlap query is then one sorted-map range of (start - longest, end),
+ * which costs a logarithmic search plus the few intervals near the query, however many
+ * values the group has. Only values that pass the filter are indexed; a value whose filter
+ * result changes in place must be refreshed with IndexedList.reindex. Values without a start
+ * or a group are not indexed.
+ *
+ * The index also keeps a day calendar per group: a bitset of the day's 5-minute slots, with a
+ * bit set for every slot an interval covers any part of. A day's bitset is built from the
+ * index the first time it is asked for and kept only while the day has bookings, so days
+ * that are merely looked at, or whose last interval goes, take no memory. Adding a value sets
+ * its bits; removing one drops the days it touched, since another interval may cover the same
+ * slots, and they are rebuilt on the next request.
+ */
+public class IntervalIndex<T> implements ElementIndex<T> {
+    public static final long NO_START = Long.MIN_VALUE;
+    public static final int SECONDS_PER_SLOT = 5 * 60;
+    public static final int SLOTS_PER_DAY = 24 * 60 * 60 / SECONDS_PER_SLOT;
+    private static final int SECONDS_PER_DAY = 24 * 60 * 60;
+
+    private final Function<T, String> groupExtractor;
+    private final ToLongFunction<T> startExtractor;
+    private final ToLongFunction<T> endExtractor;
+    private final Predicate<T> filter;
+    private final Map<String, NavigableMap<Long, List<T>>> groups = new HashMap<>();
+    private final Map<T, Filing> filedUnder = new HashMap<>();
+    // Day calendars by group and then by day since the epoch
+    private final Map<String, Map<Long, long[]>> calendars = new HashMap<>();
+    private long longest;
+
+    /**
+     * Where a value was filed, so it can be removed after it changed in place
+     */
+    private static final class Filing {
+        final String group;
+        final long start;
+        final long end;
+
+        Filing(String group, long start, long end) {
+            this.group = group;
+            this.start = start;
+            this.end = end;
+        }
+    }
+
+    public IntervalIndex(Function<T, String> groupExtractor, ToLongFunction<T> startExtractor,
+                         ToLongFunction<T> endExtractor, Predicate<T> filter) {
+        this.groupExtractor = groupExtractor;
+        this.startExtractor = startExtractor;
+        this.endExtractor = endExtractor;
+        this.filter = filter;
+    }
+
+    /**
+     * Get the values of a group whose interval overlaps [start, end), in start order
+     */
+    public List<T> findOverlapping(String group, long start, long end) {
+        List<T> values = new ArrayList<>();
+        NavigableMap<Long, List<T>> intervals = groups.get(ValidationUtils.formatId(group));
+        if (intervals == null || start >= end) {
+            return values;
+        }
+        // Nothing that starts at or before start - longest can reach past start
+        for (List<T> sameStart : intervals.subMap(start - longest, false, end, false).values()) {
+            for (T value : sameStart) {
+                if (endExtractor.applyAsLong(value) > start) {
+                    values.add(value);
+                }
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Get a group's busy slots on one day, counted in days since the epoch, as a bitset of
+     * SLOTS_PER_DAY slots from midnight; slot i is bit i % 64 of word i / 64. The returned
+     * array is a copy.
+     */
+    public long[] getDayCalendar(String group, long day) {
+        String normalized = ValidationUtils.formatId(group);
+        Map<Long, long[]> days = calendars.get(normalized);
+        long[] slots = days != null ? days.get(day) : null;
+        if (slots == null) {
+            slots = new long[(SLOTS_PER_DAY + 63) / 64];
+            long dayStart = day * SECONDS_PER_DAY;
+            List<T> overlapping = findOverlapping(normalized, dayStart, dayStart + SECONDS_PER_DAY);
+            for (T value : overlapping) {
+                markSlots(slots, dayStart, startExtractor.applyAsLong(value), endExtractor.applyAsLong(value));
+            }
+            if (overlapping.isEmpty()) {
+                // An empty day is cheap to rebuild, and caching it would keep every day ever viewed
+                return slots;
+            }
+            calendars.computeIfAbsent(normalized, k -> new HashMap<>()).put(day, slots);
+        }
+        return slots.clone();
+    }
+
+    /**
+     * Set the bits of the slots of the day starting at dayStart that [start, end) covers
+     */
+    private static void markSlots(long[] slots, long dayStart, long start, long end) {
+        long from = Math.max(start, dayStart) - dayStart;
+        long to = Math.min(end, dayStart + SECONDS_PER_DAY) - dayStart;
+        if (from >= to) {
+            return;
+        }
+        int last = (int) ((to - 1) / SECONDS_PER_SLOT);
+        for (int slot = (int) (from / SECONDS_PER_SLOT); slot <= last; slot++) {
+            slots[slot >>> 6] |= 1L << slot;
+        }
+    }
+
+    public int size() {
+        return filedUnder.size();
+    }
+
+    @Override
+    public void add(T value) {
+        long start = startExtractor.applyAsLong(value);
+        String group = ValidationUtils.formatId(groupExtractor.apply(value));
+        if (start == NO_START || group.isEmpty() || !filter.test(value)) {
+            return;
+        }
+        groups.computeIfAbsent(group, k -> new TreeMap<>())
+              .computeIfAbsent(start, k -> new ArrayList<>(1)).add(value);
+        long end = endExtractor.applyAsLong(value);
+        filedUnder.put(value, new Filing(group, start, end));
+        longest = Math.max(longest, end - start);
+
+        Map<Long, long[]> days = calendars.get(group);
+        if (days != null && end > start) {
+            for (long day = Math.floorDiv(start, SECONDS_PER_DAY); day <= Math.floorDiv(end - 1, SECONDS_PER_DAY); day++) {
+                long[] slots = days.get(day);
+                if (slots != null) {
+                    markSlots(slots, day * SECONDS_PER_DAY, start, end);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void remove(T value) {
+        Filing filing = filedUnder.remove(value);
+        if (filing == null) {
+            // Never indexed, or a second copy of an equal value filed under its own interval
+            filing = new Filing(ValidationUtils.formatId(groupExtractor.apply(value)),
+                                startExtractor.applyAsLong(value), endExtractor.applyAsLong(value));
+        }
+        NavigableMap<Long, List<T>> intervals = groups.get(filing.group);
+        if (intervals == null) {
+            return;
+        }
+        List<T> sameStart = intervals.get(filing.start);
+        if (sameStart != null && sameStart.remove(value)) {
+            if (sameStart.isEmpty()) {
+                intervals.remove(filing.start);
+                if (intervals.isEmpty()) {
+                    groups.remove(filing.group);
+                }
+            }
+            Map<Long, long[]> days = calendars.get(filing.group);
+            if (days != null && filing.end > filing.start) {
+                for (long day = Math.floorDiv(filing.start, SECONDS_PER_DAY);
+                     day <= Math.floorDiv(filing.end - 1, SECONDS_PER_DAY); day++) {
+                    days.remove(day);
+                }
+                if (days.isEmpty()) {
+                    calendars.remove(filing.group);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void refresh(T value) {
+        Filing filing = filedUnder.get(value);
+        if (filing == null || !filter.test(value) || filing.start != startExtractor.applyAsLong(value)
+                || filing.end != endExtractor.applyAsLong(value) || !filing.group.equals(ValidationUtils.formatId(groupExtractor.apply(value)))) {
+            ElementIndex.super.refresh(value);
+        }
+    }
+
+    @Override
+    public void clear() {
+        groups.clear();
+        filedUnder.clear();
+        calendars.clear();
+        longest = 0;
+    }
+}
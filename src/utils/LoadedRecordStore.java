@@ -0,0 +1,113 @@
+package utils;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * LoadedRecordStore class for a record store held fully in memory on top of a StorageEngine.
+ * Records are loaded once; every change is passed to the engine's saveRecords.
+ */
+class LoadedRecordStore<T> implements RecordStore<T> {
+    private final StorageEngine engine;
+    private final String filename;
+    private final Function<T, String> keyExtractor;
+    private final Function<T, String> groupExtractor;
+    private final Map<String, T> records = new LinkedHashMap<>();
+    private final Map<String, Set<String>> groups = new HashMap<>();
+
+    LoadedRecordStore(StorageEngine engine, String filename, Function<T, String> keyExtractor,
+                      Function<T, String> groupExtractor) {
+        this.engine = engine;
+        this.filename = filename;
+        this.keyExtractor = keyExtractor;
+        this.groupExtractor = groupExtractor;
+        for (T record : engine.load(filename, keyExtractor)) {
+            index(record);
+        }
+    }
+
+    private void index(T record) {
+        String key = ValidationUtils.formatId(keyExtractor.apply(record));
+        T previous = records.put(key, record);
+        if (groupExtractor != null) {
+            if (previous != null) {
+                Set<String> members = groups.get(ValidationUtils.formatId(groupExtractor.apply(previous)));
+                if (members != null) {
+                    members.remove(key);
+                }
+            }
+            groups.computeIfAbsent(ValidationUtils.formatId(groupExtractor.apply(record)),
+                                   g -> new LinkedHashSet<>()).add(key);
+        }
+    }
+
+    @Override
+    public synchronized T get(String key) {
+        return records.get(ValidationUtils.formatId(key));
+    }
+
+    @Override
+    public synchronized boolean contains(String key) {
+        return records.containsKey(ValidationUtils.formatId(key));
+    }
+
+    @Override
+    public synchronized List<T> getByGroup(String groupKey) {
+        List<T> members = new ArrayList<>();
+        Set<String> keys = groups.get(ValidationUtils.formatId(groupKey));
+        if (keys != null) {
+            for (String key : keys) {
+                members.add(records.get(key));
+            }
+        }
+        return members;
+    }
+
+    @Override
+    public void forEach(Consumer<? super T> consumer) {
+        List<T> snapshot;
+        synchronized (this) {
+            snapshot = new ArrayList<>(records.values());
+        }
+        snapshot.forEach(consumer);
+    }
+
+    @Override
+    public synchronized List<String> keys() {
+        return new ArrayList<>(records.keySet());
+    }
+
+    @Override
+    public synchronized int size() {
+        return records.size();
+    }
+
+    @Override
+    public void put(T record) throws IOException {
+        List<T> single = new ArrayList<>();
+        single.add(record);
+        putAll(single);
+    }
+
+    @Override
+    public synchronized void putAll(List<T> changed) throws IOException {
+        List<String> keys = new ArrayList<>();
+        for (T record : changed) {
+            keys.add(keyExtractor.apply(record));
+        }
+        if (!engine.saveRecords(filename, keys, changed)) {
+            throw new IOException("Could not save records to " + filename);
+        }
+        for (T record : changed) {
+            index(record);
+        }
+    }
+}
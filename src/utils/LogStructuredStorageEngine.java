@@ -0,0 +1,70 @@
+package utils;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * LogStructuredStorageEngine class for the default backend: base files plus durable delta
+ * logs that the background compactor checkpoints, and memory-mapped record stores
+ */
+public class LogStructuredStorageEngine implements StorageEngine {
+    private final DatabaseManager dbManager;
+
+    public LogStructuredStorageEngine(DatabaseManager dbManager) {
+        this.dbManager = dbManager;
+    }
+
+    @Override
+    public String getName() {
+        return "log-structured";
+    }
+
+    @Override
+    public <T> List<T> load(String filename, Function<T, String> keyExtractor) {
+        return dbManager.loadData(filename, keyExtractor);
+    }
+
+    @Override
+    public <T> boolean saveRecords(String filename, List<String> keys, List<T> records) {
+        return dbManager.appendRecords(filename, keys, records);
+    }
+
+    /**
+     * Changes to several files go through the transaction journal and are atomic
+     */
+    @Override
+    public boolean commit(UnitOfWork work) {
+        return dbManager.commit(work);
+    }
+
+    @Override
+    public <T> boolean saveAll(String filename, List<T> data, Function<T, String> keyExtractor) {
+        return dbManager.saveData(data, filename);
+    }
+
+    @Override
+    public boolean delete(String filename) {
+        return dbManager.deleteFile(filename) || !dbManager.fileExists(filename);
+    }
+
+    @Override
+    public <T> RecordStore<T> openRecordStore(String filename, Function<T, String> keyExtractor,
+                                              Function<T, String> groupExtractor) throws IOException {
+        return dbManager.openMappedStore(filename, keyExtractor, groupExtractor);
+    }
+
+    @Override
+    public <T> RecordArchive<T> openArchive(String filename, Function<T, String> keyExtractor) throws IOException {
+        return dbManager.openArchive(filename, keyExtractor);
+    }
+
+    @Override
+    public <T> void addChangeListener(String filename, ExternalChangeListener<T> listener) {
+        dbManager.addChangeListener(filename, listener);
+    }
+
+    public DatabaseManager getDatabaseManager() {
+        return dbManager;
+    }
+}
@@ -0,0 +1,855 @@
+package utils;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * MappedRecordStore class for large record files that are read on demand.
+ * Records live in an append-only segment file that is memory-mapped for reading, in
+ * windows of 1 GB so that a segment can grow past the 2 GB limit of one mapping;
+ * a separate index file holds one fixed-size slot per record key with the record's
+ * offset, length and group key (for example the patient ID). Only the index is read
+ * when the store is opened; a record is decoded when it is requested.
+ *
+ * An update appends the new version to the segment and then rewrites the key's slot,
+ * so a crash in between leaves the old version in place. Space held by old versions
+ * is reclaimed by compacting into a new segment generation, when the store is opened
+ * or from the background compactor.
+ *
+ * Several processes may share a store. Opening, every change and compaction hold the
+ * store's lock in FileLocks, and a change first catches up with the index on disk: it
+ * switches to a generation another process compacted into, and reads the slots other
+ * processes added, so appends go to the real end of the segment and new keys get unused
+ * slots. Reads do not take the lock; a record another process replaced is read in its
+ * old version until this process next changes the store or reopens it. Records other
+ * processes add are also read by refresh, which the data watcher calls when the index changes.
+ */
+public class MappedRecordStore<T> implements RecordStore<T>, Closeable {
+    static final int SEGMENT_MAGIC = 0x484D5347; // "HMSG"
+    static final int INDEX_MAGIC = 0x484D5349;   // "HMSI"
+    static final int FORMAT_VERSION = 1;
+    static final int SLOT_SIZE = 64;
+    static final int MAX_KEY_BYTES = 23;
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final String INDEX_SUFFIX = ".idx";
+    private static final long MIN_COMPACT_BYTES = 1024 * 1024;
+    private static final long WINDOW_BYTES = 1L << 30;
+
+    private final Path directory;
+    private final String name;
+    private final RecordCodec<T> codec;
+    private final Function<T, String> keyExtractor;
+    private final Function<T, String> groupExtractor;
+    private final GroupCommit groupCommit;
+    private final FileLocks locks;
+
+    private final Map<String, Integer> slots = new HashMap<>();
+    private final Map<String, List<Integer>> groups = new HashMap<>();
+    private final List<String> slotKeys = new ArrayList<>();
+    private long[] offsets = new long[64];
+    private int[] lengths = new int[64];
+    private String[] slotGroups = new String[64];
+
+    private long generation;
+    private int segmentCodecVersion;
+    private FileChannel segmentChannel;
+    private FileChannel indexChannel;
+    private MappedSegment mapped;
+    private long segmentEnd;
+    private long liveBytes;
+    private boolean compacting;
+
+    /**
+     * A segment mapped in windows of WINDOW_BYTES; a record may span two windows
+     */
+    private static final class MappedSegment {
+        private final List<MappedByteBuffer> windows = new ArrayList<>();
+        private long size;
+
+        /**
+         * Map the bytes appended since the last call; a partly filled last window is mapped again
+         */
+        void extend(FileChannel channel, long newSize) throws IOException {
+            int first = windows.size();
+            if (first > 0 && windows.get(first - 1).capacity() < WINDOW_BYTES) {
+                windows.remove(--first);
+            }
+            for (long start = first * WINDOW_BYTES; start < newSize; start += WINDOW_BYTES) {
+                windows.add(channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(WINDOW_BYTES, newSize - start)));
+            }
+            size = newSize;
+        }
+
+        byte[] read(long offset, int length) {
+            byte[] bytes = new byte[length];
+            int done = 0;
+            while (done < length) {
+                long position = offset + done;
+                ByteBuffer view = windows.get((int) (position / WINDOW_BYTES)).duplicate();
+                view.position((int) (position % WINDOW_BYTES));
+                int count = Math.min(length - done, view.remaining());
+                view.get(bytes, done, count);
+                done += count;
+            }
+            return bytes;
+        }
+    }
+
+    MappedRecordStore(Path directory, String name, RecordCodec<T> codec, Function<T, String> keyExtractor,
+                      Function<T, String> groupExtractor, GroupCommit groupCommit, FileLocks locks) {
+        this.directory = directory;
+        this.name = name;
+        this.codec = codec;
+        this.keyExtractor = keyExtractor;
+        this.groupExtractor = groupExtractor;
+        this.groupCommit = groupCommit;
+        this.locks = locks;
+    }
+
+    /**
+     * Check whether a store with the given name exists in a directory
+     */
+    static boolean exists(Path directory, String name) {
+        return Files.exists(directory.resolve(name + INDEX_SUFFIX)) || !listSegments(directory, name).isEmpty();
+    }
+
+    /**
+     * Open the index and map the current segment, creating an empty store if none exists
+     */
+    void open() throws IOException {
+        withLock(() -> {
+            synchronized (this) {
+                Path indexPath = directory.resolve(name + INDEX_SUFFIX);
+                if (Files.exists(indexPath)) {
+                    try {
+                        readIndex(indexPath);
+                    } catch (IOException e) {
+                        System.err.println("Rebuilding record index for " + name + ": " + e.getMessage());
+                        close();
+                        clearSlots();
+                        rebuildIndex();
+                    }
+                } else {
+                    rebuildIndex();
+                }
+
+                // Remove segments left behind by an interrupted compaction; a process still
+                // reading an older generation switches to this one before its next change
+                for (long other : listSegments(directory, name)) {
+                    if (other != generation) {
+                        Files.deleteIfExists(segmentPath(other));
+                    }
+                }
+            }
+
+            if (segmentCodecVersion < codec.getVersion() || needsCompaction()) {
+                compact();
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Run an action while holding the store's lock, which keeps other threads and processes
+     * from changing it. Take it before the store's monitor.
+     */
+    <R> R withLock(FileLocks.LockedAction<R> action) throws IOException {
+        return locks.withLock(name + INDEX_SUFFIX, action);
+    }
+
+    /**
+     * Bring this process's view up to date with the index on disk before a change. If another
+     * process compacted into a new generation, the store is reopened; otherwise the slots other
+     * processes added are read, or with full set every slot, which also picks up records they
+     * replaced. Call with the store's lock and monitor held.
+     */
+    private void catchUp(boolean full) throws IOException {
+        Path indexPath = directory.resolve(name + INDEX_SUFFIX);
+        try (FileChannel channel = FileChannel.open(indexPath, StandardOpenOption.READ)) {
+            ByteBuffer header = readFully(channel, 0, 4 + 1 + 8);
+            if (header.getInt(0) != INDEX_MAGIC) {
+                throw new IOException("Not a record index: " + indexPath.getFileName());
+            }
+            if (header.getLong(5) != generation) {
+                close();
+                clearSlots();
+                readIndex(indexPath);
+                return;
+            }
+            loadSlots(channel, full ? 0 : slotKeys.size(), (int) (channel.size() / SLOT_SIZE) - 1);
+        }
+        // Records appended by a process that died before writing their slots are skipped
+        segmentEnd = Math.max(segmentEnd, segmentChannel.size());
+    }
+
+    /**
+     * Catch up with the index on disk outside of a change, reading only the slots other
+     * processes added. Returns the keys of those slots, or null if another process compacted
+     * into a new generation and the store was reopened.
+     */
+    List<String> refresh() throws IOException {
+        return withLock(() -> {
+            synchronized (this) {
+                long previousGeneration = generation;
+                int previousCount = slotKeys.size();
+                catchUp(false);
+                if (generation != previousGeneration) {
+                    return null;
+                }
+                return new ArrayList<>(slotKeys.subList(previousCount, slotKeys.size()));
+            }
+        });
+    }
+
+    /**
+     * Name of the index file, which changes whenever a record is stored
+     */
+    String getIndexFileName() {
+        return name + INDEX_SUFFIX;
+    }
+
+    private static ByteBuffer readFully(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException("Unexpected end of record index");
+            }
+        }
+        return buffer;
+    }
+
+    private void readIndex(Path indexPath) throws IOException {
+        try (FileChannel channel = FileChannel.open(indexPath, StandardOpenOption.READ)) {
+            if (channel.size() < SLOT_SIZE) {
+                throw new IOException("Not a record index: " + indexPath.getFileName());
+            }
+            ByteBuffer header = readFully(channel, 0, 4 + 1 + 8);
+            if (header.getInt(0) != INDEX_MAGIC) {
+                throw new IOException("Not a record index: " + indexPath.getFileName());
+            }
+            int formatVersion = header.get(4);
+            if (formatVersion != FORMAT_VERSION) {
+                throw new IOException("Unsupported record index version " + formatVersion);
+            }
+            generation = header.getLong(5);
+            openSegment(false);
+            loadSlots(channel, 0, (int) (channel.size() / SLOT_SIZE) - 1);
+        }
+        indexChannel = FileChannel.open(indexPath, StandardOpenOption.WRITE);
+        // Anything past the last indexed record was never acknowledged
+        segmentChannel.truncate(segmentEnd);
+    }
+
+    /**
+     * Read the index slots from one slot up to another; slots this process already holds are
+     * updated in place
+     */
+    private void loadSlots(FileChannel channel, int from, int to) throws IOException {
+        if (from >= to) {
+            return;
+        }
+        long segmentSize = segmentChannel.size();
+        ByteBuffer index = readFully(channel, (long) (from + 1) * SLOT_SIZE, (to - from) * SLOT_SIZE);
+        byte[] entry = new byte[SLOT_SIZE];
+        for (int slot = from; slot < to; slot++) {
+            int position = (slot - from) * SLOT_SIZE;
+            index.position(position);
+            index.get(entry);
+            String key = readKey(entry, 0);
+            String group = readKey(entry, 24);
+            long offset = index.getLong(position + 48);
+            int length = index.getInt(position + 56);
+            if (key == null || group == null || offset <= 0 || offset + length > segmentSize) {
+                // A slot written for a record whose append never completed
+                throw new IOException("Record index does not match segment for " + name);
+            }
+            if (slot < slotKeys.size()) {
+                updateSlot(slot, group, offset, length);
+            } else {
+                addSlot(key, group, offset, length);
+            }
+        }
+    }
+
+    /**
+     * Recreate the index by scanning the newest segment, keeping the last version of each key
+     */
+    private void rebuildIndex() throws IOException {
+        List<Long> segments = listSegments(directory, name);
+        generation = segments.isEmpty() ? 1 : segments.get(segments.size() - 1);
+        openSegment(segments.isEmpty());
+
+        Path indexPath = directory.resolve(name + INDEX_SUFFIX);
+        Path temp = directory.resolve(name + INDEX_SUFFIX + ".tmp");
+        indexChannel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                                        StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ);
+        writeIndexHeader(indexChannel, generation);
+
+        long position = segmentEnd;
+        long size = segmentChannel.size();
+        ByteBuffer lengthBuffer = ByteBuffer.allocate(4);
+        while (position + 4 <= size) {
+            lengthBuffer.clear();
+            segmentChannel.read(lengthBuffer, position);
+            int length = lengthBuffer.getInt(0);
+            if (length < 0 || position + 4 + length > size) {
+                break;
+            }
+            T record = decodeAt(position + 4, length);
+            writeSlot(keyExtractor.apply(record), groupKey(record), position + 4, length);
+            position += 4 + length;
+        }
+        segmentChannel.truncate(position);
+        segmentEnd = position;
+
+        groupCommit.sync(segmentChannel);
+        groupCommit.sync(indexChannel);
+        indexChannel.close();
+        moveAtomically(temp, indexPath);
+        indexChannel = FileChannel.open(indexPath, StandardOpenOption.WRITE);
+    }
+
+    private void openSegment(boolean create) throws IOException {
+        Path path = segmentPath(generation);
+        if (create) {
+            segmentChannel = createSegment(path);
+        } else {
+            segmentChannel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        }
+
+        DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)));
+        try {
+            if (in.readInt() != SEGMENT_MAGIC) {
+                throw new IOException("Not a record segment: " + path.getFileName());
+            }
+            int formatVersion = in.readUnsignedByte();
+            if (formatVersion != FORMAT_VERSION) {
+                throw new IOException("Unsupported record segment version " + formatVersion);
+            }
+            String codecName = in.readUTF();
+            if (!codecName.equals(codec.getName())) {
+                throw new IOException("Segment holds " + codecName + " records, expected " + codec.getName());
+            }
+            segmentCodecVersion = in.readInt();
+            if (segmentCodecVersion > codec.getVersion()) {
+                throw new IOException("Segment was written by a newer " + codecName + " codec");
+            }
+        } finally {
+            in.close();
+        }
+        segmentEnd = segmentHeaderLength();
+        mapped = null;
+    }
+
+    /**
+     * Create a segment file holding only the header, positioned for appending
+     */
+    private FileChannel createSegment(Path path) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW,
+                                               StandardOpenOption.READ, StandardOpenOption.WRITE);
+        writeSegmentHeader(channel);
+        groupCommit.syncDirectory(directory);
+        return channel;
+    }
+
+    private long segmentHeaderLength() {
+        return 4 + 1 + 2 + codec.getName().getBytes(StandardCharsets.UTF_8).length + 4;
+    }
+
+    private void writeSegmentHeader(FileChannel channel) throws IOException {
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(header);
+        out.writeInt(SEGMENT_MAGIC);
+        out.writeByte(FORMAT_VERSION);
+        out.writeUTF(codec.getName());
+        out.writeInt(codec.getVersion());
+        channel.write(ByteBuffer.wrap(header.toByteArray()), 0);
+    }
+
+    private void writeIndexHeader(FileChannel channel, long indexGeneration) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(SLOT_SIZE);
+        header.putInt(INDEX_MAGIC).put((byte) FORMAT_VERSION).putLong(indexGeneration).rewind();
+        channel.write(header, 0);
+    }
+
+    /**
+     * Get the record stored under a key, decoding only that record
+     */
+    public synchronized T get(String key) {
+        Integer slot = slots.get(ValidationUtils.formatId(key));
+        return slot != null ? read(slot) : null;
+    }
+
+    /**
+     * Check whether a record is stored under a key
+     */
+    public synchronized boolean contains(String key) {
+        return slots.containsKey(ValidationUtils.formatId(key));
+    }
+
+    /**
+     * Get every record whose group key matches, decoding only those records
+     */
+    public synchronized List<T> getByGroup(String groupKey) {
+        List<Integer> members = groups.get(ValidationUtils.formatId(groupKey));
+        List<T> records = new ArrayList<>();
+        if (members != null) {
+            for (int slot : members) {
+                T record = read(slot);
+                if (record != null) {
+                    records.add(record);
+                }
+            }
+        }
+        return records;
+    }
+
+    /**
+     * Decode every record in key insertion order and pass it to the consumer, one at a time
+     */
+    public void forEach(Consumer<? super T> consumer) {
+        int count;
+        synchronized (this) {
+            count = slotKeys.size();
+        }
+        for (int slot = 0; slot < count; slot++) {
+            T record;
+            synchronized (this) {
+                record = read(slot);
+            }
+            if (record != null) {
+                consumer.accept(record);
+            }
+        }
+    }
+
+    /**
+     * Get all record keys in insertion order
+     */
+    public synchronized List<String> keys() {
+        return new ArrayList<>(slotKeys);
+    }
+
+    public synchronized int size() {
+        return slotKeys.size();
+    }
+
+    /**
+     * Insert or replace a record and wait until the change is durable
+     */
+    public void put(T record) throws IOException {
+        putAll(Collections.singletonList(record));
+    }
+
+    /**
+     * Insert or replace several records with a single pair of syncs
+     */
+    public void putAll(List<T> records) throws IOException {
+        FileChannel index = withLock(() -> {
+            putAllLocked(records);
+            synchronized (this) {
+                return indexChannel;
+            }
+        });
+        groupCommit.sync(index);
+    }
+
+    private synchronized void putAllLocked(List<T> records) throws IOException {
+        catchUp(false);
+        long[] positions = new long[records.size()];
+        int[] recordLengths = new int[records.size()];
+        RecordWriter writer = new RecordWriter();
+        for (int i = 0; i < records.size(); i++) {
+            T record = records.get(i);
+            checkKey(keyExtractor.apply(record));
+            checkKey(groupKey(record));
+            writer.reset();
+            codec.encode(record, writer);
+            ByteBuffer frame = ByteBuffer.allocate(4 + writer.size());
+            frame.putInt(writer.size()).put(writer.buffer(), 0, writer.size()).flip();
+            long position = segmentEnd;
+            while (frame.hasRemaining()) {
+                position += segmentChannel.write(frame, position);
+            }
+            positions[i] = segmentEnd + 4;
+            recordLengths[i] = writer.size();
+            segmentEnd = position;
+        }
+        // The records must be durable before any slot points at them
+        groupCommit.sync(segmentChannel);
+        for (int i = 0; i < records.size(); i++) {
+            T record = records.get(i);
+            writeSlot(keyExtractor.apply(record), groupKey(record), positions[i], recordLengths[i]);
+        }
+    }
+
+    private void checkKey(String key) throws IOException {
+        if (key != null && ValidationUtils.formatId(key).getBytes(StandardCharsets.UTF_8).length > MAX_KEY_BYTES) {
+            throw new IOException("Key too long for record index: " + key);
+        }
+    }
+
+    private String groupKey(T record) {
+        return groupExtractor != null ? groupExtractor.apply(record) : null;
+    }
+
+    private void writeSlot(String key, String group, long offset, int length) throws IOException {
+        String normalizedKey = ValidationUtils.formatId(key);
+        Integer existing = slots.get(normalizedKey);
+        int slot = existing != null ? existing : slotKeys.size();
+
+        String normalizedGroup = ValidationUtils.formatId(group);
+        ByteBuffer entry = encodeSlot(normalizedKey, normalizedGroup, offset, length);
+        long position = (long) (slot + 1) * SLOT_SIZE;
+        while (entry.hasRemaining()) {
+            position += indexChannel.write(entry, position);
+        }
+
+        if (existing != null) {
+            updateSlot(slot, normalizedGroup, offset, length);
+        } else {
+            addSlot(normalizedKey, normalizedGroup, offset, length);
+        }
+    }
+
+    /**
+     * Point an existing slot at a new record version; the group is already normalized
+     */
+    private void updateSlot(int slot, String group, long offset, int length) {
+        liveBytes -= lengths[slot];
+        offsets[slot] = offset;
+        lengths[slot] = length;
+        liveBytes += length;
+        // The group key can change when a record is reassigned
+        if (!group.equals(slotGroups[slot])) {
+            removeFromGroup(slot);
+            addToGroup(group, slot);
+        }
+        segmentEnd = Math.max(segmentEnd, offset + length);
+    }
+
+    private static ByteBuffer encodeSlot(String key, String group, long offset, int length) {
+        ByteBuffer entry = ByteBuffer.allocate(SLOT_SIZE);
+        putKey(entry, key);
+        putKey(entry, group);
+        entry.putLong(offset).putInt(length).rewind();
+        return entry;
+    }
+
+    private void addSlot(String key, String group, long offset, int length) {
+        int slot = slotKeys.size();
+        if (slot == offsets.length) {
+            offsets = Arrays.copyOf(offsets, slot * 2);
+            lengths = Arrays.copyOf(lengths, slot * 2);
+            slotGroups = Arrays.copyOf(slotGroups, slot * 2);
+        }
+        slots.put(key, slot);
+        slotKeys.add(key);
+        offsets[slot] = offset;
+        lengths[slot] = length;
+        liveBytes += length;
+        segmentEnd = Math.max(segmentEnd, offset + length);
+        addToGroup(group, slot);
+    }
+
+    /**
+     * Add a slot to its group; keys and groups are already normalized here
+     */
+    private void addToGroup(String group, int slot) {
+        slotGroups[slot] = group;
+        if (!group.isEmpty()) {
+            groups.computeIfAbsent(group, g -> new ArrayList<>(4)).add(slot);
+        }
+    }
+
+    private void removeFromGroup(int slot) {
+        List<Integer> members = groups.get(slotGroups[slot]);
+        if (members != null) {
+            members.remove(Integer.valueOf(slot));
+            if (members.isEmpty()) {
+                groups.remove(slotGroups[slot]);
+            }
+        }
+    }
+
+    private void clearSlots() {
+        slots.clear();
+        groups.clear();
+        slotKeys.clear();
+        liveBytes = 0;
+    }
+
+    private static void putKey(ByteBuffer entry, String key) {
+        byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+        int start = entry.position();
+        entry.put((byte) bytes.length).put(bytes);
+        entry.position(start + 24);
+    }
+
+    private static String readKey(byte[] entry, int position) {
+        int length = entry[position];
+        if (length < 0 || length > MAX_KEY_BYTES) {
+            return null;
+        }
+        return new String(entry, position + 1, length, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Decode the record in a slot from the mapped segment
+     */
+    private T read(int slot) {
+        try {
+            return decodeAt(offsets[slot], lengths[slot]);
+        } catch (IOException e) {
+            System.err.println("Error reading record " + slotKeys.get(slot) + " from " + name + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    private T decodeAt(long offset, int length) throws IOException {
+        return codec.decode(new RecordReader(readBytes(offset, length)), segmentCodecVersion);
+    }
+
+    private byte[] readBytes(long offset, int length) throws IOException {
+        if (mapped == null || offset + length > mapped.size) {
+            // Map the records appended since the last mapping
+            if (mapped == null) {
+                mapped = new MappedSegment();
+            }
+            mapped.extend(segmentChannel, segmentChannel.size());
+        }
+        return mapped.read(offset, length);
+    }
+
+    /**
+     * Check whether superseded record versions take up most of the segment
+     */
+    public synchronized boolean needsCompaction() {
+        return segmentEnd > MIN_COMPACT_BYTES && segmentEnd > 2 * liveBytes;
+    }
+
+    /**
+     * Copy the live version of every record into a new segment generation and switch to it.
+     * Changes by every process wait for the store's lock meanwhile, but the bulk copy runs
+     * without the monitor, so reads continue. The index rename is the commit point; the old
+     * segment is deleted afterwards.
+     */
+    public void compact() throws IOException {
+        withLock(() -> {
+            compactLocked();
+            return null;
+        });
+    }
+
+    private void compactLocked() throws IOException {
+        int copiedCount;
+        long[] copiedOffsets;
+        int[] copiedLengths;
+        MappedSegment source;
+        int sourceVersion;
+        long newGeneration;
+        synchronized (this) {
+            if (compacting) {
+                return;
+            }
+            compacting = true;
+            try {
+                catchUp(true);
+            } catch (IOException | RuntimeException e) {
+                compacting = false;
+                throw e;
+            }
+            copiedCount = slotKeys.size();
+            copiedOffsets = Arrays.copyOf(offsets, copiedCount);
+            copiedLengths = Arrays.copyOf(lengths, copiedCount);
+            mapped = null;
+            readBytes(0, 0); // map the whole current segment
+            source = mapped;
+            sourceVersion = segmentCodecVersion;
+            newGeneration = generation + 1;
+        }
+
+        Path newSegmentPath = segmentPath(newGeneration);
+        FileChannel newSegment = null;
+        try {
+            Files.deleteIfExists(newSegmentPath);
+            newSegment = createSegment(newSegmentPath);
+            long[] newOffsets = new long[copiedCount];
+            int[] newLengths = new int[newOffsets.length];
+            long position = segmentHeaderLength();
+
+            BufferedOutputStream buffered = new BufferedOutputStream(Channels.newOutputStream(newSegment.position(position)), 64 * 1024);
+            DataOutputStream out = new DataOutputStream(buffered);
+            for (int slot = 0; slot < copiedCount; slot++) {
+                byte[] bytes = upgrade(source.read(copiedOffsets[slot], copiedLengths[slot]), sourceVersion);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+                newOffsets[slot] = position + 4;
+                newLengths[slot] = bytes.length;
+                position += 4 + bytes.length;
+            }
+            out.flush();
+
+            synchronized (this) {
+                // The lock keeps writers out; this only copies slots that moved since the copy began
+                int count = slotKeys.size();
+                newOffsets = Arrays.copyOf(newOffsets, offsets.length);
+                newLengths = Arrays.copyOf(newLengths, offsets.length);
+                for (int slot = 0; slot < count; slot++) {
+                    if (slot < copiedCount && offsets[slot] == copiedOffsets[slot]) {
+                        continue;
+                    }
+                    byte[] bytes = upgrade(readBytes(offsets[slot], lengths[slot]), segmentCodecVersion);
+                    out.writeInt(bytes.length);
+                    out.write(bytes);
+                    newOffsets[slot] = position + 4;
+                    newLengths[slot] = bytes.length;
+                    position += 4 + bytes.length;
+                }
+                out.flush();
+                groupCommit.sync(newSegment);
+
+                Path indexPath = directory.resolve(name + INDEX_SUFFIX);
+                Path temp = directory.resolve(name + INDEX_SUFFIX + ".tmp");
+                try (FileChannel newIndex = FileChannel.open(temp, StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                    writeIndexHeader(newIndex, newGeneration);
+                    for (int slot = 0; slot < count; slot++) {
+                        ByteBuffer entry = encodeSlot(slotKeys.get(slot), slotGroups[slot], newOffsets[slot], newLengths[slot]);
+                        long slotPosition = (long) (slot + 1) * SLOT_SIZE;
+                        while (entry.hasRemaining()) {
+                            slotPosition += newIndex.write(entry, slotPosition);
+                        }
+                    }
+                    groupCommit.sync(newIndex);
+                }
+                moveAtomically(temp, indexPath);
+
+                // Switch to the new generation
+                long oldGeneration = generation;
+                indexChannel.close();
+                segmentChannel.close();
+                indexChannel = FileChannel.open(indexPath, StandardOpenOption.WRITE);
+                segmentChannel = newSegment;
+                newSegment = null;
+                mapped = null;
+                generation = newGeneration;
+                segmentCodecVersion = codec.getVersion();
+                offsets = newOffsets;
+                lengths = newLengths;
+                segmentEnd = position;
+                liveBytes = 0;
+                for (int slot = 0; slot < count; slot++) {
+                    liveBytes += lengths[slot];
+                }
+                Files.deleteIfExists(segmentPath(oldGeneration));
+            }
+        } finally {
+            synchronized (this) {
+                compacting = false;
+            }
+            if (newSegment != null) {
+                // The switch did not happen; the current generation is untouched
+                newSegment.close();
+                Files.deleteIfExists(newSegmentPath);
+            }
+        }
+    }
+
+    /**
+     * Re-encode a record written by an older codec version with the current one
+     */
+    private byte[] upgrade(byte[] bytes, int version) throws IOException {
+        if (version == codec.getVersion()) {
+            return bytes;
+        }
+        RecordWriter writer = new RecordWriter();
+        codec.encode(codec.decode(new RecordReader(bytes), version), writer);
+        return writer.toByteArray();
+    }
+
+    private void moveAtomically(Path source, Path target) throws IOException {
+        try {
+            Files.move(source, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+        groupCommit.syncDirectory(directory);
+    }
+
+    private Path segmentPath(long segmentGeneration) {
+        return directory.resolve(name + "." + segmentGeneration + SEGMENT_SUFFIX);
+    }
+
+    /**
+     * Find the generations of all segment files of a store, oldest first
+     */
+    private static List<Long> listSegments(Path directory, String name) {
+        List<Long> generations = new ArrayList<>();
+        File[] files = directory.toFile().listFiles();
+        if (files != null) {
+            String prefix = name + ".";
+            for (File file : files) {
+                String fileName = file.getName();
+                if (fileName.startsWith(prefix) && fileName.endsWith(SEGMENT_SUFFIX)) {
+                    try {
+                        generations.add(Long.parseLong(
+                            fileName.substring(prefix.length(), fileName.length() - SEGMENT_SUFFIX.length())));
+                    } catch (NumberFormatException e) {
+                        // Not one of our segments
+                    }
+                }
+            }
+        }
+        Collections.sort(generations);
+        return generations;
+    }
+
+    /**
+     * The index and current segment files, for backups taken while holding the store's lock
+     */
+    synchronized List<File> getFiles() throws IOException {
+        catchUp(false);
+        List<File> files = new ArrayList<>();
+        files.add(directory.resolve(name + INDEX_SUFFIX).toFile());
+        files.add(segmentPath(generation).toFile());
+        return files;
+    }
+
+    /**
+     * Total size of the current segment in bytes, including superseded record versions
+     */
+    public synchronized long getSegmentSize() {
+        return segmentEnd;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        mapped = null;
+        if (indexChannel != null) {
+            indexChannel.close();
+            indexChannel = null;
+        }
+        if (segmentChannel != null) {
+            segmentChannel.close();
+            segmentChannel = null;
+        }
+    }
+}
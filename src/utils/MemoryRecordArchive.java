@@ -0,0 +1,56 @@
+package utils;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * MemoryRecordArchive class for the archive of engines that keep no files
+ */
+class MemoryRecordArchive<T> implements RecordArchive<T> {
+    private final Function<T, String> keyExtractor;
+    private final Map<String, T> records = new LinkedHashMap<>();
+
+    MemoryRecordArchive(Function<T, String> keyExtractor) {
+        this.keyExtractor = keyExtractor;
+    }
+
+    @Override
+    public synchronized T get(String key) {
+        return records.get(ValidationUtils.formatId(key));
+    }
+
+    @Override
+    public synchronized boolean contains(String key) {
+        return records.containsKey(ValidationUtils.formatId(key));
+    }
+
+    @Override
+    public synchronized List<String> keys() {
+        return new ArrayList<>(records.keySet());
+    }
+
+    @Override
+    public synchronized int size() {
+        return records.size();
+    }
+
+    @Override
+    public void forEach(Consumer<? super T> consumer) {
+        List<T> snapshot;
+        synchronized (this) {
+            snapshot = new ArrayList<>(records.values());
+        }
+        snapshot.forEach(consumer);
+    }
+
+    @Override
+    public synchronized void append(List<T> archived) {
+        for (T record : archived) {
+            records.put(ValidationUtils.formatId(keyExtractor.apply(record)), record);
+        }
+    }
+}
@@ -0,0 +1,351 @@
+package utils;
+
+import models.*;
+
+import java.io.IOException;
+
+/**
+ * ModelCodecs class holding the binary codecs for every persisted model
+ */
+public class ModelCodecs {
+
+    public static final RecordCodec<Patient> PATIENT = new RecordCodec<Patient>() {
+        public String getName() { return "patient"; }
+        public int getVersion() { return 1; }
+
+        public void encode(Patient p, RecordWriter out) {
+            out.writeString(p.getPatientId());
+            out.writeString(p.getFirstName());
+            out.writeString(p.getLastName());
+            out.writeDate(p.getDateOfBirth());
+            out.writeString(p.getGender());
+            out.writeString(p.getPhoneNumber());
+            out.writeString(p.getEmail());
+            out.writeString(p.getAddress());
+            out.writeString(p.getEmergencyContact());
+            out.writeString(p.getEmergencyPhone());
+            out.writeString(p.getBloodGroup());
+            out.writeStringList(p.getAllergies());
+            out.writeString(p.getInsuranceNumber());
+            out.writeDate(p.getRegistrationDate());
+            out.writeBoolean(p.isActive());
+        }
+
+        public Patient decode(RecordReader in, int version) throws IOException {
+            Patient p = new Patient();
+            p.setPatientId(in.readString());
+            p.setFirstName(in.readString());
+            p.setLastName(in.readString());
+            p.setDateOfBirth(in.readDate());
+            p.setGender(in.readString());
+            p.setPhoneNumber(in.readString());
+            p.setEmail(in.readString());
+            p.setAddress(in.readString());
+            p.setEmergencyContact(in.readString());
+            p.setEmergencyPhone(in.readString());
+            p.setBloodGroup(in.readString());
+            p.setAllergies(in.readStringList());
+            p.setInsuranceNumber(in.readString());
+            p.setRegistrationDate(in.readDate());
+            p.setActive(in.readBoolean());
+            return p;
+        }
+    };
+
+    public static final RecordCodec<Appointment> APPOINTMENT = new RecordCodec<Appointment>() {
+        public String getName() { return "appointment"; }
+        public int getVersion() { return 1; }
+
+        public void encode(Appointment a, RecordWriter out) {
+            out.writeString(a.getAppointmentId());
+            out.writeString(a.getPatientId());
+            out.writeString(a.getDoctorId());
+            out.writeDateTime(a.getAppointmentDateTime());
+            out.writeString(a.getReason());
+            out.writeString(a.getNotes());
+            out.writeEnum(a.getStatus());
+            out.writeDouble(a.getConsultationFee());
+            out.writeDateTime(a.getCreatedAt());
+            out.writeDateTime(a.getUpdatedAt());
+            out.writeString(a.getCreatedBy());
+        }
+
+        public Appointment decode(RecordReader in, int version) throws IOException {
+            Appointment a = new Appointment();
+            a.setAppointmentId(in.readString());
+            a.setPatientId(in.readString());
+            a.setDoctorId(in.readString());
+            a.setAppointmentDateTime(in.readDateTime());
+            a.setReason(in.readString());
+            a.setNotes(in.readString());
+            a.setStatus(in.readEnum(Appointment.AppointmentStatus.values()));
+            a.setConsultationFee(in.readDouble());
+            a.setCreatedAt(in.readDateTime());
+            // Set last: the setters above touch updatedAt
+            a.setUpdatedAt(in.readDateTime());
+            a.setCreatedBy(in.readString());
+            return a;
+        }
+    };
+
+    public static final RecordCodec<Bill> BILL = new RecordCodec<Bill>() {
+        public String getName() { return "bill"; }
+        public int getVersion() { return 1; }
+
+        public void encode(Bill b, RecordWriter out) {
+            out.writeString(b.getBillId());
+            out.writeString(b.getPatientId());
+            out.writeString(b.getAppointmentId());
+            out.writeDateTime(b.getBillDate());
+            out.writeVarInt(b.getItems().size());
+            for (Bill.BillItem item : b.getItems()) {
+                out.writeString(item.getDescription());
+                out.writeSignedVarLong(item.getQuantity());
+                out.writeDouble(item.getUnitPrice());
+            }
+            out.writeDouble(b.getSubtotal());
+            out.writeDouble(b.getTaxAmount());
+            out.writeDouble(b.getDiscountAmount());
+            out.writeDouble(b.getTotalAmount());
+            out.writeDouble(b.getPaidAmount());
+            out.writeDouble(b.getBalanceAmount());
+            out.writeEnum(b.getPaymentStatus());
+            out.writeDateTime(b.getDueDate());
+            out.writeString(b.getPaymentMethod());
+            out.writeString(b.getNotes());
+            out.writeBoolean(b.isActive());
+        }
+
+        public Bill decode(RecordReader in, int version) throws IOException {
+            Bill b = new Bill();
+            b.setBillId(in.readString());
+            b.setPatientId(in.readString());
+            b.setAppointmentId(in.readString());
+            b.setBillDate(in.readDateTime());
+            int itemCount = in.readCount();
+            for (int i = 0; i < itemCount; i++) {
+                b.getItems().add(new Bill.BillItem(in.readString(), (int) in.readSignedVarLong(), in.readDouble()));
+            }
+            b.setSubtotal(in.readDouble());
+            b.setTaxAmount(in.readDouble());
+            b.setDiscountAmount(in.readDouble());
+            b.setTotalAmount(in.readDouble());
+            b.setPaidAmount(in.readDouble());
+            // Restore the stored balance and status rather than the values derived by setPaidAmount
+            b.setBalanceAmount(in.readDouble());
+            b.setPaymentStatus(in.readEnum(Bill.PaymentStatus.values()));
+            b.setDueDate(in.readDateTime());
+            b.setPaymentMethod(in.readString());
+            b.setNotes(in.readString());
+            b.setActive(in.readBoolean());
+            return b;
+        }
+    };
+
+    public static final RecordCodec<HealthRecord> HEALTH_RECORD = new RecordCodec<HealthRecord>() {
+        public String getName() { return "health_record"; }
+        public int getVersion() { return 1; }
+
+        public void encode(HealthRecord r, RecordWriter out) {
+            out.writeString(r.getRecordId());
+            out.writeString(r.getPatientId());
+            out.writeString(r.getDoctorId());
+            out.writeDateTime(r.getVisitDate());
+            out.writeString(r.getChiefComplaint());
+            out.writeString(r.getSymptoms());
+            out.writeString(r.getDiagnosis());
+            out.writeString(r.getTreatment());
+            out.writeStringList(r.getPrescriptions());
+            out.writeString(r.getLabResults());
+            out.writeString(r.getNotes());
+            out.writeDouble(r.getHeight());
+            out.writeDouble(r.getWeight());
+            out.writeString(r.getBloodPressure());
+            out.writeDouble(r.getTemperature());
+            out.writeSignedVarLong(r.getHeartRate());
+            out.writeString(r.getFollowUpInstructions());
+            out.writeDateTime(r.getNextVisitDate());
+            out.writeBoolean(r.isActive());
+        }
+
+        public HealthRecord decode(RecordReader in, int version) throws IOException {
+            HealthRecord r = new HealthRecord();
+            r.setRecordId(in.readString());
+            r.setPatientId(in.readString());
+            r.setDoctorId(in.readString());
+            r.setVisitDate(in.readDateTime());
+            r.setChiefComplaint(in.readString());
+            r.setSymptoms(in.readString());
+            r.setDiagnosis(in.readString());
+            r.setTreatment(in.readString());
+            r.setPrescriptions(in.readStringList());
+            r.setLabResults(in.readString());
+            r.setNotes(in.readString());
+            r.setHeight(in.readDouble());
+            r.setWeight(in.readDouble());
+            r.setBloodPressure(in.readString());
+            r.setTemperature(in.readDouble());
+            r.setHeartRate((int) in.readSignedVarLong());
+            r.setFollowUpInstructions(in.readString());
+            r.setNextVisitDate(in.readDateTime());
+            r.setActive(in.readBoolean());
+            return r;
+        }
+    };
+
+    public static final RecordCodec<MedicalSupply> MEDICAL_SUPPLY = new RecordCodec<MedicalSupply>() {
+        public String getName() { return "medical_supply"; }
+        public int getVersion() { return 1; }
+
+        public void encode(MedicalSupply s, RecordWriter out) {
+            out.writeString(s.getSupplyId());
+            out.writeString(s.getName());
+            out.writeString(s.getDescription());
+            out.writeEnum(s.getCategory());
+            out.writeString(s.getManufacturer());
+            out.writeString(s.getBatchNumber());
+            out.writeSignedVarLong(s.getCurrentStock());
+            out.writeSignedVarLong(s.getMinimumStock());
+            out.writeSignedVarLong(s.getMaximumStock());
+            out.writeDouble(s.getUnitPrice());
+            out.writeString(s.getUnit());
+            out.writeDate(s.getExpiryDate());
+            out.writeDate(s.getLastRestocked());
+            out.writeString(s.getSupplier());
+            out.writeString(s.getStorageLocation());
+            out.writeEnum(s.getStatus());
+            out.writeBoolean(s.isRequiresPrescription());
+            out.writeString(s.getNotes());
+            out.writeBoolean(s.isActive());
+        }
+
+        public MedicalSupply decode(RecordReader in, int version) throws IOException {
+            MedicalSupply s = new MedicalSupply();
+            s.setSupplyId(in.readString());
+            s.setName(in.readString());
+            s.setDescription(in.readString());
+            s.setCategory(in.readEnum(MedicalSupply.SupplyCategory.values()));
+            s.setManufacturer(in.readString());
+            s.setBatchNumber(in.readString());
+            s.setCurrentStock((int) in.readSignedVarLong());
+            s.setMinimumStock((int) in.readSignedVarLong());
+            s.setMaximumStock((int) in.readSignedVarLong());
+            s.setUnitPrice(in.readDouble());
+            s.setUnit(in.readString());
+            s.setExpiryDate(in.readDate());
+            s.setLastRestocked(in.readDate());
+            s.setSupplier(in.readString());
+            s.setStorageLocation(in.readString());
+            // Set after the stock setters, which recompute the status
+            s.setStatus(in.readEnum(MedicalSupply.SupplyStatus.values()));
+            s.setRequiresPrescription(in.readBoolean());
+            s.setNotes(in.readString());
+            s.setActive(in.readBoolean());
+            return s;
+        }
+    };
+
+    public static final RecordCodec<Doctor> DOCTOR = new RecordCodec<Doctor>() {
+        public String getName() { return "doctor"; }
+        public int getVersion() { return 1; }
+
+        public void encode(Doctor d, RecordWriter out) {
+            out.writeString(d.getDoctorId());
+            out.writeString(d.getFirstName());
+            out.writeString(d.getLastName());
+            out.writeString(d.getSpecialization());
+            out.writeString(d.getQualification());
+            out.writeString(d.getPhoneNumber());
+            out.writeString(d.getEmail());
+            out.writeString(d.getDepartment());
+            out.writeDouble(d.getConsultationFee());
+            out.writeTime(d.getStartTime());
+            out.writeTime(d.getEndTime());
+            out.writeStringList(d.getWorkingDays());
+            out.writeSignedVarLong(d.getExperienceYears());
+            out.writeString(d.getLicenseNumber());
+            out.writeBoolean(d.isAvailable());
+            out.writeDate(d.getJoinDate());
+        }
+
+        public Doctor decode(RecordReader in, int version) throws IOException {
+            Doctor d = new Doctor();
+            d.setDoctorId(in.readString());
+            d.setFirstName(in.readString());
+            d.setLastName(in.readString());
+            d.setSpecialization(in.readString());
+            d.setQualification(in.readString());
+            d.setPhoneNumber(in.readString());
+            d.setEmail(in.readString());
+            d.setDepartment(in.readString());
+            d.setConsultationFee(in.readDouble());
+            d.setStartTime(in.readTime());
+            d.setEndTime(in.readTime());
+            d.setWorkingDays(in.readStringList());
+            d.setExperienceYears((int) in.readSignedVarLong());
+            d.setLicenseNumber(in.readString());
+            d.setAvailable(in.readBoolean());
+            d.setJoinDate(in.readDate());
+            return d;
+        }
+    };
+
+    public static final RecordCodec<Staff> STAFF = new RecordCodec<Staff>() {
+        public String getName() { return "staff"; }
+        public int getVersion() { return 1; }
+
+        public void encode(Staff s, RecordWriter out) {
+            out.writeString(s.getStaffId());
+            out.writeString(s.getFirstName());
+            out.writeString(s.getLastName());
+            out.writeEnum(s.getRole());
+            out.writeString(s.getDepartment());
+            out.writeString(s.getPhoneNumber());
+            out.writeString(s.getEmail());
+            out.writeString(s.getAddress());
+            out.writeDate(s.getDateOfBirth());
+            out.writeString(s.getGender());
+            out.writeDate(s.getHireDate());
+            out.writeDouble(s.getSalary());
+            out.writeString(s.getQualification());
+            out.writeString(s.getLicenseNumber());
+            out.writeStringList(s.getSpecializations());
+            out.writeTime(s.getShiftStartTime());
+            out.writeTime(s.getShiftEndTime());
+            out.writeStringList(s.getWorkingDays());
+            out.writeEnum(s.getEmploymentStatus());
+            out.writeString(s.getEmergencyContact());
+            out.writeString(s.getEmergencyPhone());
+            out.writeString(s.getNotes());
+            out.writeBoolean(s.isActive());
+        }
+
+        public Staff decode(RecordReader in, int version) throws IOException {
+            Staff s = new Staff();
+            s.setStaffId(in.readString());
+            s.setFirstName(in.readString());
+            s.setLastName(in.readString());
+            s.setRole(in.readEnum(Staff.StaffRole.values()));
+            s.setDepartment(in.readString());
+            s.setPhoneNumber(in.readString());
+            s.setEmail(in.readString());
+            s.setAddress(in.readString());
+            s.setDateOfBirth(in.readDate());
+            s.setGender(in.readString());
+            s.setHireDate(in.readDate());
+            s.setSalary(in.readDouble());
+            s.setQualification(in.readString());
+            s.setLicenseNumber(in.readString());
+            s.setSpecializations(in.readStringList());
+            s.setShiftStartTime(in.readTime());
+            s.setShiftEndTime(in.readTime());
+            s.setWorkingDays(in.readStringList());
+            s.setEmploymentStatus(in.readEnum(Staff.EmploymentStatus.values()));
+            s.setEmergencyContact(in.readString());
+            s.setEmergencyPhone(in.readString());
+            s.setNotes(in.readString());
+            s.setActive(in.readBoolean());
+            return s;
+        }
+    };
+}
@@ -0,0 +1,130 @@
+package utils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+import java.util.function.Predicate;
+import java.util.function.ToLongFunction;
+
+/**
+ * OrderedIndex class for finding values by a numeric key in order, such as appointments by
+ * their time in epoch seconds. Values are held in a sorted map from key to the values with
+ * that key, in the order they were added, so a range query walks just the keys in the range
+ * and needs no sort; values from a key onwards can be read lazily, stopping after a limit.
+ * Values whose key is Long.MIN_VALUE (no key) are not indexed. As with SecondaryIndex, the
+ * key a value was filed under is remembered for removing it.
+ */
+public class OrderedIndex<T> implements ElementIndex<T> {
+    public static final long NO_KEY = Long.MIN_VALUE;
+
+    private final ToLongFunction<T> keyExtractor;
+    private final NavigableMap<Long, List<T>> entries = new TreeMap<>();
+    private final Map<T, Long> filedUnder = new HashMap<>();
+
+    public OrderedIndex(ToLongFunction<T> keyExtractor) {
+        this.keyExtractor = keyExtractor;
+    }
+
+    /**
+     * Get the values with from <= key < to, in key order
+     */
+    public List<T> range(long from, long to) {
+        List<T> values = new ArrayList<>();
+        if (from < to) {
+            for (List<T> sameKey : entries.subMap(from, true, to, false).values()) {
+                values.addAll(sameKey);
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Get up to limit values with key >= from that pass the filter, in key order; only as
+     * many values are visited as it takes to fill the limit
+     */
+    public List<T> from(long from, Predicate<T> filter, int limit) {
+        List<T> values = new ArrayList<>();
+        Iterator<T> iterator = iterateFrom(from);
+        while (values.size() < limit && iterator.hasNext()) {
+            T value = iterator.next();
+            if (filter.test(value)) {
+                values.add(value);
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Iterate over the values with key >= from, in key order. The iterator reads the index as
+     * it goes and must not be used after the index changes.
+     */
+    public Iterator<T> iterateFrom(long from) {
+        Iterator<List<T>> keys = entries.tailMap(from, true).values().iterator();
+        return new Iterator<T>() {
+            private Iterator<T> sameKey = Collections.emptyIterator();
+
+            @Override
+            public boolean hasNext() {
+                while (!sameKey.hasNext() && keys.hasNext()) {
+                    sameKey = keys.next().iterator();
+                }
+                return sameKey.hasNext();
+            }
+
+            @Override
+            public T next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return sameKey.next();
+            }
+        };
+    }
+
+    public int size() {
+        return filedUnder.size();
+    }
+
+    @Override
+    public void add(T value) {
+        long key = keyExtractor.applyAsLong(value);
+        if (key == NO_KEY) {
+            return;
+        }
+        entries.computeIfAbsent(key, k -> new ArrayList<>(1)).add(value);
+        filedUnder.put(value, key);
+    }
+
+    @Override
+    public void remove(T value) {
+        Long key = filedUnder.remove(value);
+        if (key == null) {
+            // A second copy of an equal value was filed under its own key
+            key = keyExtractor.applyAsLong(value);
+        }
+        List<T> sameKey = entries.get(key);
+        if (sameKey != null && sameKey.remove(value) && sameKey.isEmpty()) {
+            entries.remove(key);
+        }
+    }
+
+    @Override
+    public void refresh(T value) {
+        Long key = filedUnder.get(value);
+        if (key == null || key != keyExtractor.applyAsLong(value)) {
+            ElementIndex.super.refresh(value);
+        }
+    }
+
+    @Override
+    public void clear() {
+        entries.clear();
+        filedUnder.clear();
+    }
+}
@@ -0,0 +1,878 @@
+package utils;
+
+import models.*;
+import services.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.function.IntFunction;
+import java.util.stream.Collectors;
+import java.util.zip.Deflater;
+
+/**
+ * PerformanceBenchmark class for measuring persistence performance on synthetic data.
+ * Usage: java -cp bin utils.PerformanceBenchmark [codec|compression|backup|engines|writebehind|transactions|sharding|heap|lookup|booking] [records]
+ */
+public class PerformanceBenchmark {
+    private static final String BENCHMARK_DIRECTORY = "data_benchmark";
+    private static final int ITERATIONS = 5;
+    private static final int ENGINE_UPDATES = 200;
+    private static final int WRITE_BEHIND_UPDATES = 2000;
+    private static final int TRANSACTIONS = 1000;
+    private static final int BENCHMARK_SHARDS = 8;
+    private static final int INDEX_LOOKUPS = 100000;
+    private static final int SCAN_LOOKUPS = 200;
+    private static final int BOOKINGS = 2000;
+    private static final int[] COMPRESSION_LEVELS = {Deflater.NO_COMPRESSION, Deflater.BEST_SPEED, Deflater.DEFAULT_COMPRESSION, Deflater.BEST_COMPRESSION};
+
+    public static void main(String[] args) {
+        String suite = args.length > 0 ? args[0] : "codec";
+        int records = args.length > 1 ? Integer.parseInt(args[1]) : 50000;
+
+        switch (suite) {
+            case "codec":
+                runCodecBenchmark(records);
+                break;
+            case "compression":
+                runCompressionBenchmark(records);
+                break;
+            case "backup":
+                runBackupBenchmark(records);
+                break;
+            case "engines":
+                runEngineBenchmark(records);
+                break;
+            case "writebehind":
+                runWriteBehindBenchmark(records);
+                break;
+            case "transactions":
+                runTransactionBenchmark(records);
+                break;
+            case "sharding":
+                runShardingBenchmark(records);
+                break;
+            case "heap":
+                runHeapBenchmark(records);
+                break;
+            case "lookup":
+                runLookupBenchmark(records);
+                break;
+            case "booking":
+                runBookingBenchmark(records);
+                break;
+            default:
+                System.out.println("Unknown benchmark suite: " + suite);
+        }
+    }
+
+    /**
+     * Compare Java serialization with the binary codecs for every data file
+     */
+    public static void runCodecBenchmark(int records) {
+        DatabaseManager dbManager = openBenchmarkDirectory();
+        System.out.println("\n=== Codec Benchmark (" + records + " records per file) ===");
+        System.out.printf("%-22s %12s %12s %12s %12s %12s %12s%n",
+                          "File", "Java save", "Codec save", "Java load", "Codec load", "Java size", "Codec size");
+
+        benchmarkFile(dbManager, PatientService.PATIENTS_FILE, records, PerformanceBenchmark::samplePatient);
+        benchmarkFile(dbManager, AppointmentService.APPOINTMENTS_FILE, records, PerformanceBenchmark::sampleAppointment);
+        benchmarkFile(dbManager, BillingService.BILLS_FILE, records, PerformanceBenchmark::sampleBill);
+        benchmarkFile(dbManager, EHRService.HEALTH_RECORDS_FILE, records, PerformanceBenchmark::sampleHealthRecord);
+        benchmarkFile(dbManager, InventoryService.SUPPLIES_FILE, records, PerformanceBenchmark::sampleSupply);
+        benchmarkFile(dbManager, StaffService.DOCTORS_FILE, records, PerformanceBenchmark::sampleDoctor);
+        benchmarkFile(dbManager, StaffService.STAFF_FILE, records, PerformanceBenchmark::sampleStaff);
+
+        deleteDirectory(new File(BENCHMARK_DIRECTORY));
+    }
+
+    /**
+     * Compare a full directory copy with incremental backups: one initial backup,
+     * then a backup after a small batch of changes and one with no changes at all
+     */
+    public static void runBackupBenchmark(int records) {
+        DatabaseManager dbManager = openBenchmarkDirectory();
+        dbManager.saveData(generate(records, PerformanceBenchmark::samplePatient), PatientService.PATIENTS_FILE);
+        dbManager.saveData(generate(records, PerformanceBenchmark::sampleAppointment), AppointmentService.APPOINTMENTS_FILE);
+        dbManager.saveData(generate(records, PerformanceBenchmark::sampleBill), BillingService.BILLS_FILE);
+        dbManager.saveData(generate(records, PerformanceBenchmark::sampleHealthRecord), EHRService.HEALTH_RECORDS_FILE);
+        List<Patient> patients = dbManager.loadData(PatientService.PATIENTS_FILE, Patient::getPatientId);
+        
+        System.out.println("\n=== Backup Benchmark (" + records + " records per file) ===");
+        System.out.printf("%-28s %12s %14s%n", "Backup", "Time", "Bytes written");
+        
+        timeFullCopy(dbManager, "Full copy (initial)");
+        timeIncrementalBackup(dbManager, "Incremental (initial)");
+        
+        // Change 1% of the patients through the delta log
+        for (int i = 0; i < Math.max(1, records / 100); i++) {
+            Patient patient = patients.get(i * 100 % patients.size());
+            patient.setActive(!patient.isActive());
+            dbManager.appendRecord(PatientService.PATIENTS_FILE, patient.getPatientId(), patient);
+        }
+        timeFullCopy(dbManager, "Full copy (1% changed)");
+        timeIncrementalBackup(dbManager, "Incremental (1% changed)");
+        timeIncrementalBackup(dbManager, "Incremental (unchanged)");
+        
+        deleteDirectory(new File(BENCHMARK_DIRECTORY));
+        deleteDirectory(new File(dbManager.getBackupStore().getRootDirectory()));
+    }
+    
+    /**
+     * Run the same workload against every storage engine: bulk save, single-record updates
+     * the way services persist them, a service start-up over the saved data, and health
+     * record updates and patient history lookups through the engine's record store
+     */
+    public static void runEngineBenchmark(int records) {
+        int updates = Math.min(ENGINE_UPDATES, records);
+        System.out.println("\n=== Storage Engine Benchmark (" + records + " records, "
+                           + updates + " updates) ===");
+        System.out.printf("%-16s %12s %12s %12s %12s %12s%n",
+                          "Engine", "Bulk save", "Update avg", "Service load", "EHR update", "EHR history");
+
+        benchmarkEngine(new InMemoryStorageEngine(), records, updates);
+        benchmarkEngine(new SerializedFileStorageEngine(openBenchmarkDirectory()),
+                        records, updates);
+        deleteDirectory(new File(BENCHMARK_DIRECTORY));
+        DatabaseManager dbManager = openBenchmarkDirectory();
+        benchmarkEngine(new LogStructuredStorageEngine(dbManager), records, updates);
+        dbManager.stopCompactor();
+        deleteDirectory(new File(BENCHMARK_DIRECTORY));
+    }
+
+    private static void benchmarkEngine(StorageEngine engine, int records, int updates) {
+        List<Patient> patients = generate(records, PerformanceBenchmark::samplePatient);
+        long start = System.nanoTime();
+        engine.saveAll(PatientService.PATIENTS_FILE, patients, Patient::getPatientId);
+        long bulkMillis = (System.nanoTime() - start) / 1_000_000;
+
+        DirtyTracker<Patient> tracker = new DirtyTracker<>(engine, PatientService.PATIENTS_FILE, Patient::getPatientId);
+        start = System.nanoTime();
+        for (int i = 0; i < updates; i++) {
+            Patient patient = patients.get((int) ((long) i * records / updates));
+            patient.setActive(!patient.isActive());
+            tracker.persist(patient);
+        }
+        double updateMicros = (System.nanoTime() - start) / 1000.0 / updates;
+
+        start = System.nanoTime();
+        PatientService patientService = new PatientService(engine);
+        long loadMillis = (System.nanoTime() - start) / 1_000_000;
+        if (patientService.getAllPatients().size() != records) {
+            System.out.println("Engine " + engine.getName() + " lost patients");
+        }
+
+        long ehrUpdateMicros;
+        long historyMicros;
+        try {
+            RecordStore<HealthRecord> store = engine.openRecordStore(EHRService.HEALTH_RECORDS_FILE,
+                                                                     HealthRecord::getRecordId,
+                                                                     HealthRecord::getPatientId);
+            store.putAll(generate(records, PerformanceBenchmark::sampleHealthRecord));
+            start = System.nanoTime();
+            for (int i = 0; i < updates; i++) {
+                store.put(sampleHealthRecord((int) ((long) i * records / updates)));
+            }
+            ehrUpdateMicros = (System.nanoTime() - start) / 1000 / updates;
+            start = System.nanoTime();
+            for (int i = 0; i < updates; i++) {
+                store.getByGroup(sampleHealthRecord(i).getPatientId());
+            }
+            historyMicros = (System.nanoTime() - start) / 1000 / updates;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        System.out.printf("%-16s %9d ms %9.0f us %9d ms %9d us %9d us%n", engine.getName(),
+                          bulkMillis, updateMicros, loadMillis, ehrUpdateMicros, historyMicros);
+    }
+
+    /**
+     * Compare the latency seen by the caller of single-record updates with synchronous
+     * persistence and with the write-behind writer thread, and the time until all are durable
+     */
+    public static void runWriteBehindBenchmark(int records) {
+        int updates = Math.min(WRITE_BEHIND_UPDATES, records);
+        System.out.println("\n=== Write-Behind Benchmark (" + records + " records, " + updates + " updates) ===");
+        System.out.printf("%-28s %14s %14s %14s%n", "Engine", "Caller avg", "Caller max", "All durable");
+
+        DatabaseManager dbManager = openBenchmarkDirectory();
+        StorageEngine direct = new LogStructuredStorageEngine(dbManager);
+        benchmarkUpdates(direct, records, updates);
+        WriteBehindStorageEngine writeBehind = new WriteBehindStorageEngine(direct, 256);
+        benchmarkUpdates(writeBehind, records, updates);
+        writeBehind.close();
+        dbManager.stopCompactor();
+        deleteDirectory(new File(BENCHMARK_DIRECTORY));
+    }
+
+    private static void benchmarkUpdates(StorageEngine engine, int records, int updates) {
+        List<Patient> patients = generate(records, PerformanceBenchmark::samplePatient);
+        engine.saveAll(PatientService.PATIENTS_FILE, patients, Patient::getPatientId);
+        DirtyTracker<Patient> tracker = new DirtyTracker<>(engine, PatientService.PATIENTS_FILE, Patient::getPatientId);
+
+        long maxNanos = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < updates; i++) {
+            Patient patient = patients.get((int) ((long) i * records / updates));
+            patient.setActive(!patient.isActive());
+            long operationStart = System.nanoTime();
+            tracker.persist(patient);
+            maxNanos = Math.max(maxNanos, System.nanoTime() - operationStart);
+        }
+        long callerNanos = System.nanoTime() - start;
+        if (!tracker.flush()) {
+            System.out.println("Engine " + engine.getName() + " failed to persist updates");
+        }
+        long durableNanos = System.nanoTime() - start;
+
+        System.out.printf("%-28s %11.1f us %11.1f us %11.1f ms%n", engine.getName(),
+                          callerNanos / 1000.0 / updates, maxNanos / 1000.0, durableNanos / 1e6);
+    }
+
+    /**
+     * Compare completing an appointment and creating its bill as two separate durable log
+     * appends with committing both in one unit of work through the transaction journal
+     */
+    public static void runTransactionBenchmark(int records) {
+        int transactions = Math.min(TRANSACTIONS, records);
+        System.out.println("\n=== Transaction Benchmark (" + transactions + " appointment + bill changes) ===");
+        System.out.printf("%-28s %14s%n", "Mode", "Avg per pair");
+
+        deleteDirectory(new File(BENCHMARK_DIRECTORY));
+        DatabaseManager dbManager = openBenchmarkDirectory();
+        StorageEngine engine = new LogStructuredStorageEngine(dbManager);
+        DirtyTracker<Appointment> appointments = new DirtyTracker<>(engine, AppointmentService.APPOINTMENTS_FILE,
+                                                                    Appointment::getAppointmentId);
+        DirtyTracker<Bill> bills = new DirtyTracker<>(engine, BillingService.BILLS_FILE, Bill::getBillId);
+
+        // Repeat both modes to get past file creation and JIT warm-up
+        for (int round = 0; round < 2; round++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < transactions; i++) {
+                appointments.persist(sampleAppointment(i));
+                bills.persist(sampleBill(i));
+            }
+            double separateMicros = (System.nanoTime() - start) / 1000.0 / transactions;
+
+            start = System.nanoTime();
+            for (int i = 0; i < transactions; i++) {
+                UnitOfWork work = new UnitOfWork(engine);
+                work.stage(appointments, sampleAppointment(i));
+                work.stage(bills, sampleBill(i));
+                if (!work.commit()) {
+                    System.out.println("Transaction " + i + " failed");
+                }
+            }
+            double unitMicros = (System.nanoTime() - start) / 1000.0 / transactions;
+
+            if (round > 0) {
+                System.out.printf("%-28s %11.1f us%n", "Separate appends", separateMicros);
+                System.out.printf("%-28s %11.1f us%n", "Unit of work", unitMicros);
+            }
+        }
+        dbManager.stopCompactor();
+        deleteDirectory(new File(BENCHMARK_DIRECTORY));
+    }
+
+    /**
+     * Compare a single patients file with the same records split into shards, for the
+     * whole-file engine (an update rewrites one shard) and the log-structured engine
+     * (checkpoints rewrite only shards with logged changes), and time loading all shards in parallel
+     */
+    public static void runShardingBenchmark(int records) {
+        int updates = Math.min(ENGINE_UPDATES, records);
+        System.out.println("\n=== Sharding Benchmark (" + records + " records, " + updates + " updates, "
+                           + BENCHMARK_SHARDS + " shards) ===");
+        System.out.printf("%-36s %12s %12s %12s %12s%n", "Engine", "Bulk save", "Update avg", "Checkpoint", "Load");
+
+        Map<String, Integer> shardCounts = new HashMap<>();
+        shardCounts.put(PatientService.PATIENTS_FILE, BENCHMARK_SHARDS);
+        deleteDirectory(new File(BENCHMARK_DIRECTORY));
+        for (boolean logStructured : new boolean[] {false, true}) {
+            for (boolean sharded : new boolean[] {false, true}) {
+                DatabaseManager dbManager = openBenchmarkDirectory();
+                StorageEngine engine = logStructured ? new LogStructuredStorageEngine(dbManager)
+                                                     : new SerializedFileStorageEngine(dbManager);
+                ShardedStorageEngine shards = new ShardedStorageEngine(engine, shardCounts);
+                benchmarkSharding(sharded ? shards : engine, dbManager, shards, records, updates);
+                dbManager.stopCompactor();
+                deleteDirectory(new File(BENCHMARK_DIRECTORY));
+            }
+        }
+    }
+
+    private static void benchmarkSharding(StorageEngine engine, DatabaseManager dbManager,
+                                          ShardedStorageEngine shards, int records, int updates) {
+        List<Patient> patients = generate(records, PerformanceBenchmark::samplePatient);
+        long start = System.nanoTime();
+        engine.saveAll(PatientService.PATIENTS_FILE, patients, Patient::getPatientId);
+        long bulkMillis = (System.nanoTime() - start) / 1_000_000;
+        engine.load(PatientService.PATIENTS_FILE, Patient::getPatientId);
+
+        DirtyTracker<Patient> tracker = new DirtyTracker<>(engine, PatientService.PATIENTS_FILE, Patient::getPatientId);
+        start = System.nanoTime();
+        for (int i = 0; i < updates; i++) {
+            Patient patient = patients.get((int) ((long) i * records / updates));
+            patient.setActive(!patient.isActive());
+            tracker.persist(patient);
+        }
+        double updateMicros = (System.nanoTime() - start) / 1000.0 / updates;
+
+        // Fold the logged updates into the base files, as the compactor does
+        start = System.nanoTime();
+        List<String> files = engine == shards
+            ? shards.getShardFiles(PatientService.PATIENTS_FILE, Patient::getPatientId)
+            : Arrays.asList(PatientService.PATIENTS_FILE);
+        for (String file : files) {
+            dbManager.checkpoint(file);
+        }
+        long checkpointMillis = (System.nanoTime() - start) / 1_000_000;
+
+        start = System.nanoTime();
+        int loaded = engine.load(PatientService.PATIENTS_FILE, Patient::getPatientId).size();
+        long loadMillis = (System.nanoTime() - start) / 1_000_000;
+        if (loaded != records) {
+            System.out.println("Engine " + engine.getName() + " lost patients");
+        }
+
+        System.out.printf("%-36s %9d ms %9.0f us %9d ms %9d ms%n", engine.getName(),
+                          bulkMillis, updateMicros, checkpointMillis, loadMillis);
+    }
+
+    /**
+     * Measure the heap each model takes per record, as the retained growth of the used heap
+     * after building a list of records, so dates count once per record as epoch primitives
+     */
+    public static void runHeapBenchmark(int records) {
+        System.out.println("\n=== Heap Benchmark (" + records + " records per model) ===");
+        System.out.printf("%-16s %14s %14s%n", "Model", "Heap", "Per record");
+
+        benchmarkHeap("Patient", records, PerformanceBenchmark::samplePatient);
+        benchmarkHeap("Appointment", records, PerformanceBenchmark::sampleAppointment);
+        benchmarkHeap("Bill", records, PerformanceBenchmark::sampleBill);
+        benchmarkHeap("HealthRecord", records, PerformanceBenchmark::sampleHealthRecord);
+    }
+
+    private static <T> void benchmarkHeap(String label, int records, IntFunction<T> generator) {
+        long before = usedHeap();
+        List<T> data = generate(records, generator);
+        long bytes = usedHeap() - before;
+        if (data.size() != records) {
+            System.out.println("Generated " + data.size() + " " + label + " records");
+        }
+        System.out.printf("%-16s %11d KB %8.1f bytes%n", label, bytes / 1024, (double) bytes / records);
+    }
+
+    /**
+     * Used heap after a few collections have settled
+     */
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        long used = Long.MAX_VALUE;
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            used = Math.min(used, runtime.totalMemory() - runtime.freeMemory());
+        }
+        return used;
+    }
+
+    /**
+     * Time ID lookups and foreign-key queries through the services' indexes against the linear
+     * scans they replaced, at three dataset sizes. ID lookups should stay flat as the data grows,
+     * and foreign-key, day and upcoming queries should grow only with the size of their result.
+     */
+    public static void runLookupBenchmark(int records) {
+        System.out.println("\n=== Lookup Benchmark (" + INDEX_LOOKUPS + " index lookups over the result size and "
+                           + SCAN_LOOKUPS + " scans per query) ===");
+        System.out.printf("%-20s %10s %14s %14s%n", "Query", "Records", "Index", "Linear scan");
+
+        for (int size : new int[] {Math.max(1, records / 100), Math.max(1, records / 10), records}) {
+            List<Patient> patients = generate(size, PerformanceBenchmark::samplePatient);
+            // Half-hourly appointments, half of them before today and half after
+            LocalDateTime firstSlot = LocalDate.now().minusDays(size / 96).atTime(9, 0);
+            List<Appointment> appointments = generate(size, i -> {
+                Appointment appointment = sampleAppointment(i);
+                appointment.setAppointmentDateTime(firstSlot.plusMinutes(30L * i));
+                return appointment;
+            });
+            List<Doctor> doctors = generate(size, PerformanceBenchmark::sampleDoctor);
+            List<Bill> bills = generate(size, PerformanceBenchmark::sampleBill);
+            List<HealthRecord> healthRecords = generate(size, PerformanceBenchmark::sampleHealthRecord);
+            StorageEngine engine = new InMemoryStorageEngine();
+            engine.saveAll(PatientService.PATIENTS_FILE, patients, Patient::getPatientId);
+            engine.saveAll(AppointmentService.APPOINTMENTS_FILE, appointments, Appointment::getAppointmentId);
+            engine.saveAll(StaffService.DOCTORS_FILE, doctors, Doctor::getDoctorId);
+            engine.saveAll(BillingService.BILLS_FILE, bills, Bill::getBillId);
+            engine.saveAll(EHRService.HEALTH_RECORDS_FILE, healthRecords, HealthRecord::getRecordId);
+            PatientService patientService = new PatientService(engine);
+            StaffService staffService = new StaffService(engine);
+            AppointmentService appointmentService = new AppointmentService(patientService, staffService, engine);
+            BillingService billingService = new BillingService(patientService, appointmentService, engine);
+            EHRService ehrService = new EHRService(patientService, staffService, engine);
+
+            // Lower-case keys, so lookups go through the same normalization as user input
+            IntFunction<String> patientIds = i -> String.format("p%06d", i);
+            IntFunction<String> appointmentIds = i -> String.format("a%06d", i);
+            IntFunction<String> sampleDoctorIds = i -> String.format("d%04d", 1 + i % 50);
+            benchmarkLookup("Patient by ID", size, patientIds, patientService::findPatientById,
+                            firstMatch(patients, Patient::getPatientId));
+            benchmarkLookup("Appointment by ID", size, appointmentIds, appointmentService::findAppointmentById,
+                            firstMatch(appointments, Appointment::getAppointmentId));
+            benchmarkLookup("Doctor by ID", size, i -> String.format("d%06d", i), staffService::findDoctorById,
+                            firstMatch(doctors, Doctor::getDoctorId));
+            benchmarkLookup("Patient appointments", size, patientIds, appointmentService::getAppointmentsByPatient,
+                            allMatches(appointments, Appointment::getPatientId));
+            benchmarkLookup("Doctor appointments", size, sampleDoctorIds, appointmentService::getAppointmentsByDoctor,
+                            allMatches(appointments, Appointment::getDoctorId));
+            benchmarkLookup("Patient bills", size, patientIds, billingService::getBillsByPatient,
+                            allMatches(bills, Bill::getPatientId));
+            benchmarkLookup("Appointment bill", size, appointmentIds, billingService::findBillByAppointmentId,
+                            firstMatch(bills, Bill::getAppointmentId));
+            benchmarkLookup("Doctor records", size, sampleDoctorIds, ehrService::getHealthRecordsByDoctor,
+                            allMatches(healthRecords, HealthRecord::getDoctorId));
+            benchmarkLookup("Appointments by day", size, i -> firstSlot.toLocalDate().plusDays(i % (size / 48 + 1)).toString(),
+                            day -> appointmentService.getAppointmentsByDate(LocalDate.parse(day)),
+                            day -> appointments.stream()
+                                    .filter(a -> a.getAppointmentDateTime().toLocalDate().equals(LocalDate.parse(day)))
+                                    .collect(Collectors.toList()));
+            benchmarkLookup("Next 20 upcoming", size, i -> "", key -> appointmentService.getUpcomingAppointments(20),
+                            key -> appointments.stream()
+                                    .filter(Appointment::isUpcoming)
+                                    .sorted((a1, a2) -> a1.getAppointmentDateTime().compareTo(a2.getAppointmentDateTime()))
+                                    .limit(20)
+                                    .collect(Collectors.toList()));
+        }
+    }
+
+    /**
+     * Time scheduleAppointment, conflict check included, against appointment histories of 1%,
+     * 10% and 100% of the record count for 50 doctors. Past appointments are completed and later
+     * ones have mixed statuses. Booking should stay flat as the history grows; the old conflict
+     * check scanned every appointment and is timed on its own for comparison. Then each doctor's
+     * free half-hour slots for the next week are looked up, first while the day calendars are
+     * built and then from the built calendars.
+     */
+    public static void runBookingBenchmark(int records) {
+        System.out.println("\n=== Booking Benchmark (" + BOOKINGS + " bookings for 50 doctors) ===");
+        System.out.printf("%-10s %10s %14s %18s %14s %14s%n", "History", "Booked", "Per booking", "Old conflict scan",
+                          "Week (build)", "Week (built)");
+
+        int smallest = Math.max(1, records / 100);
+        // The first run at the smallest size warms up the JIT and is not reported
+        int[] sizes = {smallest, smallest, Math.max(1, records / 10), records};
+        for (int run = 0; run < sizes.length; run++) {
+            int size = sizes[run];
+            LocalDateTime firstSlot = LocalDate.now().minusDays(size / 96).atTime(9, 0);
+            List<Appointment> history = generate(size, i -> {
+                Appointment appointment = sampleAppointment(i);
+                appointment.setDoctorId(String.format("D%06d", 1 + i % 50));
+                appointment.setAppointmentDateTime(firstSlot.plusMinutes(30L * i));
+                if (appointment.isPast()) {
+                    appointment.setStatus(Appointment.AppointmentStatus.COMPLETED);
+                }
+                return appointment;
+            });
+            StorageEngine engine = new InMemoryStorageEngine();
+            engine.saveAll(PatientService.PATIENTS_FILE, generate(size, PerformanceBenchmark::samplePatient),
+                           Patient::getPatientId);
+            engine.saveAll(StaffService.DOCTORS_FILE, generate(50, PerformanceBenchmark::sampleDoctor),
+                           Doctor::getDoctorId);
+            engine.saveAll(AppointmentService.APPOINTMENTS_FILE, history, Appointment::getAppointmentId);
+            AppointmentService appointmentService = new AppointmentService(new PatientService(engine),
+                                                                           new StaffService(engine), engine);
+
+            List<Appointment> requests = new ArrayList<>(BOOKINGS);
+            for (int k = 0; k < BOOKINGS; k++) {
+                // One booking per doctor per day, at different hours
+                int day = 1 + k / 50;
+                requests.add(new Appointment(String.format("N%06d", k), String.format("P%06d", 1 + k % size),
+                                             String.format("D%06d", 1 + k % 50),
+                                             LocalDate.now().plusDays(day).atTime(8 + day % 10, 0),
+                                             "Follow-up"));
+            }
+
+            int booked = 0;
+            PrintStream console = System.out;
+            System.setOut(new PrintStream(new OutputStream() { public void write(int b) {} }));
+            long start = System.nanoTime();
+            try {
+                for (Appointment request : requests) {
+                    if (appointmentService.scheduleAppointment(request)) {
+                        booked++;
+                    }
+                }
+            } finally {
+                System.setOut(console);
+            }
+            double bookingMicros = (System.nanoTime() - start) / 1000.0 / BOOKINGS;
+
+            start = System.nanoTime();
+            for (int k = 0; k < SCAN_LOOKUPS; k++) {
+                scanForConflict(history, requests.get(k));
+            }
+            double scanMicros = (System.nanoTime() - start) / 1000.0 / SCAN_LOOKUPS;
+
+            LocalDateTime weekStart = LocalDate.now().plusDays(1).atStartOfDay();
+            double buildMicros = 0;
+            long best = Long.MAX_VALUE;
+            for (int pass = 0; pass <= ITERATIONS; pass++) {
+                start = System.nanoTime();
+                for (int d = 1; d <= 50; d++) {
+                    appointmentService.findAvailableSlots(String.format("D%06d", d), weekStart, weekStart.plusDays(7));
+                }
+                if (pass == 0) {
+                    buildMicros = (System.nanoTime() - start) / 1000.0 / 50;
+                } else {
+                    best = Math.min(best, System.nanoTime() - start);
+                }
+            }
+            if (run > 0) {
+                System.out.printf("%-10d %10d %11.1f us %15.1f us %11.1f us %11.1f us%n", size, booked, bookingMicros,
+                                  scanMicros, buildMicros, best / 1000.0 / 50);
+            }
+        }
+    }
+
+    /**
+     * The conflict check scheduleAppointment did before it had a per-doctor interval index
+     */
+    private static boolean scanForConflict(List<Appointment> all, Appointment newAppointment) {
+        LocalDateTime newStart = newAppointment.getAppointmentDateTime();
+        LocalDateTime newEnd = newStart.plusMinutes(newAppointment.getDurationInMinutes());
+        return all.stream()
+                .filter(existing -> existing.getDoctorId().equals(newAppointment.getDoctorId()))
+                .filter(existing -> existing.getStatus() == Appointment.AppointmentStatus.SCHEDULED ||
+                                    existing.getStatus() == Appointment.AppointmentStatus.CONFIRMED)
+                .anyMatch(existing -> {
+                    LocalDateTime existingStart = existing.getAppointmentDateTime();
+                    LocalDateTime existingEnd = existingStart.plusMinutes(existing.getDurationInMinutes());
+                    return DateUtils.timePeriodsOverlap(newStart, newEnd, existingStart, existingEnd);
+                });
+    }
+
+    private static void benchmarkLookup(String label, int size, IntFunction<String> idOf,
+                                        Function<String, ?> indexed, Function<String, ?> scan) {
+        String[] keys = new String[1024];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = idOf.apply(1 + (int) ((long) i * 7919 % size));
+        }
+        // Queries with larger results get fewer lookups, so every row takes about as long
+        Object sample = indexed.apply(keys[0]);
+        int lookups = Math.max(SCAN_LOOKUPS, INDEX_LOOKUPS / Math.max(1, sample instanceof List ? ((List<?>) sample).size() : 1));
+        // Best of a few passes, after one warm-up pass
+        int found = 0;
+        long best = Long.MAX_VALUE;
+        for (int pass = 0; pass <= ITERATIONS; pass++) {
+            found = 0;
+            long start = System.nanoTime();
+            for (int i = 0; i < lookups; i++) {
+                if (isFound(indexed.apply(keys[i % keys.length]))) {
+                    found++;
+                }
+            }
+            if (pass > 0) {
+                best = Math.min(best, System.nanoTime() - start);
+            }
+        }
+        double indexNanos = (double) best / lookups;
+
+        long start = System.nanoTime();
+        for (int i = 0; i < SCAN_LOOKUPS; i++) {
+            if (isFound(scan.apply(keys[i % keys.length]))) {
+                found++;
+            }
+        }
+        double scanNanos = (double) (System.nanoTime() - start) / SCAN_LOOKUPS;
+        if (found != lookups + SCAN_LOOKUPS) {
+            System.out.println(label + " lookups missed " + (lookups + SCAN_LOOKUPS - found) + " records");
+        }
+        System.out.printf("%-20s %10d %11.0f ns %11.0f ns%n", label, size, indexNanos, scanNanos);
+    }
+
+    private static boolean isFound(Object result) {
+        return result != null && !(result instanceof List && ((List<?>) result).isEmpty());
+    }
+
+    /**
+     * The scan a find-by-key method did before it had an index
+     */
+    private static <T> Function<String, T> firstMatch(List<T> all, Function<T, String> keyExtractor) {
+        return key -> all.stream()
+                .filter(record -> key.trim().equalsIgnoreCase(keyExtractor.apply(record)))
+                .findFirst()
+                .orElse(null);
+    }
+
+    /**
+     * The scan a get-by-key method did before it had an index
+     */
+    private static <T> Function<String, List<T>> allMatches(List<T> all, Function<T, String> keyExtractor) {
+        return key -> all.stream()
+                .filter(record -> key.trim().equalsIgnoreCase(keyExtractor.apply(record)))
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * The pre-incremental backup: copy every file into a fresh directory
+     */
+    private static void timeFullCopy(DatabaseManager dbManager, String label) {
+        File copy = new File(BENCHMARK_DIRECTORY + "_full_copy");
+        long bytes = 0;
+        long start = System.nanoTime();
+        try {
+            Files.createDirectories(copy.toPath());
+            File[] files = new File(BENCHMARK_DIRECTORY).listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    Files.copy(file.toPath(), copy.toPath().resolve(file.getName()));
+                    bytes += file.length();
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        long elapsed = System.nanoTime() - start;
+        deleteDirectory(copy);
+        System.out.printf("%-28s %10.1fms %12dKB%n", label, elapsed / 1e6, bytes / 1024);
+    }
+    
+    private static void timeIncrementalBackup(DatabaseManager dbManager, String label) {
+        long start = System.nanoTime();
+        if (!dbManager.backupData()) {
+            throw new IllegalStateException("Backup failed");
+        }
+        long elapsed = System.nanoTime() - start;
+        System.out.printf("%-28s %10.1fms %12dKB%n", label, elapsed / 1e6,
+                          dbManager.getBackupStore().getBytesWritten() / 1024);
+    }
+    
+    private static <T> void benchmarkFile(DatabaseManager dbManager, String filename,
+                                          int records, IntFunction<T> generator) {
+        List<T> data = generate(records, generator);
+        // Files without a registered codec use Java serialization
+        String legacyFile = "legacy_" + filename;
+
+        long javaSave = timeSave(dbManager, data, legacyFile);
+        long codecSave = timeSave(dbManager, data, filename);
+        long javaLoad = timeLoad(dbManager, legacyFile, records);
+        long codecLoad = timeLoad(dbManager, filename, records);
+
+        System.out.printf("%-22s %10.1fms %10.1fms %10.1fms %10.1fms %10dKB %10dKB%n", filename,
+                          javaSave / 1e6, codecSave / 1e6, javaLoad / 1e6, codecLoad / 1e6,
+                          dbManager.getFileSize(legacyFile) / 1024, dbManager.getFileSize(filename) / 1024);
+    }
+
+    /**
+     * Compare file size against save time and load throughput for each compression level
+     */
+    public static void runCompressionBenchmark(int records) {
+        DatabaseManager dbManager = openBenchmarkDirectory();
+        System.out.println("\n=== Compression Benchmark (" + records + " records per file) ===");
+        System.out.printf("%-22s %6s %12s %8s %12s %12s %14s%n",
+                          "File", "Level", "Size", "Ratio", "Save", "Load", "Load rate");
+
+        benchmarkCompression(dbManager, BillingService.BILLS_FILE, records, PerformanceBenchmark::sampleBill);
+        benchmarkCompression(dbManager, EHRService.HEALTH_RECORDS_FILE, records, PerformanceBenchmark::sampleHealthRecord);
+        benchmarkCompression(dbManager, PatientService.PATIENTS_FILE, records, PerformanceBenchmark::samplePatient);
+
+        deleteDirectory(new File(BENCHMARK_DIRECTORY));
+    }
+
+    private static <T> void benchmarkCompression(DatabaseManager dbManager, String filename,
+                                                 int records, IntFunction<T> generator) {
+        List<T> data = generate(records, generator);
+        long plainSize = 0;
+        for (int level : COMPRESSION_LEVELS) {
+            dbManager.setCompressionLevel(filename, level);
+            long save = timeSave(dbManager, data, filename);
+            long load = timeLoad(dbManager, filename, records);
+            long size = dbManager.getFileSize(filename);
+            if (level == Deflater.NO_COMPRESSION) {
+                plainSize = size;
+            }
+            System.out.printf("%-22s %6d %10dKB %7.2fx %10.1fms %10.1fms %9.0fk rec/s%n", filename, level,
+                              size / 1024, (double) plainSize / size, save / 1e6, load / 1e6,
+                              records / (load / 1e9) / 1000);
+        }
+        dbManager.setCompressionLevel(filename, Deflater.NO_COMPRESSION);
+    }
+
+    /**
+     * Best-of time to save a list, after one warm-up run
+     */
+    private static <T> long timeSave(DatabaseManager dbManager, List<T> data, String filename) {
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i <= ITERATIONS; i++) {
+            long start = System.nanoTime();
+            dbManager.saveData(data, filename);
+            long elapsed = System.nanoTime() - start;
+            if (i > 0) {
+                best = Math.min(best, elapsed);
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Best-of time to load a file, after one warm-up run
+     */
+    private static long timeLoad(DatabaseManager dbManager, String filename, int expected) {
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i <= ITERATIONS; i++) {
+            long start = System.nanoTime();
+            List<Object> loaded = dbManager.loadData(filename);
+            long elapsed = System.nanoTime() - start;
+            if (loaded.size() != expected) {
+                throw new IllegalStateException("Loaded " + loaded.size() + " records from " + filename);
+            }
+            if (i > 0) {
+                best = Math.min(best, elapsed);
+            }
+        }
+        return best;
+    }
+
+    static <T> List<T> generate(int count, IntFunction<T> generator) {
+        List<T> data = new ArrayList<>(count);
+        for (int i = 1; i <= count; i++) {
+            data.add(generator.apply(i));
+        }
+        return data;
+    }
+
+    /**
+     * Open the benchmark directory with the services' codecs registered
+     */
+    static DatabaseManager openBenchmarkDirectory() {
+        DatabaseManager dbManager = DatabaseManager.forDirectory(BENCHMARK_DIRECTORY);
+        StorageSetup.registerCodecs(dbManager);
+        return dbManager;
+    }
+
+    static void deleteDirectory(File directory) {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.isDirectory()) {
+                    deleteDirectory(file);
+                } else {
+                    file.delete();
+                }
+            }
+        }
+        directory.delete();
+    }
+
+    // Synthetic record generators
+
+    static Patient samplePatient(int i) {
+        Patient patient = new Patient(String.format("P%06d", i), "First" + i, "Last" + i,
+                                      LocalDate.of(1950 + i % 60, 1 + i % 12, 1 + i % 28),
+                                      i % 2 == 0 ? "Male" : "Female", "555-" + (1000 + i % 9000));
+        patient.setEmail("patient" + i + "@email.com");
+        patient.setAddress(i + " Main St, City, State 12345");
+        patient.setBloodGroup("O+");
+        patient.setEmergencyContact("Contact " + i);
+        patient.setEmergencyPhone("555-0000");
+        patient.addAllergy("Penicillin");
+        patient.setActive(i % 10 != 0);
+        return patient;
+    }
+
+    static Appointment sampleAppointment(int i) {
+        Appointment appointment = new Appointment(String.format("A%06d", i), String.format("P%06d", i),
+                                                  String.format("D%04d", 1 + i % 50),
+                                                  LocalDateTime.of(2025, 1, 1, 9, 0).plusMinutes(30L * i),
+                                                  "Routine checkup");
+        appointment.setConsultationFee(150.0);
+        appointment.setStatus(Appointment.AppointmentStatus.values()[i % 6]);
+        return appointment;
+    }
+
+    static Bill sampleBill(int i) {
+        Bill bill = new Bill(String.format("B%06d", i), String.format("P%06d", i), String.format("A%06d", i));
+        bill.addItem("Consultation Fee - Visit " + i, 1, 150.00);
+        bill.addItem("Blood Test - Complete Blood Count, sample " + i, 1, 45.00);
+        bill.setTaxAmount(19.50);
+        bill.calculateTotals();
+        bill.setPaidAmount(i % 3 == 0 ? bill.getTotalAmount() : 0);
+        return bill;
+    }
+
+    static HealthRecord sampleHealthRecord(int i) {
+        HealthRecord record = new HealthRecord(String.format("HR%06d", i), String.format("P%06d", i % 20000),
+                                               String.format("D%04d", 1 + i % 50), "Persistent headache and fatigue");
+        // Vary text per record so Java serialization cannot share string instances across records
+        record.setSymptoms("Headache, fatigue, mild fever, difficulty sleeping for the past " + (1 + i % 14) + " days");
+        record.setDiagnosis(i % 2 == 0 ? "Tension headache" : "Viral infection");
+        record.setTreatment("Rest, hydration, over-the-counter pain relief as needed, review in " + (i % 30) + " days");
+        record.addPrescription("Paracetamol 500mg - twice daily for " + (3 + i % 5) + " days");
+        record.setLabResults("CBC within normal limits. CRP " + (i % 20) + " mg/L.");
+        record.setNotes("Visit " + i + ": patient advised to return if symptoms persist beyond one week.");
+        record.setHeight(170);
+        record.setWeight(70);
+        record.setBloodPressure("120/80");
+        record.setTemperature(37.2);
+        record.setHeartRate(72);
+        return record;
+    }
+
+    static MedicalSupply sampleSupply(int i) {
+        MedicalSupply supply = new MedicalSupply(String.format("MS%06d", i), "Supply " + i,
+                                                 MedicalSupply.SupplyCategory.values()[i % 6], 100 + i % 500, 50);
+        supply.setDescription("Standard hospital supply item " + i);
+        supply.setManufacturer("MedCorp Inc.");
+        supply.setUnitPrice(2.5);
+        supply.setUnit("pieces");
+        supply.setExpiryDate(LocalDate.of(2027, 1, 1).plusDays(i % 365));
+        supply.setSupplier("Medical Supplies Ltd.");
+        supply.setStorageLocation("Storage Room " + (i % 20));
+        return supply;
+    }
+
+    static Doctor sampleDoctor(int i) {
+        Doctor doctor = new Doctor(String.format("D%06d", i), "Doc" + i, "Tor" + i, "General Medicine", "555-0100");
+        doctor.setQualification("MD");
+        doctor.setEmail("doctor" + i + "@hospital.com");
+        doctor.setDepartment("General Medicine");
+        doctor.setConsultationFee(150.0);
+        doctor.setStartTime(LocalTime.of(9, 0));
+        doctor.setEndTime(LocalTime.of(17, 0));
+        doctor.setWorkingDays(new ArrayList<>(Arrays.asList("MONDAY", "TUESDAY", "WEDNESDAY", "THURSDAY", "FRIDAY")));
+        doctor.setExperienceYears(i % 30);
+        doctor.setLicenseNumber("LIC" + i);
+        return doctor;
+    }
+
+    static Staff sampleStaff(int i) {
+        Staff staff = new Staff(String.format("S%06d", i), "Staff" + i, "Member" + i,
+                                Staff.StaffRole.values()[i % 9], "Operations");
+        staff.setPhoneNumber("555-0200");
+        staff.setEmail("staff" + i + "@hospital.com");
+        staff.setDateOfBirth(LocalDate.of(1970 + i % 30, 6, 15));
+        staff.setGender("Female");
+        staff.setSalary(50000);
+        staff.setShiftStartTime(LocalTime.of(8, 0));
+        staff.setShiftEndTime(LocalTime.of(16, 0));
+        staff.setWorkingDays(new ArrayList<>(Arrays.asList("MONDAY", "WEDNESDAY", "FRIDAY")));
+        return staff;
+    }
+}
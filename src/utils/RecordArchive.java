@@ -0,0 +1,74 @@
+package utils;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * RecordArchive interface for the cold tier of a data file: records that are no longer
+ * part of the working set, moved out of the hot file but still found by key
+ */
+public interface RecordArchive<T> {
+
+    /**
+     * Get the archived record stored under a key, or null
+     */
+    T get(String key);
+
+    boolean contains(String key);
+
+    /**
+     * Get all archived keys
+     */
+    List<String> keys();
+
+    int size();
+
+    /**
+     * Pass the current copy of every archived record to the consumer, one at a time
+     */
+    void forEach(Consumer<? super T> consumer);
+
+    /**
+     * Add records to the archive; a record archived again replaces its older copy
+     */
+    void append(List<T> records) throws IOException;
+
+    /**
+     * Pick up records other processes archived since the archive was opened
+     */
+    default void refresh() {
+    }
+
+    /**
+     * Find a record by key in the hot list, falling through to the archive
+     */
+    default T find(IndexedList<T> hot, String key) {
+        if (!ValidationUtils.isNotEmpty(key)) {
+            return null;
+        }
+        T record = hot.getByKey(key);
+        return record != null ? record : get(key);
+    }
+
+    /**
+     * Put a changed archived record back into the hot list, where it takes precedence over
+     * the archived copy. Returns true if it was added.
+     */
+    default boolean restore(IndexedList<T> hot, String key, T record) {
+        if (!ValidationUtils.isNotEmpty(key) || hot.containsKey(key) || !contains(key)) {
+            return false;
+        }
+        hot.add(record);
+        return true;
+    }
+
+    /**
+     * Get the keys of the hot list and of the archive, whose keys stay taken
+     */
+    default List<String> allKeys(IndexedList<T> hot) {
+        List<String> keys = hot.keys();
+        keys.addAll(keys());
+        return keys;
+    }
+}
@@ -0,0 +1,25 @@
+package utils;
+
+import java.io.IOException;
+
+/**
+ * RecordCodec interface for hand-written binary encoding of a model class.
+ * Fields are written in a fixed order; the version is stored in the file header
+ * so older files can still be decoded after fields are added.
+ */
+public interface RecordCodec<T> {
+
+    /**
+     * Name stored in the file header to identify the record type
+     */
+    String getName();
+
+    /**
+     * Current format version written by encode
+     */
+    int getVersion();
+
+    void encode(T record, RecordWriter out);
+
+    T decode(RecordReader in, int version) throws IOException;
+}
@@ -0,0 +1,71 @@
+package utils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * RecordCursor class for scanning a data file one record at a time without
+ * materializing it. Snapshot records are decoded as they are read; when a key
+ * extractor is given, records changed in the write-ahead log replace their
+ * snapshot version and records only present in the log follow at the end.
+ * Memory use is bounded by the log, which checkpoints keep short.
+ */
+public class RecordCursor<T> implements Closeable {
+    private final DataFileReader<T> reader;
+    private final Iterator<T> legacy;
+    private final Map<String, T> logged;
+    private final Function<T, String> keyExtractor;
+    private Iterator<T> tail;
+
+    RecordCursor(DataFileReader<T> reader, Iterator<T> legacy,
+                 Map<String, T> logged, Function<T, String> keyExtractor) {
+        this.reader = reader;
+        this.legacy = legacy;
+        this.logged = logged != null ? logged : new LinkedHashMap<>();
+        this.keyExtractor = keyExtractor;
+    }
+
+    /**
+     * Cursor over an in-memory list, used for older Java-serialized files
+     */
+    static <T> RecordCursor<T> ofList(List<T> records, Map<String, T> logged, Function<T, String> keyExtractor) {
+        return new RecordCursor<>(null, records.iterator(), logged, keyExtractor);
+    }
+
+    /**
+     * Return the next record, or null once every record has been returned
+     */
+    public T next() throws IOException {
+        if (tail == null) {
+            T record = readSnapshot();
+            if (record != null) {
+                if (logged.isEmpty()) {
+                    return record;
+                }
+                T replacement = logged.remove(ValidationUtils.formatId(keyExtractor.apply(record)));
+                return replacement != null ? replacement : record;
+            }
+            tail = logged.values().iterator();
+        }
+        return tail.hasNext() ? tail.next() : null;
+    }
+
+    private T readSnapshot() throws IOException {
+        if (reader != null) {
+            return reader.next();
+        }
+        return legacy != null && legacy.hasNext() ? legacy.next() : null;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (reader != null) {
+            reader.close();
+        }
+    }
+}
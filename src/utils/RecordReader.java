@@ -0,0 +1,156 @@
+package utils;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * RecordReader class for decoding fields written by RecordWriter
+ */
+public class RecordReader {
+    private byte[] buffer;
+    private int position;
+    private int limit;
+
+    public RecordReader(byte[] buffer) {
+        this(buffer, 0, buffer.length);
+    }
+
+    public RecordReader(byte[] buffer, int offset, int length) {
+        reset(buffer, offset, length);
+    }
+
+    /**
+     * Point the reader at a new record so it can be reused
+     */
+    public void reset(byte[] buffer, int offset, int length) {
+        this.buffer = buffer;
+        this.position = offset;
+        this.limit = offset + length;
+    }
+
+    public boolean hasRemaining() {
+        return position < limit;
+    }
+
+    public int readByte() throws IOException {
+        if (position >= limit) {
+            throw new IOException("Unexpected end of record");
+        }
+        return buffer[position++] & 0xFF;
+    }
+
+    public boolean readBoolean() throws IOException {
+        return readByte() != 0;
+    }
+
+    public long readVarLong() throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = readByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    public int readVarInt() throws IOException {
+        return (int) readVarLong();
+    }
+
+    public long readSignedVarLong() throws IOException {
+        long value = readVarLong();
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    public double readDouble() throws IOException {
+        if (limit - position < 8) {
+            throw new IOException("Unexpected end of record");
+        }
+        long bits = 0;
+        for (int i = 0; i < 8; i++) {
+            bits = (bits << 8) | (buffer[position++] & 0xFF);
+        }
+        return Double.longBitsToDouble(bits);
+    }
+
+    public String readString() throws IOException {
+        int length = readVarInt() - 1;
+        if (length < 0) {
+            return null;
+        }
+        if (length > limit - position) {
+            throw new IOException("String length exceeds record");
+        }
+        String value = new String(buffer, position, length, StandardCharsets.UTF_8);
+        position += length;
+        return value;
+    }
+
+    /**
+     * Read the size of a collection. Every element takes at least one byte, so a size larger
+     * than the rest of the record, or a negative one, can only come from a damaged record and
+     * is rejected before anything is allocated for it.
+     */
+    public int readCount() throws IOException {
+        return checkCount(readVarLong());
+    }
+
+    private int checkCount(long count) throws IOException {
+        if (count < 0 || count > limit - position) {
+            throw new IOException("Collection size " + count + " exceeds record");
+        }
+        return (int) count;
+    }
+
+    public List<String> readStringList() throws IOException {
+        long size = readVarLong();
+        if (size == 0) {
+            return null;
+        }
+        int count = checkCount(size - 1);
+        List<String> values = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            values.add(readString());
+        }
+        return values;
+    }
+
+    public <E extends Enum<E>> E readEnum(E[] values) throws IOException {
+        int ordinal = readVarInt() - 1;
+        if (ordinal < 0) {
+            return null;
+        }
+        if (ordinal >= values.length) {
+            throw new IOException("Unknown enum ordinal " + ordinal);
+        }
+        return values[ordinal];
+    }
+
+    public LocalDate readDate() throws IOException {
+        if (readVarInt() == 0) {
+            return null;
+        }
+        return LocalDate.ofEpochDay(readSignedVarLong());
+    }
+
+    public LocalDateTime readDateTime() throws IOException {
+        if (readVarInt() == 0) {
+            return null;
+        }
+        long epochSecond = readSignedVarLong();
+        return LocalDateTime.ofEpochSecond(epochSecond, readVarInt(), ZoneOffset.UTC);
+    }
+
+    public LocalTime readTime() throws IOException {
+        int secondOfDay = readVarInt() - 1;
+        return secondOfDay < 0 ? null : LocalTime.ofSecondOfDay(secondOfDay);
+    }
+}
@@ -0,0 +1,46 @@
+package utils;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * RecordStore interface for keyed record collections that are looked up by key or by a
+ * group key instead of being held as one list by the service
+ */
+public interface RecordStore<T> {
+
+    /**
+     * Get the record stored under a key, or null
+     */
+    T get(String key);
+
+    boolean contains(String key);
+
+    /**
+     * Get every record whose group key matches
+     */
+    List<T> getByGroup(String groupKey);
+
+    /**
+     * Pass every record to the consumer, one at a time
+     */
+    void forEach(Consumer<? super T> consumer);
+
+    /**
+     * Get all record keys in insertion order
+     */
+    List<String> keys();
+
+    int size();
+
+    /**
+     * Insert or replace a record; the change is durable when this returns
+     */
+    void put(T record) throws IOException;
+
+    /**
+     * Insert or replace several records at once
+     */
+    void putAll(List<T> records) throws IOException;
+}
@@ -0,0 +1,146 @@
+package utils;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.ZoneOffset;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * RecordWriter class for encoding record fields into a compact binary form.
+ * Integers are written as varints, strings as length-prefixed UTF-8 and
+ * dates as epoch days / epoch seconds. Nullable values use 0 as the null marker.
+ */
+public class RecordWriter {
+    private byte[] buffer;
+    private int size;
+
+    public RecordWriter() {
+        this(256);
+    }
+
+    public RecordWriter(int initialCapacity) {
+        this.buffer = new byte[initialCapacity];
+    }
+
+    /**
+     * Discard the written bytes so the writer can be reused for the next record
+     */
+    public void reset() {
+        size = 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public byte[] buffer() {
+        return buffer;
+    }
+
+    public byte[] toByteArray() {
+        return Arrays.copyOf(buffer, size);
+    }
+
+    private void ensureCapacity(int extra) {
+        if (size + extra > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, size + extra));
+        }
+    }
+
+    public void writeByte(int value) {
+        ensureCapacity(1);
+        buffer[size++] = (byte) value;
+    }
+
+    public void writeBytes(byte[] bytes, int offset, int length) {
+        ensureCapacity(length);
+        System.arraycopy(bytes, offset, buffer, size, length);
+        size += length;
+    }
+
+    public void writeBoolean(boolean value) {
+        writeByte(value ? 1 : 0);
+    }
+
+    /**
+     * Write an unsigned varint (7 bits per byte)
+     */
+    public void writeVarLong(long value) {
+        ensureCapacity(10);
+        while ((value & ~0x7FL) != 0) {
+            buffer[size++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buffer[size++] = (byte) value;
+    }
+
+    public void writeVarInt(int value) {
+        writeVarLong(value & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Write a signed value using zig-zag encoding so small negatives stay small
+     */
+    public void writeSignedVarLong(long value) {
+        writeVarLong((value << 1) ^ (value >> 63));
+    }
+
+    public void writeDouble(double value) {
+        long bits = Double.doubleToLongBits(value);
+        ensureCapacity(8);
+        for (int i = 56; i >= 0; i -= 8) {
+            buffer[size++] = (byte) (bits >>> i);
+        }
+    }
+
+    public void writeString(String value) {
+        if (value == null) {
+            writeVarInt(0);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeVarInt(bytes.length + 1);
+        writeBytes(bytes, 0, bytes.length);
+    }
+
+    public void writeStringList(List<String> values) {
+        if (values == null) {
+            writeVarInt(0);
+            return;
+        }
+        writeVarInt(values.size() + 1);
+        for (String value : values) {
+            writeString(value);
+        }
+    }
+
+    public void writeEnum(Enum<?> value) {
+        writeVarInt(value == null ? 0 : value.ordinal() + 1);
+    }
+
+    public void writeDate(LocalDate date) {
+        if (date == null) {
+            writeVarInt(0);
+            return;
+        }
+        writeVarInt(1);
+        writeSignedVarLong(date.toEpochDay());
+    }
+
+    public void writeDateTime(LocalDateTime dateTime) {
+        if (dateTime == null) {
+            writeVarInt(0);
+            return;
+        }
+        writeVarInt(1);
+        writeSignedVarLong(dateTime.toEpochSecond(ZoneOffset.UTC));
+        writeVarInt(dateTime.getNano());
+    }
+
+    public void writeTime(LocalTime time) {
+        writeVarInt(time == null ? 0 : time.toSecondOfDay() + 1);
+    }
+}
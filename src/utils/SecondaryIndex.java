@@ -0,0 +1,95 @@
+package utils;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * SecondaryIndex class for finding values by a key that many of them share, such as the
+ * appointments of a patient or the bill of an appointment. Each normalized key
+ * (ValidationUtils.formatId) has a posting list of its values in the order they were added,
+ * so a query costs the size of its result instead of a scan of every value. Values with an
+ * empty key are not indexed. The key a value was filed under is remembered, so it is removed
+ * from the right posting list even if its key was changed in place.
+ */
+public class SecondaryIndex<T> implements ElementIndex<T> {
+    private final Function<T, String> keyExtractor;
+    private final Map<String, List<T>> postings = new HashMap<>();
+    private final Map<T, String> filedUnder = new HashMap<>();
+
+    /**
+     * Create an index whose values are filed with add(key, value)
+     */
+    public SecondaryIndex() {
+        this(null);
+    }
+
+    /**
+     * Create an index whose values are filed under the key the extractor gives
+     */
+    public SecondaryIndex(Function<T, String> keyExtractor) {
+        this.keyExtractor = keyExtractor;
+    }
+
+    /**
+     * Get the values filed under a key, ignoring case and surrounding spaces
+     */
+    public List<T> get(String key) {
+        List<T> posting = postings.get(ValidationUtils.formatId(key));
+        return posting != null ? new ArrayList<>(posting) : new ArrayList<>();
+    }
+
+    /**
+     * Get the first value filed under a key, or null
+     */
+    public T getFirst(String key) {
+        List<T> posting = postings.get(ValidationUtils.formatId(key));
+        return posting != null ? posting.get(0) : null;
+    }
+
+    public boolean containsKey(String key) {
+        return postings.containsKey(ValidationUtils.formatId(key));
+    }
+
+    @Override
+    public void add(T value) {
+        add(keyExtractor.apply(value), value);
+    }
+
+    public void add(String key, T value) {
+        String normalized = ValidationUtils.formatId(key);
+        if (normalized.isEmpty()) {
+            return;
+        }
+        postings.computeIfAbsent(normalized, k -> new ArrayList<>(2)).add(value);
+        filedUnder.put(value, normalized);
+    }
+
+    @Override
+    public void remove(T value) {
+        String key = filedUnder.remove(value);
+        if (key == null && keyExtractor != null) {
+            // A second copy of an equal value was filed under its own key
+            key = ValidationUtils.formatId(keyExtractor.apply(value));
+        }
+        List<T> posting = postings.get(key);
+        if (posting != null && posting.remove(value) && posting.isEmpty()) {
+            postings.remove(key);
+        }
+    }
+
+    @Override
+    public void refresh(T value) {
+        if (keyExtractor != null && !ValidationUtils.formatId(keyExtractor.apply(value)).equals(filedUnder.get(value))) {
+            ElementIndex.super.refresh(value);
+        }
+    }
+
+    @Override
+    public void clear() {
+        postings.clear();
+        filedUnder.clear();
+    }
+}
@@ -0,0 +1,88 @@
+package utils;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * SerializedFileStorageEngine class for the classic whole-file format: every change
+ * rewrites the complete data file (binary codec where registered, Java serialization
+ * otherwise). Simple and compact on disk, but each save costs time proportional to the file.
+ * A file must be loaded or saved whole through the engine before single records are saved.
+ */
+public class SerializedFileStorageEngine implements StorageEngine {
+    private final DatabaseManager dbManager;
+    private final Map<String, Map<String, Object>> current = new ConcurrentHashMap<>();
+
+    public SerializedFileStorageEngine(DatabaseManager dbManager) {
+        this.dbManager = dbManager;
+    }
+
+    @Override
+    public String getName() {
+        return "serialized-file";
+    }
+
+    @Override
+    public <T> List<T> load(String filename, Function<T, String> keyExtractor) {
+        List<T> data = dbManager.loadData(filename);
+        Map<String, Object> records = new LinkedHashMap<>();
+        for (T record : data) {
+            records.put(ValidationUtils.formatId(keyExtractor.apply(record)), record);
+        }
+        current.put(filename, records);
+        return data;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> boolean saveRecords(String filename, List<String> keys, List<T> records) {
+        Map<String, Object> stored = current.get(filename);
+        if (stored == null) {
+            // Without the full keyed content the rewritten file would lose records
+            System.err.println("Cannot save " + filename + " before it is loaded");
+            return false;
+        }
+        synchronized (stored) {
+            Map<String, Object> updated = new LinkedHashMap<>(stored);
+            for (int i = 0; i < keys.size(); i++) {
+                updated.put(ValidationUtils.formatId(keys.get(i)), records.get(i));
+            }
+            if (!dbManager.saveData(new ArrayList<>((Collection<T>) updated.values()), filename)) {
+                return false;
+            }
+            stored.clear();
+            stored.putAll(updated);
+            return true;
+        }
+    }
+
+    @Override
+    public <T> boolean saveAll(String filename, List<T> data, Function<T, String> keyExtractor) {
+        Map<String, Object> records = new LinkedHashMap<>();
+        for (T record : data) {
+            records.put(ValidationUtils.formatId(keyExtractor.apply(record)), record);
+        }
+        if (!dbManager.saveData(data, filename)) {
+            return false;
+        }
+        current.put(filename, records);
+        return true;
+    }
+
+    @Override
+    public boolean delete(String filename) {
+        current.remove(filename);
+        return dbManager.deleteFile(filename) || !dbManager.fileExists(filename);
+    }
+
+    @Override
+    public <T> RecordArchive<T> openArchive(String filename, Function<T, String> keyExtractor) throws IOException {
+        return dbManager.openArchive(filename, keyExtractor);
+    }
+}
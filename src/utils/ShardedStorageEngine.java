@@ -0,0 +1,497 @@
+package utils;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Function;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * ShardedStorageEngine class for splitting large data files into shards by a hash of the
+ * normalized record ID. Each shard is an ordinary data file of the wrapped engine, so a write
+ * touches only the shards of its records (and a whole-file engine rewrites only those), and
+ * the shards of a file are loaded in parallel. Files without a configured shard count are
+ * passed through unchanged.
+ *
+ * The shard map of a file is stored next to it and records the shard count; an unsharded
+ * file is split on first load, and a changed shard count rewrites the shards under a new
+ * generation of file names before the map switches to them. Saving the whole file stages
+ * the records under the next generation's names, commits them in the map, and then copies
+ * them over the current shards, which keep their names so other processes go on following
+ * them; the next load finishes a copy that was interrupted. Shards do not record where their
+ * records sat in the whole file, so a load returns the records in normalized ID order.
+ */
+public class ShardedStorageEngine implements StorageEngine {
+    static final String MAP_SUFFIX = ".shards";
+    private static final Pattern SHARD_FILE = Pattern.compile("(.*)\\.shard\\d+\\.\\d+(\\.dat)");
+
+    private final StorageEngine delegate;
+    private final Map<String, Integer> shardCounts;
+    private final Executor loader;
+    private final Map<String, ShardMap> maps = new ConcurrentHashMap<>();
+    private final Map<String, List<CompletableFuture<List<Object>>>> preloaded = new ConcurrentHashMap<>();
+    // Writes to the current shards hold the read lock; replacing or switching the layout holds the write lock
+    private final ReadWriteLock layoutLock = new ReentrantReadWriteLock();
+
+    /**
+     * Layout of one sharded data file, stored in its map file
+     */
+    static class ShardMap implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        final String filename;
+        final int generation;
+        final int shardCount;
+        // Files of the previous layout that are still to be deleted
+        final List<String> obsolete;
+        // Generation of the staged shards of a whole-file save still to be copied over these, or 0
+        final int staged;
+
+        ShardMap(String filename, int generation, int shardCount, List<String> obsolete) {
+            this(filename, generation, shardCount, obsolete, 0);
+        }
+
+        ShardMap(String filename, int generation, int shardCount, List<String> obsolete, int staged) {
+            this.filename = filename;
+            this.generation = generation;
+            this.shardCount = shardCount;
+            this.obsolete = obsolete;
+            this.staged = staged;
+        }
+
+        String getFilename() {
+            return filename;
+        }
+
+        int shardOf(String key) {
+            return Math.floorMod(ValidationUtils.formatId(key).hashCode(), shardCount);
+        }
+
+        String shardFile(int shard) {
+            return ShardedStorageEngine.shardFile(filename, generation, shard);
+        }
+
+        List<String> shardFiles() {
+            List<String> files = new ArrayList<>();
+            for (int i = 0; i < shardCount; i++) {
+                files.add(shardFile(i));
+            }
+            return files;
+        }
+    }
+
+    /**
+     * Shards are loaded on the common pool; on a single processor they are loaded one after
+     * another, since concurrent loads there only compete for the processor and the heap
+     */
+    public ShardedStorageEngine(StorageEngine delegate, Map<String, Integer> shardCounts) {
+        this(delegate, shardCounts, ForkJoinPool.getCommonPoolParallelism() > 1 ? ForkJoinPool.commonPool() : Runnable::run);
+    }
+
+    /**
+     * @param shardCounts number of shards per data file name
+     * @param loader executor that loads the shards of a file in parallel
+     */
+    public ShardedStorageEngine(StorageEngine delegate, Map<String, Integer> shardCounts, Executor loader) {
+        for (Map.Entry<String, Integer> entry : shardCounts.entrySet()) {
+            if (entry.getValue() < 1) {
+                throw new IllegalArgumentException("Invalid shard count for " + entry.getKey() + ": " + entry.getValue());
+            }
+        }
+        this.delegate = delegate;
+        this.shardCounts = new ConcurrentHashMap<>(shardCounts);
+        this.loader = loader;
+    }
+
+    /**
+     * Name of a shard file: patients.dat becomes patients.shard1.03.dat
+     */
+    static String shardFile(String filename, int generation, int shard) {
+        int extension = filename.lastIndexOf('.');
+        String base = extension > 0 ? filename.substring(0, extension) : filename;
+        String suffix = extension > 0 ? filename.substring(extension) : "";
+        return String.format("%s.shard%d.%02d%s", base, generation, shard, suffix);
+    }
+
+    /**
+     * Name of the data file a shard file belongs to, or the name itself if it is not a shard
+     */
+    static String baseFile(String filename) {
+        Matcher matcher = SHARD_FILE.matcher(filename);
+        return matcher.matches() ? matcher.group(1) + matcher.group(2) : filename;
+    }
+
+    @Override
+    public String getName() {
+        return "sharded " + delegate.getName();
+    }
+
+    public boolean isSharded(String filename) {
+        return shardCounts.containsKey(filename);
+    }
+
+    /**
+     * Current shard files of a sharded data file, opening (and if needed migrating) its shard map
+     */
+    public <T> List<String> getShardFiles(String filename, Function<T, String> keyExtractor) {
+        return getMap(filename, keyExtractor).shardFiles();
+    }
+
+    /**
+     * Start loading the shards of a data file on the given executor. A later load of the
+     * file waits for these results instead of reading the shards again.
+     */
+    public <T> void preload(String filename, Function<T, String> keyExtractor, Executor executor) {
+        if (!isSharded(filename)) {
+            return;
+        }
+        preloaded.put(filename, startLoads(getMap(filename, keyExtractor), keyExtractor, executor));
+    }
+
+    /**
+     * Load every shard in parallel and merge them in normalized ID order
+     */
+    @Override
+    public <T> List<T> load(String filename, Function<T, String> keyExtractor) {
+        if (!isSharded(filename)) {
+            return delegate.load(filename, keyExtractor);
+        }
+        List<CompletableFuture<List<Object>>> loads = preloaded.remove(filename);
+        if (loads != null) {
+            return merge(loads, keyExtractor);
+        }
+        // Split or reshard first; the shards are then read while no save can switch the layout
+        getMap(filename, keyExtractor);
+        layoutLock.readLock().lock();
+        try {
+            return merge(startLoads(getStoredMap(filename), keyExtractor, loader), keyExtractor);
+        } finally {
+            layoutLock.readLock().unlock();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> List<T> merge(List<CompletableFuture<List<Object>>> loads, Function<T, String> keyExtractor) {
+        List<T> records = new ArrayList<>();
+        for (CompletableFuture<List<Object>> shard : loads) {
+            records.addAll((List<T>) shard.join());
+        }
+        // Sequential IDs make every shard an ascending run, so this is a cheap merge. Records
+        // without an ID sort first; the sort is stable, so equal IDs keep their shard order.
+        records.sort(Comparator.comparing(record -> ValidationUtils.formatId(keyExtractor.apply(record))));
+        return records;
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> List<CompletableFuture<List<Object>>> startLoads(ShardMap map, Function<T, String> keyExtractor,
+                                                                 Executor executor) {
+        List<CompletableFuture<List<Object>>> loads = new ArrayList<>();
+        for (String shard : map.shardFiles()) {
+            loads.add(CompletableFuture.supplyAsync(() -> (List<Object>) delegate.load(shard, keyExtractor), executor));
+        }
+        return loads;
+    }
+
+    /**
+     * Records of a single shard go straight to it; records spread over several shards are
+     * committed as one unit, which the log-structured engine makes atomic
+     */
+    @Override
+    public <T> boolean saveRecords(String filename, List<String> keys, List<T> records) {
+        if (!isSharded(filename)) {
+            return delegate.saveRecords(filename, keys, records);
+        }
+        layoutLock.readLock().lock();
+        try {
+            ShardMap map = getStoredMap(filename);
+            if (map == null || map.staged != 0) {
+                // Splitting an unsharded file, or finishing an interrupted save, needs the file's keys
+                System.err.println("Cannot save " + filename + " before it is loaded");
+                return false;
+            }
+            UnitOfWork work = new UnitOfWork(delegate);
+            addRecords(work, map, keys, records);
+            if (work.getFilenames().size() == 1) {
+                String shard = work.getFilenames().iterator().next();
+                return delegate.saveRecords(shard, work.getKeys(shard), work.getRecords(shard));
+            }
+            return delegate.commit(work);
+        } finally {
+            layoutLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Translate a unit of work on data files into one on their shards
+     */
+    @Override
+    public boolean commit(UnitOfWork work) {
+        layoutLock.readLock().lock();
+        try {
+            UnitOfWork shards = new UnitOfWork(delegate);
+            for (String filename : work.getFilenames()) {
+                if (!isSharded(filename)) {
+                    List<String> keys = work.getKeys(filename);
+                    for (int i = 0; i < keys.size(); i++) {
+                        shards.add(filename, keys.get(i), work.getRecords(filename).get(i));
+                    }
+                    continue;
+                }
+                ShardMap map = getStoredMap(filename);
+                if (map == null || map.staged != 0) {
+                    System.err.println("Cannot save " + filename + " before it is loaded");
+                    return false;
+                }
+                addRecords(shards, map, work.getKeys(filename), work.getRecords(filename));
+            }
+            return delegate.commit(shards);
+        } finally {
+            layoutLock.readLock().unlock();
+        }
+    }
+
+    private static <T> void addRecords(UnitOfWork work, ShardMap map, List<String> keys, List<T> records) {
+        for (int i = 0; i < keys.size(); i++) {
+            work.add(map.shardFile(map.shardOf(keys.get(i))), keys.get(i), records.get(i));
+        }
+    }
+
+    /**
+     * Replace the whole file; the shard map is created if the file had none
+     */
+    @Override
+    public <T> boolean saveAll(String filename, List<T> data, Function<T, String> keyExtractor) {
+        if (!isSharded(filename)) {
+            return delegate.saveAll(filename, data, keyExtractor);
+        }
+        layoutLock.writeLock().lock();
+        try {
+            ShardMap map = getStoredMap(filename);
+            if (map == null) {
+                return migrate(filename, data, keyExtractor, null) != null;
+            }
+            return replace(map, data, keyExtractor);
+        } finally {
+            layoutLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Write the records into staging shards under the next generation's names and record them
+     * in the shard map, which is the commit point, then copy them over the current shards.
+     * Until the map is saved the current shards are untouched; after that a load finishes the
+     * copy if this one is interrupted.
+     */
+    private synchronized <T> boolean replace(ShardMap map, List<T> data, Function<T, String> keyExtractor) {
+        ShardMap staging = new ShardMap(map.filename, map.generation + 1, map.shardCount, new ArrayList<>());
+        List<List<T>> shards = partition(staging, data, keyExtractor);
+        if (!saveShards(staging, shards, keyExtractor)
+                || !saveMap(new ShardMap(map.filename, map.generation, map.shardCount, map.obsolete, staging.generation))) {
+            System.err.println("Error saving " + map.filename + " into " + map.shardCount + " shards");
+            for (String file : staging.shardFiles()) {
+                delegate.delete(file);
+            }
+            return false;
+        }
+        return finishStaged(map, staging.generation, shards, keyExtractor) != null;
+    }
+
+    /**
+     * Copy the staged shards of a whole-file save over the current shards and delete them.
+     * Without the staged records at hand they are read back from the staging shards.
+     * Returns null if a shard could not be written; the map keeps the staged shards then,
+     * and writes are refused until a load finishes the copy.
+     */
+    private synchronized <T> ShardMap finishStaged(ShardMap map, int stagedGeneration, List<List<T>> shards,
+                                                   Function<T, String> keyExtractor) {
+        ShardMap staging = new ShardMap(map.filename, stagedGeneration, map.shardCount, new ArrayList<>());
+        boolean copied = true;
+        for (int i = 0; i < map.shardCount; i++) {
+            List<T> records = shards != null ? shards.get(i) : delegate.load(staging.shardFile(i), keyExtractor);
+            copied &= delegate.saveAll(map.shardFile(i), records, keyExtractor);
+        }
+        if (!copied) {
+            System.err.println("Error copying the saved shards of " + map.filename);
+            maps.put(map.filename, new ShardMap(map.filename, map.generation, map.shardCount, map.obsolete, stagedGeneration));
+            return null;
+        }
+        ShardMap done = removeObsolete(new ShardMap(map.filename, map.generation, map.shardCount, staging.shardFiles()));
+        maps.put(map.filename, done);
+        return done;
+    }
+
+    private <T> List<List<T>> partition(ShardMap map, List<T> data, Function<T, String> keyExtractor) {
+        List<List<T>> shards = new ArrayList<>();
+        for (int i = 0; i < map.shardCount; i++) {
+            shards.add(new ArrayList<>());
+        }
+        for (T record : data) {
+            shards.get(map.shardOf(keyExtractor.apply(record))).add(record);
+        }
+        return shards;
+    }
+
+    private <T> boolean saveShards(ShardMap map, List<List<T>> shards, Function<T, String> keyExtractor) {
+        boolean saved = true;
+        for (int i = 0; i < map.shardCount; i++) {
+            saved &= delegate.saveAll(map.shardFile(i), shards.get(i), keyExtractor);
+        }
+        return saved;
+    }
+
+    @Override
+    public boolean delete(String filename) {
+        if (!isSharded(filename)) {
+            return delegate.delete(filename);
+        }
+        synchronized (this) {
+            ShardMap map = getStoredMap(filename);
+            boolean deleted = true;
+            if (map != null) {
+                for (String shard : map.shardFiles()) {
+                    deleted &= delegate.delete(shard);
+                }
+                if (map.staged != 0) {
+                    for (int i = 0; i < map.shardCount; i++) {
+                        delegate.delete(shardFile(filename, map.staged, i));
+                    }
+                }
+                deleted &= delegate.delete(filename + MAP_SUFFIX);
+            }
+            deleted &= delegate.delete(filename);
+            maps.remove(filename);
+            return deleted;
+        }
+    }
+
+    /**
+     * Record stores keep the wrapped engine's own layout
+     */
+    @Override
+    public <T> RecordStore<T> openRecordStore(String filename, Function<T, String> keyExtractor,
+                                              Function<T, String> groupExtractor) throws IOException {
+        return delegate.openRecordStore(filename, keyExtractor, groupExtractor);
+    }
+
+    @Override
+    public <T> RecordArchive<T> openArchive(String filename, Function<T, String> keyExtractor) throws IOException {
+        return delegate.openArchive(filename, keyExtractor);
+    }
+
+    @Override
+    public <T> void addChangeListener(String filename, ExternalChangeListener<T> listener) {
+        delegate.addChangeListener(filename, listener);
+    }
+
+    /**
+     * Get the shard map of a file, splitting the unsharded file, finishing an interrupted
+     * save or resharding to the configured shard count first where needed
+     */
+    private <T> ShardMap getMap(String filename, Function<T, String> keyExtractor) {
+        ShardMap map = getStoredMap(filename);
+        if (map != null && map.staged == 0 && map.shardCount == shardCounts.get(filename)) {
+            return map;
+        }
+        layoutLock.writeLock().lock();
+        try {
+            return relayout(filename, keyExtractor);
+        } finally {
+            layoutLock.writeLock().unlock();
+        }
+    }
+
+    private synchronized <T> ShardMap relayout(String filename, Function<T, String> keyExtractor) {
+        ShardMap map = getStoredMap(filename);
+        int shardCount = shardCounts.get(filename);
+        if (map != null && map.staged != 0) {
+            map = finishStaged(map, map.staged, null, keyExtractor);
+            if (map == null) {
+                throw new IllegalStateException("Could not finish saving " + filename);
+            }
+        }
+        if (map == null) {
+            map = migrate(filename, delegate.load(filename, keyExtractor), keyExtractor, null);
+        } else if (map.shardCount != shardCount) {
+            List<T> data = merge(startLoads(map, keyExtractor, loader), keyExtractor);
+            map = migrate(filename, data, keyExtractor, map);
+        }
+        if (map == null) {
+            throw new IllegalStateException("Could not create the shards of " + filename);
+        }
+        return map;
+    }
+
+    /**
+     * Get the stored shard map of a file and finish deleting the files of its previous
+     * layout if that was interrupted; null if the file has no shard map yet
+     */
+    private synchronized ShardMap getStoredMap(String filename) {
+        ShardMap map = maps.get(filename);
+        if (map != null) {
+            return map;
+        }
+        List<ShardMap> stored = delegate.load(filename + MAP_SUFFIX, ShardMap::getFilename);
+        if (stored.isEmpty()) {
+            return null;
+        }
+        map = stored.get(stored.size() - 1);
+        if (!map.obsolete.isEmpty()) {
+            map = removeObsolete(map);
+        }
+        maps.put(filename, map);
+        return map;
+    }
+
+    /**
+     * Write the records into the shards of a new layout, then switch the shard map to it.
+     * The map is the commit point: until it is saved the previous layout stays in use.
+     * Returns null if the shards or the map could not be written.
+     */
+    private synchronized <T> ShardMap migrate(String filename, List<T> data, Function<T, String> keyExtractor,
+                                              ShardMap previous) {
+        List<String> obsolete = new ArrayList<>();
+        obsolete.add(filename);
+        if (previous != null) {
+            obsolete.addAll(previous.shardFiles());
+        }
+        int generation = previous != null ? previous.generation + 1 : 1;
+        ShardMap map = new ShardMap(filename, generation, shardCounts.get(filename), obsolete);
+        if (!saveShards(map, partition(map, data, keyExtractor), keyExtractor) || !saveMap(map)) {
+            System.err.println("Error splitting " + filename + " into " + map.shardCount + " shards");
+            return null;
+        }
+        if (previous != null || !data.isEmpty()) {
+            System.out.println("Split " + filename + " (" + data.size() + " records) into "
+                               + map.shardCount + " shards");
+        }
+        map = removeObsolete(map);
+        maps.put(filename, map);
+        return map;
+    }
+
+    private ShardMap removeObsolete(ShardMap map) {
+        for (String file : map.obsolete) {
+            delegate.delete(file);
+        }
+        ShardMap clean = new ShardMap(map.filename, map.generation, map.shardCount, new ArrayList<>());
+        // If this save fails the deletion is simply repeated on the next start
+        saveMap(clean);
+        return clean;
+    }
+
+    private boolean saveMap(ShardMap map) {
+        List<ShardMap> content = new ArrayList<>();
+        content.add(map);
+        return delegate.saveAll(map.filename + MAP_SUFFIX, content, ShardMap::getFilename);
+    }
+}
@@ -0,0 +1,97 @@
+package utils;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+
+/**
+ * StorageEngine interface for the persistence backend the services are built on.
+ * Services receive an engine through their constructors; DatabaseManager and the
+ * on-disk formats are details of the file-based engines.
+ */
+public interface StorageEngine {
+
+    /**
+     * Short name used in benchmarks and log output
+     */
+    String getName();
+
+    /**
+     * Load every record of a data file, with the latest version of each key
+     */
+    <T> List<T> load(String filename, Function<T, String> keyExtractor);
+
+    /**
+     * Persist inserted or changed records of a data file, identified by their keys
+     */
+    <T> boolean saveRecords(String filename, List<String> keys, List<T> records);
+
+    /**
+     * Persist changed records in the background where the engine supports it. The future
+     * completes with the result of the write; by default the write happens immediately.
+     */
+    default <T> CompletableFuture<Boolean> saveRecordsAsync(String filename, List<String> keys, List<T> records) {
+        return CompletableFuture.completedFuture(saveRecords(filename, keys, records));
+    }
+
+    /**
+     * Persist the changes of a unit of work, which may span several data files, as one write.
+     * Engines that can be interrupted between files override this to make it atomic; by default
+     * the files are saved one after another.
+     */
+    default boolean commit(UnitOfWork work) {
+        for (String filename : work.getFilenames()) {
+            if (!saveRecords(filename, work.getKeys(filename), work.getRecords(filename))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Commit a unit of work in the background where the engine supports it
+     */
+    default CompletableFuture<Boolean> commitAsync(UnitOfWork work) {
+        return CompletableFuture.completedFuture(commit(work));
+    }
+
+    /**
+     * Replace the whole content of a data file
+     */
+    <T> boolean saveAll(String filename, List<T> data, Function<T, String> keyExtractor);
+
+    /**
+     * Remove a data file and everything stored for it. Returns true if it no longer exists;
+     * by default its content is replaced with nothing.
+     */
+    default boolean delete(String filename) {
+        return saveAll(filename, new ArrayList<>(), record -> null);
+    }
+
+    /**
+     * Open a keyed record store with a secondary group key (for example the patient ID).
+     * By default the records are loaded into memory and changes go through saveRecords;
+     * engines with an on-disk record store override this.
+     */
+    default <T> RecordStore<T> openRecordStore(String filename, Function<T, String> keyExtractor,
+                                               Function<T, String> groupExtractor) throws IOException {
+        return new LoadedRecordStore<>(this, filename, keyExtractor, groupExtractor);
+    }
+
+    /**
+     * Open the cold-tier archive of a data file. By default archived records are kept in
+     * memory; file-based engines store them in compressed archive files.
+     */
+    default <T> RecordArchive<T> openArchive(String filename, Function<T, String> keyExtractor) throws IOException {
+        return new MemoryRecordArchive<>(keyExtractor);
+    }
+
+    /**
+     * Register a listener for changes other processes make to a data file. Only engines whose
+     * files can be shared by several processes report any; by default nothing is reported.
+     */
+    default <T> void addChangeListener(String filename, ExternalChangeListener<T> listener) {
+    }
+}
@@ -0,0 +1,308 @@
+package utils;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * TransactionJournal class for the commit records of multi-file transactions.
+ * Each record lists, for every data file a transaction touches, the exact delta log frames
+ * that are appended to that file's log and the ID of the log file they go to. Appending and forcing a record is the commit point;
+ * the frames are then written to the logs without waiting for them. A log's durable content is
+ * always a prefix of what was written to it (sealing a log forces it first), so after a crash
+ * each file can only be missing the frames of its most recent transactions.
+ *
+ * The file is preallocated and records are written in place, so a commit forces only the
+ * journal's data and not the file system metadata changed by the unforced log writes.
+ * The header holds an epoch; clearing the journal increments it, and records of an older
+ * epoch further on in the file are ignored.
+ *
+ * Every process sharing a data directory has its own journal, held with a FileLock for as
+ * long as the process runs. All access goes through that one locked channel, since closing
+ * another channel to the file would release the lock.
+ */
+class TransactionJournal {
+    private static final int MAGIC = 0x484D534B; // "HMSK"; "HMSJ" journals had no log IDs
+    private static final int HEADER_SIZE = 16; // magic, epoch, CRC32C of the epoch
+    private static final int RECORD_HEADER_SIZE = 12; // epoch, payload length
+    private static final int RECORD_TRAILER_SIZE = 4; // CRC32C of the payload
+    // Journals held in this JVM; they must not even be opened again
+    private static final Set<String> held = new HashSet<>();
+
+    private final File file;
+    private final long capacity;
+    private final GroupCommit groupCommit;
+    private FileChannel channel;
+    private FileLock lock;
+    private long epoch;
+    private long size = -1;
+
+    /**
+     * The frames a transaction appends to one data file's log
+     */
+    static class Block {
+        final String logIdentity;
+        final byte[] frames;
+
+        Block(String logIdentity, byte[] frames) {
+            this.logIdentity = logIdentity;
+            this.frames = frames;
+        }
+    }
+
+    TransactionJournal(File file, long capacity, GroupCommit groupCommit) {
+        this.file = file;
+        this.capacity = capacity;
+        this.groupCommit = groupCommit;
+    }
+
+    /**
+     * Append a transaction and wait until it is durable.
+     * The payload lists per data file its name, its log's ID and the encoded log frames.
+     */
+    synchronized void append(Map<String, Block> blocks) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        DataOutputStream payload = new DataOutputStream(buffer);
+        payload.writeInt(blocks.size());
+        for (Map.Entry<String, Block> entry : blocks.entrySet()) {
+            payload.writeUTF(entry.getKey());
+            payload.writeUTF(entry.getValue().logIdentity);
+            payload.writeInt(entry.getValue().frames.length);
+            payload.write(entry.getValue().frames);
+        }
+        byte[] bytes = buffer.toByteArray();
+
+        long start = getSize();
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + bytes.length + RECORD_TRAILER_SIZE);
+        record.putLong(epoch).putInt(bytes.length).put(bytes);
+        record.putInt(Crc32c.compute(Crc32c.create(), bytes, 0, bytes.length));
+        record.flip();
+
+        // A partially written record fails its checksum and is overwritten by the next one
+        FileChannel target = openChannel();
+        long end = start + record.remaining();
+        boolean grows = end > target.size();
+        while (record.hasRemaining()) {
+            target.write(record, end - record.remaining());
+        }
+        if (grows) {
+            groupCommit.sync(target);
+        } else {
+            groupCommit.syncData(target);
+        }
+        size = end;
+    }
+
+    /**
+     * Read every completely written transaction of the current epoch, oldest first
+     */
+    synchronized List<Map<String, Block>> read() throws IOException {
+        List<Map<String, Block>> transactions = new ArrayList<>();
+        size = scan(transactions);
+        return transactions;
+    }
+
+    /**
+     * Bytes in use: the header and the records of the current epoch
+     */
+    synchronized long getSize() throws IOException {
+        if (size < 0) {
+            size = scan(new ArrayList<>());
+        }
+        return size;
+    }
+
+    /**
+     * Decode the records of the current epoch into the list and return where they end.
+     * A missing or damaged header starts a new epoch.
+     */
+    private long scan(List<Map<String, Block>> transactions) throws IOException {
+        if (!readHeader()) {
+            writeHeader(System.currentTimeMillis());
+            return HEADER_SIZE;
+        }
+        FileChannel source = openChannel();
+        long fileLength = source.size();
+        long valid = HEADER_SIZE;
+        ByteBuffer content = ByteBuffer.allocate((int) (fileLength - HEADER_SIZE));
+        while (content.hasRemaining() && source.read(content, HEADER_SIZE + content.position()) >= 0) {
+            // Keep reading until the records are complete
+        }
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(content.array(), 0, content.position()))) {
+            while (fileLength - valid >= RECORD_HEADER_SIZE + RECORD_TRAILER_SIZE) {
+                long recordEpoch = in.readLong();
+                int length = in.readInt();
+                if (recordEpoch != epoch || length < 0
+                    || length > fileLength - valid - RECORD_HEADER_SIZE - RECORD_TRAILER_SIZE) {
+                    break;
+                }
+                byte[] bytes = new byte[length];
+                in.readFully(bytes);
+                if (in.readInt() != Crc32c.compute(Crc32c.create(), bytes, 0, bytes.length)) {
+                    break;
+                }
+                valid += RECORD_HEADER_SIZE + length + RECORD_TRAILER_SIZE;
+
+                Map<String, Block> blocks = new LinkedHashMap<>();
+                DataInputStream payload = new DataInputStream(new ByteArrayInputStream(bytes));
+                int count = payload.readInt();
+                for (int i = 0; i < count; i++) {
+                    String filename = payload.readUTF();
+                    String logIdentity = payload.readUTF();
+                    byte[] frames = new byte[payload.readInt()];
+                    payload.readFully(frames);
+                    blocks.put(filename, new Block(logIdentity, frames));
+                }
+                transactions.add(blocks);
+            }
+        }
+        return valid;
+    }
+
+    private boolean readHeader() throws IOException {
+        FileChannel source = openChannel();
+        if (source.size() < HEADER_SIZE) {
+            return false;
+        }
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        while (header.hasRemaining() && source.read(header, header.position()) >= 0) {
+            // Keep reading until the header is complete
+        }
+        header.flip();
+        if (header.getInt() != MAGIC) {
+            return false;
+        }
+        long stored = header.getLong();
+        if (header.getInt() != epochChecksum(stored)) {
+            return false;
+        }
+        epoch = stored;
+        return true;
+    }
+
+    /**
+     * Start a new epoch, preallocating the file on first use
+     */
+    private void writeHeader(long newEpoch) throws IOException {
+        FileChannel target = openChannel();
+        boolean grows = target.size() < capacity;
+        if (grows) {
+            ByteBuffer zeros = ByteBuffer.allocate(64 * 1024);
+            for (long position = target.size(); position < capacity; position += zeros.limit()) {
+                zeros.clear();
+                zeros.limit((int) Math.min(zeros.capacity(), capacity - position));
+                while (zeros.hasRemaining()) {
+                    target.write(zeros, position + zeros.position());
+                }
+            }
+        }
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).putLong(newEpoch).putInt(epochChecksum(newEpoch));
+        header.flip();
+        while (header.hasRemaining()) {
+            target.write(header, header.position());
+        }
+        if (grows) {
+            groupCommit.sync(target);
+        } else {
+            groupCommit.syncData(target);
+        }
+        epoch = newEpoch;
+    }
+
+    private static int epochChecksum(long value) {
+        byte[] bytes = ByteBuffer.allocate(8).putLong(value).array();
+        return Crc32c.compute(Crc32c.create(), bytes, 0, bytes.length);
+    }
+
+    /**
+     * Forget all transactions; their frames must be durable in the logs by now
+     */
+    synchronized void clear() throws IOException {
+        if (getSize() == HEADER_SIZE) {
+            return;
+        }
+        writeHeader(epoch + 1);
+        size = HEADER_SIZE;
+    }
+
+    /**
+     * Open the journal and lock it for this process. Returns false, leaving it closed,
+     * if another process (or another manager in this JVM) holds it.
+     */
+    synchronized boolean acquire() throws IOException {
+        if (channel != null) {
+            return true;
+        }
+        String path = file.getAbsolutePath();
+        synchronized (held) {
+            if (!held.add(path)) {
+                return false;
+            }
+        }
+        boolean created = !file.exists();
+        FileChannel opened = null;
+        try {
+            opened = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                                      StandardOpenOption.READ, StandardOpenOption.WRITE);
+            lock = opened.tryLock();
+        } catch (OverlappingFileLockException e) {
+            lock = null;
+        } finally {
+            if (lock == null) {
+                if (opened != null) {
+                    opened.close();
+                }
+                synchronized (held) {
+                    held.remove(path);
+                }
+            }
+        }
+        if (lock == null) {
+            return false;
+        }
+        channel = opened;
+        if (created) {
+            groupCommit.syncDirectory(file.toPath().toAbsolutePath().getParent());
+        }
+        return true;
+    }
+
+    private FileChannel openChannel() throws IOException {
+        if (channel == null && !acquire()) {
+            throw new IOException("Transaction journal " + file.getName() + " is in use by another process");
+        }
+        return channel;
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    synchronized void close() {
+        if (channel != null) {
+            try {
+                // Closing the channel also releases the lock
+                channel.close();
+            } catch (IOException e) {
+                System.err.println("Error closing transaction journal: " + e.getMessage());
+            }
+            channel = null;
+            lock = null;
+            synchronized (held) {
+                held.remove(file.getAbsolutePath());
+            }
+        }
+        size = -1;
+    }
+}
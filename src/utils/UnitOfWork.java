@@ -0,0 +1,150 @@
+package utils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * UnitOfWork class for changes to several data files that must be persisted together,
+ * such as completing an appointment and creating its bill. Services stage changed entities
+ * in their DirtyTrackers; commit hands everything staged to the storage engine as one write,
+ * which the log-structured engine makes atomic across files. If the commit fails, the
+ * entities it made dirty are discarded from their trackers, so no later flush writes them,
+ * and the rollback actions restore the in-memory state.
+ */
+public class UnitOfWork {
+    private final StorageEngine storage;
+    // Ordered by file name, which is also the order the trackers' submit locks are taken in
+    private final Map<String, DirtyTracker<?>> trackers = new TreeMap<>();
+    private final Map<String, List<String>> keys = new LinkedHashMap<>();
+    private final Map<String, List<Object>> records = new LinkedHashMap<>();
+    // Entities that had no unsaved changes before they were staged, by tracker file name
+    private final Map<String, List<Object>> staged = new LinkedHashMap<>();
+    private final List<Runnable> rollbackActions = new ArrayList<>();
+    private boolean committed;
+
+    public UnitOfWork(StorageEngine storage) {
+        this.storage = storage;
+    }
+
+    /**
+     * Mark an entity as changed in its tracker; it is written when the unit commits
+     */
+    public <T> void stage(DirtyTracker<T> tracker, T entity) {
+        if (tracker.getStorage() != storage) {
+            throw new IllegalArgumentException(tracker.getFilename() + " is stored by a different storage engine");
+        }
+        if (!tracker.isDirty(tracker.getKey(entity))) {
+            staged.computeIfAbsent(tracker.getFilename(), name -> new ArrayList<>()).add(entity);
+        }
+        tracker.markDirty(entity);
+        trackers.put(tracker.getFilename(), tracker);
+    }
+
+    /**
+     * Register an action that undoes an in-memory change if the commit fails.
+     * Actions run in reverse order of registration.
+     */
+    public void onRollback(Runnable action) {
+        rollbackActions.add(action);
+    }
+
+    /**
+     * Persist every staged change in one write and wait until it is durable.
+     * Returns false and runs the rollback actions if the write failed.
+     */
+    public boolean commit() {
+        if (committed) {
+            throw new IllegalStateException("Unit of work already committed");
+        }
+        committed = true;
+        boolean saved = submit(new ArrayList<>(trackers.values()), 0).join();
+        if (!saved) {
+            List<Runnable> actions = new ArrayList<>(rollbackActions);
+            Collections.reverse(actions);
+            actions.forEach(Runnable::run);
+        }
+        return saved;
+    }
+
+    /**
+     * Take every tracker's submit lock, then the unsent entities of all of them, so no
+     * single-file flush can slip a staged entity out of the unit or reorder the writes
+     */
+    private CompletableFuture<Boolean> submit(List<DirtyTracker<?>> ordered, int index) {
+        if (index < ordered.size()) {
+            synchronized (ordered.get(index).getSubmitLock()) {
+                return submit(ordered, index + 1);
+            }
+        }
+
+        Map<DirtyTracker<?>, DirtyTracker.Batch<?>> batches = new LinkedHashMap<>();
+        for (DirtyTracker<?> tracker : ordered) {
+            DirtyTracker.Batch<?> batch = tracker.takeUnsent();
+            if (batch != null) {
+                keys.put(tracker.getFilename(), batch.keys);
+                records.put(tracker.getFilename(), new ArrayList<>(batch.records));
+                batches.put(tracker, batch);
+            }
+        }
+        if (batches.isEmpty()) {
+            return CompletableFuture.completedFuture(true);
+        }
+
+        CompletableFuture<Boolean> write = storage.commitAsync(this);
+        CompletableFuture<Boolean> result = write;
+        for (Map.Entry<DirtyTracker<?>, DirtyTracker.Batch<?>> entry : batches.entrySet()) {
+            DirtyTracker<?> tracker = entry.getKey();
+            List<Object> discard = staged.getOrDefault(tracker.getFilename(), Collections.emptyList());
+            result = result.thenCombine(track(tracker, entry.getValue(), write, discard), (a, b) -> a && b);
+        }
+        return result;
+    }
+
+    /**
+     * Settle a batch when the write completes. On failure the staged entities are discarded
+     * first, so the tracker does not queue them again for a later flush.
+     */
+    @SuppressWarnings("unchecked")
+    private static <T> CompletableFuture<Boolean> track(DirtyTracker<T> tracker, DirtyTracker.Batch<?> batch,
+                                                        CompletableFuture<Boolean> write, List<Object> discard) {
+        CompletableFuture<Boolean> discarded = write.thenApply(saved -> {
+            if (!saved) {
+                for (Object entity : discard) {
+                    tracker.discard((T) entity);
+                }
+            }
+            return saved;
+        });
+        return tracker.track((DirtyTracker.Batch<T>) batch, discarded);
+    }
+
+    /**
+     * Add a record directly, for engines that pass a unit on to another engine in a different
+     * file layout; such units are committed through that engine's commit, not through commit()
+     */
+    void add(String filename, String key, Object record) {
+        keys.computeIfAbsent(filename, name -> new ArrayList<>()).add(key);
+        records.computeIfAbsent(filename, name -> new ArrayList<>()).add(record);
+    }
+
+    /**
+     * Data files with changes in this unit, once it is being committed
+     */
+    public Set<String> getFilenames() {
+        return keys.keySet();
+    }
+
+    public List<String> getKeys(String filename) {
+        return keys.get(filename);
+    }
+
+    public List<Object> getRecords(String filename) {
+        return records.get(filename);
+    }
+}
@@ -18,6 +18,10 @@ public class ValidationUtils {
         "^[+]?[1-9]?[0-9]{7,15}$"
     );
     
+    private static final Pattern PHONE_SEPARATORS = Pattern.compile(
+        "[\\s\\-\\(\\)]"
+    );
+    
     private static final Pattern NAME_PATTERN = Pattern.compile(
         "^[a-zA-Z\\s'-]{2,50}$"
     );
@@ -47,7 +51,7 @@ public class ValidationUtils {
     public static boolean isValidPhoneNumber(String phone) {
         if (!isNotEmpty(phone)) return false;
         // Remove spaces, dashes, and parentheses
-        String cleanPhone = phone.replaceAll("[\\s\\-\\(\\)]", "");
+        String cleanPhone = PHONE_SEPARATORS.matcher(phone).replaceAll("");
         return PHONE_PATTERN.matcher(cleanPhone).matches();
     }
     
@@ -223,7 +227,7 @@ public class ValidationUtils {
      */
     public static String formatPhoneNumber(String phone) {
         if (!isNotEmpty(phone)) return "";
-        return phone.replaceAll("[\\s\\-\\(\\)]", "");
+        return PHONE_SEPARATORS.matcher(phone).replaceAll("");
     }
     
     /**
@@ -0,0 +1,603 @@
+package utils;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Supplier;
+import java.util.zip.Checksum;
+
+/**
+ * WriteAheadLog class for append-only persistence of single record changes.
+ * Each entry is a length-prefixed frame holding the record key and the record itself,
+ * encoded with the file's RecordCodec when one is registered and Java serialization otherwise.
+ * Appends are forced to disk through the shared GroupCommit before they are acknowledged.
+ * A frame's length has its top bit set and is followed by the CRC32C of the payload, so a torn
+ * or garbled frame is recognised even when its length looks valid; reading stops at the first
+ * frame that fails the check. Frames written before checksums were added have no top bit and
+ * no checksum; they are accepted until the first checksummed frame of a file.
+ *
+ * Other processes may append to the same log. The log remembers how far this process has read
+ * or written it, and which sealed segments it has read, so their entries can be read on their own.
+ * Every log file starts with a frame holding a random ID, which identifies it after it is sealed
+ * under another name; inode numbers cannot be used since they are reused right away.
+ */
+class WriteAheadLog {
+    private static final int CODEC_FRAME = 1; // Java serialization frames start with 0xAC instead
+    private static final int RESET_FRAME = 2; // the data file was replaced as a whole
+    private static final int LOG_ID_FRAME = 3; // first frame of every log file
+    private static final int LOG_ID_FRAME_SIZE = 4 + 1 + 8;
+    private static final int CHECKED = 0x80000000; // set in the length of a checksummed frame
+    private static final Entry RESET = new Entry(null, null);
+    private static final Entry LOG_ID = new Entry(null, null);
+
+    private final File file;
+    private final RecordCodec<Object> codec;
+    private final GroupCommit groupCommit;
+    private FileChannel channel;
+    private String channelIdentity;
+    private int recordCount;
+    private long size;
+    // How far this process has read or written the log file with this identity (null: no file)
+    private String readIdentity;
+    private long readPosition;
+    private final Map<String, Long> readSegments = new HashMap<>();
+
+    @SuppressWarnings("unchecked")
+    WriteAheadLog(File file, RecordCodec<?> codec, GroupCommit groupCommit) {
+        this.file = file;
+        this.codec = (RecordCodec<Object>) codec;
+        this.groupCommit = groupCommit;
+    }
+
+    /**
+     * A single replayed log entry
+     */
+    static class Entry {
+        final String key;
+        final Object record;
+
+        Entry(String key, Object record) {
+            this.key = key;
+            this.record = record;
+        }
+    }
+
+    /**
+     * Append one record to the end of the log and wait until it is durable
+     */
+    void append(String key, Object record) throws IOException {
+        appendAll(Collections.singletonList(key), Collections.singletonList(record));
+    }
+
+    /**
+     * Append several records and wait until all of them are durable, with a single sync
+     */
+    void appendAll(List<String> keys, List<?> records) throws IOException {
+        FileChannel target = writeFrames(encodeFrames(keys, records), keys.size());
+        // Sync outside the lock so concurrent appends can share one fsync
+        sync(target);
+    }
+
+    /**
+     * Encode records as the length-prefixed frames they are stored in
+     */
+    byte[] encodeFrames(List<String> keys, List<?> records) throws IOException {
+        ByteArrayOutputStream frames = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(frames);
+        Checksum crc = Crc32c.create();
+        for (int i = 0; i < keys.size(); i++) {
+            writeFrame(out, encode(keys.get(i), records.get(i)), crc);
+        }
+        return frames.toByteArray();
+    }
+
+    private static void writeFrame(DataOutputStream out, byte[] payload, Checksum crc) throws IOException {
+        out.writeInt(payload.length | CHECKED);
+        out.writeInt(Crc32c.compute(crc, payload, 0, payload.length));
+        out.write(payload);
+    }
+
+    /**
+     * Write encoded frames in one piece without waiting for them to be durable;
+     * returns the channel to sync
+     */
+    synchronized FileChannel writeFrames(byte[] frames, int count) throws IOException {
+        ByteBuffer frame = ByteBuffer.wrap(frames);
+        FileChannel target = openChannel();
+        long start = target.size();
+        while (frame.hasRemaining()) {
+            target.write(frame);
+        }
+        if (Objects.equals(readIdentity, channelIdentity) && readPosition == start) {
+            readPosition = start + frames.length;
+        }
+        recordCount += count;
+        size = start + frames.length;
+        return target;
+    }
+
+    /**
+     * Mark that the data file was replaced as a whole, so other processes reading the log
+     * reload the file instead of applying entries. Not forced: it only matters to running processes.
+     */
+    void writeReset() throws IOException {
+        ByteArrayOutputStream frame = new ByteArrayOutputStream();
+        writeFrame(new DataOutputStream(frame), new byte[] {RESET_FRAME}, Crc32c.create());
+        writeFrames(frame.toByteArray(), 0);
+    }
+
+    /**
+     * Wait until a channel returned by writeFrames is durable
+     */
+    void sync(FileChannel target) throws IOException {
+        try {
+            groupCommit.sync(target);
+        } catch (ClosedChannelException e) {
+            // The log was rotated or truncated meanwhile; both make the entries durable first
+        }
+    }
+
+    private byte[] encode(String key, Object record) throws IOException {
+        if (codec != null) {
+            RecordWriter writer = new RecordWriter();
+            writer.writeByte(CODEC_FRAME);
+            writer.writeVarInt(codec.getVersion());
+            writer.writeString(key);
+            codec.encode(record, writer);
+            return writer.toByteArray();
+        }
+
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        try (ObjectOutputStream oos = new ObjectOutputStream(buffer)) {
+            oos.writeUTF(key);
+            oos.writeObject(record);
+        }
+        return buffer.toByteArray();
+    }
+
+    private FileChannel openChannel() throws IOException {
+        if (channel == null) {
+            boolean created = !file.exists();
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                                       StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            if (channel.size() == 0) {
+                // Forced, so a transaction journal naming this log can always find it again
+                ByteBuffer id = ByteBuffer.allocate(LOG_ID_FRAME_SIZE);
+                id.putInt(1 + 8).put((byte) LOG_ID_FRAME).putLong(ThreadLocalRandom.current().nextLong()).flip();
+                while (id.hasRemaining()) {
+                    channel.write(id);
+                }
+                groupCommit.sync(channel);
+            }
+            size = channel.size();
+            channelIdentity = identityOf(file);
+            if (readIdentity == null && readPosition == 0) {
+                // Not read before: entries already in the file are not this process's concern
+                readIdentity = channelIdentity;
+                readPosition = size;
+            }
+            if (created) {
+                groupCommit.syncDirectory(file.toPath().toAbsolutePath().getParent());
+            }
+        }
+        return channel;
+    }
+
+    /**
+     * Identity of a log file: the ID in its first frame, or for logs written before IDs were
+     * added its file key; null if the file does not exist
+     */
+    static String identityOf(File file) {
+        try (FileChannel source = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer id = ByteBuffer.allocate(LOG_ID_FRAME_SIZE);
+            while (id.hasRemaining() && source.read(id) >= 0) {
+                // Keep reading until the frame is complete
+            }
+            if (!id.hasRemaining() && id.getInt(0) == 1 + 8 && id.get(4) == LOG_ID_FRAME) {
+                return Long.toHexString(id.getLong(5));
+            }
+            Object key = Files.readAttributes(file.toPath(), BasicFileAttributes.class).fileKey();
+            return String.valueOf(key != null ? key : file.getName());
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Identity of the log file new frames are appended to, creating the file if needed
+     */
+    synchronized String openForAppend() throws IOException {
+        openChannel();
+        return channelIdentity;
+    }
+
+    /**
+     * Read the entries other processes appended since this process last read or wrote the log,
+     * oldest first. A log sealed meanwhile is followed into its segment. Returns null if the
+     * entries can no longer be followed (their segment was checkpointed and deleted, or the
+     * data file was replaced): the whole file has to be reloaded, and reading continues from
+     * the current end. Call with the file's lock held.
+     */
+    synchronized List<Entry> readExternal(Supplier<List<File>> segmentLister) throws IOException, ClassNotFoundException {
+        String live = identityOf(file);
+        if (channel != null && !Objects.equals(channelIdentity, live)) {
+            // Sealed or removed by another process; later appends go to the current log
+            close();
+        }
+        if (live != null && live.equals(readIdentity) && file.length() == readPosition) {
+            return new ArrayList<>();
+        }
+
+        List<File> segments = segmentLister.get();
+        Set<String> listed = new HashSet<>();
+        for (File segment : segments) {
+            listed.add(identityOf(segment));
+        }
+        boolean lost = false;
+        if (readIdentity != null && !readIdentity.equals(live)) {
+            if (listed.contains(readIdentity)) {
+                readSegments.put(readIdentity, readPosition);
+            } else {
+                lost = true;
+            }
+            readIdentity = null;
+            readPosition = 0;
+        }
+
+        List<Entry> entries = new ArrayList<>();
+        for (File segment : segments) {
+            String identity = identityOf(segment);
+            long position = readSegments.getOrDefault(identity, 0L);
+            if (!lost && position < segment.length() && readFrom(segment, position, entries) < 0) {
+                lost = true;
+            }
+            readSegments.put(identity, segment.length());
+        }
+        readSegments.keySet().retainAll(listed);
+        if (live != null) {
+            if (!live.equals(readIdentity)) {
+                readIdentity = live;
+                readPosition = 0;
+            }
+            long end = lost ? -1 : readFrom(file, readPosition, entries);
+            if (end < 0) {
+                lost = true;
+            } else {
+                readPosition = end;
+            }
+            size = Math.max(size, file.length());
+        }
+
+        if (lost) {
+            resync(segments);
+            return null;
+        }
+        return entries;
+    }
+
+    /**
+     * Decode the complete frames of a log file from a position on; returns the position after
+     * the last complete frame, or -1 if a reset frame was found
+     */
+    private long readFrom(File log, long position, List<Entry> entries) throws IOException, ClassNotFoundException {
+        try (FileChannel source = FileChannel.open(log.toPath(), StandardOpenOption.READ)) {
+            FrameReader frames = new FrameReader(new BufferedInputStream(
+                Channels.newInputStream(source.position(position))), source.size() - position);
+            byte[] payload;
+            while ((payload = frames.next()) != null) {
+                Entry entry = decode(payload);
+                if (entry == RESET) {
+                    return -1;
+                }
+                if (entry != LOG_ID) {
+                    entries.add(entry);
+                }
+            }
+            return position + frames.getValidLength();
+        } catch (NoSuchFileException e) {
+            // Checkpointed and deleted while being listed
+            return -1;
+        }
+    }
+
+    /**
+     * Treat everything now in the log and the given segments as read
+     */
+    synchronized void resync(List<File> segments) {
+        readSegments.clear();
+        for (File segment : segments) {
+            readSegments.put(identityOf(segment), segment.length());
+        }
+        readIdentity = identityOf(file);
+        readPosition = readIdentity != null ? file.length() : 0;
+    }
+
+    /**
+     * Read every complete entry in the log into the list. The first torn or damaged frame
+     * (crash mid-append) ends the replay and is cut off with everything after it. If an
+     * intact frame cannot be decoded, the entries before it stay in the list.
+     */
+    synchronized void replay(List<Entry> entries) throws IOException, ClassNotFoundException {
+        if (!file.exists()) {
+            recordCount = 0;
+            size = 0;
+            return;
+        }
+
+        long fileLength = file.length();
+        int replayed = 0;
+        FrameReader frames;
+        try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+            frames = new FrameReader(in, fileLength);
+            byte[] payload;
+            while ((payload = frames.next()) != null) {
+                Entry entry = decode(payload);
+                if (entry != RESET && entry != LOG_ID) {
+                    entries.add(entry);
+                    replayed++;
+                }
+            }
+        }
+
+        long validLength = frames.getValidLength();
+        if (validLength < fileLength) {
+            System.err.println("Discarding " + (fileLength - validLength) + " bytes of torn or damaged frames at the end of "
+                               + file.getName());
+            // Cut off the torn frame so later appends are not hidden behind it
+            close();
+            try (FileChannel truncator = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+                truncator.truncate(validLength);
+                truncator.force(true);
+            }
+        }
+        recordCount = replayed;
+        size = validLength;
+    }
+
+    /**
+     * Reads the frames of a log one at a time, up to the first one that is torn or fails its
+     * checksum; once a checksummed frame was read, a frame without one counts as damaged too
+     */
+    private static final class FrameReader {
+        private final DataInputStream in;
+        private final Checksum crc = Crc32c.create();
+        private long remaining;
+        private long validLength;
+        private boolean checked;
+
+        FrameReader(InputStream in, long length) {
+            this.in = new DataInputStream(in);
+            this.remaining = length;
+        }
+
+        /**
+         * The payload of the next intact frame, or null at the end of the intact frames
+         */
+        byte[] next() throws IOException {
+            if (remaining < 4) {
+                return null;
+            }
+            int header = in.readInt();
+            boolean frameChecked = (header & CHECKED) != 0;
+            int length = header & ~CHECKED;
+            int headerSize = frameChecked ? 8 : 4;
+            if ((checked && !frameChecked) || length > remaining - headerSize) {
+                return null;
+            }
+            int expected = frameChecked ? in.readInt() : 0;
+            byte[] payload = new byte[length];
+            in.readFully(payload);
+            if (frameChecked && Crc32c.compute(crc, payload, 0, length) != expected) {
+                return null;
+            }
+            checked |= frameChecked;
+            remaining -= headerSize + length;
+            validLength += headerSize + length;
+            return payload;
+        }
+
+        /**
+         * Bytes taken by the intact frames read so far
+         */
+        long getValidLength() {
+            return validLength;
+        }
+    }
+
+    private Entry decode(byte[] payload) throws IOException, ClassNotFoundException {
+        if (payload.length == 1 && payload[0] == RESET_FRAME) {
+            return RESET;
+        }
+        if (payload.length == 9 && payload[0] == LOG_ID_FRAME) {
+            return LOG_ID;
+        }
+        if (payload.length > 0 && payload[0] == CODEC_FRAME) {
+            if (codec == null) {
+                throw new IOException("Log entry needs a codec but none is registered for " + file.getName());
+            }
+            RecordReader reader = new RecordReader(payload, 1, payload.length - 1);
+            int version = reader.readVarInt();
+            String key = reader.readString();
+            return new Entry(key, codec.decode(reader, version));
+        }
+
+        try (ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(payload))) {
+            return new Entry(ois.readUTF(), ois.readObject());
+        }
+    }
+
+    /**
+     * Wait until frames written without syncing are durable
+     */
+    void force() throws IOException {
+        FileChannel target;
+        synchronized (this) {
+            target = channel;
+        }
+        if (target != null) {
+            sync(target);
+        }
+    }
+
+    /**
+     * Force the log file, also if this process has not written to it
+     */
+    void forceFile() throws IOException {
+        synchronized (this) {
+            if (!file.exists()) {
+                return;
+            }
+            openChannel();
+        }
+        force();
+    }
+
+    /**
+     * Cut off a torn frame at the tail without decoding the entries
+     */
+    synchronized void repairTail() throws IOException {
+        close();
+        if (!file.exists()) {
+            return;
+        }
+        byte[] bytes = Files.readAllBytes(file.toPath());
+        FrameReader frames = new FrameReader(new ByteArrayInputStream(bytes), bytes.length);
+        while (frames.next() != null) {
+            // Skip to the end of the intact frames
+        }
+        long validLength = frames.getValidLength();
+        if (validLength < bytes.length) {
+            try (FileChannel truncator = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+                truncator.truncate(validLength);
+                truncator.force(true);
+            }
+        }
+        size = validLength;
+    }
+
+    /**
+     * Check whether a log file holds the given run of frames, starting at a frame boundary
+     */
+    static boolean containsFrames(File log, byte[] frames) throws IOException {
+        if (!log.exists()) {
+            return false;
+        }
+        byte[] bytes = Files.readAllBytes(log.toPath());
+        FrameReader reader = new FrameReader(new ByteArrayInputStream(bytes), bytes.length);
+        do {
+            int position = (int) reader.getValidLength();
+            if (position + frames.length <= bytes.length && regionEquals(bytes, position, frames)) {
+                return true;
+            }
+        } while (reader.next() != null);
+        return false;
+    }
+
+    /**
+     * Count the frames in a run of encoded frames
+     */
+    static int countFrames(byte[] frames) {
+        FrameReader reader = new FrameReader(new ByteArrayInputStream(frames), frames.length);
+        int count = 0;
+        try {
+            while (reader.next() != null) {
+                count++;
+            }
+        } catch (IOException e) {
+            // Not possible for a byte array
+        }
+        return count;
+    }
+
+    private static boolean regionEquals(byte[] bytes, int position, byte[] region) {
+        for (int i = 0; i < region.length; i++) {
+            if (bytes[position + i] != region[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Seal the current entries by renaming the log file; later appends start a new file.
+     * Returns false if there was nothing to seal.
+     */
+    synchronized boolean rotate(File sealed) throws IOException {
+        if (channel != null) {
+            // Appends still waiting for their sync lose the channel when it closes
+            channel.force(true);
+        }
+        close();
+        recordCount = 0;
+        size = 0;
+        if (!file.exists() || file.length() == 0) {
+            return false;
+        }
+        if (readIdentity != null && readIdentity.equals(identityOf(file))) {
+            readSegments.put(readIdentity, readPosition);
+        }
+        readIdentity = null;
+        readPosition = 0;
+        Files.move(file.toPath(), sealed.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        groupCommit.syncDirectory(file.toPath().toAbsolutePath().getParent());
+        return true;
+    }
+
+    /**
+     * Discard all entries, normally after they have been folded into a snapshot
+     */
+    synchronized boolean truncate() {
+        close();
+        recordCount = 0;
+        size = 0;
+        readIdentity = null;
+        readPosition = 0;
+        return !file.exists() || file.delete();
+    }
+
+    /**
+     * Release the append channel; it is reopened on the next append
+     */
+    synchronized void close() {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                System.err.println("Error closing log " + file.getName() + ": " + e.getMessage());
+            }
+            channel = null;
+            channelIdentity = null;
+        }
+    }
+
+    synchronized int getRecordCount() {
+        return recordCount;
+    }
+
+    /**
+     * Size of the log in bytes
+     */
+    synchronized long getSize() {
+        return size;
+    }
+
+    File getFile() {
+        return file;
+    }
+}
@@ -0,0 +1,257 @@
+package utils;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+
+/**
+ * WriteBehindStorageEngine class for moving persistence off the calling thread.
+ * Changed records are queued for a single writer thread that passes them to the wrapped
+ * engine; callers get a future instead of waiting for the disk. A write that is still
+ * queued absorbs later changes to the same file (the newest version of a record wins),
+ * and the queue is bounded, so callers block when the disk falls too far behind.
+ * Loads and whole-file saves wait for queued writes of their file first.
+ */
+public class WriteBehindStorageEngine implements StorageEngine {
+    private static final int MAX_BATCH_RECORDS = 10000;
+
+    private final StorageEngine delegate;
+    private final BlockingQueue<PendingWrite> queue;
+    private final Map<String, PendingWrite> coalescing = new HashMap<>();
+    private final Thread writer;
+    private volatile boolean closed;
+
+    /**
+     * One queued unit of work for the writer thread
+     */
+    private static class PendingWrite {
+        final String filename;
+        final Map<String, Object> records = new LinkedHashMap<>();
+        final Runnable action;
+        final UnitOfWork transaction;
+        final CompletableFuture<Boolean> future = new CompletableFuture<>();
+
+        PendingWrite(String filename, Runnable action) {
+            this(filename, action, null);
+        }
+
+        PendingWrite(String filename, Runnable action, UnitOfWork transaction) {
+            this.filename = filename;
+            this.action = action;
+            this.transaction = transaction;
+        }
+    }
+
+    public WriteBehindStorageEngine(StorageEngine delegate, int queueCapacity) {
+        this.delegate = delegate;
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        this.writer = new Thread(this::runWriter, "write-behind");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    @Override
+    public String getName() {
+        return "write-behind " + delegate.getName();
+    }
+
+    @Override
+    public <T> List<T> load(String filename, Function<T, String> keyExtractor) {
+        awaitQueued(filename);
+        return delegate.load(filename, keyExtractor);
+    }
+
+    @Override
+    public <T> boolean saveRecords(String filename, List<String> keys, List<T> records) {
+        return saveRecordsAsync(filename, keys, records).join();
+    }
+
+    @Override
+    public <T> CompletableFuture<Boolean> saveRecordsAsync(String filename, List<String> keys, List<T> records) {
+        PendingWrite write;
+        synchronized (coalescing) {
+            write = coalescing.get(filename);
+            if (write != null && write.records.size() < MAX_BATCH_RECORDS) {
+                merge(write, keys, records);
+                return write.future;
+            }
+            write = new PendingWrite(filename, null);
+            merge(write, keys, records);
+            coalescing.put(filename, write);
+        }
+        // Outside the lock: blocks while the queue is full
+        enqueue(write);
+        return write.future;
+    }
+
+    private static <T> void merge(PendingWrite write, List<String> keys, List<T> records) {
+        for (int i = 0; i < keys.size(); i++) {
+            write.records.put(ValidationUtils.formatId(keys.get(i)), records.get(i));
+        }
+    }
+
+    @Override
+    public boolean commit(UnitOfWork work) {
+        return commitAsync(work).join();
+    }
+
+    /**
+     * Queue a unit of work as a single write; the wrapped engine commits it as a whole
+     */
+    @Override
+    public CompletableFuture<Boolean> commitAsync(UnitOfWork work) {
+        PendingWrite write = new PendingWrite(String.join(", ", work.getFilenames()), null, work);
+        synchronized (coalescing) {
+            // Later changes to these files are queued behind the transaction
+            for (String filename : work.getFilenames()) {
+                coalescing.remove(filename);
+            }
+        }
+        enqueue(write);
+        return write.future;
+    }
+
+    @Override
+    public <T> boolean saveAll(String filename, List<T> data, Function<T, String> keyExtractor) {
+        awaitQueued(filename);
+        return delegate.saveAll(filename, data, keyExtractor);
+    }
+
+    @Override
+    public boolean delete(String filename) {
+        awaitQueued(filename);
+        return delegate.delete(filename);
+    }
+
+    /**
+     * Health records keep the wrapped engine's record store, which writes synchronously
+     */
+    @Override
+    public <T> RecordStore<T> openRecordStore(String filename, Function<T, String> keyExtractor,
+                                              Function<T, String> groupExtractor) throws IOException {
+        return delegate.openRecordStore(filename, keyExtractor, groupExtractor);
+    }
+
+    @Override
+    public <T> RecordArchive<T> openArchive(String filename, Function<T, String> keyExtractor) throws IOException {
+        return delegate.openArchive(filename, keyExtractor);
+    }
+
+    @Override
+    public <T> void addChangeListener(String filename, ExternalChangeListener<T> listener) {
+        delegate.addChangeListener(filename, listener);
+    }
+
+    /**
+     * Wait until every write queued so far for a file has been performed
+     */
+    public void awaitQueued(String filename) {
+        if (closed || Thread.currentThread() == writer) {
+            return;
+        }
+        PendingWrite barrier = new PendingWrite(filename, () -> { });
+        enqueue(barrier);
+        barrier.future.join();
+    }
+
+    private synchronized void enqueue(PendingWrite write) {
+        if (closed) {
+            write.future.complete(false);
+            return;
+        }
+        try {
+            queue.put(write);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            write.future.complete(false);
+        }
+    }
+
+    private void runWriter() {
+        while (true) {
+            PendingWrite write;
+            try {
+                write = queue.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (write.filename == null) {
+                write.future.complete(true);
+                return;
+            }
+            if (write.action != null) {
+                write.action.run();
+                write.future.complete(true);
+                continue;
+            }
+
+            if (write.transaction != null) {
+                write.future.complete(commitTransaction(write));
+                continue;
+            }
+
+            List<String> keys;
+            List<Object> records;
+            synchronized (coalescing) {
+                // Later changes go to a new write from here on
+                coalescing.remove(write.filename, write);
+                keys = new ArrayList<>(write.records.keySet());
+                records = new ArrayList<>(write.records.values());
+            }
+            boolean saved;
+            try {
+                saved = delegate.saveRecords(write.filename, keys, records);
+            } catch (RuntimeException e) {
+                System.err.println("Error writing " + write.filename + " in the background: " + e.getMessage());
+                saved = false;
+            }
+            if (!saved) {
+                System.err.println("Background write of " + keys.size() + " record(s) to " + write.filename + " failed");
+            }
+            write.future.complete(saved);
+        }
+    }
+
+    private boolean commitTransaction(PendingWrite write) {
+        boolean saved;
+        try {
+            saved = delegate.commit(write.transaction);
+        } catch (RuntimeException e) {
+            System.err.println("Error committing " + write.filename + " in the background: " + e.getMessage());
+            saved = false;
+        }
+        if (!saved) {
+            System.err.println("Background transaction on " + write.filename + " failed");
+        }
+        return saved;
+    }
+
+    /**
+     * Number of writes waiting for the writer thread
+     */
+    public int getQueueLength() {
+        return queue.size();
+    }
+
+    /**
+     * Perform every queued write, then stop the writer thread
+     */
+    public void close() {
+        PendingWrite stop = new PendingWrite(null, null);
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            enqueue(stop);
+            closed = true;
+        }
+        stop.future.join();
+    }
+}